@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Memoizes the result of per-caller checks, keyed by (uid, package).
+ *
+ * <p>Only checks whose result depends solely on the calling package and the permissions granted
+ * to it may be cached here. Checks which note app ops or depend on device state, such as the
+ * location or READ_PHONE_STATE checks, must not be. All results are dropped whenever a package
+ * is installed, updated or removed and whenever the permissions of any uid change. Compat change
+ * overrides and app op modes can change without either being signalled, so a result is also
+ * only used for {@link #DEFAULT_MAX_AGE_MILLIS} after the check ran.
+ */
+public class CallerCheckCache {
+
+    /** How long a cached result is used before the check runs again. */
+    @VisibleForTesting
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60000; // 1 minute
+
+    /** A result of the check and when it stops being used. */
+    private static final class CachedResult {
+        final boolean result;
+        final long expiryMillis;
+
+        CachedResult(boolean result, long expiryMillis) {
+            this.result = result;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+
+    private final Object mLock = new Object();
+    // uid -> (package -> result)
+    private final SparseArray<ArrayMap<String, CachedResult>> mResults = new SparseArray<>();
+    // Bumped on invalidation so a result computed before it is not cached.
+    private int mGeneration;
+    private final long mMaxAgeMillis;
+    private final LongSupplier mClock;
+
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    private final PackageManager.OnPermissionsChangedListener mPermissionsChangedListener =
+            uid -> invalidate();
+
+    /**
+     * @param maxAgeMillis how long a result is used after the check ran.
+     * @param clock the current time in milliseconds, e.g. {@link SystemClock#elapsedRealtime}.
+     */
+    @VisibleForTesting
+    public CallerCheckCache(long maxAgeMillis, @NonNull LongSupplier clock) {
+        mMaxAgeMillis = maxAgeMillis;
+        mClock = clock;
+    }
+
+    public CallerCheckCache(@NonNull Context context) {
+        this(DEFAULT_MAX_AGE_MILLIS, SystemClock::elapsedRealtime);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiverForAllUsers(mPackageChangedReceiver, filter, null, null);
+        PackageManager pm = context.getPackageManager();
+        if (pm != null) {
+            pm.addOnPermissionsChangeListener(mPermissionsChangedListener);
+        }
+    }
+
+    /**
+     * @return The cached result of the check for the caller, running {@code check} on a miss or
+     *     once the cached result is older than the max age.
+     */
+    public boolean get(int uid, @NonNull String callingPackage, @NonNull BooleanSupplier check) {
+        int generation;
+        synchronized (mLock) {
+            ArrayMap<String, CachedResult> results = mResults.get(uid);
+            CachedResult cached = results == null ? null : results.get(callingPackage);
+            if (cached != null && mClock.getAsLong() < cached.expiryMillis) return cached.result;
+            generation = mGeneration;
+        }
+        long checkTimeMillis = mClock.getAsLong();
+        boolean result = check.getAsBoolean();
+        synchronized (mLock) {
+            if (generation != mGeneration) return result;
+            ArrayMap<String, CachedResult> results = mResults.get(uid);
+            if (results == null) {
+                results = new ArrayMap<>();
+                mResults.put(uid, results);
+            }
+            results.put(callingPackage, new CachedResult(result, checkTimeMillis + mMaxAgeMillis));
+        }
+        return result;
+    }
+
+    /**
+     * Drop all cached results.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mResults.clear();
+        }
+    }
+}
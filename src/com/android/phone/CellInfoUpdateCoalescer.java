@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.RemoteException;
+import android.os.WorkSource;
+import android.telephony.CellInfo;
+import android.telephony.ICellInfoCallback;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Coalesces {@code requestCellInfoUpdate} calls for the same phone.
+ *
+ * <p>While a modem query for a phone is in flight, new callbacks are attached to it instead of
+ * triggering another query. A successful result younger than the freshness window is served to
+ * new callers directly without querying the modem.
+ *
+ * <p>The modem query is blamed only on the {@link WorkSource} of the caller which triggered it.
+ * The WorkSource is consumed when the query is issued, so the callers which join the query
+ * later are not attributed any of its power use.
+ *
+ * <p>This class is not thread safe, it must only be used from the thread which handles the
+ * requests and their responses.
+ */
+public class CellInfoUpdateCoalescer {
+    private static final String LOG_TAG = "CellInfoUpdateCoalescer";
+
+    private static final class PhoneEntry {
+        final List<ICellInfoCallback> mCallbacks = new ArrayList<>();
+        // The WorkSource the in-flight query was issued with, that of the triggering caller.
+        WorkSource mWorkSource;
+        boolean mInFlight;
+        List<CellInfo> mLastResult;
+        long mLastResultTimeMs;
+    }
+
+    private final SparseArray<PhoneEntry> mEntries = new SparseArray<>();
+    private final long mFreshnessWindowMs;
+    private final LongSupplier mClock;
+
+    private long mQueryCount;
+    private long mCoalescedCount;
+    private long mCacheHitCount;
+
+    /**
+     * @param freshnessWindowMs How long a result can be served from cache, or 0 to always query.
+     * @param clock The time source, in elapsed realtime milliseconds.
+     */
+    public CellInfoUpdateCoalescer(long freshnessWindowMs, @NonNull LongSupplier clock) {
+        mFreshnessWindowMs = freshnessWindowMs;
+        mClock = clock;
+    }
+
+    /**
+     * Add a request for a cell info update.
+     *
+     * @return true if the caller must issue a new modem query for the phone, using the
+     * WorkSource returned by {@link #getWorkSource}. The result of the query must be reported
+     * with {@link #onResult} or {@link #onError}.
+     */
+    public boolean addRequest(int phoneId, @NonNull ICellInfoCallback callback,
+            @Nullable WorkSource workSource) {
+        PhoneEntry entry = mEntries.get(phoneId);
+        if (entry == null) {
+            entry = new PhoneEntry();
+            mEntries.put(phoneId, entry);
+        }
+
+        if (!entry.mInFlight && entry.mLastResult != null
+                && mClock.getAsLong() - entry.mLastResultTimeMs <= mFreshnessWindowMs) {
+            mCacheHitCount++;
+            deliverResult(callback, entry.mLastResult);
+            return false;
+        }
+
+        entry.mCallbacks.add(callback);
+        if (entry.mInFlight) {
+            mCoalescedCount++;
+            return false;
+        }
+
+        entry.mInFlight = true;
+        entry.mWorkSource = workSource == null ? new WorkSource() : new WorkSource(workSource);
+        mQueryCount++;
+        return true;
+    }
+
+    /**
+     * @return The WorkSource to issue the phone's in-flight query with, that of the caller which
+     * triggered it.
+     */
+    public @Nullable WorkSource getWorkSource(int phoneId) {
+        PhoneEntry entry = mEntries.get(phoneId);
+        return entry == null ? null : entry.mWorkSource;
+    }
+
+    /**
+     * The in-flight query for the phone returned a result. Deliver it to all waiting callers
+     * and keep it for the freshness window.
+     */
+    public void onResult(int phoneId, @NonNull List<CellInfo> result) {
+        PhoneEntry entry = mEntries.get(phoneId);
+        if (entry == null) return;
+        entry.mLastResult = result;
+        entry.mLastResultTimeMs = mClock.getAsLong();
+        for (ICellInfoCallback callback : finishQuery(entry)) {
+            deliverResult(callback, result);
+        }
+    }
+
+    /**
+     * The in-flight query for the phone failed. Deliver the error to all waiting callers.
+     */
+    public void onError(int phoneId, int errorCode, @Nullable String exceptionName,
+            @Nullable String message) {
+        PhoneEntry entry = mEntries.get(phoneId);
+        if (entry == null) return;
+        for (ICellInfoCallback callback : finishQuery(entry)) {
+            try {
+                callback.onError(errorCode, exceptionName, message);
+            } catch (RemoteException re) {
+                Log.w(LOG_TAG, "Discarded CellInfo error due to Callback RemoteException");
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public long getQueryCount() {
+        return mQueryCount;
+    }
+
+    @VisibleForTesting
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    @VisibleForTesting
+    public long getCacheHitCount() {
+        return mCacheHitCount;
+    }
+
+    /**
+     * Dump the coalescing counters.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("freshnessWindowMs=" + mFreshnessWindowMs + ", queries=" + mQueryCount
+                + ", coalesced=" + mCoalescedCount + ", cacheHits=" + mCacheHitCount);
+    }
+
+    private static List<ICellInfoCallback> finishQuery(PhoneEntry entry) {
+        List<ICellInfoCallback> callbacks = new ArrayList<>(entry.mCallbacks);
+        entry.mCallbacks.clear();
+        entry.mInFlight = false;
+        entry.mWorkSource = null;
+        return callbacks;
+    }
+
+    private static void deliverResult(ICellInfoCallback callback, List<CellInfo> result) {
+        try {
+            callback.onCellInfo(result);
+        } catch (RemoteException re) {
+            Log.w(LOG_TAG, "Discarded CellInfo due to Callback RemoteException");
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.telephony.emergency.EmergencyNumber;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable digit trie over the emergency numbers of all phones.
+ *
+ * <p>The index is built from the emergency number lists of every phone's
+ * {@code EmergencyNumberTracker}, which are already scoped to the country each phone is camped
+ * in, and rebuilt whenever any of those lists change. A lookup walks the trie once without
+ * allocating. It answers definitively only when the answer is certain; numbers which are not
+ * plain digit strings, which extend an emergency number and so may match the trackers' country
+ * specific prefix rules, or which the trackers may treat as emergency numbers without listing
+ * them, are reported as {@link #LOOKUP_UNKNOWN} and must be checked against the trackers.
+ */
+public final class EmergencyNumberIndex {
+
+    /** The number is one of the indexed emergency numbers. */
+    public static final int LOOKUP_MATCH = 0;
+    /** The number is not an emergency number on any phone. */
+    public static final int LOOKUP_NO_MATCH = 1;
+    /** The index cannot tell, the trackers must be asked. */
+    public static final int LOOKUP_UNKNOWN = 2;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(prefix = {"LOOKUP_"}, value = {LOOKUP_MATCH, LOOKUP_NO_MATCH, LOOKUP_UNKNOWN})
+    public @interface LookupResult {}
+
+    /**
+     * Numbers the trackers may report as emergency numbers without listing them, e.g. when
+     * there is no SIM. Lookups of these always go to the trackers.
+     */
+    private static final String[] UNLISTED_NUMBERS =
+            {"000", "08", "110", "112", "118", "119", "911", "999"};
+
+    private static final int RADIX = 10;
+    private static final int NO_NODE = 0;
+
+    private static final byte NODE_NONE = 0;
+    private static final byte NODE_EMERGENCY = 1;
+    private static final byte NODE_UNLISTED = 2;
+
+    // mChildren[node * RADIX + digit] is the child node for that digit, or NO_NODE. Node 0 is
+    // the root, which can never be a child.
+    private final int[] mChildren;
+    private final byte[] mNodeTypes;
+    private final int mNumberCount;
+
+    private EmergencyNumberIndex(int[] children, byte[] nodeTypes, int numberCount) {
+        mChildren = children;
+        mNodeTypes = nodeTypes;
+        mNumberCount = numberCount;
+    }
+
+    /**
+     * Build the index.
+     * @param emergencyNumberLists The emergency number list of each phone.
+     */
+    public static @NonNull EmergencyNumberIndex build(
+            @NonNull Collection<List<EmergencyNumber>> emergencyNumberLists) {
+        int maxNodes = 1;
+        for (String number : UNLISTED_NUMBERS) {
+            maxNodes += number.length();
+        }
+        for (List<EmergencyNumber> list : emergencyNumberLists) {
+            if (list == null) continue;
+            for (EmergencyNumber number : list) {
+                maxNodes += number.getNumber().length();
+            }
+        }
+
+        Builder builder = new Builder(maxNodes);
+        for (String number : UNLISTED_NUMBERS) {
+            builder.add(number, NODE_UNLISTED);
+        }
+        for (List<EmergencyNumber> list : emergencyNumberLists) {
+            if (list == null) continue;
+            for (EmergencyNumber emergencyNumber : list) {
+                builder.add(emergencyNumber.getNumber(), NODE_EMERGENCY);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Look up a dialed number.
+     * @param number The number, as passed to {@code isEmergencyNumber}.
+     * @return {@link #LOOKUP_MATCH} if the number is exactly one of the emergency numbers,
+     * {@link #LOOKUP_NO_MATCH} if it certainly is not an emergency number, or
+     * {@link #LOOKUP_UNKNOWN} if the trackers must be asked.
+     */
+    public @LookupResult int lookup(@Nullable String number) {
+        if (number == null || number.isEmpty()) return LOOKUP_UNKNOWN;
+        int node = 0;
+        int length = number.length();
+        for (int i = 0; i < length; i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') return LOOKUP_UNKNOWN;
+            if (mNodeTypes[node] != NODE_NONE) {
+                // The number extends an emergency number, which matches in some countries.
+                return LOOKUP_UNKNOWN;
+            }
+            node = mChildren[node * RADIX + (c - '0')];
+            if (node == NO_NODE) {
+                // Fell off the trie, but a later non-digit character still needs the trackers.
+                return isDigitsOnly(number, i + 1) ? LOOKUP_NO_MATCH : LOOKUP_UNKNOWN;
+            }
+        }
+        switch (mNodeTypes[node]) {
+            case NODE_EMERGENCY:
+                return LOOKUP_MATCH;
+            case NODE_UNLISTED:
+                return LOOKUP_UNKNOWN;
+            default:
+                return LOOKUP_NO_MATCH;
+        }
+    }
+
+    /**
+     * @return The number of distinct emergency numbers in the index.
+     */
+    public int size() {
+        return mNumberCount;
+    }
+
+    private static boolean isDigitsOnly(String number, int start) {
+        for (int i = start; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    private static final class Builder {
+        private final int[] mChildren;
+        private final byte[] mNodeTypes;
+        private int mNodeCount = 1;
+        private int mNumberCount;
+
+        Builder(int maxNodes) {
+            mChildren = new int[maxNodes * RADIX];
+            mNodeTypes = new byte[maxNodes];
+        }
+
+        void add(String number, byte type) {
+            if (number.isEmpty() || !isDigitsOnly(number, 0)) return;
+            int node = 0;
+            for (int i = 0; i < number.length(); i++) {
+                int slot = node * RADIX + (number.charAt(i) - '0');
+                if (mChildren[slot] == NO_NODE) {
+                    mChildren[slot] = mNodeCount++;
+                }
+                node = mChildren[slot];
+            }
+            if (mNodeTypes[node] != NODE_EMERGENCY) {
+                if (type == NODE_EMERGENCY) mNumberCount++;
+                mNodeTypes[node] = type;
+            }
+        }
+
+        EmergencyNumberIndex build() {
+            return new EmergencyNumberIndex(Arrays.copyOf(mChildren, mNodeCount * RADIX),
+                    Arrays.copyOf(mNodeTypes, mNodeCount), mNumberCount);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.util.IndentingPrintWriter;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Always-on counters for requests sent to {@link PhoneInterfaceManager}'s main thread handler.
+ *
+ * <p>For each command this tracks the time spent waiting in the main looper queue
+ * (enqueue to start), the time spent executing (start to complete), the end to end latency,
+ * the number of blocking requests which timed out and the UIDs which sent the command. It also
+ * tracks the number of requests currently queued and the largest number ever queued.
+ */
+public class MainThreadHandlerStats {
+
+    private final Object mLock = new Object();
+    private final RequestLatencyHistogram mQueueLatency = new RequestLatencyHistogram();
+    private final RequestLatencyHistogram mExecutionLatency = new RequestLatencyHistogram();
+    private final RequestLatencyHistogram mTotalLatency = new RequestLatencyHistogram();
+    // command -> number of timed out blocking requests
+    private final SparseIntArray mTimeouts = new SparseIntArray();
+    // command -> (uid -> number of requests)
+    private final SparseArray<SparseIntArray> mCallerUids = new SparseArray<>();
+    private int mQueueDepth;
+    private int mMaxQueueDepth;
+
+    /**
+     * A request for the command has been posted to the main thread.
+     * @param command The command of the request.
+     * @param uid The UID the request is being made on behalf of.
+     */
+    public void onRequestSent(int command, int uid) {
+        synchronized (mLock) {
+            mQueueDepth++;
+            if (mQueueDepth > mMaxQueueDepth) mMaxQueueDepth = mQueueDepth;
+            SparseIntArray uids = mCallerUids.get(command);
+            if (uids == null) {
+                uids = new SparseIntArray();
+                mCallerUids.put(command, uids);
+            }
+            uids.put(uid, uids.get(uid) + 1);
+        }
+    }
+
+    /**
+     * The main thread has started handling a request for the command.
+     * @param command The command of the request.
+     * @param queueLatencyMs The time the request spent in the main looper queue.
+     */
+    public void onRequestStarted(int command, long queueLatencyMs) {
+        synchronized (mLock) {
+            if (mQueueDepth > 0) mQueueDepth--;
+        }
+        mQueueLatency.record(command, queueLatencyMs);
+    }
+
+    /**
+     * The main thread has completed a request for the command.
+     * @param command The command of the request.
+     * @param executionLatencyMs The time from the start of handling to completion.
+     * @param totalLatencyMs The time from the request being sent to completion.
+     */
+    public void onRequestCompleted(int command, long executionLatencyMs, long totalLatencyMs) {
+        mExecutionLatency.record(command, executionLatencyMs);
+        mTotalLatency.record(command, totalLatencyMs);
+    }
+
+    /**
+     * A blocking request for the command timed out waiting for the main thread.
+     * @param command The command of the request.
+     */
+    public void onRequestTimedOut(int command) {
+        synchronized (mLock) {
+            mTimeouts.put(command, mTimeouts.get(command) + 1);
+        }
+    }
+
+    /**
+     * @return The number of requests sent to the main thread which have not started yet.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueueDepth;
+        }
+    }
+
+    /**
+     * @return The largest number of requests ever waiting in the queue at the same time.
+     */
+    public int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueueDepth;
+        }
+    }
+
+    /**
+     * @return The number of blocking requests for the command which timed out.
+     */
+    public int getTimeoutCount(int command) {
+        synchronized (mLock) {
+            return mTimeouts.get(command);
+        }
+    }
+
+    /**
+     * @return The number of requests for the command which were sent on behalf of the UID.
+     */
+    public int getCallerCount(int command, int uid) {
+        synchronized (mLock) {
+            SparseIntArray uids = mCallerUids.get(command);
+            return uids == null ? 0 : uids.get(uid);
+        }
+    }
+
+    @VisibleForTesting
+    public RequestLatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    @VisibleForTesting
+    public RequestLatencyHistogram getExecutionLatency() {
+        return mExecutionLatency;
+    }
+
+    @VisibleForTesting
+    public RequestLatencyHistogram getTotalLatency() {
+        return mTotalLatency;
+    }
+
+    /**
+     * Clear all counters. Requests which are currently queued are still counted in the queue
+     * depth.
+     */
+    public void reset() {
+        synchronized (mLock) {
+            mTimeouts.clear();
+            mCallerUids.clear();
+            mMaxQueueDepth = mQueueDepth;
+        }
+        mQueueLatency.reset();
+        mExecutionLatency.reset();
+        mTotalLatency.reset();
+    }
+
+    /**
+     * Dump all counters.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("queueDepth=" + mQueueDepth + ", maxQueueDepth=" + mMaxQueueDepth);
+            pw.println("Timeouts (cmd: count):");
+            pw.increaseIndent();
+            for (int i = 0; i < mTimeouts.size(); i++) {
+                pw.println(mTimeouts.keyAt(i) + ": " + mTimeouts.valueAt(i));
+            }
+            pw.decreaseIndent();
+            pw.println("Callers (cmd: uid=count ...):");
+            pw.increaseIndent();
+            for (int i = 0; i < mCallerUids.size(); i++) {
+                SparseIntArray uids = mCallerUids.valueAt(i);
+                StringBuilder line = new StringBuilder().append(mCallerUids.keyAt(i)).append(':');
+                for (int j = 0; j < uids.size(); j++) {
+                    line.append(' ').append(uids.keyAt(j)).append('=').append(uids.valueAt(j));
+                }
+                pw.println(line);
+            }
+            pw.decreaseIndent();
+        }
+        pw.println("Queue latency, enqueue to start (ms):");
+        pw.increaseIndent();
+        mQueueLatency.dump(pw);
+        pw.decreaseIndent();
+        pw.println("Execution latency, start to complete (ms):");
+        pw.increaseIndent();
+        mExecutionLatency.dump(pw);
+        pw.decreaseIndent();
+        pw.println("Total latency, enqueue to complete (ms):");
+        pw.increaseIndent();
+        mTotalLatency.dump(pw);
+        pw.decreaseIndent();
+    }
+}
@@ -23,6 +23,7 @@ import static android.permission.flags.Flags.opEnableMobileDataByUser;
 import static android.telephony.TelephonyManager.ENABLE_FEATURE_MAPPING;
 import static android.telephony.TelephonyManager.HAL_SERVICE_NETWORK;
 import static android.telephony.TelephonyManager.HAL_SERVICE_RADIO;
+import static android.telephony.TelephonyManager.HAL_SERVICE_VOICE;
 import static android.telephony.satellite.SatelliteManager.KEY_SATELLITE_COMMUNICATION_ALLOWED;
 import static android.telephony.satellite.SatelliteManager.SATELLITE_DISALLOWED_REASON_NOT_PROVISIONED;
 import static android.telephony.satellite.SatelliteManager.SATELLITE_DISALLOWED_REASON_NOT_SUPPORTED;
@@ -126,6 +127,7 @@ import android.telephony.SignalStrengthUpdateRequest;
 import android.telephony.SignalThresholdInfo;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyFrameworkInitializer;
 import android.telephony.TelephonyHistogram;
 import android.telephony.TelephonyManager;
@@ -177,12 +179,14 @@ import android.telephony.satellite.SatelliteSubscriberInfo;
 import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.EventLog;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Pair;
 
 import com.android.ims.ImsManager;
 import com.android.ims.internal.IImsServiceFeatureCallback;
 import com.android.ims.rcs.uce.eab.EabUtil;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CallForwardInfo;
 import com.android.internal.telephony.CallManager;
@@ -205,7 +209,6 @@ import com.android.internal.telephony.ITelephony;
 import com.android.internal.telephony.IccCard;
 import com.android.internal.telephony.IccCardConstants;
 import com.android.internal.telephony.IccLogicalChannelRequest;
-import com.android.internal.telephony.LocaleTracker;
 import com.android.internal.telephony.NetworkScanRequestTracker;
 import com.android.internal.telephony.OperatorInfo;
 import com.android.internal.telephony.Phone;
@@ -289,7 +292,11 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
@@ -440,6 +447,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private final SatelliteAccessController mSatelliteAccessController;
     private final UserManager mUserManager;
     private final MainThreadHandler mMainThreadHandler;
+    private final MainThreadHandlerStats mMainThreadHandlerStats = new MainThreadHandlerStats();
+    private final PhoneStateSnapshotCache mPhoneStateSnapshotCache;
+    private final CallerCheckCache mFeatureMappingEnabledCache;
+    // Only accessed from the main thread.
+    private final CellInfoUpdateCoalescer mCellInfoUpdateCoalescer;
+    // Rebuilt on the main thread, null while some phone's trackers can't be indexed or while a
+    // rebuild after a list change is pending. Read without the lock, written under it.
+    private volatile EmergencyNumberIndex mEmergencyNumberIndex;
+    // Incremented whenever an emergency number list changes.
+    @GuardedBy("mEmergencyNumberIndexLock")
+    private int mEmergencyNumberListGeneration;
+    private final Object mEmergencyNumberIndexLock = new Object();
     private final SharedPreferences mTelephonySharedPreferences;
     private final PhoneConfigurationManager mPhoneConfigurationManager;
     private final RadioInterfaceCapabilityController mRadioInterfaceCapabilities;
@@ -485,6 +504,21 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     private static final int BLOCKING_REQUEST_DEFAULT_TIMEOUT_MS = 2000; // 2 seconds
 
+    /**
+     * Timeout value for blocking requests which wait until the main thread has completed the
+     * request, however long it takes. Only the commands listed in
+     * {@link #getBlockingRequestTimeoutMs(int)} wait this way.
+     */
+    @VisibleForTesting
+    static final int BLOCKING_REQUEST_NO_TIMEOUT = -1;
+
+    /**
+     * Timeout for blocking requests which do not specify one. It is well beyond the time a
+     * responsive modem takes, it only keeps a stuck request from holding a binder thread forever.
+     */
+    @VisibleForTesting
+    static final int BLOCKING_REQUEST_MAX_TIMEOUT_MS = 30000; // 30 seconds
+
     private static final int MODEM_ACTIVITY_TIME_OFFSET_CORRECTION_MS = 50;
 
     private static final int LINE1_NUMBER_MAX_LEN = 50;
@@ -552,14 +586,25 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
+     * A request object for use with {@link MainThreadHandler}. Requesters should wait on
+     * {@link #future} after sending. The main thread will complete the future with the result
+     * when the request is complete.
      */
     private static final class MainThreadRequest {
         /** The argument to use for the request */
         public Object argument;
         /** The result of the request that is run on the main thread */
-        public Object result;
+        public volatile Object result;
+        /** Completed with {@link #result} once the main thread has finished the request. */
+        public final CompletableFuture<Object> future = new CompletableFuture<>();
+        /** The command this request was sent with. */
+        public int command;
+        /** The time, in elapsed realtime, that this request was sent to the main thread. */
+        public long sentTimeMillis;
+        /** The time, in elapsed realtime, that the main thread started handling this request. */
+        public long startTimeMillis;
+        /** Set once the requester stopped waiting for the result. */
+        public volatile boolean timedOut;
         // The subscriber id that this request applies to. Defaults to
         // SubscriptionManager.INVALID_SUBSCRIPTION_ID
         public Integer subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
@@ -616,6 +661,27 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * unblock.
      */
     private final class MainThreadHandler extends Handler {
+        @Override
+        public void dispatchMessage(Message msg) {
+            if (msg.obj instanceof MainThreadRequest) {
+                MainThreadRequest request = (MainThreadRequest) msg.obj;
+                // Only the first message carrying the request marks the start of handling.
+                if (request.command == msg.what && request.startTimeMillis == 0) {
+                    request.startTimeMillis = SystemClock.elapsedRealtime();
+                    mMainThreadHandlerStats.onRequestStarted(request.command,
+                            request.startTimeMillis - request.sentTimeMillis);
+                    if (request.future.isCancelled()) {
+                        // The requester gave up before the request started and reported a
+                        // failure, so don't run it behind the requester's back.
+                        Log.w(LOG_TAG, "Dropping command " + request.command
+                                + ", its requester timed out");
+                        return;
+                    }
+                }
+            }
+            super.dispatchMessage(msg);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             MainThreadRequest request;
@@ -1790,37 +1856,41 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     // If a timeout occurs, the response will be null
                     request.result = (ar.exception == null && ar.result != null)
                             ? ar.result : new ArrayList<CellInfo>();
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
-                case CMD_REQUEST_CELL_INFO_UPDATE:
+                case CMD_REQUEST_CELL_INFO_UPDATE: {
                     request = (MainThreadRequest) msg.obj;
-                    request.phone.requestCellInfoUpdate(request.workSource,
-                            obtainMessage(EVENT_REQUEST_CELL_INFO_UPDATE_DONE, request));
+                    // Join the in-flight query of the phone or use a fresh cached result when
+                    // possible, only query the modem otherwise.
+                    int phoneId = request.phone.getPhoneId();
+                    if (mCellInfoUpdateCoalescer.addRequest(phoneId,
+                            (ICellInfoCallback) request.argument, request.workSource)) {
+                        request.phone.requestCellInfoUpdate(
+                                mCellInfoUpdateCoalescer.getWorkSource(phoneId),
+                                obtainMessage(EVENT_REQUEST_CELL_INFO_UPDATE_DONE, request));
+                    }
                     break;
-                case EVENT_REQUEST_CELL_INFO_UPDATE_DONE:
+                }
+                case EVENT_REQUEST_CELL_INFO_UPDATE_DONE: {
                     ar = (AsyncResult) msg.obj;
                     request = (MainThreadRequest) ar.userObj;
-                    ICellInfoCallback cb = (ICellInfoCallback) request.argument;
-                    try {
-                        if (ar.exception != null) {
-                            Log.e(LOG_TAG, "Exception retrieving CellInfo=" + ar.exception);
-                            cb.onError(
-                                    TelephonyManager.CellInfoCallback.ERROR_MODEM_ERROR,
-                                    ar.exception.getClass().getName(),
-                                    ar.exception.toString());
-                        } else if (ar.result == null) {
-                            Log.w(LOG_TAG, "Timeout Waiting for CellInfo!");
-                            cb.onError(TelephonyManager.CellInfoCallback.ERROR_TIMEOUT, null, null);
-                        } else {
-                            // use the result as returned
-                            cb.onCellInfo((List<CellInfo>) ar.result);
-                        }
-                    } catch (RemoteException re) {
-                        Log.w(LOG_TAG, "Discarded CellInfo due to Callback RemoteException");
+                    int phoneId = request.phone.getPhoneId();
+                    if (ar.exception != null) {
+                        Log.e(LOG_TAG, "Exception retrieving CellInfo=" + ar.exception);
+                        mCellInfoUpdateCoalescer.onError(phoneId,
+                                TelephonyManager.CellInfoCallback.ERROR_MODEM_ERROR,
+                                ar.exception.getClass().getName(),
+                                ar.exception.toString());
+                    } else if (ar.result == null) {
+                        Log.w(LOG_TAG, "Timeout Waiting for CellInfo!");
+                        mCellInfoUpdateCoalescer.onError(phoneId,
+                                TelephonyManager.CellInfoCallback.ERROR_TIMEOUT, null, null);
+                    } else {
+                        // use the result as returned
+                        mCellInfoUpdateCoalescer.onResult(phoneId, (List<CellInfo>) ar.result);
                     }
                     break;
+                }
                 case CMD_GET_CELL_LOCATION: {
                     request = (MainThreadRequest) msg.obj;
                     WorkSource ws = (WorkSource) request.argument;
@@ -1839,9 +1909,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                                 ? new CellIdentityCdma() : new CellIdentityGsm();
                     }
 
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 }
                 case CMD_MODEM_REBOOT:
@@ -2305,8 +2373,15 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
 
         private void notifyRequester(MainThreadRequest request) {
-            synchronized (request) {
-                request.notifyAll();
+            // A null result means the request is not complete yet, see MainThreadHandler.
+            if (request.result != null) {
+                request.future.complete(request.result);
+                if (request.timedOut) {
+                    Log.w(LOG_TAG, "Command " + request.command + " completed "
+                            + (SystemClock.elapsedRealtime() - request.sentTimeMillis)
+                            + "ms after it was sent, its requester timed out and the result is"
+                            + " dropped");
+                }
             }
         }
 
@@ -2333,8 +2408,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * @see #sendRequestAsync
      */
     private Object sendRequest(int command, Object argument) {
-        return sendRequest(command, argument, SubscriptionManager.INVALID_SUBSCRIPTION_ID, null,
-                null, -1 /*timeoutInMs*/);
+        return sendBlockingRequest(command, argument, SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                null, null);
     }
 
     /**
@@ -2343,8 +2418,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * @see #sendRequestAsync
      */
     private Object sendRequest(int command, Object argument, WorkSource workSource) {
-        return sendRequest(command, argument,  SubscriptionManager.INVALID_SUBSCRIPTION_ID,
-                null, workSource, -1 /*timeoutInMs*/);
+        return sendBlockingRequest(command, argument, SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                null, workSource);
     }
 
     /**
@@ -2353,7 +2428,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * @see #sendRequestAsync
      */
     private Object sendRequest(int command, Object argument, Integer subId) {
-        return sendRequest(command, argument, subId, null, null, -1 /*timeoutInMs*/);
+        return sendBlockingRequest(command, argument, subId, null, null);
     }
 
     /**
@@ -2373,7 +2448,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * @see #sendRequestAsync
      */
     private Object sendRequest(int command, Object argument, int subId, WorkSource workSource) {
-        return sendRequest(command, argument, subId, null, workSource, -1 /*timeoutInMs*/);
+        return sendBlockingRequest(command, argument, subId, null, workSource);
     }
 
     /**
@@ -2382,8 +2457,156 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * @see #sendRequestAsync
      */
     private Object sendRequest(int command, Object argument, Phone phone, WorkSource workSource) {
-        return sendRequest(command, argument, SubscriptionManager.INVALID_SUBSCRIPTION_ID, phone,
-                workSource, -1 /*timeoutInMs*/);
+        return sendBlockingRequest(command, argument, SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                phone, workSource);
+    }
+
+    /**
+     * Posts the specified command to be executed on the main thread, waits for the request to
+     * complete for at most the timeout of the command, see
+     * {@link #getBlockingRequestTimeoutMs(int)}, and returns the result.
+     */
+    private @NonNull Object sendBlockingRequest(int command, Object argument, Integer subId,
+            Phone phone, WorkSource workSource) {
+        return sendBlockingRequest(command, argument, subId, phone, workSource,
+                getBlockingRequestTimeoutMs(command));
+    }
+
+    /**
+     * Posts the specified command to be executed on the main thread, waits for the request to
+     * complete for at most {@code timeoutInMs}, or until it completes if {@code timeoutInMs} is
+     * negative, and returns the result.
+     *
+     * <p>A request which times out is cancelled, it is dropped if the main thread has not
+     * started it yet. The result of the command's failure, see
+     * {@link #getBlockingRequestFailureResult(int)}, is returned instead.
+     * @throws IllegalStateException if the request timed out and the command has no failure
+     *     result, rather than returning a null result which the callers would unbox.
+     */
+    @VisibleForTesting
+    @NonNull Object sendBlockingRequest(int command, Object argument, Integer subId, Phone phone,
+            WorkSource workSource, long timeoutInMs) {
+        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
+            throw new RuntimeException("This method will deadlock if called from the main thread.");
+        }
+
+        MainThreadRequest request = postRequest(command, argument, subId, phone, workSource);
+        Object result = waitForResult(request, timeoutInMs);
+        if (result != null) return result;
+        if (!request.future.cancel(false)) {
+            // Completed just after the wait ran out.
+            return request.future.join();
+        }
+        mMainThreadHandlerStats.onRequestTimedOut(command);
+        Log.wtf(LOG_TAG, "sendBlockingRequest: Command " + command + " timed out after "
+                + timeoutInMs + "ms. Something has gone terribly wrong.");
+        result = getBlockingRequestFailureResult(command);
+        if (result == null) {
+            throw new IllegalStateException("Request " + command + " timed out");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the result the main thread completes a request for {@code command} with when the
+     * command fails, which the caller of the command already handles. A blocking request which
+     * times out returns it too.
+     * @return the failure result, or null if the command has none.
+     */
+    @VisibleForTesting
+    static @Nullable Object getBlockingRequestFailureResult(int command) {
+        switch (command) {
+            case CMD_HANDLE_PIN_MMI:
+            case CMD_SET_VOICEMAIL_NUMBER:
+            case CMD_NV_WRITE_ITEM:
+            case CMD_NV_WRITE_CDMA_PRL:
+            case CMD_RESET_MODEM_CONFIG:
+            case CMD_ERASE_MODEM_CONFIG:
+            case CMD_ERASE_DATA_SHARED_PREFERENCES:
+            case CMD_MODEM_REBOOT:
+            case CMD_SET_NETWORK_SELECTION_MODE_MANUAL:
+            case CMD_SET_ALLOWED_NETWORK_TYPES_FOR_REASON:
+            case CMD_IS_NR_DUAL_CONNECTIVITY_ENABLED:
+            case CMD_IS_VONR_ENABLED:
+            case CMD_SWITCH_SLOTS:
+            case CMD_SET_CDMA_ROAMING_MODE:
+            case CMD_SET_CDMA_SUBSCRIPTION_MODE:
+            case CMD_REQUEST_ENABLE_MODEM:
+                return false;
+            case CMD_GET_MODEM_STATUS:
+                // The modem is reported as on when its status can't be retrieved.
+                return true;
+            case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
+            case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
+            case CMD_EXCHANGE_SIM_IO:
+            case CMD_SEND_ENVELOPE:
+                return new IccIoResult(0x6F, 0, (byte[]) null);
+            case CMD_OPEN_CHANNEL:
+                return new IccOpenLogicalChannelResponse(
+                        IccOpenLogicalChannelResponse.INVALID_CHANNEL,
+                        IccOpenLogicalChannelResponse.STATUS_UNKNOWN_ERROR, null);
+            case CMD_NV_READ_ITEM:
+                return "";
+            case CMD_GET_ALLOWED_NETWORK_TYPES_BITMASK:
+                return new int[]{-1};
+            case CMD_GET_ALL_CELL_INFO:
+                return new ArrayList<CellInfo>();
+            case CMD_GET_NETWORK_SELECTION_MODE:
+                return TelephonyManager.NETWORK_SELECTION_MODE_UNKNOWN;
+            case CMD_GET_CDMA_ROAMING_MODE:
+                return TelephonyManager.CDMA_ROAMING_MODE_RADIO_DEFAULT;
+            case CMD_GET_CDMA_SUBSCRIPTION_MODE:
+                return TelephonyManager.CDMA_SUBSCRIPTION_RUIM_SIM;
+            case CMD_ENABLE_NR_DUAL_CONNECTIVITY:
+                return TelephonyManager.ENABLE_NR_DUAL_CONNECTIVITY_RADIO_ERROR;
+            case CMD_ENABLE_VONR:
+                return TelephonyManager.ENABLE_VONR_RADIO_ERROR;
+            case CMD_SET_ALLOWED_CARRIERS:
+                return TelephonyManager.SET_CARRIER_RESTRICTION_ERROR;
+            case CMD_SET_FORBIDDEN_PLMNS:
+                return -1;
+            case CMD_SET_DATA_THROTTLING:
+                return TelephonyManager.THERMAL_MITIGATION_RESULT_MODEM_ERROR;
+            case CMD_PREPARE_UNATTENDED_REBOOT:
+                return TelephonyManager.PREPARE_UNATTENDED_REBOOT_ERROR;
+            // The callers of these check for an exception result and throw it or report null.
+            case CMD_CLOSE_CHANNEL:
+            case CMD_GET_FORBIDDEN_PLMNS:
+            case CMD_GET_ALLOWED_CARRIERS:
+            case CMD_GET_SYSTEM_SELECTION_CHANNELS:
+            case CMD_SET_SIGNAL_STRENGTH_UPDATE_REQUEST:
+            case CMD_CLEAR_SIGNAL_STRENGTH_UPDATE_REQUEST:
+                return new IllegalStateException("Request " + command + " timed out");
+            default:
+                // E.g. the ICC lock commands report the remaining attempts and the cell location
+                // depends on the phone type.
+                return null;
+        }
+    }
+
+    /**
+     * Returns how long a blocking request waits for {@code command} to complete when its caller
+     * does not specify a timeout.
+     */
+    @VisibleForTesting
+    static long getBlockingRequestTimeoutMs(int command) {
+        switch (command) {
+            // A network scan reports its results only once every band has been scanned, which
+            // can take minutes.
+            case CMD_PERFORM_NETWORK_SCAN:
+            // Manual selection completes when the chosen network accepts or rejects the
+            // registration, which is up to the network.
+            case CMD_SET_NETWORK_SELECTION_MODE_MANUAL:
+            // These restart the modem or reconfigure the SIM slots, and complete only once the
+            // modem is back.
+            case CMD_SWITCH_SLOTS:
+            case CMD_MODEM_REBOOT:
+            case CMD_RESET_MODEM_CONFIG:
+            case CMD_ERASE_MODEM_CONFIG:
+                return BLOCKING_REQUEST_NO_TIMEOUT;
+            default:
+                return BLOCKING_REQUEST_MAX_TIMEOUT_MS;
+        }
     }
 
     /**
@@ -2398,6 +2621,29 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             throw new RuntimeException("This method will deadlock if called from the main thread.");
         }
 
+        Object result = waitForResult(
+                postRequest(command, argument, subId, phone, workSource), timeoutInMs);
+        if (result == null) {
+            mMainThreadHandlerStats.onRequestTimedOut(command);
+            Log.wtf(LOG_TAG,
+                    "sendRequest: Blocking command timed out. Something has gone terribly wrong.");
+        }
+        return result;
+    }
+
+    /**
+     * Posts the specified command to be executed on the main thread and returns immediately.
+     * The returned future is completed on the main thread with the result of the request, so
+     * callers which report the result through a callback never need to block a binder thread.
+     * @see #sendRequest
+     */
+    private @NonNull CompletableFuture<Object> sendRequestForResult(int command, Object argument,
+            Integer subId, Phone phone, WorkSource workSource) {
+        return postRequest(command, argument, subId, phone, workSource).future;
+    }
+
+    private @NonNull MainThreadRequest postRequest(int command, Object argument, Integer subId,
+            Phone phone, WorkSource workSource) {
         MainThreadRequest request = null;
         if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID && phone != null) {
             throw new IllegalArgumentException("subId and phone cannot both be specified!");
@@ -2406,41 +2652,58 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         } else {
             request = new MainThreadRequest(argument, subId, workSource);
         }
+        dispatchRequest(command, request);
+        return request;
+    }
 
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
-
-
-        synchronized (request) {
-            if (timeoutInMs >= 0) {
-                // Wait for at least timeoutInMs before returning null request result
-                long now = SystemClock.elapsedRealtime();
-                long deadline = now + timeoutInMs;
-                while (request.result == null && now < deadline) {
-                    try {
-                        request.wait(deadline - now);
-                    } catch (InterruptedException e) {
-                        // Do nothing, go back and check if request is completed or timeout
-                    } finally {
-                        now = SystemClock.elapsedRealtime();
-                    }
-                }
-            } else {
-                // Wait for the request to complete
-                while (request.result == null) {
-                    try {
-                        request.wait();
-                    } catch (InterruptedException e) {
-                        // Do nothing, go back and wait until the request is complete
-                    }
-                }
+    /**
+     * Waits for at most {@code timeoutInMs} milliseconds for the request to complete, or until it
+     * completes if {@code timeoutInMs} is negative.
+     * @return the result of the request, or null if the wait timed out.
+     */
+    private static @Nullable Object waitForResult(@NonNull MainThreadRequest request,
+            long timeoutInMs) {
+        CompletableFuture<Object> future = request.future;
+        long deadline = SystemClock.elapsedRealtime() + timeoutInMs;
+        while (true) {
+            try {
+                if (timeoutInMs < 0) return future.get();
+                return future.get(Math.max(0, deadline - SystemClock.elapsedRealtime()),
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Do nothing, go back and check if request is completed or timeout
+            } catch (TimeoutException e) {
+                request.timedOut = true;
+                return future.getNow(null);
+            } catch (ExecutionException e) {
+                // The main thread never completes requests exceptionally.
+                Log.e(LOG_TAG, "waitForResult: unexpected exception " + e.getCause());
+                return null;
             }
         }
-        if (request.result == null) {
-            Log.wtf(LOG_TAG,
-                    "sendRequest: Blocking command timed out. Something has gone terribly wrong.");
-        }
-        return request.result;
+    }
+
+    /**
+     * Stamps the request with its command and send time and posts it to the main thread. The
+     * queueing and execution latency of the request are recorded in
+     * {@link #mMainThreadHandlerStats} as the main thread starts and completes it.
+     */
+    private void dispatchRequest(int command, @NonNull MainThreadRequest request) {
+        request.command = command;
+        request.sentTimeMillis = SystemClock.elapsedRealtime();
+        // Most callers have cleared the calling identity by now, so prefer the UID the request
+        // is attributed to.
+        int uid = (request.workSource != null && request.workSource.size() > 0)
+                ? request.workSource.getUid(0) : Binder.getCallingUid();
+        mMainThreadHandlerStats.onRequestSent(command, uid);
+        request.future.thenRun(() -> {
+            long now = SystemClock.elapsedRealtime();
+            long start = request.startTimeMillis != 0 ? request.startTimeMillis : now;
+            mMainThreadHandlerStats.onRequestCompleted(command, now - start,
+                    now - request.sentTimeMillis);
+        });
+        Message msg = mMainThreadHandler.obtainMessage(command, request);
+        msg.sendToTarget();
     }
 
     /**
@@ -2468,8 +2731,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private void sendRequestAsync(
             int command, Object argument, Phone phone, WorkSource workSource) {
         MainThreadRequest request = new MainThreadRequest(argument, phone, workSource);
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
+        dispatchRequest(command, request);
     }
 
     /**
@@ -2498,6 +2760,14 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         mUserManager = (UserManager) app.getSystemService(Context.USER_SERVICE);
         mAppOps = (AppOpsManager)app.getSystemService(Context.APP_OPS_SERVICE);
         mMainThreadHandler = new MainThreadHandler();
+        mPhoneStateSnapshotCache = new PhoneStateSnapshotCache(app,
+                mMainThreadHandler.getLooper());
+        mFeatureMappingEnabledCache = new CallerCheckCache(app);
+        mCellInfoUpdateCoalescer = new CellInfoUpdateCoalescer(
+                app.getResources().getInteger(
+                        R.integer.config_cell_info_update_freshness_window_millis),
+                SystemClock::elapsedRealtime);
+        registerForEmergencyNumberListChanges(app);
         mTelephonySharedPreferences = PreferenceManager.getDefaultSharedPreferences(mApp);
         mNetworkScanRequestTracker = new NetworkScanRequestTracker();
         mPhoneConfigurationManager = PhoneConfigurationManager.getInstance();
@@ -3292,7 +3562,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 return;
             }
             Pair<String, ResultReceiver> ussdObject = new Pair(ussdRequest, wrappedCallback);
-            sendRequest(CMD_HANDLE_USSD_REQUEST, ussdObject, subId);
+            // The response is delivered through wrappedCallback, no need to block on the result.
+            sendRequestForResult(CMD_HANDLE_USSD_REQUEST, ussdObject, subId, null, null);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -3333,7 +3604,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         final long identity = Binder.clearCallingIdentity();
         try {
             Phone phone = getPhoneFromSubIdOrDefault(getDefaultSubscription());
-            return PhoneConstantConversions.convertCallState(phone.getState());
+            return mPhoneStateSnapshotCache.get(phone).callState;
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -3359,7 +3630,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         try {
             Phone phone = getPhone(subId);
             return phone == null ? TelephonyManager.CALL_STATE_IDLE :
-                    PhoneConstantConversions.convertCallState(phone.getState());
+                    mPhoneStateSnapshotCache.get(phone).callState;
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -3403,7 +3674,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         try {
             final Phone phone = getPhone(subId);
             if (phone != null) {
-                return phone.getDataActivityState();
+                return mPhoneStateSnapshotCache.get(phone).dataActivity;
             } else {
                 return TelephonyManager.DATA_ACTIVITY_NONE;
             }
@@ -3466,14 +3737,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 // Get default phone in this case.
                 phoneId = SubscriptionManager.DEFAULT_PHONE_INDEX;
             }
-            final int subId = SubscriptionManager.getSubscriptionId(phoneId);
             Phone phone = PhoneFactory.getPhone(phoneId);
             if (phone == null) return "";
-            ServiceStateTracker sst = phone.getServiceStateTracker();
-            if (sst == null) return "";
-            LocaleTracker lt = sst.getLocaleTracker();
-            if (lt == null) return "";
-            return lt.getCurrentCountry();
+            return mPhoneStateSnapshotCache.get(phone).networkCountryIso;
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -8984,15 +9250,14 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 return null;
             }
 
-            ServiceState ss = phone.getServiceState();
+            PhoneStateSnapshotCache.Snapshot snapshot = mPhoneStateSnapshotCache.get(phone);
             boolean isCallingPackageDataService = phone.getDataServicePackages()
                     .contains(callingPackage);
 
             // Scrub out the location info in ServiceState depending on what level of access
-            // the caller has.
-            if (hasFinePermission || isCallingPackageDataService) return ss;
-            if (hasCoarsePermission) return ss.createLocationInfoSanitizedCopy(false);
-            return ss.createLocationInfoSanitizedCopy(true);
+            // the caller has. The sanitized copies are shared by all callers of a snapshot.
+            if (hasFinePermission || isCallingPackageDataService) return snapshot.serviceState;
+            return snapshot.getLocationSanitizedServiceState(!hasCoarsePermission);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -9568,6 +9833,19 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         } catch (Exception e) {
             writer.println("Failed to dump phone information: " + e);
         }
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        pw.println("MainThreadHandler stats:");
+        pw.increaseIndent();
+        mMainThreadHandlerStats.dump(pw);
+        pw.decreaseIndent();
+        pw.println("CellInfoUpdateCoalescer:");
+        pw.increaseIndent();
+        // Read on the binder thread, the counters are only informational.
+        mCellInfoUpdateCoalescer.dump(pw);
+        pw.decreaseIndent();
+        EmergencyNumberIndex emergencyNumberIndex = mEmergencyNumberIndex;
+        pw.println("EmergencyNumberIndex: " + (emergencyNumberIndex == null
+                ? "disabled" : emergencyNumberIndex.size() + " numbers"));
     }
 
     @Override
@@ -9795,7 +10073,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 return null;
             }
 
-            return p.getSignalStrength();
+            return mPhoneStateSnapshotCache.get(p).signalStrength;
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -10490,6 +10768,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         final long identity = Binder.clearCallingIdentity();
         try {
+            // The index is cleared as soon as a list changes, so a non-null index is current.
+            EmergencyNumberIndex index = mEmergencyNumberIndex;
+            if (index != null) {
+                int result = index.lookup(number);
+                if (result == EmergencyNumberIndex.LOOKUP_MATCH) return true;
+                if (result == EmergencyNumberIndex.LOOKUP_NO_MATCH) return false;
+            }
             for (Phone phone: PhoneFactory.getPhones()) {
                 //Note: we ignore passed in param exactMatch. We can remove it once
                 // TelephonyManager#isPotentialEmergencyNumber is removed completely
@@ -10505,6 +10790,77 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
     }
 
+    private final class EmergencyNumberListCallback extends TelephonyCallback implements
+            TelephonyCallback.EmergencyNumberListListener {
+        @Override
+        public void onEmergencyNumberListChanged(
+                @NonNull Map<Integer, List<EmergencyNumber>> emergencyNumberList) {
+            invalidateEmergencyNumberIndex();
+            mMainThreadHandler.post(PhoneInterfaceManager.this::rebuildEmergencyNumberIndex);
+        }
+    }
+
+    private void registerForEmergencyNumberListChanges(Context context) {
+        TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        if (tm == null) return;
+        // Delivered on the binder thread, so that the index stops answering right away and not
+        // only once the main thread gets to it. The registry also notifies on registration, which
+        // builds the first index.
+        tm.registerTelephonyCallback(Runnable::run, new EmergencyNumberListCallback());
+    }
+
+    /**
+     * Stop answering from the emergency number index until it has been rebuilt from the changed
+     * lists. Lookups fall back to the trackers meanwhile.
+     */
+    @VisibleForTesting
+    public void invalidateEmergencyNumberIndex() {
+        synchronized (mEmergencyNumberIndexLock) {
+            mEmergencyNumberListGeneration++;
+            mEmergencyNumberIndex = null;
+        }
+    }
+
+    /**
+     * Rebuild the emergency number index from the trackers of all phones. Phones on a voice HAL
+     * older than 1.4 also match numbers from the legacy ecc list properties which aren't in
+     * their emergency number list, so no index is used while any such phone is present.
+     */
+    @VisibleForTesting
+    public void rebuildEmergencyNumberIndex() {
+        int generation;
+        synchronized (mEmergencyNumberIndexLock) {
+            generation = mEmergencyNumberListGeneration;
+        }
+        List<List<EmergencyNumber>> emergencyNumberLists = getEmergencyNumberLists();
+        EmergencyNumberIndex index = emergencyNumberLists == null
+                ? null : EmergencyNumberIndex.build(emergencyNumberLists);
+        synchronized (mEmergencyNumberIndexLock) {
+            // A list changed while building, the lists read may already be stale. The rebuild
+            // posted for that change publishes the index instead.
+            if (generation == mEmergencyNumberListGeneration) {
+                mEmergencyNumberIndex = index;
+            }
+        }
+    }
+
+    /**
+     * @return The current emergency number list of each phone, or null if some phone's numbers
+     * can't be indexed.
+     */
+    private @Nullable List<List<EmergencyNumber>> getEmergencyNumberLists() {
+        List<List<EmergencyNumber>> emergencyNumberLists = new ArrayList<>();
+        for (Phone phone : PhoneFactory.getPhones()) {
+            EmergencyNumberTracker tracker = phone.getEmergencyNumberTracker();
+            if (tracker == null
+                    || phone.getHalVersion(HAL_SERVICE_VOICE).less(RIL.RADIO_HAL_VERSION_1_4)) {
+                return null;
+            }
+            emergencyNumberLists.add(tracker.getEmergencyNumberList());
+        }
+        return emergencyNumberLists;
+    }
+
     /**
      * Start emergency callback mode for GsmCdmaPhone for testing.
      */
@@ -11622,6 +11978,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         return false;
     }
 
+    /**
+     * Used by shell commands to read or reset the main thread request counters.
+     */
+    MainThreadHandlerStats getMainThreadHandlerStats() {
+        return mMainThreadHandlerStats;
+    }
+
     /**
      * Used by shell commands to add an authorized package name for thermal mitigation.
      * @param packageName name of package to be allowlisted
@@ -14868,9 +15231,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return;
         }
 
-        if (!CompatChanges.isChangeEnabled(ENABLE_FEATURE_MAPPING, callingPackage,
-                Binder.getCallingUserHandle())
-                || mVendorApiLevel < Build.VERSION_CODES.VANILLA_ICE_CREAM) {
+        if (!isFeatureMappingEnabled(callingPackage)) {
             // Skip to check associated telephony feature,
             // if compatibility change is not enabled for the current process or
             // the SDK version of vendor partition is less than Android V.
@@ -14883,6 +15244,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
     }
 
+    /**
+     * @return whether the telephony feature of an API should be enforced for the calling
+     * package. The compat change lookup is memoized per (uid, package).
+     */
+    private boolean isFeatureMappingEnabled(@NonNull String callingPackage) {
+        if (mVendorApiLevel < Build.VERSION_CODES.VANILLA_ICE_CREAM) return false;
+        final UserHandle callingUser = Binder.getCallingUserHandle();
+        return mFeatureMappingEnabledCache.get(Binder.getCallingUid(), callingPackage,
+                () -> CompatChanges.isChangeEnabled(ENABLE_FEATURE_MAPPING, callingPackage,
+                        callingUser));
+    }
+
     /**
      * Make sure the device has at least one of the required telephony feature
      *
@@ -14897,9 +15270,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return;
         }
 
-        if (!CompatChanges.isChangeEnabled(ENABLE_FEATURE_MAPPING, callingPackage,
-                Binder.getCallingUserHandle())
-                || mVendorApiLevel < Build.VERSION_CODES.VANILLA_ICE_CREAM) {
+        if (!isFeatureMappingEnabled(callingPackage)) {
             // Skip to check associated telephony feature,
             // if compatibility change is not enabled for the current process or
             // the SDK version of vendor partition is less than Android V.
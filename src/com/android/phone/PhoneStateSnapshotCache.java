@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.telephony.ServiceState;
+import android.telephony.SignalStrength;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.telephony.TelephonyRegistryManager;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.LocaleTracker;
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneConfigurationManager;
+import com.android.internal.telephony.PhoneConstantConversions;
+import com.android.internal.telephony.PhoneConstants;
+import com.android.internal.telephony.PhoneFactory;
+import com.android.internal.telephony.ServiceStateTracker;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+/**
+ * Read-through cache of the per-phone state polled by the hot getters in
+ * {@link PhoneInterfaceManager}.
+ *
+ * <p>Each phone has an immutable {@link Snapshot} which binder threads read without taking a
+ * lock. The snapshot is invalidated on the change events the values come from (call state, data
+ * activity, service state, signal strength and network country changes) and rebuilt from the
+ * {@link Phone} by the next reader. Phones without an active subscription receive no change
+ * events, so a fresh snapshot is built for every read of those phones and never published.
+ *
+ * <p>The change events are invalidated on the binder thread they are delivered on rather than
+ * posted to the looper, so a busy main thread does not delay them. A reader can still see the
+ * previous snapshot between the change in the {@link Phone} and the delivery of its event through
+ * the telephony registry, the same window in which a registered {@link TelephonyCallback} would
+ * still report the previous state.
+ */
+public class PhoneStateSnapshotCache {
+    private static final String LOG_TAG = "PhoneStateSnapshotCache";
+
+    private static final int EVENT_SUBSCRIPTIONS_CHANGED = 1;
+    private static final int EVENT_MULTI_SIM_CONFIG_CHANGED = 2;
+
+    /**
+     * An immutable view of the state of one phone.
+     */
+    public static final class Snapshot {
+        public final int phoneId;
+        public final @TelephonyManager.CallState int callState;
+        public final @TelephonyManager.DataActivityType int dataActivity;
+        public final @Nullable ServiceState serviceState;
+        public final @Nullable SignalStrength signalStrength;
+        public final @NonNull String networkCountryIso;
+
+        // Location sanitized copies of serviceState, built on first use.
+        private volatile ServiceState mCoarseLocationServiceState;
+        private volatile ServiceState mNoLocationServiceState;
+
+        @VisibleForTesting
+        public Snapshot(int phoneId, int callState, int dataActivity,
+                @Nullable ServiceState serviceState, @Nullable SignalStrength signalStrength,
+                @NonNull String networkCountryIso) {
+            this.phoneId = phoneId;
+            this.callState = callState;
+            this.dataActivity = dataActivity;
+            this.serviceState = serviceState;
+            this.signalStrength = signalStrength;
+            this.networkCountryIso = networkCountryIso;
+        }
+
+        /**
+         * @param removeCoarseLocation Whether the coarse location info should be removed too.
+         * @return A copy of {@link #serviceState} with the location info removed. The copy is
+         * only created once per snapshot.
+         */
+        public @Nullable ServiceState getLocationSanitizedServiceState(
+                boolean removeCoarseLocation) {
+            if (serviceState == null) return null;
+            if (removeCoarseLocation) {
+                ServiceState ss = mNoLocationServiceState;
+                if (ss == null) {
+                    ss = serviceState.createLocationInfoSanitizedCopy(true);
+                    mNoLocationServiceState = ss;
+                }
+                return ss;
+            }
+            ServiceState ss = mCoarseLocationServiceState;
+            if (ss == null) {
+                ss = serviceState.createLocationInfoSanitizedCopy(false);
+                mCoarseLocationServiceState = ss;
+            }
+            return ss;
+        }
+
+        /**
+         * Build a snapshot from the current state of the phone.
+         */
+        public static @NonNull Snapshot create(@NonNull Phone phone) {
+            String countryIso = "";
+            ServiceStateTracker sst = phone.getServiceStateTracker();
+            if (sst != null) {
+                LocaleTracker lt = sst.getLocaleTracker();
+                if (lt != null) countryIso = lt.getCurrentCountry();
+            }
+            return new Snapshot(phone.getPhoneId(),
+                    PhoneConstantConversions.convertCallState(phone.getState()),
+                    phone.getDataActivityState(), phone.getServiceState(),
+                    phone.getSignalStrength(), countryIso);
+        }
+    }
+
+    /**
+     * Invalidates the snapshot of one phone on any of the events its values come from.
+     */
+    private final class PhoneStateCallback extends TelephonyCallback implements
+            TelephonyCallback.CallStateListener, TelephonyCallback.DataActivityListener,
+            TelephonyCallback.ServiceStateListener, TelephonyCallback.SignalStrengthsListener {
+        private final int mPhoneId;
+        private final int mSubId;
+
+        PhoneStateCallback(int phoneId, int subId) {
+            mPhoneId = phoneId;
+            mSubId = subId;
+        }
+
+        @Override
+        public void onCallStateChanged(int state) {
+            invalidate(mPhoneId);
+        }
+
+        @Override
+        public void onDataActivity(int direction) {
+            invalidate(mPhoneId);
+        }
+
+        @Override
+        public void onServiceStateChanged(@NonNull ServiceState serviceState) {
+            invalidate(mPhoneId);
+        }
+
+        @Override
+        public void onSignalStrengthsChanged(@NonNull SignalStrength signalStrength) {
+            invalidate(mPhoneId);
+        }
+    }
+
+    private final BroadcastReceiver mCountryChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (TelephonyManager.ACTION_NETWORK_COUNTRY_CHANGED.equals(intent.getAction())) {
+                invalidate(intent.getIntExtra(PhoneConstants.PHONE_KEY,
+                        SubscriptionManager.INVALID_PHONE_INDEX));
+            }
+        }
+    };
+
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubChangedListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+        @Override
+        public void onSubscriptionsChanged() {
+            if (!mHandler.hasMessages(EVENT_SUBSCRIPTIONS_CHANGED)) {
+                mHandler.sendEmptyMessage(EVENT_SUBSCRIPTIONS_CHANGED);
+            }
+        }
+    };
+
+    private final Handler mHandler;
+    private final IntFunction<Phone> mPhoneProvider;
+    private final Object mLock = new Object();
+    private final TelephonyManager mTelephonyManager;
+    // Readers only ever do a volatile read of the array and an element of it.
+    private volatile AtomicReferenceArray<Snapshot> mSnapshots;
+    // Guarded by mLock. Bumped on every invalidation so a reader which built a snapshot from
+    // state older than the invalidation does not publish it.
+    private int[] mGenerations;
+    // Guarded by mLock. Phones which have a registered callback and may publish snapshots.
+    private PhoneStateCallback[] mCallbacks;
+
+    public PhoneStateSnapshotCache(@NonNull Context context, @NonNull Looper looper) {
+        this(context.getSystemService(TelephonyManager.class), looper, PhoneFactory::getPhone,
+                TelephonyManager.from(context).getActiveModemCount());
+
+        TelephonyRegistryManager registryManager =
+                context.getSystemService(TelephonyRegistryManager.class);
+        if (registryManager != null) {
+            registryManager.addOnSubscriptionsChangedListener(mSubChangedListener,
+                    mHandler::post);
+        }
+        PhoneConfigurationManager.registerForMultiSimConfigChange(mHandler,
+                EVENT_MULTI_SIM_CONFIG_CHANGED, null);
+        context.registerReceiver(mCountryChangedReceiver,
+                new IntentFilter(TelephonyManager.ACTION_NETWORK_COUNTRY_CHANGED));
+    }
+
+    @VisibleForTesting
+    public PhoneStateSnapshotCache(@Nullable TelephonyManager telephonyManager,
+            @NonNull Looper looper, @NonNull IntFunction<Phone> phoneProvider, int numPhones) {
+        mTelephonyManager = telephonyManager;
+        mPhoneProvider = phoneProvider;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case EVENT_SUBSCRIPTIONS_CHANGED:
+                        onSubscriptionsChanged();
+                        break;
+                    case EVENT_MULTI_SIM_CONFIG_CHANGED:
+                        onMultiSimConfigChanged(mTelephonyManager.getActiveModemCount());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        };
+        resize(numPhones);
+    }
+
+    /**
+     * @return The snapshot for the phone, published or freshly built from the phone.
+     */
+    public @NonNull Snapshot get(@NonNull Phone phone) {
+        int phoneId = phone.getPhoneId();
+        AtomicReferenceArray<Snapshot> snapshots = mSnapshots;
+        if (phoneId < 0 || phoneId >= snapshots.length()) {
+            return Snapshot.create(phone);
+        }
+        Snapshot snapshot = snapshots.get(phoneId);
+        if (snapshot != null) return snapshot;
+
+        int generation;
+        synchronized (mLock) {
+            if (mCallbacks[phoneId] == null) {
+                // Not tracking changes for this phone, never publish.
+                return Snapshot.create(phone);
+            }
+            generation = mGenerations[phoneId];
+        }
+        snapshot = Snapshot.create(phone);
+        synchronized (mLock) {
+            if (snapshots == mSnapshots && mGenerations[phoneId] == generation) {
+                snapshots.set(phoneId, snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The published snapshot of the phone, or null if there is none.
+     */
+    @VisibleForTesting
+    public @Nullable Snapshot getPublished(int phoneId) {
+        AtomicReferenceArray<Snapshot> snapshots = mSnapshots;
+        if (phoneId < 0 || phoneId >= snapshots.length()) return null;
+        return snapshots.get(phoneId);
+    }
+
+    /**
+     * Drop the published snapshot of the phone so that the next reader rebuilds it.
+     */
+    public void invalidate(int phoneId) {
+        synchronized (mLock) {
+            if (phoneId < 0 || phoneId >= mGenerations.length) return;
+            mGenerations[phoneId]++;
+            mSnapshots.set(phoneId, null);
+        }
+    }
+
+    /**
+     * Drop the published snapshots of all phones.
+     */
+    public void invalidateAll() {
+        synchronized (mLock) {
+            for (int i = 0; i < mGenerations.length; i++) {
+                mGenerations[i]++;
+                mSnapshots.set(i, null);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public void onMultiSimConfigChanged(int numPhones) {
+        unregisterCallbacks();
+        resize(numPhones);
+        onSubscriptionsChanged();
+    }
+
+    /**
+     * Re-register the change callbacks of all phones against their current subscription.
+     */
+    @VisibleForTesting
+    public void onSubscriptionsChanged() {
+        synchronized (mLock) {
+            for (int phoneId = 0; phoneId < mCallbacks.length; phoneId++) {
+                Phone phone = mPhoneProvider.apply(phoneId);
+                int subId = phone == null ? SubscriptionManager.INVALID_SUBSCRIPTION_ID
+                        : phone.getSubId();
+                PhoneStateCallback callback = mCallbacks[phoneId];
+                if (callback != null && callback.mSubId == subId) continue;
+                if (callback != null) {
+                    mTelephonyManager.unregisterTelephonyCallback(callback);
+                    mCallbacks[phoneId] = null;
+                }
+                mGenerations[phoneId]++;
+                mSnapshots.set(phoneId, null);
+                if (!SubscriptionManager.isValidSubscriptionId(subId)
+                        || mTelephonyManager == null) {
+                    continue;
+                }
+                callback = new PhoneStateCallback(phoneId, subId);
+                try {
+                    // Invalidating only takes mLock, so it is done as soon as the event arrives.
+                    mTelephonyManager.createForSubscriptionId(subId).registerTelephonyCallback(
+                            TelephonyManager.INCLUDE_LOCATION_DATA_NONE, Runnable::run,
+                            callback);
+                    mCallbacks[phoneId] = callback;
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG, "Unable to track phone " + phoneId + ": " + e);
+                }
+            }
+        }
+    }
+
+    private void unregisterCallbacks() {
+        synchronized (mLock) {
+            for (int i = 0; i < mCallbacks.length; i++) {
+                if (mCallbacks[i] != null) {
+                    mTelephonyManager.unregisterTelephonyCallback(mCallbacks[i]);
+                    mCallbacks[i] = null;
+                }
+            }
+        }
+    }
+
+    private void resize(int numPhones) {
+        synchronized (mLock) {
+            mGenerations = new int[numPhones];
+            mCallbacks = new PhoneStateCallback[numPhones];
+            mSnapshots = new AtomicReferenceArray<>(numPhones);
+        }
+    }
+}
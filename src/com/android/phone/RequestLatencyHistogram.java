@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.util.IndentingPrintWriter;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Tracks a fixed-bucket latency histogram per command for requests handled by
+ * {@link PhoneInterfaceManager}'s main thread handler.
+ *
+ * <p>Samples may be recorded from any thread; the bucket boundaries are fixed so recording a
+ * sample never allocates once a command has been seen.
+ */
+public class RequestLatencyHistogram {
+
+    /** Upper bounds (inclusive) of each bucket, in milliseconds. */
+    @VisibleForTesting
+    public static final long[] BUCKET_UPPER_BOUNDS_MS =
+            {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private static final class Entry {
+        // One extra bucket for samples larger than the last bound.
+        final long[] buckets = new long[BUCKET_UPPER_BOUNDS_MS.length + 1];
+        long count;
+        long totalMs;
+        long maxMs;
+    }
+
+    private final Object mLock = new Object();
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+
+    /**
+     * Record a latency sample for the given command.
+     * @param command The command the sample is for.
+     * @param latencyMs The latency of the command in milliseconds.
+     */
+    public void record(int command, long latencyMs) {
+        if (latencyMs < 0) latencyMs = 0;
+        synchronized (mLock) {
+            Entry entry = mEntries.get(command);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(command, entry);
+            }
+            entry.buckets[getBucketIndex(latencyMs)]++;
+            entry.count++;
+            entry.totalMs += latencyMs;
+            if (latencyMs > entry.maxMs) entry.maxMs = latencyMs;
+        }
+    }
+
+    /**
+     * @return The number of samples recorded for the command.
+     */
+    public long getCount(int command) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(command);
+            return entry == null ? 0 : entry.count;
+        }
+    }
+
+    /**
+     * @return The number of samples recorded for the command in the bucket at {@code index}.
+     */
+    @VisibleForTesting
+    public long getBucketCount(int command, int index) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(command);
+            return entry == null ? 0 : entry.buckets[index];
+        }
+    }
+
+    /**
+     * Clear all recorded samples.
+     */
+    public void reset() {
+        synchronized (mLock) {
+            mEntries.clear();
+        }
+    }
+
+    @VisibleForTesting
+    public static int getBucketIndex(long latencyMs) {
+        for (int i = 0; i < BUCKET_UPPER_BOUNDS_MS.length; i++) {
+            if (latencyMs <= BUCKET_UPPER_BOUNDS_MS[i]) return i;
+        }
+        return BUCKET_UPPER_BOUNDS_MS.length;
+    }
+
+    /**
+     * Dump the histogram, one line per command that has at least one sample.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            StringBuilder header = new StringBuilder("cmd: count avgMs maxMs |");
+            for (long bound : BUCKET_UPPER_BOUNDS_MS) {
+                header.append(" <=").append(bound);
+            }
+            header.append(" >").append(BUCKET_UPPER_BOUNDS_MS[BUCKET_UPPER_BOUNDS_MS.length - 1]);
+            pw.println(header);
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.valueAt(i);
+                StringBuilder line = new StringBuilder();
+                line.append(mEntries.keyAt(i)).append(": ").append(entry.count)
+                        .append(' ').append(entry.count == 0 ? 0 : entry.totalMs / entry.count)
+                        .append(' ').append(entry.maxMs).append(" |");
+                for (long bucket : entry.buckets) {
+                    line.append(' ').append(bucket);
+                }
+                pw.println(line);
+            }
+        }
+    }
+}
@@ -40,6 +40,8 @@ import android.database.MatrixCursor.RowBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.UserHandle;
 import android.telephony.LocationAccessPolicy;
@@ -47,14 +49,19 @@ import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.TelephonyPermissions;
 
-import java.util.HashMap;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The class to provide base facility to access ServiceState related content,
@@ -243,7 +250,73 @@ public class ServiceStateProvider extends ContentProvider {
     @VisibleForTesting
     /* package */ static final long ENFORCE_LOCATION_PERMISSION_CHECK = 191911306;
 
-    private final HashMap<Integer, ServiceState> mServiceStates = new HashMap<>();
+    /**
+     * The ServiceState of a subscription at one version. Entries are never modified once they
+     * have been published, a new ServiceState replaces the whole entry.
+     */
+    private static final class ServiceStateEntry {
+        final ServiceState serviceState;
+        final long version;
+        // Created on first use, queries racing to create it will create equal copies.
+        private volatile ServiceState mLocationRedactedServiceState;
+
+        ServiceStateEntry(ServiceState serviceState, long version) {
+            this.serviceState = serviceState;
+            this.version = version;
+        }
+
+        ServiceState getLocationRedactedServiceState() {
+            ServiceState redacted = mLocationRedactedServiceState;
+            if (redacted == null) {
+                redacted = ServiceStateProvider.getLocationRedactedServiceState(serviceState);
+                mLocationRedactedServiceState = redacted;
+            }
+            return redacted;
+        }
+    }
+
+    /**
+     * The changes of a subscription's ServiceState that have not been notified yet.
+     */
+    private static final class PendingNotification {
+        // The ServiceState before the first change, null if it was the first update.
+        final ServiceState oldServiceState;
+        // The number of URIs that would have been notified if each change was notified on its own.
+        int requestedUriCount;
+
+        PendingNotification(ServiceState oldServiceState, int requestedUriCount) {
+            this.oldServiceState = oldServiceState;
+            this.requestedUriCount = requestedUriCount;
+        }
+    }
+
+    /**
+     * How long to wait after a ServiceState change before notifying observers. All of the
+     * changes of a subscription within this window are notified together.
+     */
+    @VisibleForTesting
+    /* package */ static final long NOTIFY_CHANGE_DEBOUNCE_MS = 100;
+
+    // insert() and query() are called on arbitrary binder threads.
+    private final ConcurrentHashMap<Integer, ServiceStateEntry> mServiceStates =
+            new ConcurrentHashMap<>();
+    private final AtomicLong mNextVersion = new AtomicLong();
+
+    private final Handler mHandler;
+    // Keyed by subId. Also guards publishing new ServiceStates, so that the pending changes
+    // always start from the ServiceState observers were last notified about.
+    private final SparseArray<PendingNotification> mPendingNotifications = new SparseArray<>();
+    private final AtomicLong mSentNotificationCount = new AtomicLong();
+    private final AtomicLong mSuppressedNotificationCount = new AtomicLong();
+
+    public ServiceStateProvider() {
+        this(Looper.getMainLooper());
+    }
+
+    @VisibleForTesting
+    /* package */ ServiceStateProvider(Looper looper) {
+        mHandler = new Handler(looper);
+    }
 
     @VisibleForTesting
     /* package */ static final String[] ALL_COLUMNS = {
@@ -316,7 +389,21 @@ public class ServiceStateProvider extends ContentProvider {
      */
     @VisibleForTesting
     public ServiceState getServiceState(int subId) {
-        return mServiceStates.get(subId);
+        ServiceStateEntry entry = mServiceStates.get(subId);
+        return entry != null ? entry.serviceState : null;
+    }
+
+    /**
+     * Returns the version of the {@link ServiceState} stored for the specified subscription,
+     * which increases every time a new ServiceState is inserted.
+     *
+     * @param subId the subscription id
+     * @return the version, or -1 if no ServiceState has been inserted for the subscription.
+     */
+    @VisibleForTesting
+    public long getServiceStateVersion(int subId) {
+        ServiceStateEntry entry = mServiceStates.get(subId);
+        return entry != null ? entry.version : -1;
     }
 
     /**
@@ -347,22 +434,34 @@ public class ServiceStateProvider extends ContentProvider {
                 subId = getDefaultSubId();
             }
 
-            final Parcel p = Parcel.obtain();
-            final byte[] rawBytes = values.getAsByteArray(SERVICE_STATE);
-            p.unmarshall(rawBytes, 0, rawBytes.length);
-            p.setDataPosition(0);
-
             // create the new service state
-            final ServiceState newSS = ServiceState.CREATOR.createFromParcel(p);
-
-            // notify listeners
-            // if ss is null (e.g. first service state update) we will notify for all fields
-            ServiceState ss = getServiceState(subId);
-            notifyChangeForSubIdAndField(getContext(), ss, newSS, subId);
-            notifyChangeForSubId(getContext(), ss, newSS, subId);
+            final ServiceState newSS;
+            final Parcel p = Parcel.obtain();
+            try {
+                final byte[] rawBytes = values.getAsByteArray(SERVICE_STATE);
+                p.unmarshall(rawBytes, 0, rawBytes.length);
+                p.setDataPosition(0);
+                newSS = ServiceState.CREATOR.createFromParcel(p);
+            } finally {
+                p.recycle();
+            }
 
-            // store the new service state
-            mServiceStates.put(subId, newSS);
+            // store the new service state, replacing the previous one atomically so that
+            // concurrent inserts for the same subId are each diffed against their predecessor.
+            final ServiceStateEntry newEntry =
+                    new ServiceStateEntry(newSS, mNextVersion.incrementAndGet());
+            final boolean scheduleNotify;
+            synchronized (mPendingNotifications) {
+                final ServiceStateEntry oldEntry = mServiceStates.put(subId, newEntry);
+
+                // notify listeners
+                // if ss is null (e.g. first service state update) we will notify for all fields
+                ServiceState ss = oldEntry != null ? oldEntry.serviceState : null;
+                scheduleNotify = addPendingNotification(subId, ss, newSS);
+            }
+            if (scheduleNotify) {
+                mHandler.postDelayed(() -> notifyPendingChange(subId), NOTIFY_CHANGE_DEBOUNCE_MS);
+            }
             return uri;
         }
         return null;
@@ -457,13 +556,14 @@ public class ServiceStateProvider extends ContentProvider {
                                                 + "permissions");
                             } else {
                                 // For backward compatibility, return redacted value for old SDK
-                                ss = getLocationRedactedServiceState(unredactedServiceState);
+                                ss = getLocationRedactedServiceState(subId,
+                                        unredactedServiceState);
                             }
                         }
                     } else {
                         // The caller is not interested in location sensitive info, return result
                         // that scrub out all sensitive info. And no permission check is needed.
-                        ss = getLocationRedactedServiceState(unredactedServiceState);
+                        ss = getLocationRedactedServiceState(subId, unredactedServiceState);
                     }
                 }
             }
@@ -562,6 +662,119 @@ public class ServiceStateProvider extends ContentProvider {
         return c;
     }
 
+    /**
+     * Record a ServiceState change of the subscription to be notified later.
+     *
+     * @return true if this is the first change since observers were last notified, and the
+     * notification needs to be scheduled.
+     */
+    private boolean addPendingNotification(int subId, ServiceState oldSS, ServiceState newSS) {
+        int changedUriCount = getChangedUris(oldSS, newSS, subId).size();
+        if (changedUriCount == 0) return false;
+        PendingNotification pending = mPendingNotifications.get(subId);
+        if (pending != null) {
+            pending.requestedUriCount += changedUriCount;
+            return false;
+        }
+        mPendingNotifications.put(subId,
+                new PendingNotification(oldSS, changedUriCount));
+        return true;
+    }
+
+    /**
+     * Notify all of the ServiceState changes of the subscription since observers were last
+     * notified in one batch.
+     *
+     * Only the fields that differ between the last notified and the current ServiceState are
+     * notified, so a field that changed and changed back within the debounce window is not.
+     */
+    private void notifyPendingChange(int subId) {
+        final PendingNotification pending;
+        final ServiceState newSS;
+        synchronized (mPendingNotifications) {
+            pending = mPendingNotifications.get(subId);
+            if (pending == null) return;
+            mPendingNotifications.remove(subId);
+            newSS = mServiceStates.get(subId).serviceState;
+        }
+        List<Uri> uris = getChangedUris(pending.oldServiceState, newSS, subId);
+        mSuppressedNotificationCount.addAndGet(pending.requestedUriCount - uris.size());
+        if (uris.isEmpty()) {
+            Log.d(TAG, "subId=" + subId + ": changes reverted, not notifying");
+            return;
+        }
+        mSentNotificationCount.addAndGet(uris.size());
+        getContext().getContentResolver().notifyChange(uris.toArray(new Uri[0]),
+                /* observer= */ null, /* flags= */ 0, UserHandle.USER_ALL);
+    }
+
+    /**
+     * Notify all pending ServiceState changes now instead of waiting for the debounce window.
+     */
+    @VisibleForTesting
+    /* package */ void notifyPendingChanges() {
+        int[] subIds;
+        synchronized (mPendingNotifications) {
+            subIds = new int[mPendingNotifications.size()];
+            for (int i = 0; i < subIds.length; i++) {
+                subIds[i] = mPendingNotifications.keyAt(i);
+            }
+        }
+        for (int subId : subIds) {
+            notifyPendingChange(subId);
+        }
+    }
+
+    /**
+     * @return The number of URIs notified to observers.
+     */
+    @VisibleForTesting
+    public long getSentNotificationCount() {
+        return mSentNotificationCount.get();
+    }
+
+    /**
+     * @return The number of URI notifications that were not sent, because they were merged with
+     * other notifications of the same URI or the change was reverted within the debounce window.
+     */
+    @VisibleForTesting
+    public long getSuppressedNotificationCount() {
+        return mSuppressedNotificationCount.get();
+    }
+
+    /**
+     * Returns the URIs observers need to be notified about when the ServiceState of the
+     * subscription changes from oldSS to newSS: the URI of every changed field, followed by the
+     * URI of the subscription if any field changed.
+     *
+     * @param oldSS the previous ServiceState, null if this is the first update, in which case all
+     *              URIs are returned.
+     */
+    @VisibleForTesting
+    public static List<Uri> getChangedUris(ServiceState oldSS, ServiceState newSS, int subId) {
+        final boolean firstUpdate = oldSS == null;
+        List<Uri> uris = new ArrayList<>();
+        if (firstUpdate || voiceRegStateChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, VOICE_REG_STATE));
+        }
+        if (firstUpdate || dataRegStateChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_REG_STATE));
+        }
+        if (firstUpdate || voiceRoamingTypeChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, VOICE_ROAMING_TYPE));
+        }
+        if (firstUpdate || dataRoamingTypeChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_ROAMING_TYPE));
+        }
+        if (firstUpdate || dataNetworkTypeChanged(oldSS, newSS)) {
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_NETWORK_TYPE));
+        }
+        if (!uris.isEmpty()) {
+            uris.add(getUriForSubscriptionId(subId));
+        }
+        return uris;
+    }
+
     /**
      * Notify interested apps that certain fields of the ServiceState have changed.
      *
@@ -652,6 +865,16 @@ public class ServiceStateProvider extends ContentProvider {
         }
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("ServiceStateProvider:");
+        for (Integer subId : mServiceStates.keySet()) {
+            writer.println("  subId=" + subId + ", version=" + getServiceStateVersion(subId));
+        }
+        writer.println("  sentNotifications=" + mSentNotificationCount.get()
+                + ", suppressedNotifications=" + mSuppressedNotificationCount.get());
+    }
+
     /**
      * Test if this is a path prefix match against the given Uri. Verifies that
      * scheme, authority, and atomic path segments match.
@@ -687,10 +910,15 @@ public class ServiceStateProvider extends ContentProvider {
     public static ContentValues getContentValuesForServiceState(ServiceState state) {
         ContentValues values = new ContentValues();
         final Parcel p = Parcel.obtain();
-        state.writeToParcel(p, 0);
-        // Turn the parcel to byte array. Safe to do this because the content values were never
-        // written into a persistent storage. ServiceStateProvider keeps values in the memory.
-        values.put(SERVICE_STATE, p.marshall());
+        try {
+            state.writeToParcel(p, 0);
+            // Turn the parcel to byte array. Safe to do this because the content values were
+            // never written into a persistent storage. ServiceStateProvider keeps values in the
+            // memory.
+            values.put(SERVICE_STATE, p.marshall());
+        } finally {
+            p.recycle();
+        }
         return values;
     }
 
@@ -715,6 +943,21 @@ public class ServiceStateProvider extends ContentProvider {
         return locationPermissionResult == LocationAccessPolicy.LocationPermissionResult.ALLOWED;
     }
 
+    /**
+     * Returns a copy of the ServiceState of the subscription with all sensitive info redacted.
+     * The copy is created once per inserted ServiceState and shared by all queries.
+     */
+    @VisibleForTesting
+    /* package */ ServiceState getLocationRedactedServiceState(int subId,
+            ServiceState serviceState) {
+        ServiceStateEntry entry = mServiceStates.get(subId);
+        if (entry == null || entry.serviceState != serviceState) {
+            // Not the stored ServiceState, e.g. it was replaced since it was read.
+            return getLocationRedactedServiceState(serviceState);
+        }
+        return entry.getLocationRedactedServiceState();
+    }
+
     // Return a copy of ServiceState with all sensitive info redacted.
     @VisibleForTesting
     /* package */ static ServiceState getLocationRedactedServiceState(ServiceState serviceState) {
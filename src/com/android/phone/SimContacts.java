@@ -100,34 +100,30 @@ public class SimContacts extends ADNList {
     private class ImportAllSimContactsThread extends Thread
             implements OnCancelListener, OnClickListener {
 
-        boolean mCanceled = false;
+        private final SimContactsImporter mImporter;
 
         public ImportAllSimContactsThread() {
             super("ImportAllSimContactsThread");
+            mImporter = new SimContactsImporter(getContentResolver(), mAccount,
+                    SimContactsImporter.DEFAULT_BATCH_SIZE);
         }
 
         @Override
         public void run() {
-            final ContentValues emptyContentValues = new ContentValues();
-            final ContentResolver resolver = getContentResolver();
-
             mCursor.moveToPosition(-1);
-            while (!mCanceled && mCursor.moveToNext()) {
-                actuallyImportOneSimContact(mCursor, resolver, mAccount);
-                mProgressDialog.incrementProgressBy(1);
-            }
+            mImporter.importAll(mCursor, () -> mProgressDialog.incrementProgressBy(1));
 
             mProgressDialog.dismiss();
             finish();
         }
 
         public void onCancel(DialogInterface dialog) {
-            mCanceled = true;
+            mImporter.cancel();
         }
 
         public void onClick(DialogInterface dialog, int which) {
             if (which == DialogInterface.BUTTON_NEGATIVE) {
-                mCanceled = true;
+                mImporter.cancel();
                 mProgressDialog.dismiss();
             } else {
                 Log.e(LOG_TAG, "Unknown button event has come: " + dialog.toString());
@@ -135,8 +131,32 @@ public class SimContacts extends ADNList {
         }
     }
 
-    private static boolean actuallyImportOneSimContact(
+    static boolean actuallyImportOneSimContact(
             final Cursor cursor, final ContentResolver resolver, Account account) {
+        final ArrayList<ContentProviderOperation> operationList =
+            new ArrayList<ContentProviderOperation>();
+        addContactOperations(operationList, cursor, account);
+
+        try {
+            final ContentProviderResult[] results = resolver.applyBatch(ContactsContract.AUTHORITY,
+                    operationList);
+            return results.length > 0; // Batch operations either all succeed or all fail.
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Appends the operations that insert the contact at the current position of {@code cursor}
+     * to {@code operationList}. The back references point at the raw contact inserted by the
+     * first appended operation, so the operations of several contacts can share one batch. No
+     * yield points are added, so a batch is applied all or nothing.
+     */
+    static void addContactOperations(final ArrayList<ContentProviderOperation> operationList,
+            final Cursor cursor, Account account) {
         final NamePhoneTypePair namePhoneTypePair =
             new NamePhoneTypePair(cursor.getString(NAME_COLUMN));
         final String name = namePhoneTypePair.name;
@@ -150,8 +170,7 @@ public class SimContacts extends ADNList {
             emailAddressArray = null;
         }
 
-        final ArrayList<ContentProviderOperation> operationList =
-            new ArrayList<ContentProviderOperation>();
+        final int rawContactIndex = operationList.size();
         ContentProviderOperation.Builder builder =
             ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
         String myGroupsId = null;
@@ -164,13 +183,13 @@ public class SimContacts extends ADNList {
         operationList.add(builder.build());
 
         builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, 0);
+        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, rawContactIndex);
         builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
         builder.withValue(StructuredName.DISPLAY_NAME, name);
         operationList.add(builder.build());
 
         builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
+        builder.withValueBackReference(Phone.RAW_CONTACT_ID, rawContactIndex);
         builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
         builder.withValue(Phone.TYPE, phoneType);
         builder.withValue(Phone.NUMBER, phoneNumber);
@@ -180,7 +199,7 @@ public class SimContacts extends ADNList {
         if (emailAddressArray != null) {
             for (String emailAddress : emailAddressArray) {
                 builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, 0);
+                builder.withValueBackReference(Email.RAW_CONTACT_ID, rawContactIndex);
                 builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
                 builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
                 builder.withValue(Email.DATA, emailAddress);
@@ -190,22 +209,11 @@ public class SimContacts extends ADNList {
 
         if (myGroupsId != null) {
             builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(GroupMembership.RAW_CONTACT_ID, 0);
+            builder.withValueBackReference(GroupMembership.RAW_CONTACT_ID, rawContactIndex);
             builder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
             builder.withValue(GroupMembership.GROUP_SOURCE_ID, myGroupsId);
             operationList.add(builder.build());
         }
-
-        try {
-            final ContentProviderResult[] results = resolver.applyBatch(ContactsContract.AUTHORITY,
-                    operationList);
-            return results.length > 0; // Batch operations either all succeed or all fail.
-        } catch (RemoteException e) {
-            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        }
-        return false;
     }
 
     private void importOneSimContact(int position) {
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+
+/**
+ * Imports the rows of a SIM contacts cursor into the contacts provider.
+ *
+ * <p>The operations of up to {@code batchSize} contacts are applied in a single
+ * {@link ContentResolver#applyBatch} call instead of one call per contact. A batch has no yield
+ * points, so the provider applies it in one transaction: if it fails, none of its contacts were
+ * inserted and they are imported again one at a time, so a single bad row does not drop the
+ * others.
+ *
+ * <p>Progress is still reported one contact at a time, as each row is read and added to its
+ * batch, so the progress bar moves as smoothly as with one call per contact.
+ */
+final class SimContactsImporter {
+    private static final String LOG_TAG = "SimContactsImporter";
+
+    /** The number of contacts applied in a single batch by the SIM contacts UI. */
+    static final int DEFAULT_BATCH_SIZE = 50;
+
+    /**
+     * A batch is applied early once it has this many operations. The contacts provider rejects
+     * batches with 500 or more operations between yield points, a batch only gets there if its
+     * last contact alone has hundreds of email addresses, and then it is imported one contact at a
+     * time.
+     */
+    @VisibleForTesting
+    static final int MAX_OPERATIONS_PER_BATCH = 250;
+
+    /** Notified as contacts are processed. */
+    interface ProgressListener {
+        /**
+         * Called once for each contact when it has been added to its batch. The batch is applied
+         * before {@link #importAll} returns, whether or not the import is canceled in between.
+         */
+        void onContactProcessed();
+    }
+
+    private final ContentResolver mResolver;
+    private final Account mAccount;
+    private final int mBatchSize;
+    private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+    private volatile boolean mCanceled;
+
+    /**
+     * @param account the account of the imported contacts, or null for the local account.
+     * @param batchSize the maximum number of contacts applied in a single batch.
+     */
+    SimContactsImporter(ContentResolver resolver, Account account, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        mResolver = resolver;
+        mAccount = account;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Stops the import. The contacts already added to a batch are still imported, but no further
+     * rows are read.
+     */
+    void cancel() {
+        mCanceled = true;
+    }
+
+    boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Imports the rows of {@code cursor} after its current position until the end of the cursor is
+     * reached or the import is canceled.
+     *
+     * @return the number of contacts that were imported.
+     */
+    int importAll(Cursor cursor, ProgressListener listener) {
+        int imported = 0;
+        int batchStart = cursor.getPosition() + 1;
+        int batchCount = 0;
+        try {
+            while (!mCanceled && cursor.moveToNext()) {
+                SimContacts.addContactOperations(mOperations, cursor, mAccount);
+                batchCount++;
+                listener.onContactProcessed();
+                if (batchCount == mBatchSize
+                        || mOperations.size() >= MAX_OPERATIONS_PER_BATCH) {
+                    imported += applyBatch(cursor, batchStart, batchCount);
+                    batchStart += batchCount;
+                    batchCount = 0;
+                }
+            }
+            if (batchCount > 0) {
+                imported += applyBatch(cursor, batchStart, batchCount);
+            }
+        } finally {
+            mOperations.clear();
+        }
+        return imported;
+    }
+
+    private int applyBatch(Cursor cursor, int batchStart, int batchCount) {
+        try {
+            ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, mOperations);
+            // Without yield points, batch operations either all succeed or all fail.
+            if (results.length > 0) {
+                return batchCount;
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.w(LOG_TAG, "Failed to import " + batchCount + " contacts in a batch, importing"
+                    + " them one at a time: " + e);
+        } finally {
+            mOperations.clear();
+        }
+
+        int imported = 0;
+        for (int i = 0; i < batchCount; i++) {
+            if (cursor.moveToPosition(batchStart + i)
+                    && SimContacts.actuallyImportOneSimContact(cursor, mResolver, mAccount)) {
+                imported++;
+            }
+        }
+        // Leave the cursor on the last row of the batch so the caller can move on to the next one.
+        cursor.moveToPosition(batchStart + batchCount - 1);
+        return imported;
+    }
+}
@@ -21,9 +21,13 @@ import static com.android.internal.telephony.IccProvider.STR_NEW_TAG;
 
 import android.Manifest;
 import android.annotation.TestApi;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
@@ -34,6 +38,7 @@ import android.os.Binder;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.SimPhonebookContract;
 import android.provider.SimPhonebookContract.ElementaryFiles;
 import android.provider.SimPhonebookContract.SimRecords;
@@ -61,7 +66,11 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
@@ -106,6 +115,9 @@ public class SimPhonebookProvider extends ContentProvider {
     );
 
     private static final int WRITE_TIMEOUT_SECONDS = 30;
+    // Records can also be written through IccProvider, which doesn't notify this provider, so
+    // cached records are reloaded after this long.
+    private static final long RECORD_CACHE_MAX_AGE_MS = TimeUnit.MINUTES.toMillis(1);
 
     private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -135,6 +147,16 @@ public class SimPhonebookProvider extends ContentProvider {
     private Supplier<IIccPhoneBook> mIccPhoneBookSupplier;
     private ContentNotifier mContentNotifier;
 
+    // The records of each EF that has been read, keyed by subscription ID and then by efid. The
+    // cached lists are never modified, writes replace them with an updated copy. Guarded by
+    // itself.
+    private final SparseArray<SparseArray<CachedRecords>> mRecordCache = new SparseArray<>();
+    // Incremented whenever cached records are written or invalidated, so records read from the
+    // SIM before that are not cached. Guarded by mRecordCache.
+    private int mRecordCacheGeneration;
+    private long mRecordCacheHitCount;
+    private long mRecordCacheMissCount;
+
     static int efIdForEfType(@ElementaryFiles.EfType int efType) {
         switch (efType) {
             case ElementaryFiles.EF_ADN:
@@ -182,6 +204,18 @@ public class SimPhonebookProvider extends ContentProvider {
         } else if (Flags.workProfileApiSplit()) {
             sm = sm.createForAllUserProfiles();
         }
+        // The records of the SIM may have changed when it is refreshed or swapped.
+        IntentFilter simStateFilter = new IntentFilter();
+        simStateFilter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        simStateFilter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateCachedRecords(intent.getIntExtra(
+                        SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX,
+                        SubscriptionManager.INVALID_SUBSCRIPTION_ID));
+            }
+        }, simStateFilter);
         return onCreate(sm,
                 SimPhonebookProvider::getIccPhoneBook,
                 uri -> resolver.notifyChange(uri, null));
@@ -207,6 +241,7 @@ public class SimPhonebookProvider extends ContentProvider {
                         }
                         int[] activeSubIds = mSubscriptionManager.getActiveSubscriptionIdList();
                         if (!Arrays.equals(mNotifiedSubIds, activeSubIds)) {
+                            invalidateCachedRecords(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
                             notifier.notifyChange(SimPhonebookContract.AUTHORITY_URI);
                             mNotifiedSubIds = Arrays.copyOf(activeSubIds, activeSubIds.length);
                         }
@@ -258,7 +293,8 @@ public class SimPhonebookProvider extends ContentProvider {
                 return queryElementaryFilesItem(PhonebookArgs.forElementaryFilesItem(uri),
                         projection);
             case SIM_RECORDS:
-                return querySimRecords(PhonebookArgs.forSimRecords(uri, queryArgs), projection);
+                return querySimRecords(PhonebookArgs.forSimRecords(uri, queryArgs), projection,
+                        queryArgs);
             case SIM_RECORDS_ITEM:
                 return querySimRecordsItem(PhonebookArgs.forSimRecordsItem(uri, queryArgs),
                         projection);
@@ -343,8 +379,8 @@ public class SimPhonebookProvider extends ContentProvider {
         // Have to load the existing records to get the size because there may be more than one
         // phonebook set in which case the total capacity is the sum of the capacity of EF_ADN for
         // all the phonebook sets whereas the recordsSize is just the size for a single EF.
-        List<AdnRecord> existingRecords = mIccPhoneBookSupplier.get()
-                .getAdnRecordsInEfForSubscriber(subscriptionInfo.getSubscriptionId(), efid);
+        List<AdnRecord> existingRecords =
+                getCachedRecords(subscriptionInfo.getSubscriptionId(), efid);
         if (existingRecords == null) {
             existingRecords = ImmutableList.of();
         }
@@ -368,68 +404,53 @@ public class SimPhonebookProvider extends ContentProvider {
         }
     }
 
-    private Cursor querySimRecords(PhonebookArgs args, String[] projection) {
+    private Cursor querySimRecords(PhonebookArgs args, String[] projection,
+            @Nullable Bundle queryArgs) {
         validateProjection(SIM_RECORDS_COLUMNS_SET, projection);
         validateSubscriptionAndEf(args);
         if (projection == null) {
             projection = SIM_RECORDS_ALL_COLUMNS;
         }
+        int offset = getNonNegativeQueryArg(queryArgs, ContentResolver.QUERY_ARG_OFFSET, 0);
+        int limit = getNonNegativeQueryArg(queryArgs, ContentResolver.QUERY_ARG_LIMIT, -1);
 
         List<AdnRecord> records = loadRecordsForEf(args);
         if (records == null) {
             return new MatrixCursor(projection, 0);
         }
-        MatrixCursor result = new MatrixCursor(projection, records.size());
-        SparseArray<MatrixCursor.RowBuilder> rowBuilders = new SparseArray<>(records.size());
-        for (int i = 0; i < records.size(); i++) {
-            AdnRecord record = records.get(i);
-            if (!record.isEmpty()) {
-                rowBuilders.put(i, result.newRow());
+        // The cached records are never modified so the cursor can read from them directly.
+        SimRecordsCursor result = new SimRecordsCursor(projection, args.subscriptionId,
+                args.efType, records, offset, limit);
+        if (queryArgs != null && (queryArgs.containsKey(ContentResolver.QUERY_ARG_OFFSET)
+                || queryArgs.containsKey(ContentResolver.QUERY_ARG_LIMIT))) {
+            Bundle extras = new Bundle();
+            List<String> honoredArgs = new ArrayList<>(2);
+            if (queryArgs.containsKey(ContentResolver.QUERY_ARG_OFFSET)) {
+                honoredArgs.add(ContentResolver.QUERY_ARG_OFFSET);
             }
-        }
-        // This is kind of ugly but avoids looking up columns in an inner loop.
-        for (String column : projection) {
-            switch (column) {
-                case SimRecords.SUBSCRIPTION_ID:
-                    for (int i = 0; i < rowBuilders.size(); i++) {
-                        rowBuilders.valueAt(i).add(args.subscriptionId);
-                    }
-                    break;
-                case SimRecords.ELEMENTARY_FILE_TYPE:
-                    for (int i = 0; i < rowBuilders.size(); i++) {
-                        rowBuilders.valueAt(i).add(args.efType);
-                    }
-                    break;
-                case SimRecords.RECORD_NUMBER:
-                    for (int i = 0; i < rowBuilders.size(); i++) {
-                        int index = rowBuilders.keyAt(i);
-                        MatrixCursor.RowBuilder rowBuilder = rowBuilders.valueAt(i);
-                        // See b/201685690. The logical record number, i.e. the 1-based index in the
-                        // list, is used the rather than AdnRecord.getRecId() because getRecId is
-                        // not offset when a single logical EF is made up of multiple physical EFs.
-                        rowBuilder.add(index + 1);
-                    }
-                    break;
-                case SimRecords.NAME:
-                    for (int i = 0; i < rowBuilders.size(); i++) {
-                        AdnRecord record = records.get(rowBuilders.keyAt(i));
-                        rowBuilders.valueAt(i).add(record.getAlphaTag());
-                    }
-                    break;
-                case SimRecords.PHONE_NUMBER:
-                    for (int i = 0; i < rowBuilders.size(); i++) {
-                        AdnRecord record = records.get(rowBuilders.keyAt(i));
-                        rowBuilders.valueAt(i).add(record.getNumber());
-                    }
-                    break;
-                default:
-                    Rlog.w(TAG, "Column " + column + " is unsupported for " + args.uri);
-                    break;
+            if (queryArgs.containsKey(ContentResolver.QUERY_ARG_LIMIT)) {
+                honoredArgs.add(ContentResolver.QUERY_ARG_LIMIT);
             }
+            extras.putStringArray(ContentResolver.EXTRA_HONORED_ARGS,
+                    honoredArgs.toArray(new String[0]));
+            extras.putInt(ContentResolver.EXTRA_TOTAL_COUNT, result.getTotalCount());
+            result.setExtras(extras);
         }
         return result;
     }
 
+    private static int getNonNegativeQueryArg(@Nullable Bundle queryArgs, String key,
+            int defaultValue) {
+        if (queryArgs == null || !queryArgs.containsKey(key)) {
+            return defaultValue;
+        }
+        int value = queryArgs.getInt(key, defaultValue);
+        if (value < 0) {
+            throw new IllegalArgumentException(key + " must not be negative: " + value);
+        }
+        return value;
+    }
+
     private Cursor querySimRecordsItem(PhonebookArgs args, String[] projection) {
         validateProjection(SIM_RECORDS_COLUMNS_SET, projection);
         if (projection == null) {
@@ -508,9 +529,11 @@ public class SimPhonebookProvider extends ContentProvider {
                 return null;
             }
             AdnRecord emptyRecord = null;
-            for (AdnRecord record : records) {
-                if (record.isEmpty()) {
-                    emptyRecord = record;
+            int emptyRecordIndex = -1;
+            for (int i = 0; i < records.size(); i++) {
+                if (records.get(i).isEmpty()) {
+                    emptyRecord = records.get(i);
+                    emptyRecordIndex = i;
                     break;
                 }
             }
@@ -519,7 +542,8 @@ public class SimPhonebookProvider extends ContentProvider {
                 throw new IllegalStateException(
                         args.uri + " is full. Please delete records to add new ones.");
             }
-            boolean success = updateRecord(args, emptyRecord, args.pin2, newName, newPhoneNumber);
+            boolean success = updateRecord(args, emptyRecordIndex, emptyRecord, args.pin2, newName,
+                    newPhoneNumber);
             if (!success) {
                 Rlog.e(TAG, "Insert failed for " + args.uri);
                 // Something didn't work but since we don't have any more specific
@@ -564,7 +588,7 @@ public class SimPhonebookProvider extends ContentProvider {
             if (record == null || record.isEmpty()) {
                 return 0;
             }
-            if (!updateRecord(args, record, args.pin2, "", "")) {
+            if (!updateRecord(args, args.recordNumber - 1, record, args.pin2, "", "")) {
                 Rlog.e(TAG, "Failed to delete " + args.uri);
             }
             notifyChange();
@@ -618,7 +642,8 @@ public class SimPhonebookProvider extends ContentProvider {
             if (record == null) {
                 return 0;
             }
-            if (!updateRecord(args, record, args.pin2, newName, newPhoneNumber)) {
+            if (!updateRecord(args, args.recordNumber - 1, record, args.pin2, newName,
+                    newPhoneNumber)) {
                 Rlog.e(TAG, "Failed to update " + args.uri);
                 return 0;
             }
@@ -693,19 +718,34 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
 
-    private boolean updateRecord(PhonebookArgs args, AdnRecord existingRecord, String pin2,
-            String newName, String newPhone) {
+    /**
+     * Writes the record to the SIM and updates the cached records of the EF. Must be called with
+     * mWriteLock held.
+     *
+     * @param index the index of the existing record in the records of the EF.
+     */
+    private boolean updateRecord(PhonebookArgs args, int index, AdnRecord existingRecord,
+            String pin2, String newName, String newPhone) {
+        boolean success;
         try {
             ContentValues values = new ContentValues();
             values.put(STR_NEW_TAG, newName);
             values.put(STR_NEW_NUMBER, newPhone);
-            return mIccPhoneBookSupplier.get().updateAdnRecordsInEfByIndexForSubscriber(
+            success = mIccPhoneBookSupplier.get().updateAdnRecordsInEfByIndexForSubscriber(
                     args.subscriptionId, existingRecord.getEfid(), values,
                     existingRecord.getRecId(),
                     pin2);
         } catch (RemoteException e) {
-            return false;
+            success = false;
         }
+        if (success) {
+            updateCachedRecord(args, index, new AdnRecord(existingRecord.getEfid(),
+                    existingRecord.getRecId(), newName, newPhone));
+        } else {
+            // The write may have partially succeeded, so read the records from the SIM again.
+            invalidateCachedRecords(args.subscriptionId, args.efid);
+        }
+        return success;
     }
 
     private void validatePhoneNumber(@Nullable String phoneNumber) {
@@ -778,13 +818,99 @@ public class SimPhonebookProvider extends ContentProvider {
 
     private List<AdnRecord> loadRecordsForEf(PhonebookArgs args) {
         try {
-            return mIccPhoneBookSupplier.get().getAdnRecordsInEfForSubscriber(
-                    args.subscriptionId, args.efid);
+            return getCachedRecords(args.subscriptionId, args.efid);
         } catch (RemoteException e) {
             return null;
         }
     }
 
+    /**
+     * Returns the records of the EF, which are only read from the SIM if they are not cached.
+     * The returned list can not be modified.
+     */
+    @Nullable
+    private List<AdnRecord> getCachedRecords(int subId, int efid) throws RemoteException {
+        int generation;
+        synchronized (mRecordCache) {
+            CachedRecords cached = getCachedRecordsLocked(subId, efid);
+            if (cached != null && SystemClock.elapsedRealtime() - cached.loadTimeMs
+                    < RECORD_CACHE_MAX_AGE_MS) {
+                mRecordCacheHitCount++;
+                return cached.records;
+            }
+            mRecordCacheMissCount++;
+            generation = mRecordCacheGeneration;
+        }
+        List<AdnRecord> records = mIccPhoneBookSupplier.get()
+                .getAdnRecordsInEfForSubscriber(subId, efid);
+        if (records == null) {
+            return null;
+        }
+        records = Collections.unmodifiableList(new ArrayList<>(records));
+        synchronized (mRecordCache) {
+            // Don't cache the records if they were written or invalidated while being read.
+            if (generation == mRecordCacheGeneration) {
+                putCachedRecordsLocked(subId, efid,
+                        new CachedRecords(records, SystemClock.elapsedRealtime()));
+            }
+        }
+        return records;
+    }
+
+    private void updateCachedRecord(PhonebookArgs args, int index, AdnRecord record) {
+        synchronized (mRecordCache) {
+            mRecordCacheGeneration++;
+            CachedRecords cached = getCachedRecordsLocked(args.subscriptionId, args.efid);
+            if (cached == null || index < 0 || index >= cached.records.size()) {
+                return;
+            }
+            List<AdnRecord> records = new ArrayList<>(cached.records);
+            records.set(index, record);
+            putCachedRecordsLocked(args.subscriptionId, args.efid,
+                    new CachedRecords(Collections.unmodifiableList(records), cached.loadTimeMs));
+        }
+    }
+
+    private void invalidateCachedRecords(int subId, int efid) {
+        synchronized (mRecordCache) {
+            mRecordCacheGeneration++;
+            SparseArray<CachedRecords> efs = mRecordCache.get(subId);
+            if (efs != null) {
+                efs.remove(efid);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached records of the subscription, or of all subscriptions if subId is
+     * {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID}.
+     */
+    @VisibleForTesting
+    void invalidateCachedRecords(int subId) {
+        synchronized (mRecordCache) {
+            mRecordCacheGeneration++;
+            if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                mRecordCache.clear();
+            } else {
+                mRecordCache.remove(subId);
+            }
+        }
+    }
+
+    private CachedRecords getCachedRecordsLocked(int subId, int efid) {
+        SparseArray<CachedRecords> efs = mRecordCache.get(subId);
+        return efs != null ? efs.get(efid) : null;
+    }
+
+    private void putCachedRecordsLocked(int subId, int efid, CachedRecords cached) {
+        SparseArray<CachedRecords> efs = mRecordCache.get(subId);
+        if (efs == null) {
+            efs = new SparseArray<>();
+            mRecordCache.put(subId, efs);
+        }
+        efs.put(efid, cached);
+    }
+
     private AdnRecord loadRecord(PhonebookArgs args) {
         List<AdnRecord> records = loadRecordsForEf(args);
         if (records == null || args.recordNumber > records.size()) {
@@ -806,6 +932,35 @@ public class SimPhonebookProvider extends ContentProvider {
         mContentNotifier.notifyChange(SimPhonebookContract.AUTHORITY_URI);
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        synchronized (mRecordCache) {
+            writer.println("SimPhonebookProvider:");
+            writer.println("  Record cache: hits=" + mRecordCacheHitCount + ", misses="
+                    + mRecordCacheMissCount);
+            for (int i = 0; i < mRecordCache.size(); i++) {
+                SparseArray<CachedRecords> efs = mRecordCache.valueAt(i);
+                for (int j = 0; j < efs.size(); j++) {
+                    writer.println("    subId=" + mRecordCache.keyAt(i) + ", efid=0x"
+                            + Integer.toHexString(efs.keyAt(j)) + ", records="
+                            + efs.valueAt(j).records.size() + ", ageMs="
+                            + (SystemClock.elapsedRealtime() - efs.valueAt(j).loadTimeMs));
+                }
+            }
+        }
+    }
+
+    /** The records of an EF and when they were read from the SIM. */
+    private static final class CachedRecords {
+        final List<AdnRecord> records;
+        final long loadTimeMs;
+
+        CachedRecords(List<AdnRecord> records, long loadTimeMs) {
+            this.records = records;
+            this.loadTimeMs = loadTimeMs;
+        }
+    }
+
     /** Testable wrapper around {@link ContentResolver#notifyChange(Uri, ContentObserver)} */
     @TestApi
     interface ContentNotifier {
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.provider.SimPhonebookContract.SimRecords;
+
+import com.android.internal.telephony.uicc.AdnRecord;
+
+import java.util.List;
+
+/**
+ * A read-only cursor over the non-empty records of an elementary file.
+ *
+ * <p>Rows are not copied when the cursor is created. The values of a row are read from its
+ * {@link AdnRecord} when they are accessed, e.g. while the cursor window sent to a client is
+ * filled, so only the rows a client actually moves through are materialized.
+ */
+final class SimRecordsCursor extends AbstractCursor {
+
+    private static final int COLUMN_SUBSCRIPTION_ID = 0;
+    private static final int COLUMN_ELEMENTARY_FILE_TYPE = 1;
+    private static final int COLUMN_RECORD_NUMBER = 2;
+    private static final int COLUMN_NAME = 3;
+    private static final int COLUMN_PHONE_NUMBER = 4;
+    private static final int COLUMN_UNSUPPORTED = -1;
+
+    private final String[] mColumnNames;
+    private final int[] mColumns;
+    private final int mSubscriptionId;
+    private final int mEfType;
+    private final List<AdnRecord> mRecords;
+    // The index in mRecords of the record of each row.
+    private final int[] mRecordIndexes;
+    private final int mTotalCount;
+
+    /**
+     * @param records the records of the elementary file. The list must not be modified while the
+     *                cursor is in use.
+     * @param offset the number of non-empty records to skip.
+     * @param limit the maximum number of rows, or -1 for no limit.
+     */
+    SimRecordsCursor(String[] projection, int subscriptionId, int efType,
+            List<AdnRecord> records, int offset, int limit) {
+        mColumnNames = projection;
+        mColumns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            mColumns[i] = getColumn(projection[i]);
+        }
+        mSubscriptionId = subscriptionId;
+        mEfType = efType;
+        mRecords = records;
+
+        int totalCount = 0;
+        for (AdnRecord record : records) {
+            if (!record.isEmpty()) {
+                totalCount++;
+            }
+        }
+        mTotalCount = totalCount;
+        int rowCount = Math.max(0, totalCount - offset);
+        if (limit >= 0) {
+            rowCount = Math.min(rowCount, limit);
+        }
+        mRecordIndexes = new int[rowCount];
+        int nonEmptyIndex = 0;
+        int row = 0;
+        for (int i = 0; i < records.size() && row < rowCount; i++) {
+            if (records.get(i).isEmpty()) {
+                continue;
+            }
+            if (nonEmptyIndex++ >= offset) {
+                mRecordIndexes[row++] = i;
+            }
+        }
+    }
+
+    private static int getColumn(String columnName) {
+        switch (columnName) {
+            case SimRecords.SUBSCRIPTION_ID:
+                return COLUMN_SUBSCRIPTION_ID;
+            case SimRecords.ELEMENTARY_FILE_TYPE:
+                return COLUMN_ELEMENTARY_FILE_TYPE;
+            case SimRecords.RECORD_NUMBER:
+                return COLUMN_RECORD_NUMBER;
+            case SimRecords.NAME:
+                return COLUMN_NAME;
+            case SimRecords.PHONE_NUMBER:
+                return COLUMN_PHONE_NUMBER;
+            default:
+                return COLUMN_UNSUPPORTED;
+        }
+    }
+
+    /** Returns the number of non-empty records, ignoring the offset and limit. */
+    int getTotalCount() {
+        return mTotalCount;
+    }
+
+    @Override
+    public int getCount() {
+        return mRecordIndexes.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        switch (mColumns[column]) {
+            case COLUMN_SUBSCRIPTION_ID:
+            case COLUMN_ELEMENTARY_FILE_TYPE:
+            case COLUMN_RECORD_NUMBER:
+                return Cursor.FIELD_TYPE_INTEGER;
+            case COLUMN_NAME:
+            case COLUMN_PHONE_NUMBER:
+                return getString(column) == null
+                        ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING;
+            default:
+                return Cursor.FIELD_TYPE_NULL;
+        }
+    }
+
+    @Override
+    public String getString(int column) {
+        switch (mColumns[column]) {
+            case COLUMN_NAME:
+                return getRecord().getAlphaTag();
+            case COLUMN_PHONE_NUMBER:
+                return getRecord().getNumber();
+            case COLUMN_UNSUPPORTED:
+                return null;
+            default:
+                return Long.toString(getLong(column));
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        checkPosition();
+        switch (mColumns[column]) {
+            case COLUMN_SUBSCRIPTION_ID:
+                return mSubscriptionId;
+            case COLUMN_ELEMENTARY_FILE_TYPE:
+                return mEfType;
+            case COLUMN_RECORD_NUMBER:
+                // See b/201685690. The logical record number, i.e. the 1-based index in the
+                // list, is used the rather than AdnRecord.getRecId() because getRecId is not
+                // offset when a single logical EF is made up of multiple physical EFs.
+                return mRecordIndexes[getPosition()] + 1;
+            case COLUMN_UNSUPPORTED:
+                return 0;
+            default:
+                String value = getString(column);
+                return value != null ? Long.parseLong(value) : 0;
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getType(column) == Cursor.FIELD_TYPE_NULL;
+    }
+
+    private AdnRecord getRecord() {
+        checkPosition();
+        return mRecords.get(mRecordIndexes[getPosition()]);
+    }
+}
@@ -49,6 +49,7 @@ import android.telephony.ims.feature.ImsFeature;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -245,6 +246,8 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
             "set-allowed-network-types-for-users";
     private static final String GET_IMEI = "get-imei";
     private static final String GET_SIM_SLOTS_MAPPING = "get-sim-slots-mapping";
+    private static final String MAIN_THREAD_STATS = "main-thread-stats";
+    private static final String MAIN_THREAD_STATS_RESET = "--reset";
     private static final String COMMAND_DELETE_IMSI_KEY = "delete_imsi_key";
     private static final String SET_SATELLITE_IGNORE_PLMN_LIST_FROM_STORAGE =
             "set-satellite-ignore-plmn-list-from-storage";
@@ -406,6 +409,8 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
                 return handleGetImei();
             case GET_SIM_SLOTS_MAPPING:
                 return handleGetSimSlotsMapping();
+            case MAIN_THREAD_STATS:
+                return handleMainThreadStatsCommand();
             case RADIO_SUBCOMMAND:
                 return handleRadioCommand();
             case CARRIER_RESTRICTION_STATUS_TEST:
@@ -504,6 +509,10 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         pw.println("    Set the Allowed Network Types.");
         pw.println("  radio");
         pw.println("    Radio Commands.");
+        pw.println("  main-thread-stats [--reset]");
+        pw.println("    Print per-command queue and execution latency, timeouts and callers of");
+        pw.println("    requests handled on the phone main thread. Options are:");
+        pw.println("      --reset: clear the counters after printing them.");
         onHelpIms();
         onHelpUce();
         onHelpEmergencyNumber();
@@ -1225,6 +1234,33 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
 
     }
 
+    private int handleMainThreadStatsCommand() {
+        String arg = getNextArg();
+        if (arg != null && !MAIN_THREAD_STATS_RESET.equals(arg)) {
+            getErrPrintWriter().println("Unknown option: " + arg);
+            return -1;
+        }
+
+        if (!checkShellUid()) {
+            return -1;
+        }
+
+        if (!(mInterface instanceof PhoneInterfaceManager)) {
+            getErrPrintWriter().println(MAIN_THREAD_STATS + ": not available.");
+            return -1;
+        }
+
+        MainThreadHandlerStats stats =
+                ((PhoneInterfaceManager) mInterface).getMainThreadHandlerStats();
+        IndentingPrintWriter pw = new IndentingPrintWriter(getOutPrintWriter(), "  ");
+        stats.dump(pw);
+        pw.flush();
+        if (arg != null) {
+            stats.reset();
+        }
+        return 0;
+    }
+
     private int handleD2dCommand() {
         String arg = getNextArg();
         if (arg == null) {
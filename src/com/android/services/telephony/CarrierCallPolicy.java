@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.annotation.NonNull;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * The carrier config values of a subscription which {@link TelephonyConnection} reads while its
+ * capabilities, properties and extras are recomputed.
+ *
+ * <p>A policy is immutable. The policy of each subscription is built from its carrier config the
+ * first time it is needed and then shared by the connections on that subscription until
+ * {@link #invalidate(int)} is called for a carrier config change.
+ */
+final class CarrierCallPolicy {
+
+    private static final Object sLock = new Object();
+    @GuardedBy("sLock")
+    private static final SparseArray<CarrierCallPolicy> sPolicies = new SparseArray<>();
+    // Incremented on invalidation, so a policy built from a config which changed in the meantime
+    // is not cached.
+    @GuardedBy("sLock")
+    private static long sGeneration;
+
+    /**
+     * {@link CarrierConfigManager#KEY_FILTERED_CNAP_NAMES_STRING_ARRAY}. A CNAP name is filtered if
+     * its upper-cased form is in the set.
+     */
+    final @NonNull Set<String> filteredCnapNames;
+    /** {@link CarrierConfigManager#KEY_WIFI_CALLS_CAN_BE_HD_AUDIO}. */
+    final boolean wifiCallsCanBeHdAudio;
+    /** {@link CarrierConfigManager#KEY_VIDEO_CALLS_CAN_BE_HD_AUDIO}. */
+    final boolean videoCallsCanBeHdAudio;
+    /** {@link CarrierConfigManager#KEY_GSM_CDMA_CALLS_CAN_BE_HD_AUDIO}. */
+    final boolean gsmCdmaCallsCanBeHdAudio;
+    /** {@link CarrierConfigManager#KEY_DISPLAY_HD_AUDIO_PROPERTY_BOOL}. */
+    final boolean displayHdAudioProperty;
+    /** {@link CarrierConfigManager#KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL}. */
+    final boolean allowHoldInImsCall;
+    /** {@link CarrierConfigManager#KEY_SUPPORT_ADD_CONFERENCE_PARTICIPANTS_BOOL}. */
+    final boolean supportAddConferenceParticipants;
+    /** {@link CarrierConfigManager#KEY_ALLOW_MERGING_RTT_CALLS_BOOL}. */
+    final boolean allowMergingRttCalls;
+    /** {@link CarrierConfigManager#KEY_CARRIER_ALLOW_DEFLECT_IMS_CALL_BOOL}. */
+    final boolean allowDeflectImsCall;
+    /** {@link CarrierConfigManager#KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL}. */
+    final boolean allowTransferImsCall;
+    /** {@link CarrierConfigManager#KEY_TREAT_DOWNGRADED_VIDEO_CALLS_AS_VIDEO_CALLS_BOOL}. */
+    final boolean treatDowngradedVideoCallsAsVideoCalls;
+    /** {@link CarrierConfigManager#KEY_CONFIG_SHOW_ORIG_DIAL_STRING_FOR_CDMA_BOOL}. */
+    final boolean showOrigDialStringForCdma;
+    /** {@link CarrierConfigManager#KEY_FORMAT_INCOMING_NUMBER_TO_NATIONAL_FOR_JP_BOOL}. */
+    final boolean formatIncomingNumberToNationalForJp;
+    /** {@link CarrierConfigManager#KEY_SUPPORTS_DEVICE_TO_DEVICE_COMMUNICATION_USING_RTP_BOOL}. */
+    final boolean supportsD2DUsingRtp;
+    /** {@link CarrierConfigManager#KEY_SUPPORTS_DEVICE_TO_DEVICE_COMMUNICATION_USING_DTMF_BOOL}. */
+    final boolean supportsD2DUsingDtmf;
+    /**
+     * {@link CarrierConfigManager#KEY_SUPPORTS_SDP_NEGOTIATION_OF_D2D_RTP_HEADER_EXTENSIONS_BOOL}.
+     */
+    final boolean supportsSdpNegotiationOfRtpHeaderExtensions;
+
+    private CarrierCallPolicy(@NonNull PersistableBundle b) {
+        String[] cnapNames = b.getStringArray(
+                CarrierConfigManager.KEY_FILTERED_CNAP_NAMES_STRING_ARRAY);
+        if (cnapNames == null || cnapNames.length == 0) {
+            filteredCnapNames = Collections.emptySet();
+        } else {
+            ArraySet<String> names = new ArraySet<>(cnapNames.length);
+            for (String name : cnapNames) {
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+            filteredCnapNames = Collections.unmodifiableSet(names);
+        }
+        wifiCallsCanBeHdAudio = b.getBoolean(CarrierConfigManager.KEY_WIFI_CALLS_CAN_BE_HD_AUDIO);
+        videoCallsCanBeHdAudio = b.getBoolean(
+                CarrierConfigManager.KEY_VIDEO_CALLS_CAN_BE_HD_AUDIO);
+        gsmCdmaCallsCanBeHdAudio = b.getBoolean(
+                CarrierConfigManager.KEY_GSM_CDMA_CALLS_CAN_BE_HD_AUDIO);
+        displayHdAudioProperty = b.getBoolean(
+                CarrierConfigManager.KEY_DISPLAY_HD_AUDIO_PROPERTY_BOOL);
+        allowHoldInImsCall = b.getBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL);
+        supportAddConferenceParticipants = b.getBoolean(
+                CarrierConfigManager.KEY_SUPPORT_ADD_CONFERENCE_PARTICIPANTS_BOOL);
+        allowMergingRttCalls = b.getBoolean(CarrierConfigManager.KEY_ALLOW_MERGING_RTT_CALLS_BOOL);
+        allowDeflectImsCall = b.getBoolean(
+                CarrierConfigManager.KEY_CARRIER_ALLOW_DEFLECT_IMS_CALL_BOOL);
+        allowTransferImsCall = b.getBoolean(
+                CarrierConfigManager.KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL);
+        treatDowngradedVideoCallsAsVideoCalls = b.getBoolean(
+                CarrierConfigManager.KEY_TREAT_DOWNGRADED_VIDEO_CALLS_AS_VIDEO_CALLS_BOOL);
+        showOrigDialStringForCdma = b.getBoolean(
+                CarrierConfigManager.KEY_CONFIG_SHOW_ORIG_DIAL_STRING_FOR_CDMA_BOOL);
+        formatIncomingNumberToNationalForJp = b.getBoolean(
+                CarrierConfigManager.KEY_FORMAT_INCOMING_NUMBER_TO_NATIONAL_FOR_JP_BOOL);
+        supportsD2DUsingRtp = b.getBoolean(
+                CarrierConfigManager.KEY_SUPPORTS_DEVICE_TO_DEVICE_COMMUNICATION_USING_RTP_BOOL);
+        supportsD2DUsingDtmf = b.getBoolean(
+                CarrierConfigManager.KEY_SUPPORTS_DEVICE_TO_DEVICE_COMMUNICATION_USING_DTMF_BOOL);
+        supportsSdpNegotiationOfRtpHeaderExtensions = b.getBoolean(CarrierConfigManager
+                .KEY_SUPPORTS_SDP_NEGOTIATION_OF_D2D_RTP_HEADER_EXTENSIONS_BOOL);
+    }
+
+    /** Builds the policy for {@code carrierConfig}. */
+    static @NonNull CarrierCallPolicy fromCarrierConfig(
+            @NonNull PersistableBundle carrierConfig) {
+        return new CarrierCallPolicy(carrierConfig);
+    }
+
+    /**
+     * Returns the policy of {@code subId}, building it from the carrier config returned by
+     * {@code carrierConfigLoader} if it has not been built since the last carrier config change.
+     * If the loader returns null because the carrier config could not be loaded, the policy is
+     * built from {@link CarrierConfigManager#getDefaultConfig()} and is not cached, so the next
+     * call tries to load the carrier config again.
+     */
+    static @NonNull CarrierCallPolicy getForSubId(int subId,
+            @NonNull Supplier<PersistableBundle> carrierConfigLoader) {
+        long generation;
+        synchronized (sLock) {
+            CarrierCallPolicy policy = sPolicies.get(subId);
+            if (policy != null) {
+                return policy;
+            }
+            generation = sGeneration;
+        }
+        // Build outside of the lock, loading the carrier config may be a binder call.
+        PersistableBundle carrierConfig = carrierConfigLoader.get();
+        if (carrierConfig == null) {
+            return new CarrierCallPolicy(CarrierConfigManager.getDefaultConfig());
+        }
+        CarrierCallPolicy policy = new CarrierCallPolicy(carrierConfig);
+        synchronized (sLock) {
+            if (generation == sGeneration) {
+                sPolicies.put(subId, policy);
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Drops the policy of {@code subId} after its carrier config changed, or the policies of all
+     * subscriptions if {@code subId} is {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID}.
+     */
+    static void invalidate(int subId) {
+        synchronized (sLock) {
+            sGeneration++;
+            if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                sPolicies.clear();
+            } else {
+                sPolicies.remove(subId);
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.services.telephony;
 
 import android.content.Context;
 import android.media.ToneGenerator;
+import android.os.LocaleList;
 import android.os.PersistableBundle;
 import android.provider.Settings;
 import android.telecom.DisconnectCause;
@@ -25,7 +26,9 @@ import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.ims.ImsReasonInfo;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CallFailCause;
 import com.android.internal.telephony.Phone;
@@ -37,8 +40,20 @@ import com.android.phone.ImsUtil;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.R;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 public class DisconnectCauseUtil {
 
+    private static final Object sBusyCausesLock = new Object();
+    // The sorted carrier busy tone causes of each subscription, see getBusyCauses(int).
+    @GuardedBy("sBusyCausesLock")
+    private static final SparseArray<int[]> sBusyCauses = new SparseArray<>();
+    // Incremented on invalidation, so causes parsed from a config which changed in the meantime
+    // are not cached.
+    @GuardedBy("sBusyCausesLock")
+    private static long sBusyCausesGeneration;
+
    /**
     * Converts from a disconnect code in {@link android.telephony.DisconnectCause} into a more
     * generic {@link android.telecom.DisconnectCause} object, possibly populated with a localized
@@ -107,8 +122,7 @@ public class DisconnectCauseUtil {
             int telephonyDisconnectCause, int telephonyPreciseDisconnectCause, String reason,
             int phoneId, ImsReasonInfo imsReasonInfo, FlagsAdapter featureFlags) {
         return toTelecomDisconnectCause(telephonyDisconnectCause, telephonyPreciseDisconnectCause,
-                reason, phoneId, imsReasonInfo, getCarrierConfigBundle(phoneId), featureFlags,
-                false);
+                reason, phoneId, imsReasonInfo, getBusyCauses(phoneId), featureFlags, false);
     }
 
    /**
@@ -126,7 +140,7 @@ public class DisconnectCauseUtil {
             int phoneId, ImsReasonInfo imsReasonInfo, FlagsAdapter featureFlags,
             boolean shouldTreatAsEmergency) {
         return toTelecomDisconnectCause(telephonyDisconnectCause, telephonyPreciseDisconnectCause,
-                reason, phoneId, imsReasonInfo, getCarrierConfigBundle(phoneId), featureFlags,
+                reason, phoneId, imsReasonInfo, getBusyCauses(phoneId), featureFlags,
                 shouldTreatAsEmergency);
     }
 
@@ -141,8 +155,66 @@ public class DisconnectCauseUtil {
             int telephonyDisconnectCause, int telephonyPreciseDisconnectCause, String reason,
             int phoneId, ImsReasonInfo imsReasonInfo, PersistableBundle carrierConfig,
             FlagsAdapter featureFlags, boolean shouldTreatAsEmergency) {
+        return toTelecomDisconnectCause(telephonyDisconnectCause, telephonyPreciseDisconnectCause,
+                reason, phoneId, imsReasonInfo, MappingTable.getBusyCauses(carrierConfig),
+                featureFlags, shouldTreatAsEmergency);
+    }
+
+    /**
+     * Creates the DisconnectCause from the {@link MappingTable} of the carrier busy tone causes.
+     *
+     * @param busyCauses The sorted carrier busy tone causes, see {@link #getBusyCauses(int)}.
+     */
+    private static DisconnectCause toTelecomDisconnectCause(
+            int telephonyDisconnectCause, int telephonyPreciseDisconnectCause, String reason,
+            int phoneId, ImsReasonInfo imsReasonInfo, int[] busyCauses,
+            FlagsAdapter featureFlags, boolean shouldTreatAsEmergency) {
         Context context = PhoneGlobals.getInstance();
+        if (context == null) {
+            PersistableBundle carrierConfig = new PersistableBundle();
+            carrierConfig.putIntArray(
+                    CarrierConfigManager.KEY_DISCONNECT_CAUSE_PLAY_BUSYTONE_INT_ARRAY, busyCauses);
+            return computeTelecomDisconnectCause(context, telephonyDisconnectCause,
+                    telephonyPreciseDisconnectCause, reason, phoneId, imsReasonInfo,
+                    carrierConfig, featureFlags, shouldTreatAsEmergency);
+        }
+
+        MappingTable table = MappingTable.get(context, busyCauses, featureFlags);
+        MappingTable.Row row = table.getRow(telephonyDisconnectCause);
+        CharSequence label = table.getLabel(row, telephonyPreciseDisconnectCause);
+        if (label == null) {
+            // Only labels of causes the carrier does not classify as busy are left to resolve
+            // per call, so the carrier config makes no difference to them.
+            label = toTelecomDisconnectCauseLabel(context, telephonyDisconnectCause,
+                    telephonyPreciseDisconnectCause, null /* carrierConfig */, featureFlags);
+        }
+        CharSequence description = row.description;
+        if (description == null) {
+            description = toTelecomDisconnectCauseDescription(
+                    context, telephonyDisconnectCause, phoneId, shouldTreatAsEmergency);
+        }
+
+        return new DisconnectCause.Builder(row.code)
+                .setLabel(label)
+                .setDescription(description)
+                .setReason(toTelecomDisconnectReason(
+                        context, telephonyDisconnectCause, reason, phoneId))
+                .setTone(row.tone)
+                .setTelephonyDisconnectCause(telephonyDisconnectCause)
+                .setTelephonyPreciseDisconnectCause(telephonyPreciseDisconnectCause)
+                .setImsReasonInfo(imsReasonInfo)
+                .build();
+    }
 
+    /**
+     * Creates the DisconnectCause by evaluating every mapping for the disconnect cause, without
+     * the {@link MappingTable}. The table is built from these mappings, so both always agree.
+     */
+    @VisibleForTesting
+    static DisconnectCause computeTelecomDisconnectCause(Context context,
+            int telephonyDisconnectCause, int telephonyPreciseDisconnectCause, String reason,
+            int phoneId, ImsReasonInfo imsReasonInfo, PersistableBundle carrierConfig,
+            FlagsAdapter featureFlags, boolean shouldTreatAsEmergency) {
         return new DisconnectCause.Builder(
                 toTelecomDisconnectCauseCode(telephonyDisconnectCause, carrierConfig))
                 .setLabel(toTelecomDisconnectCauseLabel(context, telephonyDisconnectCause,
@@ -475,6 +547,18 @@ public class DisconnectCauseUtil {
             return "";
         }
 
+        Integer resourceId = getPreciseLabelResourceId(telephonyPreciseDisconnectCause);
+        if (resourceId == null) {
+            resourceId = getPreciseLabelFallbackResourceId(telephonyDisconnectCause);
+        }
+        return context.getResources().getString(resourceId);
+    }
+
+    /**
+     * Returns the resource id of the label for the precise disconnect cause, or {@code null} if
+     * there is none and the label depends on the generic disconnect cause instead.
+     */
+    private static Integer getPreciseLabelResourceId(int telephonyPreciseDisconnectCause) {
         Integer resourceId = null;
         switch (telephonyPreciseDisconnectCause) {
             case CallFailCause.UNOBTAINABLE_NUMBER:
@@ -631,26 +715,28 @@ public class DisconnectCauseUtil {
                 resourceId = R.string.clh_callFailed_interworking_unspecified_txt;
                 break;
             default:
-                switch (telephonyDisconnectCause) {
-                    case android.telephony.DisconnectCause.POWER_OFF:
-                        resourceId = R.string.clh_callFailed_powerOff_txt;
-                        break;
-                    case android.telephony.DisconnectCause.ICC_ERROR:
-                        resourceId = R.string.clh_callFailed_simError_txt;
-                        break;
-                    case android.telephony.DisconnectCause.OUT_OF_SERVICE:
-                        resourceId = R.string.clh_incall_error_out_of_service_txt;
-                        break;
-                    case android.telephony.DisconnectCause.SATELLITE_ENABLED:
-                        resourceId = getSatelliteErrorString();
-                        break;
-                    default:
-                        resourceId = R.string.clh_card_title_call_ended_txt;
-                        break;
-                }
                 break;
         }
-        return context.getResources().getString(resourceId);
+        return resourceId;
+    }
+
+    /**
+     * Returns the resource id of the label for a precise disconnect cause which has no label of
+     * its own.
+     */
+    private static int getPreciseLabelFallbackResourceId(int telephonyDisconnectCause) {
+        switch (telephonyDisconnectCause) {
+            case android.telephony.DisconnectCause.POWER_OFF:
+                return R.string.clh_callFailed_powerOff_txt;
+            case android.telephony.DisconnectCause.ICC_ERROR:
+                return R.string.clh_callFailed_simError_txt;
+            case android.telephony.DisconnectCause.OUT_OF_SERVICE:
+                return R.string.clh_incall_error_out_of_service_txt;
+            case android.telephony.DisconnectCause.SATELLITE_ENABLED:
+                return getSatelliteErrorString();
+            default:
+                return R.string.clh_card_title_call_ended_txt;
+        }
     }
 
     /**
@@ -1017,17 +1103,58 @@ public class DisconnectCauseUtil {
         return false;
     }
 
-    private static PersistableBundle getCarrierConfigBundle(int phoneId) {
+    /**
+     * Returns the sorted carrier busy tone causes of the subscription of {@code phoneId}. They
+     * are parsed from the carrier config the first time they are needed and then kept until
+     * {@link #invalidateBusyCauses(int)} is called for a carrier config change.
+     */
+    private static int[] getBusyCauses(int phoneId) {
         Phone phone = PhoneFactory.getPhone(phoneId);
+        // Without a phone the carrier config of the default subscription is used.
+        int key = phone != null ? phone.getSubId() : SubscriptionManager.DEFAULT_SUBSCRIPTION_ID;
+        long generation;
+        synchronized (sBusyCausesLock) {
+            int[] busyCauses = sBusyCauses.get(key);
+            if (busyCauses != null) {
+                return busyCauses;
+            }
+            generation = sBusyCausesGeneration;
+        }
+        // Load outside of the lock, loading the carrier config may be a binder call.
         PersistableBundle config;
-
         if (phone != null) {
             config = PhoneGlobals.getInstance().getCarrierConfigForSubId(phone.getSubId());
         } else {
             config = PhoneGlobals.getInstance().getCarrierConfig();
         }
+        int[] busyCauses = MappingTable.getBusyCauses(config);
+        if (config == null) {
+            // Not loaded yet, try again on the next call.
+            return busyCauses;
+        }
+        synchronized (sBusyCausesLock) {
+            if (generation == sBusyCausesGeneration) {
+                sBusyCauses.put(key, busyCauses);
+            }
+        }
+        return busyCauses;
+    }
 
-        return config;
+    /**
+     * Drops the carrier busy tone causes of {@code subId} after its carrier config changed, or
+     * of all subscriptions if {@code subId} is {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID}.
+     */
+    static void invalidateBusyCauses(int subId) {
+        synchronized (sBusyCausesLock) {
+            sBusyCausesGeneration++;
+            if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                sBusyCauses.clear();
+            } else {
+                sBusyCauses.remove(subId);
+                // The subscription may be the default one.
+                sBusyCauses.remove(SubscriptionManager.DEFAULT_SUBSCRIPTION_ID);
+            }
+        }
     }
 
     /**
@@ -1051,4 +1178,185 @@ public class DisconnectCauseUtil {
         }
         return R.string.incall_error_carrier_roaming_satellite_mode;
     }
+
+    /**
+     * Returns whether the label or description of the disconnect cause depends on the state of
+     * the device, e.g. airplane mode or Wi-Fi calling, so it has to be resolved on every call.
+     */
+    @VisibleForTesting
+    static boolean isStateDependentDisconnectCause(int telephonyDisconnectCause) {
+        switch (telephonyDisconnectCause) {
+            case android.telephony.DisconnectCause.POWER_OFF:
+            case android.telephony.DisconnectCause.OUT_OF_SERVICE:
+            case android.telephony.DisconnectCause.IMS_SIP_ALTERNATE_EMERGENCY_CALL:
+            case android.telephony.DisconnectCause.SATELLITE_ENABLED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The code, tone, label and description of each disconnect cause for one locale, carrier
+     * busy tone config and {@link FlagsAdapter#doNotOverridePreciseLabel()} value, with the
+     * carrier busy tone overrides already applied.
+     *
+     * <p>A row is compiled from the mappings above the first time its disconnect cause is
+     * converted and is immutable afterwards. Labels and descriptions which depend on the state of
+     * the device are left {@code null} and still resolved on every call.
+     */
+    @VisibleForTesting
+    static final class MappingTable {
+        // Bounds the tables kept for carrier configs which are no longer in use.
+        private static final int MAX_TABLES = 4;
+
+        private static final Object sLock = new Object();
+        @GuardedBy("sLock")
+        private static final ArrayList<MappingTable> sTables = new ArrayList<>();
+
+        /** The mappings of one telephony disconnect cause. */
+        static final class Row {
+            final @DisconnectCause.DisconnectCauseCode int code;
+            final int tone;
+            /** Whether the carrier classifies the disconnect cause as busy. */
+            final boolean carrierBusy;
+            /** The label without a precise disconnect cause, or {@code null} if state dependent. */
+            final CharSequence label;
+            /**
+             * The label for a precise disconnect cause which has no label of its own, or
+             * {@code null} if state dependent.
+             */
+            final CharSequence preciseFallbackLabel;
+            /** The description, or {@code null} if state dependent. */
+            final CharSequence description;
+
+            private Row(MappingTable table, int telephonyDisconnectCause) {
+                Context context = table.mContext;
+                boolean stateDependent = isStateDependentDisconnectCause(telephonyDisconnectCause);
+                carrierBusy = Arrays.binarySearch(table.mBusyCauses, telephonyDisconnectCause) >= 0;
+                if (carrierBusy) {
+                    code = DisconnectCause.BUSY;
+                    tone = ToneGenerator.TONE_SUP_BUSY;
+                    label = context.getResources().getString(R.string.callFailed_userBusy);
+                } else {
+                    code = toTelecomDisconnectCauseCode(telephonyDisconnectCause, null);
+                    tone = toTelecomDisconnectCauseTone(telephonyDisconnectCause, null,
+                            table.mFeatureFlags);
+                    label = stateDependent
+                            ? null : getLabelFromDisconnectCause(context, telephonyDisconnectCause);
+                }
+                preciseFallbackLabel = stateDependent ? null : context.getResources().getString(
+                        getPreciseLabelFallbackResourceId(telephonyDisconnectCause));
+                // The phone is only needed by state dependent descriptions.
+                description = stateDependent ? null : toTelecomDisconnectCauseDescription(context,
+                        telephonyDisconnectCause, SubscriptionManager.INVALID_PHONE_INDEX, false);
+            }
+        }
+
+        private final Context mContext;
+        private final LocaleList mLocales;
+        private final int[] mBusyCauses;
+        private final FlagsAdapter mFeatureFlags;
+        private final boolean mDoNotOverridePreciseLabel;
+
+        @GuardedBy("this")
+        private final SparseArray<Row> mRows = new SparseArray<>();
+        // Maps precise disconnect causes to their label, or to null if they have none.
+        @GuardedBy("this")
+        private final SparseArray<CharSequence> mPreciseLabels = new SparseArray<>();
+
+        private MappingTable(Context context, LocaleList locales, int[] busyCauses,
+                FlagsAdapter featureFlags) {
+            mContext = context;
+            mLocales = locales;
+            mBusyCauses = busyCauses;
+            mFeatureFlags = featureFlags;
+            mDoNotOverridePreciseLabel = featureFlags.doNotOverridePreciseLabel();
+        }
+
+        /**
+         * Returns the table for the current locale of {@code context}, the busy tone causes of
+         * {@code carrierConfig} and {@code featureFlags}, building it if needed.
+         */
+        static MappingTable get(Context context, PersistableBundle carrierConfig,
+                FlagsAdapter featureFlags) {
+            return get(context, getBusyCauses(carrierConfig), featureFlags);
+        }
+
+        /**
+         * Returns the table for the current locale of {@code context}, the sorted carrier busy
+         * tone causes {@code busyCauses} and {@code featureFlags}, building it if needed. Tables
+         * for another locale are dropped.
+         */
+        static MappingTable get(Context context, int[] busyCauses, FlagsAdapter featureFlags) {
+            LocaleList locales = context.getResources().getConfiguration().getLocales();
+            boolean doNotOverridePreciseLabel = featureFlags.doNotOverridePreciseLabel();
+            synchronized (sLock) {
+                for (int i = sTables.size() - 1; i >= 0; i--) {
+                    MappingTable table = sTables.get(i);
+                    if (!table.mLocales.equals(locales)) {
+                        sTables.remove(i);
+                    } else if (table.mContext == context
+                            && table.mDoNotOverridePreciseLabel == doNotOverridePreciseLabel
+                            && Arrays.equals(table.mBusyCauses, busyCauses)) {
+                        return table;
+                    }
+                }
+                MappingTable table = new MappingTable(context, locales, busyCauses,
+                        featureFlags);
+                if (sTables.size() >= MAX_TABLES) {
+                    sTables.remove(0);
+                }
+                sTables.add(table);
+                return table;
+            }
+        }
+
+        /** Returns the sorted busy tone causes of {@code carrierConfig}. */
+        static int[] getBusyCauses(PersistableBundle carrierConfig) {
+            int[] busyCauses = carrierConfig == null ? null : carrierConfig.getIntArray(
+                    CarrierConfigManager.KEY_DISCONNECT_CAUSE_PLAY_BUSYTONE_INT_ARRAY);
+            if (busyCauses == null) {
+                return new int[0];
+            }
+            busyCauses = busyCauses.clone();
+            Arrays.sort(busyCauses);
+            return busyCauses;
+        }
+
+        /** Returns the row of {@code telephonyDisconnectCause}, compiling it if needed. */
+        synchronized Row getRow(int telephonyDisconnectCause) {
+            Row row = mRows.get(telephonyDisconnectCause);
+            if (row == null) {
+                row = new Row(this, telephonyDisconnectCause);
+                mRows.put(telephonyDisconnectCause, row);
+            }
+            return row;
+        }
+
+        /**
+         * Returns the label to show for the disconnect cause of {@code row}, or {@code null} if
+         * it is state dependent.
+         */
+        CharSequence getLabel(Row row, int telephonyPreciseDisconnectCause) {
+            if (telephonyPreciseDisconnectCause == CallFailCause.NOT_VALID
+                    || (row.carrierBusy && !mDoNotOverridePreciseLabel)) {
+                return row.label;
+            }
+            CharSequence label = getPreciseLabel(telephonyPreciseDisconnectCause);
+            return label != null ? label : row.preciseFallbackLabel;
+        }
+
+        private synchronized CharSequence getPreciseLabel(int telephonyPreciseDisconnectCause) {
+            int index = mPreciseLabels.indexOfKey(telephonyPreciseDisconnectCause);
+            if (index >= 0) {
+                return mPreciseLabels.valueAt(index);
+            }
+            Integer resourceId = getPreciseLabelResourceId(telephonyPreciseDisconnectCause);
+            CharSequence label =
+                    resourceId == null ? null : mContext.getResources().getString(resourceId);
+            mPreciseLabels.put(telephonyPreciseDisconnectCause, label);
+            return label;
+        }
+    }
 }
@@ -353,6 +353,12 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
      */
     private Uri[] mConferenceHostAddress;
 
+    /**
+     * The phone numbers of {@link #mConferenceHostAddress}, extracted once when the conference host
+     * is set so that conference event package participants can be compared against them cheaply.
+     */
+    private String[] mConferenceHostNumbers = new String[0];
+
     private TelecomAccountRegistry mTelecomAccountRegistry;
 
     /**
@@ -906,6 +912,7 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
 
             mConferenceHostAddress = new Uri[hostAddresses.size()];
             mConferenceHostAddress = hostAddresses.toArray(mConferenceHostAddress);
+            mConferenceHostNumbers = extractHostPhoneNumbers(mConferenceHostAddress);
             Log.i(this, "setConferenceHost: temp log hosts are "
                     + Arrays.stream(mConferenceHostAddress)
                     .map(Uri::toString)
@@ -981,7 +988,12 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
             boolean newParticipantsAdded = false;
             boolean oldParticipantsRemoved = false;
             ArrayList<ConferenceParticipant> newParticipants = new ArrayList<>(participants.size());
+            ArrayList<ConferenceParticipantConnection> newConnections =
+                    new ArrayList<>(participants.size());
             HashSet<Pair<Uri,Uri>> participantUserEntities = new HashSet<>(participants.size());
+            // The identity of each participant in the CEP, built once and used as the key for all
+            // lookups of that participant below.
+            ArrayList<Pair<Uri, Uri>> cepUserEntities = new ArrayList<>(participants.size());
 
             // Determine if the conference event package represents a single party conference.
             // A single party conference is one where there is no other participant other than the
@@ -990,13 +1002,16 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
             // event package; some carriers are known to keep a disconnected participant around in
             // subsequent CEP updates with a state of disconnected, even though its no longer part
             // of the conference.
-            final long numActiveCepParticipantsOtherThanHost = participants.stream()
-                    .filter(p -> {
-                        Pair<Uri, Uri> pIdent = new Pair<>(p.getHandle(), p.getEndpoint());
-                        return !Objects.equals(mHostParticipantIdentity, pIdent)
-                                && p.getState() != Connection.STATE_DISCONNECTED;
-                    })
-                    .count();
+            int numActiveCepParticipantsOtherThanHost = 0;
+            for (ConferenceParticipant participant : participants) {
+                Pair<Uri, Uri> userEntity = new Pair<>(participant.getHandle(),
+                        participant.getEndpoint());
+                cepUserEntities.add(userEntity);
+                if (!userEntity.equals(mHostParticipantIdentity)
+                        && participant.getState() != Connection.STATE_DISCONNECTED) {
+                    numActiveCepParticipantsOtherThanHost++;
+                }
+            }
             // We consider 0 to still be a single party conference since some carriers
             // will send a conference event package with JUST the host in it when the conference
             // is disconnected.  We don't want to change back to conference mode prior to
@@ -1010,10 +1025,11 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
             //    single party
             if ((!isMultiparty() && !isCepForSinglePartyConference)
                     || isMultiparty()) {
+                final int videoState = parent.getVideoState();
                 // Add any new participants and update existing.
-                for (ConferenceParticipant participant : participants) {
-                    Pair<Uri, Uri> userEntity = new Pair<>(participant.getHandle(),
-                            participant.getEndpoint());
+                for (int i = 0; i < participants.size(); i++) {
+                    ConferenceParticipant participant = participants.get(i);
+                    Pair<Uri, Uri> userEntity = cepUserEntities.get(i);
 
                     // We will exclude disconnected participants from the hash set of tracked
                     // participants.  Some carriers are known to leave disconnected participants in
@@ -1023,11 +1039,17 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
                     if (participant.getState() != Connection.STATE_DISCONNECTED) {
                         participantUserEntities.add(userEntity);
                     }
-                    if (!mConferenceParticipantConnections.containsKey(userEntity)) {
+                    ConferenceParticipantConnection connection =
+                            mConferenceParticipantConnections.get(userEntity);
+                    if (connection == null) {
                         // Some carriers will also include the conference host in the CEP.  We will
-                        // filter that out here.
-                        if (!isParticipantHost(mConferenceHostAddress, participant.getHandle())) {
-                            createConferenceParticipantConnection(parent, participant);
+                        // filter that out here.  Once the host is known, its identity is enough to
+                        // recognize it in later CEPs.
+                        if (!userEntity.equals(mHostParticipantIdentity)
+                                && !isParticipantHostNumber(mConferenceHostNumbers,
+                                        participant.getHandle())) {
+                            newConnections.add(createConferenceParticipantConnection(parent,
+                                    participant, userEntity));
                             newParticipants.add(participant);
                             newParticipantsAdded = true;
                         } else {
@@ -1035,9 +1057,11 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
                             // we look at the CEP in the future.
                             mHostParticipantIdentity = userEntity;
                         }
-                    } else {
-                        ConferenceParticipantConnection connection =
-                                mConferenceParticipantConnections.get(userEntity);
+                    } else if (participant.getState() == Connection.STATE_DISCONNECTED
+                            || connection.getState() != participant.getState()
+                            || connection.getVideoState() != videoState) {
+                        // Participants whose state is unchanged since the last CEP are not
+                        // touched; large conferences send full CEPs where most entries are.
                         Log.i(this,
                                 "handleConferenceParticipantsUpdate: updateState, participant = %s",
                                 participant);
@@ -1049,18 +1073,16 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
                              */
                             handleConnectionDestruction(connection);
                         }
-                        connection.setVideoState(parent.getVideoState());
+                        connection.setVideoState(videoState);
                     }
                 }
 
                 // Set state of new participants.
                 if (newParticipantsAdded) {
                     // Set the state of the new participants at once and add to the conference
-                    for (ConferenceParticipant newParticipant : newParticipants) {
-                        ConferenceParticipantConnection connection =
-                                mConferenceParticipantConnections.get(new Pair<>(
-                                        newParticipant.getHandle(),
-                                        newParticipant.getEndpoint()));
+                    for (int i = 0; i < newParticipants.size(); i++) {
+                        ConferenceParticipant newParticipant = newParticipants.get(i);
+                        ConferenceParticipantConnection connection = newConnections.get(i);
                         connection.updateState(newParticipant.getState());
                         /**
                          * Per {@link ConferenceParticipantConnection#updateState(int)}, we will
@@ -1069,7 +1091,7 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
                         if (newParticipant.getState() == Connection.STATE_DISCONNECTED) {
                             handleConnectionDestruction(connection);
                         }
-                        connection.setVideoState(parent.getVideoState());
+                        connection.setVideoState(videoState);
                     }
                 }
 
@@ -1250,9 +1272,13 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
      * @param parent The connection which was notified of the participant change (e.g. the
      *                         parent connection).
      * @param participant The conference participant information.
+     * @param userEntity The handle and endpoint of the participant, which the new connection is
+     *                   tracked under.
+     * @return the new connection.
      */
-    private void createConferenceParticipantConnection(
-            TelephonyConnection parent, ConferenceParticipant participant) {
+    private ConferenceParticipantConnection createConferenceParticipantConnection(
+            TelephonyConnection parent, ConferenceParticipant participant,
+            Pair<Uri, Uri> userEntity) {
 
         // Create and add the new connection in holding state so that it does not become the
         // active call.
@@ -1282,13 +1308,13 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
                 participant, connection);
 
         synchronized(mUpdateSyncRoot) {
-            mConferenceParticipantConnections.put(new Pair<>(participant.getHandle(),
-                    participant.getEndpoint()), connection);
+            mConferenceParticipantConnections.put(userEntity, connection);
         }
 
         mTelephonyConnectionService.addExistingConnection(mConferenceHostPhoneAccountHandle,
                 connection, this);
         addTelephonyConnection(connection);
+        return connection;
     }
 
     /**
@@ -1341,8 +1367,8 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
      * A SIP URI can also specify a phone number in a format similar to:
      * sip:+1-212-555-1212@something.com;user=phone
      * In this case, the phone number is again in user field and the parameters can be ignored.
-     * We can get the user field in these instances by splitting the string on the @, ;, or :
-     * and looking at the first found item.
+     * We can get the user field in these instances by taking everything before the first @, ;,
+     * or :.
      * @param handle The URI containing a SIP or TEL formatted phone number.
      * @return extracted phone number.
      */
@@ -1351,13 +1377,33 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
         // URI.
         String number = handle.getSchemeSpecificPart();
         // Get anything before the @ for the SIP case.
-        String[] numberParts = number.split("[@;:]");
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c == '@' || c == ';' || c == ':') {
+                return number.substring(0, i);
+            }
+        }
+        return number;
+    }
 
-        if (numberParts.length == 0) {
-            Log.v(LOG_TAG, "extractPhoneNumber(N) : no number in handle");
-            return "";
+    /**
+     * Extracts the phone numbers of the conference host's handles, so they do not have to be
+     * extracted again for every participant which is checked against them.
+     *
+     * @param hostHandles The handle(s) of the connection hosting the conference.
+     * @return the phone numbers of the non-null handles.
+     */
+    private static @NonNull String[] extractHostPhoneNumbers(Uri[] hostHandles) {
+        if (hostHandles == null) {
+            return new String[0];
         }
-        return numberParts[0];
+        ArrayList<String> hostNumbers = new ArrayList<>(hostHandles.length);
+        for (Uri hostHandle : hostHandles) {
+            if (hostHandle != null) {
+                hostNumbers.add(extractPhoneNumber(hostHandle));
+            }
+        }
+        return hostNumbers.toArray(new String[hostNumbers.size()]);
     }
 
     /**
@@ -1373,8 +1419,22 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
      */
     @VisibleForTesting
     public static boolean isParticipantHost(Uri[] hostHandles, Uri handle) {
+        return isParticipantHostNumber(extractHostPhoneNumbers(hostHandles), handle);
+    }
+
+    /**
+     * Determines if the passed in participant handle has the phone number of one of the conference
+     * host's handles.
+     *
+     * @param hostNumbers The phone numbers of the conference host's handles, as returned by
+     *                    {@link #extractHostPhoneNumbers(Uri[])}.
+     * @param handle The handle of the conference participant.
+     * @return {@code true} if the participant's number matches one of the host's numbers,
+     *      {@code false} otherwise.
+     */
+    private static boolean isParticipantHostNumber(@NonNull String[] hostNumbers, Uri handle) {
         // If there is no host handle or no participant handle, bail early.
-        if (hostHandles == null || hostHandles.length == 0 || handle == null) {
+        if (hostNumbers.length == 0 || handle == null) {
             Log.v(LOG_TAG, "isParticipantHost(N) : host or participant uri null");
             return false;
         }
@@ -1386,14 +1446,7 @@ public class ImsConference extends TelephonyConferenceBase implements Holdable {
             return false;
         }
 
-        for (Uri hostHandle : hostHandles) {
-            if (hostHandle == null) {
-                continue;
-            }
-            // Similar to the CEP participant data, the host identity in the P-Associated-Uri could
-            // be a SIP URI or a TEL URI.
-            String hostNumber = extractPhoneNumber(hostHandle);
-
+        for (String hostNumber : hostNumbers) {
             // Use a loose comparison of the phone numbers.  This ensures that numbers that differ
             // by special characters are counted as equal.
             // E.g. +16505551212 would be the same as 16505551212
@@ -61,8 +61,12 @@ import android.telephony.ims.RegistrationManager;
 import android.telephony.ims.feature.MmTelFeature;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.SparseArray;
 
 import com.android.ims.ImsManager;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.ExponentialBackoff;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
@@ -75,14 +79,14 @@ import com.android.phone.PhoneUtils;
 import com.android.phone.R;
 import com.android.telephony.Rlog;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -131,6 +135,107 @@ public class TelecomAccountRegistry {
 
     private Handler mHandler;
 
+    /**
+     * The carrier config values of a subscription which {@link AccountEntry} uses to build its
+     * {@link PhoneAccount}.  They are read in a single pass over the carrier config, which is
+     * expensive to fetch, and cached on the entry until its carrier config changes.
+     */
+    private static final class CarrierCapabilities {
+        final int subId;
+        final boolean videoPauseSupported;
+        final boolean presenceCapabilityExchangeEnabled;
+        final boolean rcsPresenceUsed;
+        final boolean instantLetteringSupported;
+        final boolean adhocConferenceCallSupported;
+        final boolean mergeCallSupported;
+        final boolean mergeImsCallSupported;
+        final boolean emergencyVideoCallsAllowed;
+        final boolean videoConferencingSupported;
+        final boolean mergeOfWifiCallsAllowedWhenVoWifiOff;
+        final boolean manageImsConferenceCallSupported;
+        final boolean usingSimCallManager;
+        final boolean showPreciseFailedCause;
+        final boolean useCallRecordingTone;
+        final boolean allowRttWhenRoaming;
+        final boolean voiceCapable;
+        // null when there is no carrier config.
+        final Bundle phoneAccountExtras;
+
+        CarrierCapabilities(int subId, PersistableBundle b) {
+            this.subId = subId;
+            if (b == null) {
+                videoPauseSupported = false;
+                presenceCapabilityExchangeEnabled = false;
+                rcsPresenceUsed = false;
+                instantLetteringSupported = false;
+                adhocConferenceCallSupported = false;
+                mergeCallSupported = false;
+                mergeImsCallSupported = false;
+                emergencyVideoCallsAllowed = false;
+                videoConferencingSupported = false;
+                mergeOfWifiCallsAllowedWhenVoWifiOff = false;
+                manageImsConferenceCallSupported = false;
+                usingSimCallManager = false;
+                showPreciseFailedCause = false;
+                useCallRecordingTone = false;
+                allowRttWhenRoaming = false;
+                // For any abnormal case, we assume subscription is voice capable
+                voiceCapable = true;
+                phoneAccountExtras = null;
+                return;
+            }
+            videoPauseSupported = b.getBoolean(
+                    CarrierConfigManager.KEY_SUPPORT_PAUSE_IMS_VIDEO_CALLS_BOOL);
+            presenceCapabilityExchangeEnabled = b.getBoolean(
+                    CarrierConfigManager.Ims.KEY_ENABLE_PRESENCE_CAPABILITY_EXCHANGE_BOOL);
+            rcsPresenceUsed = b.getBoolean(CarrierConfigManager.KEY_USE_RCS_PRESENCE_BOOL);
+            instantLetteringSupported = b.getBoolean(
+                    CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_AVAILABLE_BOOL);
+            adhocConferenceCallSupported = b.getBoolean(
+                    CarrierConfigManager.KEY_SUPPORT_ADHOC_CONFERENCE_CALLS_BOOL);
+            mergeCallSupported = b.getBoolean(
+                    CarrierConfigManager.KEY_SUPPORT_CONFERENCE_CALL_BOOL);
+            mergeImsCallSupported = b.getBoolean(
+                    CarrierConfigManager.KEY_SUPPORT_IMS_CONFERENCE_CALL_BOOL);
+            emergencyVideoCallsAllowed = b.getBoolean(
+                    CarrierConfigManager.KEY_ALLOW_EMERGENCY_VIDEO_CALLS_BOOL);
+            videoConferencingSupported = b.getBoolean(
+                    CarrierConfigManager.KEY_SUPPORT_VIDEO_CONFERENCE_CALL_BOOL);
+            mergeOfWifiCallsAllowedWhenVoWifiOff = b.getBoolean(
+                    CarrierConfigManager.KEY_ALLOW_MERGE_WIFI_CALLS_WHEN_VOWIFI_OFF_BOOL);
+            manageImsConferenceCallSupported = b.getBoolean(
+                    CarrierConfigManager.KEY_SUPPORT_MANAGE_IMS_CONFERENCE_CALL_BOOL);
+            usingSimCallManager = !TextUtils.isEmpty(
+                    b.getString(CarrierConfigManager.KEY_DEFAULT_SIM_CALL_MANAGER_STRING));
+            showPreciseFailedCause = b.getBoolean(
+                    CarrierConfigManager.KEY_SHOW_PRECISE_FAILED_CAUSE_BOOL);
+            useCallRecordingTone = b.getBoolean(
+                    CarrierConfigManager.KEY_PLAY_CALL_RECORDING_TONE_BOOL);
+            allowRttWhenRoaming = b.getBoolean(
+                    CarrierConfigManager.KEY_RTT_SUPPORTED_WHILE_ROAMING_BOOL);
+
+            final int[] serviceCapabilities = b.getIntArray(
+                    CarrierConfigManager.KEY_CELLULAR_SERVICE_CAPABILITIES_INT_ARRAY);
+            boolean isVoiceCapable = serviceCapabilities == null;
+            if (serviceCapabilities != null) {
+                for (int capability : serviceCapabilities) {
+                    if (capability == SubscriptionManager.SERVICE_CAPABILITY_VOICE) {
+                        isVoiceCapable = true;
+                        break;
+                    }
+                }
+            }
+            voiceCapable = isVoiceCapable;
+
+            phoneAccountExtras = new Bundle();
+            phoneAccountExtras.putInt(PhoneAccount.EXTRA_CALL_SUBJECT_MAX_LENGTH, b.getInt(
+                    CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_LENGTH_LIMIT_INT));
+            phoneAccountExtras.putString(PhoneAccount.EXTRA_CALL_SUBJECT_CHARACTER_ENCODING,
+                    b.getString(
+                            CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_ENCODING_STRING));
+        }
+    }
+
     final class AccountEntry implements PstnPhoneCapabilitiesNotifier.Listener {
         private final Phone mPhone;
         private PhoneAccount mAccount;
@@ -159,6 +264,8 @@ public class TelecomAccountRegistry {
         private boolean mIsUsingSimCallManager;
         private boolean mIsShowPreciseFailedCause;
         private Set<Integer> mSimultaneousCallSupportedSubIds;
+        // Loaded on first use, cleared by invalidateCarrierCapabilities().
+        private volatile CarrierCapabilities mCarrierCapabilities;
 
         AccountEntry(Phone phone, boolean isEmergency, boolean isTest) {
             mPhone = phone;
@@ -302,22 +409,25 @@ public class TelecomAccountRegistry {
          */
         public void reRegisterPstnPhoneAccount() {
             PhoneAccount newAccount = buildPstnPhoneAccount(mIsEmergency, mIsTestAccount);
-            if (!newAccount.equals(mAccount)) {
+            if (registerPhoneAccountIfChanged(newAccount)) {
                 Log.i(this, "reRegisterPstnPhoneAccount: subId: " + getSubId()
                         + " - re-register due to account change.");
-                mTelecomManager.registerPhoneAccount(newAccount);
-                mAccount = newAccount;
             } else {
                 Log.i(this, "reRegisterPstnPhoneAccount: subId: " + getSubId() + " - no change");
             }
+            mAccount = newAccount;
         }
 
         private PhoneAccount registerPstnPhoneAccount(boolean isEmergency, boolean isTestAccount) {
             PhoneAccount account = buildPstnPhoneAccount(mIsEmergency, mIsTestAccount);
-            Log.i(this, "registerPstnPhoneAccount: Registering account=%s with "
-                    + "Telecom. subId=%d", account, getSubId());
             // Register with Telecom and put into the account entry.
-            mTelecomManager.registerPhoneAccount(account);
+            if (registerPhoneAccountIfChanged(account)) {
+                Log.i(this, "registerPstnPhoneAccount: Registered account=%s with "
+                        + "Telecom. subId=%d", account, getSubId());
+            } else {
+                Log.i(this, "registerPstnPhoneAccount: account=%s unchanged since last "
+                        + "registration. subId=%d", account, getSubId());
+            }
             return account;
         }
 
@@ -643,17 +753,36 @@ public class TelecomAccountRegistry {
                     userDefaultData);
         }
 
+        /**
+         * @return the carrier capabilities of this entry's subscription, reading them from its
+         *     carrier config if they have not been read since the last carrier config change.
+         */
+        private CarrierCapabilities getCarrierCapabilities() {
+            int subId = mPhone.getSubId();
+            CarrierCapabilities carrierCapabilities = mCarrierCapabilities;
+            if (carrierCapabilities == null || carrierCapabilities.subId != subId) {
+                carrierCapabilities = new CarrierCapabilities(subId,
+                        PhoneGlobals.getInstance().getCarrierConfigForSubId(subId));
+                mCarrierCapabilities = carrierCapabilities;
+            }
+            return carrierCapabilities;
+        }
+
+        /**
+         * Drops the cached carrier capabilities after the carrier config of this entry's
+         * subscription changed.
+         */
+        void invalidateCarrierCapabilities() {
+            mCarrierCapabilities = null;
+        }
+
         /**
          * Determines from carrier configuration whether pausing of IMS video calls is supported.
          *
          * @return {@code true} if pausing IMS video calls is supported.
          */
         private boolean isCarrierVideoPauseSupported() {
-            // Check if IMS video pause is supported.
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_SUPPORT_PAUSE_IMS_VIDEO_CALLS_BOOL);
+            return getCarrierCapabilities().videoPauseSupported;
         }
 
         /**
@@ -663,16 +792,13 @@ public class TelecomAccountRegistry {
          * @return {@code true} if RCS presence indication for video calls is supported.
          */
         private boolean isCarrierVideoPresenceSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
+            CarrierCapabilities carrierCapabilities = getCarrierCapabilities();
 
             // If using the new RcsUceAdapter API, this should be true if
             // KEY_ENABLE_PRESENCE_CAPABILITY_EXCHANGE_BOOL is set. If using the old
             // KEY_USE_RCS_PRESENCE_BOOL key, we have to also check the user setting.
-            return b.getBoolean(
-                    CarrierConfigManager.Ims.KEY_ENABLE_PRESENCE_CAPABILITY_EXCHANGE_BOOL)
-                    || (b.getBoolean(CarrierConfigManager.KEY_USE_RCS_PRESENCE_BOOL)
+            return carrierCapabilities.presenceCapabilityExchangeEnabled
+                    || (carrierCapabilities.rcsPresenceUsed
                     && isUserContactDiscoverySettingEnabled());
         }
 
@@ -696,10 +822,7 @@ public class TelecomAccountRegistry {
          * @return {@code true} if instant lettering is supported, {@code false} otherwise.
          */
         private boolean isCarrierInstantLetteringSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_AVAILABLE_BOOL);
+            return getCarrierCapabilities().instantLetteringSupported;
         }
 
         /**
@@ -708,10 +831,7 @@ public class TelecomAccountRegistry {
          * @return {@code true} if adhoc conference calling is supported, {@code false} otherwise.
          */
         private boolean isCarrierAdhocConferenceCallSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_SUPPORT_ADHOC_CONFERENCE_CALLS_BOOL);
+            return getCarrierCapabilities().adhocConferenceCallSupported;
         }
 
 
@@ -721,10 +841,7 @@ public class TelecomAccountRegistry {
          * @return {@code true} if merging calls is supported, {@code false} otherwise.
          */
         private boolean isCarrierMergeCallSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_SUPPORT_CONFERENCE_CALL_BOOL);
+            return getCarrierCapabilities().mergeCallSupported;
         }
 
         /**
@@ -733,10 +850,7 @@ public class TelecomAccountRegistry {
          * @return {@code true} if merging IMS calls is supported, {@code false} otherwise.
          */
         private boolean isCarrierMergeImsCallSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_SUPPORT_IMS_CONFERENCE_CALL_BOOL);
+            return getCarrierCapabilities().mergeImsCallSupported;
         }
 
         /**
@@ -745,10 +859,7 @@ public class TelecomAccountRegistry {
          * @return {@code true} if emergency video calls are allowed, {@code false} otherwise.
          */
         private boolean isCarrierEmergencyVideoCallsAllowed() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_ALLOW_EMERGENCY_VIDEO_CALLS_BOOL);
+            return getCarrierCapabilities().emergencyVideoCallsAllowed;
         }
 
         /**
@@ -757,10 +868,7 @@ public class TelecomAccountRegistry {
          * @return {@code true} if video conferencing is supported, {@code false} otherwise.
          */
         private boolean isCarrierVideoConferencingSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_SUPPORT_VIDEO_CONFERENCE_CALL_BOOL);
+            return getCarrierCapabilities().videoConferencingSupported;
         }
 
         /**
@@ -771,11 +879,7 @@ public class TelecomAccountRegistry {
          *      {@code false} otherwise.
          */
         private boolean isCarrierMergeOfWifiCallsAllowedWhenVoWifiOff() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(
-                    CarrierConfigManager.KEY_ALLOW_MERGE_WIFI_CALLS_WHEN_VOWIFI_OFF_BOOL);
+            return getCarrierCapabilities().mergeOfWifiCallsAllowedWhenVoWifiOff;
         }
 
         /**
@@ -785,10 +889,7 @@ public class TelecomAccountRegistry {
          *         {@code false} otherwise.
          */
         private boolean isCarrierManageImsConferenceCallSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_SUPPORT_MANAGE_IMS_CONFERENCE_CALL_BOOL);
+            return getCarrierCapabilities().manageImsConferenceCallSupported;
         }
 
         /**
@@ -798,11 +899,7 @@ public class TelecomAccountRegistry {
          *         {@code false} otherwise.
          */
         private boolean isCarrierUsingSimCallManager() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return !TextUtils.isEmpty(
-                    b.getString(CarrierConfigManager.KEY_DEFAULT_SIM_CALL_MANAGER_STRING));
+            return getCarrierCapabilities().usingSimCallManager;
         }
 
         /**
@@ -813,10 +910,7 @@ public class TelecomAccountRegistry {
          *         {@code false} otherwise.
          */
         private boolean isCarrierShowPreciseFailedCause() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_SHOW_PRECISE_FAILED_CAUSE_BOOL);
+            return getCarrierCapabilities().showPreciseFailedCause;
         }
 
         /**
@@ -826,20 +920,14 @@ public class TelecomAccountRegistry {
          * @return {@code true} if a call recording tone should be used, {@code false} otherwise.
          */
         private boolean isCarrierUseCallRecordingTone() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_PLAY_CALL_RECORDING_TONE_BOOL);
+            return getCarrierCapabilities().useCallRecordingTone;
         }
 
         /**
          * Determines from carrier config whether to always allow RTT while roaming.
          */
         private boolean isCarrierAllowRttWhenRoaming() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return false;
-            return b.getBoolean(CarrierConfigManager.KEY_RTT_SUPPORTED_WHILE_ROAMING_BOOL);
+            return getCarrierCapabilities().allowRttWhenRoaming;
         }
 
         /**
@@ -849,35 +937,15 @@ public class TelecomAccountRegistry {
          * @return The {@link PhoneAccount} extras associated with the current subscription.
          */
         private Bundle getPhoneAccountExtras() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) return new Bundle();
-
-            int instantLetteringMaxLength = b.getInt(
-                    CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_LENGTH_LIMIT_INT);
-            String instantLetteringEncoding = b.getString(
-                    CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_ENCODING_STRING);
-            Bundle phoneAccountExtras = new Bundle();
-            phoneAccountExtras.putInt(PhoneAccount.EXTRA_CALL_SUBJECT_MAX_LENGTH,
-                    instantLetteringMaxLength);
-            phoneAccountExtras.putString(PhoneAccount.EXTRA_CALL_SUBJECT_CHARACTER_ENCODING,
-                    instantLetteringEncoding);
-            return phoneAccountExtras;
+            Bundle extras = getCarrierCapabilities().phoneAccountExtras;
+            return extras != null ? new Bundle(extras) : new Bundle();
         }
 
         /**
          * @return true if the subscription is voice capable by the carrier config.
          */
         private boolean isSubscriptionVoiceCapableByCarrierConfig() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            if (b == null) {
-                return true; // For any abnormal case, we assume subscription is voice capable
-            }
-            final int[] serviceCapabilities = b.getIntArray(
-                    CarrierConfigManager.KEY_CELLULAR_SERVICE_CAPABILITIES_INT_ARRAY);
-            return Arrays.stream(serviceCapabilities).anyMatch(
-                    i -> i == SubscriptionManager.SERVICE_CAPABILITY_VOICE);
+            return getCarrierCapabilities().voiceCapable;
         }
 
         /**
@@ -1191,8 +1259,7 @@ public class TelecomAccountRegistry {
 
             // Any time the SubscriptionInfo changes rerun the setup
             Log.i(this, "TelecomAccountRegistry: onSubscriptionsChanged - update accounts");
-            tearDownAccounts();
-            setupAccounts();
+            scheduleAccountsRefresh();
         }
 
         @Override
@@ -1204,8 +1271,7 @@ public class TelecomAccountRegistry {
             // Even though registering the listener failed, we will still try to setup the phone
             // accounts now; the phone instances should already be present and ready, so even if
             // telephony registry is poking along we can still try to setup the phone account.
-            tearDownAccounts();
-            setupAccounts();
+            scheduleAccountsRefresh();
 
             if (mSubscriptionListenerState == LISTENER_STATE_UNREGISTERED) {
                 // Initial registration attempt failed; start exponential backoff.
@@ -1227,15 +1293,17 @@ public class TelecomAccountRegistry {
                 UserHandle currentUser = intent.getParcelableExtra(Intent.EXTRA_USER);
                 mDoesUserSupportVideoCalling = currentUser == null ? true : currentUser.isSystem();
 
-                // Any time the user changes, re-register the accounts.
-                tearDownAccounts();
-                setupAccounts();
+                // Any time the user changes, re-register the accounts, even the unchanged ones.
+                forgetRegisteredAccounts();
+                scheduleAccountsRefresh();
             } else if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(
                     intent.getAction())) {
                 Log.i(this, "TelecomAccountRegistry: Carrier-config changed, "
                         + "checking for phone account updates.");
                 int subId = intent.getIntExtra(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX,
                         SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+                CarrierCallPolicy.invalidate(subId);
+                DisconnectCauseUtil.invalidateBusyCauses(subId);
                 handleCarrierConfigChange(subId);
             }
         }
@@ -1246,8 +1314,7 @@ public class TelecomAccountRegistry {
         public void onReceive(Context context, Intent intent) {
             Log.i(this, "TelecomAccountRegistry: Locale change; re-registering "
                     + "phone accounts.");
-            tearDownAccounts();
-            setupAccounts();
+            scheduleAccountsRefresh();
         }
     };
 
@@ -1264,8 +1331,7 @@ public class TelecomAccountRegistry {
             if (newState == ServiceState.STATE_IN_SERVICE && mServiceState != newState) {
                 Log.i(this, "TelecomAccountRegistry: onServiceStateChanged: "
                         + "Tearing down and re-setting up accounts.");
-                tearDownAccounts();
-                setupAccounts();
+                scheduleAccountsRefresh();
             } else {
                 synchronized (mAccountsLock) {
                     for (AccountEntry account : mAccounts) {
@@ -1287,14 +1353,97 @@ public class TelecomAccountRegistry {
         }
     }
 
+    /**
+     * An immutable copy of {@link #mAccounts}, indexed by phone account handle and subscription
+     * id.  A new snapshot is published whenever the list of accounts changes, so lookups can use
+     * it without taking {@link #mAccountsLock}.
+     */
+    private static final class AccountSnapshot {
+        static final AccountSnapshot EMPTY = new AccountSnapshot(new ArrayList<>());
+
+        final List<AccountEntry> entries;
+        private final ArrayMap<PhoneAccountHandle, AccountEntry> mEntriesByHandle;
+        private final SparseArray<AccountEntry> mEntriesBySubId;
+
+        AccountSnapshot(List<AccountEntry> accounts) {
+            entries = Collections.unmodifiableList(new ArrayList<>(accounts));
+            mEntriesByHandle = new ArrayMap<>(entries.size());
+            mEntriesBySubId = new SparseArray<>(entries.size());
+            // Index the first entry for each key, which is the one a scan of the list finds.
+            for (AccountEntry entry : entries) {
+                PhoneAccountHandle handle = entry.getPhoneAccountHandle();
+                if (handle != null && !mEntriesByHandle.containsKey(handle)) {
+                    mEntriesByHandle.put(handle, entry);
+                }
+                if (mEntriesBySubId.get(entry.getSubId()) == null) {
+                    mEntriesBySubId.put(entry.getSubId(), entry);
+                }
+            }
+        }
+
+        /**
+         * @return the first entry whose phone account has {@code handle}, or {@code null} if there
+         *     is none.
+         */
+        AccountEntry getEntry(PhoneAccountHandle handle) {
+            AccountEntry entry = mEntriesByHandle.get(handle);
+            if (entry != null && hasHandle(entry, handle)) {
+                return entry;
+            }
+            // The handle of an entry can change when it re-registers its phone account; fall back
+            // to checking every entry rather than trusting the index.
+            for (AccountEntry e : entries) {
+                if (hasHandle(e, handle)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the first entry for subscription {@code subId}, or {@code null} if there is
+         *     none.
+         */
+        AccountEntry getEntryForSubId(int subId) {
+            AccountEntry entry = mEntriesBySubId.get(subId);
+            if (entry != null && entry.getSubId() == subId) {
+                return entry;
+            }
+            // The subscription of an entry's phone can change before the accounts are set up
+            // again.
+            for (AccountEntry e : entries) {
+                if (e.getSubId() == subId) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        private static boolean hasHandle(AccountEntry entry, PhoneAccountHandle handle) {
+            PhoneAccountHandle entryHandle = entry.getPhoneAccountHandle();
+            return entryHandle != null && entryHandle.equals(handle);
+        }
+    }
+
     private static TelecomAccountRegistry sInstance;
     private final Context mContext;
     private final TelecomManager mTelecomManager;
     private final android.telephony.ims.ImsManager mImsManager;
     private final TelephonyManager mTelephonyManager;
     private final SubscriptionManager mSubscriptionManager;
-    private List<AccountEntry> mAccounts = new LinkedList<AccountEntry>();
+    @GuardedBy("mAccountsLock")
+    private List<AccountEntry> mAccounts = new ArrayList<AccountEntry>();
     private final Object mAccountsLock = new Object();
+    // The PhoneAccounts last registered with Telecom, by handle.  They outlive the AccountEntry
+    // which registered them, so an account which is set up again unchanged is not re-registered.
+    @GuardedBy("mAccountsLock")
+    private final ArrayMap<PhoneAccountHandle, PhoneAccount> mRegisteredAccounts = new ArrayMap<>();
+    @GuardedBy("mAccountsLock")
+    private int mAppliedRegistrationCount;
+    @GuardedBy("mAccountsLock")
+    private int mSkippedRegistrationCount;
+    // Republished by publishAccountSnapshotLocked() whenever mAccounts changes.
+    private volatile AccountSnapshot mAccountSnapshot = AccountSnapshot.EMPTY;
     private int mSubscriptionListenerState = LISTENER_STATE_UNREGISTERED;
     private int mServiceState = ServiceState.STATE_POWER_OFF;
     private int mActiveDataSubscriptionId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
@@ -1320,6 +1469,16 @@ public class TelecomAccountRegistry {
         }
     };
 
+    // Tears down and sets up the accounts again.  Posted by scheduleAccountsRefresh() so that
+    // triggers which arrive close together result in a single refresh.
+    private final Runnable mRefreshAccountsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tearDownAccounts();
+            setupAccounts();
+        }
+    };
+
     /**
      * When {@link #setupOnBoot()} is called, there is a chance that Telecom is not up yet. This
      * runnable checks whether or not Telecom is up and if it isn't we wait until ready.
@@ -1436,14 +1595,8 @@ public class TelecomAccountRegistry {
      * @return {@code True} if video pausing is supported.
      */
     boolean isVideoPauseSupported(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isVideoPauseSupported();
-                }
-            }
-        }
-        return false;
+        AccountEntry entry = mAccountSnapshot.getEntry(handle);
+        return entry != null && entry.isVideoPauseSupported();
     }
 
     /**
@@ -1454,14 +1607,8 @@ public class TelecomAccountRegistry {
      * @return {@code True} if merging calls is supported.
      */
     public boolean isMergeCallSupported(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isMergeCallSupported();
-                }
-            }
-        }
-        return false;
+        AccountEntry entry = mAccountSnapshot.getEntry(handle);
+        return entry != null && entry.isMergeCallSupported();
     }
 
     /**
@@ -1472,14 +1619,8 @@ public class TelecomAccountRegistry {
      * @return {@code True} if video conferencing is supported.
      */
     public boolean isVideoConferencingSupported(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isVideoConferencingSupported();
-                }
-            }
-        }
-        return false;
+        AccountEntry entry = mAccountSnapshot.getEntry(handle);
+        return entry != null && entry.isVideoConferencingSupported();
     }
 
     /**
@@ -1490,16 +1631,8 @@ public class TelecomAccountRegistry {
      * @return {@code True} if merging of wifi calls is allowed when VoWIFI is disabled.
      */
     public boolean isMergeOfWifiCallsAllowedWhenVoWifiOff(final PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            Optional<AccountEntry> result = mAccounts.stream().filter(
-                    entry -> entry.getPhoneAccountHandle().equals(handle)).findFirst();
-
-            if (result.isPresent()) {
-                return result.get().isMergeOfWifiCallsAllowedWhenVoWifiOff();
-            } else {
-                return false;
-            }
-        }
+        AccountEntry entry = mAccountSnapshot.getEntry(handle);
+        return entry != null && entry.isMergeOfWifiCallsAllowedWhenVoWifiOff();
     }
 
     /**
@@ -1510,14 +1643,8 @@ public class TelecomAccountRegistry {
      * @return {@code True} if merging IMS calls is supported.
      */
     public boolean isMergeImsCallSupported(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isMergeImsCallSupported();
-                }
-            }
-        }
-        return false;
+        AccountEntry entry = mAccountSnapshot.getEntry(handle);
+        return entry != null && entry.isMergeImsCallSupported();
     }
 
     /**
@@ -1528,14 +1655,8 @@ public class TelecomAccountRegistry {
      * @return {@code True} if managing IMS conference calls is supported.
      */
     boolean isManageImsConferenceCallSupported(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isManageImsConferenceCallSupported();
-                }
-            }
-        }
-        return false;
+        AccountEntry entry = mAccountSnapshot.getEntry(handle);
+        return entry != null && entry.isManageImsConferenceCallSupported();
     }
 
     /**
@@ -1545,14 +1666,8 @@ public class TelecomAccountRegistry {
      * @return {@code True} if showing precise call disconnect cause to the user is supported.
      */
     boolean isShowPreciseFailedCause(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isShowPreciseFailedCause();
-                }
-            }
-        }
-        return false;
+        AccountEntry entry = mAccountSnapshot.getEntry(handle);
+        return entry != null && entry.isShowPreciseFailedCause();
     }
 
     /**
@@ -1569,14 +1684,8 @@ public class TelecomAccountRegistry {
      * @return The address.
      */
     public Uri getAddress(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.mAccount.getAddress();
-                }
-            }
-        }
-        return null;
+        AccountEntry entry = mAccountSnapshot.getEntry(handle);
+        return entry != null ? entry.mAccount.getAddress() : null;
     }
 
     public void refreshAdhocConference(boolean isEnableAdhocConf) {
@@ -1602,14 +1711,8 @@ public class TelecomAccountRegistry {
      * @return {@code true} if a sim call manager is in use, {@code false} otherwise.
      */
     public boolean isUsingSimCallManager(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isUsingSimCallManager();
-                }
-            }
-        }
-        return false;
+        AccountEntry entry = mAccountSnapshot.getEntry(handle);
+        return entry != null && entry.isUsingSimCallManager();
     }
 
     /**
@@ -1637,6 +1740,7 @@ public class TelecomAccountRegistry {
         // to invoke onSubscriptionsChanged the first time.
         Log.i(this, "TelecomAccountRegistry: setupOnBootInternal - register "
                 + "subscription listener");
+        forgetRegisteredAccounts();
         SubscriptionManager.from(mContext).addOnSubscriptionsChangedListener(
                 mOnSubscriptionsChangedListener);
 
@@ -1704,25 +1808,12 @@ public class TelecomAccountRegistry {
      * @return {@code True} if an entry exists.
      */
     boolean hasAccountEntryForPhoneAccount(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return mAccountSnapshot.getEntry(handle) != null;
     }
 
     PhoneAccountHandle getPhoneAccountHandleForSubId(int subId) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getSubId() == subId) {
-                    return entry.getPhoneAccountHandle();
-                }
-            }
-        }
-        return null;
+        AccountEntry entry = mAccountSnapshot.getEntryForSubId(subId);
+        return entry != null ? entry.getPhoneAccountHandle() : null;
     }
 
     /**
@@ -1745,10 +1836,67 @@ public class TelecomAccountRegistry {
                     !hasAccountEntryForPhoneAccount(handle)) {
                 Log.i(this, "Unregistering phone account %s.", handle);
                 mTelecomManager.unregisterPhoneAccount(handle);
+                synchronized (mAccountsLock) {
+                    mRegisteredAccounts.remove(handle);
+                }
             }
         }
     }
 
+    /**
+     * Tears down and sets up the phone accounts again once the triggers which are currently
+     * pending on the main thread have been handled.
+     */
+    private void scheduleAccountsRefresh() {
+        mHandler.removeCallbacks(mRefreshAccountsRunnable);
+        mHandler.post(mRefreshAccountsRunnable);
+    }
+
+    /**
+     * Registers {@code account} with Telecom unless it is equal to the account last registered
+     * with the same handle.
+     *
+     * @return {@code true} if the account was registered, {@code false} if it was unchanged.
+     */
+    @GuardedBy("mAccountsLock")
+    private boolean registerPhoneAccountIfChanged(PhoneAccount account) {
+        if (account.equals(mRegisteredAccounts.get(account.getAccountHandle()))) {
+            mSkippedRegistrationCount++;
+            return false;
+        }
+        mTelecomManager.registerPhoneAccount(account);
+        mRegisteredAccounts.put(account.getAccountHandle(), account);
+        mAppliedRegistrationCount++;
+        return true;
+    }
+
+    /**
+     * Forgets the accounts last registered, so that the next setup registers every account with
+     * Telecom even if it is unchanged.  Used when Telecom may no longer have our accounts: after a
+     * user switch, and when Telecom has just become ready.
+     */
+    private void forgetRegisteredAccounts() {
+        synchronized (mAccountsLock) {
+            mRegisteredAccounts.clear();
+        }
+    }
+
+    /** @return the number of phone account registrations which were sent to Telecom. */
+    @VisibleForTesting
+    int getAppliedRegistrationCount() {
+        synchronized (mAccountsLock) {
+            return mAppliedRegistrationCount;
+        }
+    }
+
+    /** @return the number of phone account registrations skipped as the account was unchanged. */
+    @VisibleForTesting
+    int getSkippedRegistrationCount() {
+        synchronized (mAccountsLock) {
+            return mSkippedRegistrationCount;
+        }
+    }
+
     private void setupAccounts() {
         // Go through SIM-based phones and register ourselves -- registering an existing account
         // will cause the existing entry to be replaced.
@@ -1809,6 +1957,7 @@ public class TelecomAccountRegistry {
                             new AccountEntry(PhoneFactory.getDefaultPhone(), true /* emergency */,
                                     false /* isTest */));
                 }
+                publishAccountSnapshotLocked();
 
                 // In some very rare cases, when setting the default voice sub in
                 // SubscriptionManagerService, the phone accounts here have not yet been built.
@@ -1845,11 +1994,16 @@ public class TelecomAccountRegistry {
                 Log.i(this, "setupAccounts: adding a fake AccountEntry");
                 mAccounts.add(new AccountEntry(phones[0], false /* emergency */,
                         true /* isTest */));
+                publishAccountSnapshotLocked();
             }
         }
 
         // Clean up any PhoneAccounts that are no longer relevant
         cleanupPhoneAccounts();
+        synchronized (mAccountsLock) {
+            Log.i(this, "setupAccounts: registrations applied=%d, skipped=%d",
+                    mAppliedRegistrationCount, mSkippedRegistrationCount);
+        }
     }
 
     private void tearDownAccounts() {
@@ -1858,12 +2012,22 @@ public class TelecomAccountRegistry {
                 entry.teardown();
             }
             mAccounts.clear();
+            publishAccountSnapshotLocked();
         }
         // Invalidate the TelephonyManager cache which maps phone account handles to sub ids since
         // all the phone account handles are being recreated at this point.
         PropertyInvalidatedCache.invalidateCache(TelephonyManager.CACHE_KEY_PHONE_ACCOUNT_TO_SUBID);
     }
 
+    /**
+     * Publishes a new {@link AccountSnapshot} of {@link #mAccounts} for lookups; must be called
+     * after every change to the list of accounts.
+     */
+    @GuardedBy("mAccountsLock")
+    private void publishAccountSnapshotLocked() {
+        mAccountSnapshot = new AccountSnapshot(mAccounts);
+    }
+
     /**
      * Handles changes to the carrier configuration which may impact a phone account.  There are
      * some extras defined in the {@link PhoneAccount} which are based on carrier config options.
@@ -1881,6 +2045,7 @@ public class TelecomAccountRegistry {
                 if (entry.getSubId() == subId) {
                     Log.d(this, "handleCarrierConfigChange: subId=%d, accountSubId=%d", subId,
                             entry.getSubId());
+                    entry.invalidateCarrierCapabilities();
                     entry.reRegisterPstnPhoneAccount();
                 }
             }
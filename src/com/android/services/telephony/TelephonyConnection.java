@@ -98,7 +98,6 @@ import com.android.phone.callcomposer.CallComposerPictureTransfer;
 import com.android.telephony.Rlog;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -839,6 +838,7 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
     };
 
     private TelephonyConnectionService mTelephonyConnectionService;
+    private TelephonyConnectionIndex mConnectionIndex;
     protected com.android.internal.telephony.Connection mOriginalConnection;
     private Phone mPhoneForEvents;
     private Call.State mConnectionState = Call.State.IDLE;
@@ -1009,6 +1009,7 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
     public void onStateChanged(int state) {
         Log.v(this, "onStateChanged, state: " + Connection.stateToString(state));
         updateStatusHints();
+        updateConnectionIndex();
     }
 
     @Override
@@ -1690,6 +1691,7 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
                     originalConnection);
         }
 
+        updateConnectionIndex();
         fireOnOriginalConnectionConfigured();
     }
 
@@ -1701,22 +1703,10 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
         if (cnapName == null) {
             return null;
         }
-        PersistableBundle carrierConfig = getCarrierConfig();
-        String[] filteredCnapNames = null;
-        if (carrierConfig != null) {
-            filteredCnapNames = carrierConfig.getStringArray(
-                    CarrierConfigManager.KEY_FILTERED_CNAP_NAMES_STRING_ARRAY);
-        }
-        if (filteredCnapNames != null) {
-            long cnapNameMatches = Arrays.asList(filteredCnapNames)
-                    .stream()
-                    .filter(filteredCnapName -> filteredCnapName.equals(
-                            cnapName.toUpperCase(Locale.ROOT)))
-                    .count();
-            if (cnapNameMatches > 0) {
-                Log.i(this, "filterCnapName: Filtered CNAP Name: " + cnapName);
-                return "";
-            }
+        if (getCarrierCallPolicy().filteredCnapNames.contains(
+                cnapName.toUpperCase(Locale.ROOT))) {
+            Log.i(this, "filterCnapName: Filtered CNAP Name: " + cnapName);
+            return "";
         }
         return cnapName;
     }
@@ -1909,15 +1899,11 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
 
         boolean isVideoCall = VideoProfile.isVideo(getVideoState());
 
-        PersistableBundle b = getCarrierConfig();
-        boolean canWifiCallsBeHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_WIFI_CALLS_CAN_BE_HD_AUDIO);
-        boolean canVideoCallsBeHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_VIDEO_CALLS_CAN_BE_HD_AUDIO);
-        boolean canGsmCdmaCallsBeHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_GSM_CDMA_CALLS_CAN_BE_HD_AUDIO);
-        boolean shouldDisplayHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_DISPLAY_HD_AUDIO_PROPERTY_BOOL);
+        CarrierCallPolicy policy = getCarrierCallPolicy();
+        boolean canWifiCallsBeHdAudio = policy.wifiCallsCanBeHdAudio;
+        boolean canVideoCallsBeHdAudio = policy.videoCallsCanBeHdAudio;
+        boolean canGsmCdmaCallsBeHdAudio = policy.gsmCdmaCallsCanBeHdAudio;
+        boolean shouldDisplayHdAudio = policy.displayHdAudioProperty;
 
         if (!shouldDisplayHdAudio) {
             return false;
@@ -1972,10 +1958,8 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
     }
 
     private boolean canHoldImsCalls() {
-        PersistableBundle b = getCarrierConfig();
-        // Return true if the CarrierConfig is unavailable
-        return (!doesDeviceRespectHoldCarrierConfig() || b == null ||
-                b.getBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL)) &&
+        return (!doesDeviceRespectHoldCarrierConfig()
+                || getCarrierCallPolicy().allowHoldInImsCall) &&
                 ((mOriginalConnection != null && mOriginalConnection.shouldAllowHoldingVideoCall())
                 || !VideoProfile.isVideo(getVideoState()));
     }
@@ -2005,8 +1989,7 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
             return false;
         }
 
-        if (!getCarrierConfig()
-                .getBoolean(CarrierConfigManager.KEY_SUPPORT_ADD_CONFERENCE_PARTICIPANTS_BOOL)) {
+        if (!getCarrierCallPolicy().supportAddConferenceParticipants) {
             return false;
         }
 
@@ -2064,21 +2047,43 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
         }
 
         // potential null returned from .getCarrierConfigForSubId() and method guarantees non-null.
-        // hence, need for try/finally block
-        PersistableBundle pb = null;
+        PersistableBundle pb = loadCarrierConfig(phone);
+        if (pb == null) {
+            pb = CarrierConfigManager.getDefaultConfig();
+        }
+        return pb;
+    }
+
+    /**
+     * @return the carrier config of the subscription of {@code phone}, or null if it could not be
+     *     loaded.
+     */
+    private @Nullable PersistableBundle loadCarrierConfig(@NonNull Phone phone) {
         try {
-            pb = PhoneGlobals.getInstance().getCarrierConfigForSubId(phone.getSubId());
+            return PhoneGlobals.getInstance().getCarrierConfigForSubId(phone.getSubId());
         } catch (Exception e) {
             Log.e(this, e,
                     "getCarrierConfig: caught Exception when calling "
                             + "PhoneGlobals.getCarrierConfigForSubId(phone.getSubId()). Returning "
                             + "CarrierConfigManager.getDefaultConfig()");
-        } finally {
-            if (pb == null) {
-                pb = CarrierConfigManager.getDefaultConfig();
-            }
+            return null;
         }
-        return pb;
+    }
+
+    /**
+     * @return the policy derived from the carrier config of the subscription of this connection.
+     *     Unlike {@link #getCarrierConfig()}, this does not copy the carrier config, so it is the
+     *     one to use while capabilities and properties are recomputed.
+     */
+    @VisibleForTesting
+    public @NonNull CarrierCallPolicy getCarrierCallPolicy() {
+        Phone phone = getPhone();
+        if (phone == null) {
+            return CarrierCallPolicy.fromCarrierConfig(getCarrierConfig());
+        }
+        // Pass the carrier config without the default config fallback, so a policy built from the
+        // fallback after a failed load is not cached for the subscription.
+        return CarrierCallPolicy.getForSubId(phone.getSubId(), () -> loadCarrierConfig(phone));
     }
 
     @VisibleForTesting
@@ -2087,14 +2092,11 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
     }
 
     private boolean canDeflectImsCalls() {
-        return getCarrierConfig().getBoolean(
-                CarrierConfigManager.KEY_CARRIER_ALLOW_DEFLECT_IMS_CALL_BOOL)
-                && isValidRingingCall();
+        return getCarrierCallPolicy().allowDeflectImsCall && isValidRingingCall();
     }
 
     private boolean isCallTransferSupported() {
-        return getCarrierConfig().getBoolean(
-                CarrierConfigManager.KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL);
+        return getCarrierCallPolicy().allowTransferImsCall;
     }
 
     private boolean canTransfer(TelephonyConnection c) {
@@ -2177,6 +2179,7 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
             mOriginalConnection.removePostDialListener(mPostDialListener);
             mOriginalConnection.removeListener(mOriginalConnectionListener);
             mOriginalConnection = null;
+            updateConnectionIndex();
         }
     }
 
@@ -3160,16 +3163,8 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
         ImsCall imsCall = isImsConnection()
                 ? ((ImsPhoneConnection) getOriginalConnection()).getImsCall()
                 : null;
-        CarrierConfigManager configManager = (CarrierConfigManager) phone.getContext()
-                .getSystemService(Context.CARRIER_CONFIG_SERVICE);
-        boolean downGradedVideoCall = false;
-        if (configManager != null) {
-            PersistableBundle config = configManager.getConfigForSubId(phone.getSubId());
-            if (config != null) {
-                downGradedVideoCall = config.getBoolean(
-                        CarrierConfigManager.KEY_TREAT_DOWNGRADED_VIDEO_CALLS_AS_VIDEO_CALLS_BOOL);
-            }
-        }
+        CarrierCallPolicy policy = getCarrierCallPolicy();
+        boolean downGradedVideoCall = policy.treatDowngradedVideoCallsAsVideoCalls;
 
         Log.v(this, "refreshConferenceSupported : isConfSupp=%b, isImsConfSupp=%b, " +
                 "isVidConfSupp=%b, isMergeOfWifiAllowed=%b, " +
@@ -3181,7 +3176,7 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
         if (mTreatAsEmergencyCall) {
             isConferenceSupported = false;
             Log.d(this, "refreshConferenceSupported = false; emergency call");
-        } else if (isRtt() && !isRttMergeSupported(getCarrierConfig())) {
+        } else if (isRtt() && !policy.allowMergingRttCalls) {
             isConferenceSupported = false;
             Log.d(this, "refreshConferenceSupported = false; rtt call");
         } else if (!isConferencingSupported || isIms && !isImsConferencingSupported) {
@@ -3238,8 +3233,7 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
         Phone phone = getPhone();
         if (phone != null && (phone.getPhoneType() == TelephonyManager.PHONE_TYPE_CDMA)
                 && !mOriginalConnection.isIncoming()) {
-            showOrigDialString = getCarrierConfig().getBoolean(CarrierConfigManager
-                    .KEY_CONFIG_SHOW_ORIG_DIAL_STRING_FOR_CDMA_BOOL);
+            showOrigDialString = getCarrierCallPolicy().showOrigDialStringForCdma;
             Log.d(this, "showOrigDialString: " + showOrigDialString);
         }
         return showOrigDialString;
@@ -3298,6 +3292,20 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
         return mTelephonyConnectionService;
     }
 
+    /**
+     * Sets the index which must be kept up to date as the original connection and state of this
+     * connection change, or {@code null} once the connection is no longer indexed.
+     */
+    final void setConnectionIndex(TelephonyConnectionIndex connectionIndex) {
+        mConnectionIndex = connectionIndex;
+    }
+
+    private void updateConnectionIndex() {
+        if (mConnectionIndex != null) {
+            mConnectionIndex.update(this);
+        }
+    }
+
     /**
      * Set this {@link TelephonyConnection} to an active state.
      * <p>
@@ -3817,8 +3825,7 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
         if (mOriginalConnection.isIncoming()
                 && !TextUtils.isEmpty(mOriginalConnection.getAddress())
                 && mOriginalConnection.getAddress().startsWith(JAPAN_COUNTRY_CODE_WITH_PLUS_SIGN)) {
-            return getCarrierConfig().getBoolean(
-                    CarrierConfigManager.KEY_FORMAT_INCOMING_NUMBER_TO_NATIONAL_FOR_JP_BOOL);
+            return getCarrierCallPolicy().formatIncomingNumberToNationalForJp;
         }
         return false;
     }
@@ -3842,16 +3849,14 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
      * otherwise.
      */
     private boolean supportsD2DUsingRtp() {
-        return getCarrierConfig().getBoolean(
-                CarrierConfigManager.KEY_SUPPORTS_DEVICE_TO_DEVICE_COMMUNICATION_USING_RTP_BOOL);
+        return getCarrierCallPolicy().supportsD2DUsingRtp;
     }
 
     /**
      * @return {@code true} if the carrier supports D2D using DTMF digits, {@code false} otherwise.
      */
     private boolean supportsD2DUsingDtmf() {
-        return getCarrierConfig().getBoolean(
-                CarrierConfigManager.KEY_SUPPORTS_DEVICE_TO_DEVICE_COMMUNICATION_USING_DTMF_BOOL);
+        return getCarrierCallPolicy().supportsD2DUsingDtmf;
     }
 
     /**
@@ -3859,9 +3864,7 @@ abstract class TelephonyConnection extends Connection implements Holdable, Commu
      * extensions used in D2D comms, {@code false} otherwise.
      */
     private boolean supportsSdpNegotiationOfRtpHeaderExtensions() {
-        return getCarrierConfig().getBoolean(
-                CarrierConfigManager
-                        .KEY_SUPPORTS_SDP_NEGOTIATION_OF_D2D_RTP_HEADER_EXTENSIONS_BOOL);
+        return getCarrierCallPolicy().supportsSdpNegotiationOfRtpHeaderExtensions;
     }
 
     /**
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.telephony.SubscriptionManager;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.internal.telephony.Connection;
+import com.android.internal.telephony.Phone;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes the {@link TelephonyConnection}s of a {@link TelephonyConnectionService} by their
+ * original connection, phone and state, so they can be found without scanning
+ * {@link android.telecom.ConnectionService#getAllConnections()}.
+ *
+ * <p>Connections are added and removed by the service as telecom adds and removes them. While it
+ * is indexed, a connection calls {@link #update(TelephonyConnection)} when its original connection
+ * or its state changes. Like the connections themselves, the index is only accessed from the main
+ * thread.
+ */
+final class TelephonyConnectionIndex {
+
+    /** The keys a connection is currently indexed under. */
+    private static final class Keys {
+        Connection originalConnection;
+        int phoneId;
+        int state;
+    }
+
+    private final ArrayMap<TelephonyConnection, Keys> mKeys = new ArrayMap<>();
+    // Original connections are compared by identity, as they were by the scans this replaces.
+    private final Map<Connection, TelephonyConnection> mByOriginalConnection =
+            new IdentityHashMap<>();
+    private final SparseArray<ArraySet<TelephonyConnection>> mByPhoneId = new SparseArray<>();
+    private final SparseArray<ArraySet<TelephonyConnection>> mByState = new SparseArray<>();
+
+    /** Starts indexing {@code connection}. */
+    void add(TelephonyConnection connection) {
+        if (mKeys.containsKey(connection)) {
+            update(connection);
+            return;
+        }
+        Keys keys = new Keys();
+        readKeys(connection, keys);
+        mKeys.put(connection, keys);
+        putKeys(connection, keys);
+    }
+
+    /** Stops indexing {@code connection}. */
+    void remove(TelephonyConnection connection) {
+        Keys keys = mKeys.remove(connection);
+        if (keys != null) {
+            removeKeys(connection, keys);
+        }
+    }
+
+    /**
+     * Re-indexes {@code connection} after its original connection, phone or state changed. Does
+     * nothing if the connection is not indexed.
+     */
+    void update(TelephonyConnection connection) {
+        Keys keys = mKeys.get(connection);
+        if (keys == null) {
+            return;
+        }
+        Keys newKeys = new Keys();
+        readKeys(connection, newKeys);
+        if (newKeys.originalConnection == keys.originalConnection
+                && newKeys.phoneId == keys.phoneId && newKeys.state == keys.state) {
+            return;
+        }
+        removeKeys(connection, keys);
+        mKeys.put(connection, newKeys);
+        putKeys(connection, newKeys);
+    }
+
+    /**
+     * @return the connection whose original connection is {@code originalConnection}, or
+     *     {@code null} if there is none. A {@code null} original connection matches a connection
+     *     which does not have an original connection.
+     */
+    TelephonyConnection getConnection(Connection originalConnection) {
+        return mByOriginalConnection.get(originalConnection);
+    }
+
+    /**
+     * @return a snapshot of the connections on the phone with {@code phoneId}. It is not affected
+     *     by later changes to the index, so the caller may e.g. hang up the connections in it.
+     */
+    List<TelephonyConnection> getConnectionsForPhone(int phoneId) {
+        return copyOf(mByPhoneId.get(phoneId));
+    }
+
+    /**
+     * @return a snapshot of the connections in the {@link android.telecom.Connection} state
+     *     {@code state}. It is not affected by later changes to the index.
+     */
+    List<TelephonyConnection> getConnectionsInState(int state) {
+        return copyOf(mByState.get(state));
+    }
+
+    /** @return the number of indexed connections. */
+    int size() {
+        return mKeys.size();
+    }
+
+    private static void readKeys(TelephonyConnection connection, Keys keys) {
+        keys.originalConnection = connection.getOriginalConnection();
+        Phone phone = connection.getPhone();
+        keys.phoneId = phone != null ? phone.getPhoneId() : SubscriptionManager.INVALID_PHONE_INDEX;
+        keys.state = connection.getState();
+    }
+
+    private void putKeys(TelephonyConnection connection, Keys keys) {
+        mByOriginalConnection.put(keys.originalConnection, connection);
+        addToBucket(mByPhoneId, keys.phoneId, connection);
+        addToBucket(mByState, keys.state, connection);
+    }
+
+    private void removeKeys(TelephonyConnection connection, Keys keys) {
+        if (mByOriginalConnection.get(keys.originalConnection) == connection) {
+            mByOriginalConnection.remove(keys.originalConnection);
+            // Another connection may still share the original connection, e.g. briefly while a
+            // call is being handed over, or when neither has one yet.
+            for (int i = 0; i < mKeys.size(); i++) {
+                if (mKeys.valueAt(i).originalConnection == keys.originalConnection
+                        && mKeys.keyAt(i) != connection) {
+                    mByOriginalConnection.put(keys.originalConnection, mKeys.keyAt(i));
+                    break;
+                }
+            }
+        }
+        removeFromBucket(mByPhoneId, keys.phoneId, connection);
+        removeFromBucket(mByState, keys.state, connection);
+    }
+
+    private static void addToBucket(SparseArray<ArraySet<TelephonyConnection>> buckets, int key,
+            TelephonyConnection connection) {
+        ArraySet<TelephonyConnection> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArraySet<>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(connection);
+    }
+
+    private static void removeFromBucket(SparseArray<ArraySet<TelephonyConnection>> buckets,
+            int key, TelephonyConnection connection) {
+        ArraySet<TelephonyConnection> bucket = buckets.get(key);
+        if (bucket != null && bucket.remove(connection) && bucket.isEmpty()) {
+            buckets.remove(key);
+        }
+    }
+
+    private static List<TelephonyConnection> copyOf(ArraySet<TelephonyConnection> bucket) {
+        return bucket == null ? new ArrayList<>() : new ArrayList<>(bucket);
+    }
+}
@@ -235,6 +235,7 @@ public class TelephonyConnectionService extends ConnectionService {
     private RadioOnHelper mRadioOnHelper;
     private EmergencyTonePlayer mEmergencyTonePlayer;
     private HoldTracker mHoldTracker;
+    private final TelephonyConnectionIndex mConnectionIndex = new TelephonyConnectionIndex();
     private boolean mIsTtyEnabled;
     /** Set to true when there is an emergency call pending which will potential trigger a dial.
      * This must be set to false when the call is dialed. */
@@ -2134,6 +2135,11 @@ public class TelephonyConnectionService extends ConnectionService {
         if (connection instanceof Holdable && !isExternalConnection(connection)) {
             mHoldTracker.addHoldable((Holdable) connection);
         }
+        if (connection instanceof TelephonyConnection) {
+            TelephonyConnection telephonyConnection = (TelephonyConnection) connection;
+            telephonyConnection.setConnectionIndex(mConnectionIndex);
+            mConnectionIndex.add(telephonyConnection);
+        }
     }
 
     @Override
@@ -2141,6 +2147,11 @@ public class TelephonyConnectionService extends ConnectionService {
         if (connection instanceof Holdable && !isExternalConnection(connection)) {
             mHoldTracker.removeHoldable((Holdable) connection);
         }
+        if (connection instanceof TelephonyConnection) {
+            TelephonyConnection telephonyConnection = (TelephonyConnection) connection;
+            mConnectionIndex.remove(telephonyConnection);
+            telephonyConnection.setConnectionIndex(null);
+        }
     }
 
     @Override
@@ -2407,14 +2418,12 @@ public class TelephonyConnectionService extends ConnectionService {
                         } else if (!isVideoCallHoldAllowed(phone)) {
                             // If we do not support holding ongoing video call for an outgoing
                             // emergency call, disconnect the ongoing video call.
-                            for (Connection c : getAllConnections()) {
+                            for (TelephonyConnection c : mConnectionIndex.getConnectionsInState(
+                                    Connection.STATE_ACTIVE)) {
                                 if (!c.equals(connection)
-                                        && c.getState() == Connection.STATE_ACTIVE
-                                        && VideoProfile.isVideo(c.getVideoState())
-                                        && c instanceof TelephonyConnection) {
-                                    ((TelephonyConnection) c).hangup(
-                                            android.telephony.DisconnectCause
-                                                    .OUTGOING_EMERGENCY_CALL_PLACED);
+                                        && VideoProfile.isVideo(c.getVideoState())) {
+                                    c.hangup(android.telephony.DisconnectCause
+                                            .OUTGOING_EMERGENCY_CALL_PLACED);
                                     break;
                                 }
                             }
@@ -2670,7 +2679,7 @@ public class TelephonyConnectionService extends ConnectionService {
             all condition checks. */
 
         // Check and select same domain as ongoing call on the same subscription (if exists)
-        int activeCallDomain = getActiveCallDomain(phone.getSubId());
+        int activeCallDomain = getActiveCallDomain(phone);
         if (activeCallDomain != NetworkRegistrationInfo.DOMAIN_UNKNOWN
                 && !PhoneNumberUtils.isWpsCallNumber(number)) {
             Log.d(LOG_TAG, "Selecting same domain as ongoing call on same subId");
@@ -3543,14 +3552,11 @@ public class TelephonyConnectionService extends ConnectionService {
             } else if (!isVideoCallHoldAllowed(phone)) {
                 // If we do not support holding ongoing video call for an outgoing
                 // emergency call, disconnect the ongoing video call.
-                for (Connection c : getAllConnections()) {
-                    if (!c.equals(connection)
-                            && c.getState() == Connection.STATE_ACTIVE
-                            && VideoProfile.isVideo(c.getVideoState())
-                            && c instanceof TelephonyConnection) {
-                        ((TelephonyConnection) c).hangup(
-                                android.telephony.DisconnectCause
-                                        .OUTGOING_EMERGENCY_CALL_PLACED);
+                for (TelephonyConnection c
+                        : mConnectionIndex.getConnectionsInState(Connection.STATE_ACTIVE)) {
+                    if (!c.equals(connection) && VideoProfile.isVideo(c.getVideoState())) {
+                        c.hangup(android.telephony.DisconnectCause
+                                .OUTGOING_EMERGENCY_CALL_PLACED);
                         break;
                     }
                 }
@@ -3789,15 +3795,7 @@ public class TelephonyConnectionService extends ConnectionService {
 
     private TelephonyConnection getConnectionForOriginalConnection(
             com.android.internal.telephony.Connection originalConnection) {
-        for (Connection connection : getAllConnections()) {
-            if (connection instanceof TelephonyConnection) {
-                TelephonyConnection telephonyConnection = (TelephonyConnection) connection;
-                if (telephonyConnection.getOriginalConnection() == originalConnection) {
-                    return telephonyConnection;
-                }
-            }
-        }
-        return null;
+        return mConnectionIndex.getConnection(originalConnection);
     }
 
     /**
@@ -5068,42 +5066,37 @@ public class TelephonyConnectionService extends ConnectionService {
      * @return {@link List} including compromised of the connections that have been disconnected.
      */
     private List<Connection> disconnectAllCallsOnOtherSubs(@NonNull PhoneAccountHandle handle) {
-        Collection<Connection> connections = getAllConnections();
+        List<TelephonyConnection> connections =
+                mConnectionIndex.getConnectionsInState(Connection.STATE_ACTIVE);
+        connections.addAll(mConnectionIndex.getConnectionsInState(Connection.STATE_HOLDING));
         List<Connection> disconnectedConnections = new ArrayList<>();
-        connections.stream()
-                .filter(c ->
-                        (c.getState() == Connection.STATE_ACTIVE
-                                || c.getState() == Connection.STATE_HOLDING)
-                                // Include any calls not on same sub as current connection.
-                                && !Objects.equals(c.getPhoneAccountHandle(), handle))
-                .forEach(c -> {
-                    if (c instanceof TelephonyConnection) {
-                        TelephonyConnection tc = (TelephonyConnection) c;
-                        Log.i(LOG_TAG, "disconnectAllCallsOnOtherSubs: disconnect" +
-                                " %s due to redial happened on other sub.",
-                                tc.getTelecomCallId());
-                        tc.hangup(android.telephony.DisconnectCause.LOCAL);
-                        disconnectedConnections.add(c);
-                    }
-                });
+        for (TelephonyConnection tc : connections) {
+            // Include any calls not on same sub as current connection.
+            if (!Objects.equals(tc.getPhoneAccountHandle(), handle)) {
+                Log.i(LOG_TAG, "disconnectAllCallsOnOtherSubs: disconnect" +
+                        " %s due to redial happened on other sub.",
+                        tc.getTelecomCallId());
+                tc.hangup(android.telephony.DisconnectCause.LOCAL);
+                disconnectedConnections.add(tc);
+            }
+        }
         return disconnectedConnections;
     }
 
-    private @NetworkRegistrationInfo.Domain int getActiveCallDomain(int subId) {
-        for (Connection c: getAllConnections()) {
-            if ((c instanceof TelephonyConnection)) {
-                TelephonyConnection connection = (TelephonyConnection) c;
-                Phone phone = connection.getPhone();
-                if (phone == null) {
-                    continue;
-                }
+    private @NetworkRegistrationInfo.Domain int getActiveCallDomain(Phone phone) {
+        int subId = phone.getSubId();
+        for (TelephonyConnection connection
+                : mConnectionIndex.getConnectionsForPhone(phone.getPhoneId())) {
+            Phone connectionPhone = connection.getPhone();
+            if (connectionPhone == null) {
+                continue;
+            }
 
-                if (phone.getSubId() == subId) {
-                    if (phone instanceof GsmCdmaPhone) {
-                        return NetworkRegistrationInfo.DOMAIN_CS;
-                    } else if (phone instanceof ImsPhone) {
-                        return NetworkRegistrationInfo.DOMAIN_PS;
-                    }
+            if (connectionPhone.getSubId() == subId) {
+                if (connectionPhone instanceof GsmCdmaPhone) {
+                    return NetworkRegistrationInfo.DOMAIN_CS;
+                } else if (connectionPhone instanceof ImsPhone) {
+                    return NetworkRegistrationInfo.DOMAIN_PS;
                 }
             }
         }
@@ -40,20 +40,30 @@ import com.android.services.telephony.rcs.validator.ValidationResult;
 import java.io.PrintWriter;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 /**
  * Wraps the SIP message path both from the IMS application to the SipDelegate and from the
  * SipDelegate back to the IMS Application.
  * <p>
- * Queues incoming and outgoing SIP messages on an Executor and deliver to IMS application and
- * SipDelegate in order. If there is an error delivering the message, the caller is notified.
+ * Queues incoming and outgoing SIP messages in a {@link SipDeliveryQueue}, which runs them in
+ * batches on an Executor, and deliver to IMS application and SipDelegate in order. If there is
+ * an error delivering the message, the caller is notified.
  * Uses {@link TransportSipMessageValidator} to track ongoing SIP dialogs and verify outgoing
  * messages.
  * <p>
  * Note: This handles incoming binder calls, so all calls from other processes should be handled on
  * the provided Executor.
+ * <p>
+ * If the SIP messages are handled on a different Executor than the one this wrapper is controlled
+ * from, such as a {@link SerialExecutorLane}, the calls controlling the transport are queued
+ * behind the messages already queued at the time of the call and run on the message Executor as
+ * well. In that case they complete asynchronously, and their callbacks report when they are done.
+ * Once the message Executor has been shut down, new SIP messages are dropped, outgoing ones with a
+ * {@link SipDelegateManager#MESSAGE_FAILURE_REASON_DELEGATE_CLOSED} error.
  */
 public class MessageTransportWrapper implements DelegateBinderStateManager.StateCallback {
     private static final String TAG = "MessageTW";
@@ -69,7 +79,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void notifyMessageReceived(String viaTransactionId) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                enqueue(() -> {
                     if (mSipDelegate == null) {
                         logw("notifyMessageReceived called when SipDelegate is not associated for "
                                 + "transaction id: " + viaTransactionId);
@@ -97,7 +107,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void notifyMessageReceiveError(String viaTransactionId, int reason) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                enqueue(() -> {
                     if (mSipDelegate == null) {
                         logw("notifyMessageReceiveError called when SipDelegate is not associated "
                                 + "for transaction id: " + viaTransactionId);
@@ -124,7 +134,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void sendMessage(SipMessage sipMessage, long configVersion) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                boolean isQueued = enqueue(() -> {
                     ValidationResult result =
                             mSipSessionTracker.verifyOutgoingMessage(sipMessage, configVersion);
                     result = maybeOverrideValidationForTesting(result);
@@ -148,6 +158,10 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
                                 SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
                     }
                 });
+                if (!isQueued) {
+                    notifyDelegateSendError("Transport destroyed", sipMessage,
+                            SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED);
+                }
             } finally {
                 Binder.restoreCallingIdentity(token);
             }
@@ -161,7 +175,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void cleanupSession(String callId) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> cleanupSessionInternal(callId));
+                enqueue(() -> cleanupSessionInternal(callId));
             } finally {
                 Binder.restoreCallingIdentity(token);
             }
@@ -182,7 +196,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void onMessageReceived(SipMessage message) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                enqueue(() -> {
                     ValidationResult result = mSipSessionTracker.verifyIncomingMessage(message);
                     if (!result.isValidated) {
                         notifyAppReceiveError("Incoming - " + result.logReason, message,
@@ -209,7 +223,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void onMessageSent(String viaTransactionId) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                enqueue(() -> {
                     if (mSipDelegate == null) {
                         logw("Unexpected state, onMessageSent called when SipDelegate is not "
                                 + "associated");
@@ -235,7 +249,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void onMessageSendFailure(String viaTransactionId, int reason) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                enqueue(() -> {
                     if (mSipDelegate == null) {
                         logw("Unexpected state, onMessageSendFailure called when SipDelegate is not"
                                 + "associated");
@@ -270,18 +284,32 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
     private final ValidatorOverride mValidatorOverride;
     private final ISipDelegateMessageCallback mAppCallback;
     private final Executor mExecutor;
+    private final SipDeliveryQueue mDeliveryQueue;
+    // true if messages are handled on a different Executor than the one the wrapper is controlled
+    // from.
+    private final boolean mIsOnSeparateExecutor;
     private final int mSubId;
     private final TransportSipMessageValidator mSipSessionTracker;
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
 
     private ISipDelegate mSipDelegate;
 
+    /**
+     * @param subId The subscription ID of the SipDelegate.
+     * @param executor The Executor this wrapper is controlled from.
+     * @param messageExecutor The Executor SIP messages are verified and delivered on, which may be
+     *         the same as {@code executor}.
+     * @param appMessageCallback The remote application's message callback.
+     */
     public MessageTransportWrapper(int subId, ScheduledExecutorService executor,
+            ScheduledExecutorService messageExecutor,
             ISipDelegateMessageCallback appMessageCallback) {
         mSubId = subId;
         mAppCallback = appMessageCallback;
         mExecutor = executor;
-        mSipSessionTracker = new TransportSipMessageValidator(subId, executor);
+        mDeliveryQueue = new SipDeliveryQueue(messageExecutor);
+        mIsOnSeparateExecutor = messageExecutor != executor;
+        mSipSessionTracker = new TransportSipMessageValidator(subId, messageExecutor);
         mValidatorOverride = () -> RcsProvisioningMonitor.getInstance()
                 .getImsFeatureValidationOverride(mSubId);
     }
@@ -293,9 +321,22 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
     public MessageTransportWrapper(int subId, ScheduledExecutorService executor,
             ISipDelegateMessageCallback appMessageCallback,
             TransportSipMessageValidator sipSessionTracker) {
+        this(subId, executor, executor, appMessageCallback, sipSessionTracker);
+    }
+
+    /**
+     * Mock out dependencies for unit testing, handling SIP messages on a separate Executor.
+     */
+    @VisibleForTesting
+    public MessageTransportWrapper(int subId, ScheduledExecutorService executor,
+            ScheduledExecutorService messageExecutor,
+            ISipDelegateMessageCallback appMessageCallback,
+            TransportSipMessageValidator sipSessionTracker) {
         mSubId = subId;
         mAppCallback = appMessageCallback;
         mExecutor = executor;
+        mDeliveryQueue = new SipDeliveryQueue(messageExecutor);
+        mIsOnSeparateExecutor = messageExecutor != executor;
         mSipSessionTracker = sipSessionTracker;
         // Remove links to static methods calls querying overrides for testing.
         mValidatorOverride = () -> null;
@@ -303,21 +344,21 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
 
     @Override
     public void onRegistrationStateChanged(DelegateRegistrationState registrationState) {
-        mSipSessionTracker.onRegistrationStateChanged((callIds) -> {
+        runOnMessageExecutor(() -> mSipSessionTracker.onRegistrationStateChanged((callIds) -> {
             for (String id : callIds)  {
                 cleanupSessionInternal(id);
             }
-        }, registrationState);
+        }, registrationState));
     }
 
     @Override
     public void onImsConfigurationChanged(SipDelegateImsConfiguration config) {
-        mSipSessionTracker.onImsConfigurationChanged(config);
+        runOnMessageExecutor(() -> mSipSessionTracker.onImsConfigurationChanged(config));
     }
 
     @Override
     public void onConfigurationChanged(SipDelegateConfiguration config) {
-        mSipSessionTracker.onConfigurationChanged(config);
+        runOnMessageExecutor(() -> mSipSessionTracker.onConfigurationChanged(config));
     }
 
     /**
@@ -332,13 +373,16 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
             Set<FeatureTagState> deniedFeatureTags) {
         logi("openTransport: delegate=" + delegate + ", supportedTags=" + supportedFeatureTags
                 + ", deniedTags=" + deniedFeatureTags);
-        mSipSessionTracker.onTransportOpened(supportedFeatureTags, deniedFeatureTags);
-        mSipDelegate = delegate;
+        runOnMessageExecutor(() -> {
+            mSipSessionTracker.onTransportOpened(supportedFeatureTags, deniedFeatureTags);
+            mSipDelegate = delegate;
+        });
     }
 
     /** Dump state about this tracker that should be included in the dumpsys */
     public void dump(PrintWriter printWriter) {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
+        mDeliveryQueue.dump(pw);
         pw.println("Most recent logs:");
         mLocalLog.dump(printWriter);
         pw.println();
@@ -389,22 +433,32 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
      * @param closedReason reason to return to new outgoing SIP messages via
      *         {@link SipDelegate#notifyMessageReceiveError(String, int)} once the transport
      *         transitions to the fully closed state.
+     * @param closingCallback Called on the Executor this wrapper is controlled from if the
+     *         transport could not be closed right away because there are still open SIP dialogs.
+     *         It is called before {@code resultConsumer} in that case, and not at all otherwise.
      * @param resultConsumer The consumer called when the message transport has been closed. It will
      *         return {@code true} if the procedure completed successfully or {@link false} if the
      *         transport needed to be closed forcefully due to the application not responding before
      *         a timeout occurred.
      */
     public void closeGracefully(int delegateClosingReason, int closedReason,
-            Consumer<Boolean> resultConsumer) {
+            Runnable closingCallback, Consumer<Boolean> resultConsumer) {
         logi("closeGracefully: closingReason=" + delegateClosingReason + ", closedReason="
                 + closedReason + ", resultConsumer(" + resultConsumer.hashCode() + ")");
-        mSipSessionTracker.closeSessionsGracefully((openCallIds) -> {
-            logi("closeGracefully resultConsumer(" + resultConsumer.hashCode()
-                    + "): open call IDs:{" + openCallIds + "}");
-            closeTransport(openCallIds);
-            // propagate event to the consumer
-            resultConsumer.accept(openCallIds.isEmpty() /*successfullyClosed*/);
-        }, delegateClosingReason, closedReason);
+        runOnMessageExecutor(() -> {
+            AtomicBoolean isClosed = new AtomicBoolean(false);
+            mSipSessionTracker.closeSessionsGracefully((openCallIds) -> {
+                logi("closeGracefully resultConsumer(" + resultConsumer.hashCode()
+                        + "): open call IDs:{" + openCallIds + "}");
+                isClosed.set(true);
+                closeTransport(openCallIds);
+                // propagate event to the consumer
+                resultConsumer.accept(openCallIds.isEmpty() /*successfullyClosed*/);
+            }, delegateClosingReason, closedReason);
+            if (!isClosed.get()) {
+                runOnExecutor(closingCallback);
+            }
+        });
     }
 
     /**
@@ -412,11 +466,53 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
      * the provided reason.
      * @param closedReason The failure reason to provide to incoming/outgoing SIP messages
      *         if an attempt is made to send/receive a message after this method is called.
+     * @param closedCallback Called once the transport has been closed.
+     */
+    public void close(int closedReason, Runnable closedCallback) {
+        runOnMessageExecutor(() -> {
+            Set<String> openSessions = mSipSessionTracker.closeSessions(closedReason);
+            logi("close: closedReason=" + closedReason + "open call IDs:{" + openSessions + "}");
+            closeTransport(openSessions);
+            closedCallback.run();
+        });
+    }
+
+    /**
+     * Queue a task on the Executor SIP messages are handled on.
+     * @return {@code false} if the task was dropped because that Executor has been shut down.
+     */
+    private boolean enqueue(Runnable r) {
+        try {
+            mDeliveryQueue.enqueue(r);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logw("enqueue: dropped, message Executor has been shut down");
+            return false;
+        }
+    }
+
+    /**
+     * Run a call controlling the transport on the Executor SIP messages are handled on, after all
+     * messages already queued.
      */
-    public void close(int closedReason) {
-        Set<String> openSessions = mSipSessionTracker.closeSessions(closedReason);
-        logi("close: closedReason=" + closedReason + "open call IDs:{" + openSessions + "}");
-        closeTransport(openSessions);
+    private void runOnMessageExecutor(Runnable r) {
+        if (mIsOnSeparateExecutor) {
+            enqueue(r);
+        } else {
+            r.run();
+        }
+    }
+
+    /**
+     * Run a callback of a call controlling the transport on the Executor this wrapper is
+     * controlled from.
+     */
+    private void runOnExecutor(Runnable r) {
+        if (mIsOnSeparateExecutor) {
+            mExecutor.execute(r);
+        } else {
+            r.run();
+        }
     }
 
     // Clean up all state related to the existing SipDelegate immediately.
@@ -488,7 +584,8 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
      */
     public void setSipDialogsListener(SipDialogsStateListener listener,
             boolean isNeedNotify) {
-        mSipSessionTracker.setSipDialogsListener(listener, isNeedNotify);
+        runOnMessageExecutor(
+                () -> mSipSessionTracker.setSipDialogsListener(listener, isNeedNotify));
     }
 
     private void logi(String log) {
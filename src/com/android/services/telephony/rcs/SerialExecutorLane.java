@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A serial lane of execution backed by a shared thread pool.
+ * <p>
+ * Ordering guarantees:
+ * <ul>
+ *     <li>Tasks passed to {@link #execute(Runnable)} (and the submit methods) run one at a time,
+ *     in the order they were passed in, and each task happens-before the next one.</li>
+ *     <li>Delayed tasks are added to the end of the lane once their delay has expired, so they
+ *     run after all tasks that were added to the lane before that. A delayed task that is
+ *     cancelled before it starts never runs.</li>
+ *     <li>There are no ordering guarantees between lanes, tasks of different lanes may run at
+ *     the same time on different threads of the pool.</li>
+ * </ul>
+ * A lane runs at most {@link #MAX_TASKS_PER_TURN} tasks on a pool thread before giving the thread
+ * back to the pool, so a busy lane can not starve the other lanes sharing the pool. Shutting a
+ * lane down does not shut down the pool or the scheduler.
+ * <p>
+ * Periodic tasks are added to the lane once per period like delayed tasks, and the next run is
+ * only scheduled once the previous one has finished, so runs never overlap. As with
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor}, if a run of a fixed rate task is late,
+ * e.g. because the lane is busy, the following runs may start late.
+ */
+public class SerialExecutorLane extends AbstractExecutorService
+        implements ScheduledExecutorService {
+
+    /** The maximum number of tasks run on a pool thread before returning it to the pool. */
+    public static final int MAX_TASKS_PER_TURN = 32;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private final Executor mPool;
+    private final ScheduledExecutorService mScheduler;
+    private final Runnable mRunTasks = this::runTasks;
+    // true if mRunTasks has been posted to the pool and has not finished yet.
+    private boolean mIsRunning;
+    private boolean mIsShutdown;
+
+    /**
+     * @param pool The pool the tasks of this lane run on.
+     * @param scheduler Used to wait for the delay of delayed tasks before adding them to the lane,
+     *         the tasks themselves never run on it.
+     */
+    public SerialExecutorLane(Executor pool, ScheduledExecutorService scheduler) {
+        mPool = pool;
+        mScheduler = scheduler;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        synchronized (mLock) {
+            if (mIsShutdown) {
+                throw new RejectedExecutionException("lane has been shut down");
+            }
+            mTasks.add(command);
+            if (mIsRunning) return;
+            mIsRunning = true;
+        }
+        try {
+            mPool.execute(mRunTasks);
+        } catch (RejectedExecutionException e) {
+            // The pool is shutting down or saturated. Don't leave the lane marked as running, or
+            // no turn would ever be posted again. Tasks queued by other callers meanwhile stay
+            // queued for the turn posted by the next call.
+            synchronized (mLock) {
+                mTasks.removeLastOccurrence(command);
+                mIsRunning = false;
+                mLock.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return schedule(new FutureTask<Void>(command, null), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return schedule(new FutureTask<>(callable), delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+            long period, TimeUnit unit) {
+        if (period <= 0) throw new IllegalArgumentException("period must be positive");
+        return schedulePeriodic(command, initialDelay, unit.toNanos(period), unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+            long delay, TimeUnit unit) {
+        if (delay <= 0) throw new IllegalArgumentException("delay must be positive");
+        return schedulePeriodic(command, initialDelay, -unit.toNanos(delay), unit);
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (mLock) {
+            mIsShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        synchronized (mLock) {
+            mIsShutdown = true;
+            List<Runnable> pending = new ArrayList<>(mTasks);
+            mTasks.clear();
+            mLock.notifyAll();
+            return pending;
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (mLock) {
+            return mIsShutdown;
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        synchronized (mLock) {
+            return mIsShutdown && !mIsRunning;
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (mLock) {
+            while (!(mIsShutdown && !mIsRunning)) {
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                if (remainingMs <= 0) return false;
+                mLock.wait(remainingMs);
+            }
+            return true;
+        }
+    }
+
+    private <V> ScheduledFuture<V> schedule(FutureTask<V> task, long delay, TimeUnit unit) {
+        synchronized (mLock) {
+            if (mIsShutdown) {
+                throw new RejectedExecutionException("lane has been shut down");
+            }
+        }
+        ScheduledFuture<?> timer = mScheduler.schedule(() -> enqueueDelayed(task), delay, unit);
+        return new LaneScheduledFuture<>(task, timer);
+    }
+
+    private ScheduledFuture<?> schedulePeriodic(Runnable command, long initialDelay,
+            long periodNs, TimeUnit unit) {
+        if (command == null) throw new NullPointerException();
+        synchronized (mLock) {
+            if (mIsShutdown) {
+                throw new RejectedExecutionException("lane has been shut down");
+            }
+        }
+        PeriodicTask task = new PeriodicTask(command,
+                System.nanoTime() + unit.toNanos(initialDelay), periodNs);
+        task.scheduleNextRun();
+        return task;
+    }
+
+    /**
+     * Add a delayed or periodic task to the lane once its delay has expired, unless it has been
+     * cancelled meanwhile or the lane has been shut down.
+     */
+    private void enqueueDelayed(FutureTask<?> task) {
+        if (task.isCancelled()) return;
+        try {
+            execute(task);
+        } catch (RejectedExecutionException e) {
+            task.cancel(false);
+        }
+    }
+
+    private void runTasks() {
+        try {
+            for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+                Runnable task;
+                synchronized (mLock) {
+                    task = mTasks.poll();
+                }
+                if (task == null) break;
+                task.run();
+            }
+        } finally {
+            // Post the next turn, even if a task has failed, so the remaining tasks still run.
+            boolean hasMoreTasks;
+            synchronized (mLock) {
+                hasMoreTasks = !mTasks.isEmpty();
+                mIsRunning = hasMoreTasks;
+                if (!hasMoreTasks) mLock.notifyAll();
+            }
+            if (hasMoreTasks) {
+                try {
+                    mPool.execute(mRunTasks);
+                } catch (RejectedExecutionException e) {
+                    // Not rethrown, this runs on a pool thread. The remaining tasks stay queued
+                    // and run in the turn posted by the next call to execute.
+                    synchronized (mLock) {
+                        mIsRunning = false;
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A periodic task. Each run is added to the lane once its delay has expired, and the next run
+     * is only scheduled once the previous one has finished. The task stops once it is cancelled,
+     * throws, or can't be added to the lane any more.
+     */
+    private final class PeriodicTask extends FutureTask<Void> implements ScheduledFuture<Void> {
+        // > 0 for a fixed rate, < 0 for a fixed delay, as in ScheduledThreadPoolExecutor.
+        private final long mPeriodNs;
+        private volatile long mNextRunNs;
+        private volatile ScheduledFuture<?> mTimer;
+
+        PeriodicTask(Runnable command, long firstRunNs, long periodNs) {
+            super(command, null);
+            mNextRunNs = firstRunNs;
+            mPeriodNs = periodNs;
+        }
+
+        void scheduleNextRun() {
+            mTimer = mScheduler.schedule(() -> enqueueDelayed(this),
+                    mNextRunNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            if (!runAndReset()) return;
+            mNextRunNs = mPeriodNs > 0 ? mNextRunNs + mPeriodNs : System.nanoTime() - mPeriodNs;
+            try {
+                scheduleNextRun();
+            } catch (RejectedExecutionException e) {
+                cancel(false);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            ScheduledFuture<?> timer = mTimer;
+            if (timer != null) timer.cancel(false);
+            return cancelled;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mNextRunNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * The future of a delayed task, which waits for its delay on the scheduler and then runs on
+     * the lane.
+     */
+    private static final class LaneScheduledFuture<V> implements ScheduledFuture<V> {
+        private final FutureTask<V> mTask;
+        private final ScheduledFuture<?> mTimer;
+
+        LaneScheduledFuture(FutureTask<V> task, ScheduledFuture<?> timer) {
+            mTask = task;
+            mTimer = timer;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return mTimer.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return mTimer.compareTo(o);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mTimer.cancel(false);
+            return mTask.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mTask.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return mTask.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return mTask.get();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return mTask.get(timeout, unit);
+        }
+    }
+}
@@ -93,6 +93,7 @@ public class SipDelegateController {
     public SipDelegateController(int subId, int uid, DelegateRequest initialRequest,
             String packageName, ISipTransport transportImpl, IImsRegistration registrationImpl,
             ScheduledExecutorService executorService,
+            ScheduledExecutorService messageExecutorService,
             ISipDelegateConnectionStateCallback stateCallback,
             ISipDelegateMessageCallback messageCallback) {
         mSubId = subId;
@@ -103,7 +104,7 @@ public class SipDelegateController {
         mBinderConnectionFactory = new BinderConnectionFactory(transportImpl, registrationImpl);
 
         mMessageTransportWrapper = new MessageTransportWrapper(mSubId, executorService,
-                messageCallback);
+                messageExecutorService, messageCallback);
 
         mDelegateStateTracker = new DelegateStateTracker(mSubId, mUid, stateCallback,
                 mMessageTransportWrapper.getDelegateConnection(), RcsStats.getInstance());
@@ -331,23 +332,20 @@ public class SipDelegateController {
             logi("destroySipDelegate, called when binder connection is already null");
             return CompletableFuture.completedFuture(delegateDestroyedReason);
         }
-        // First, bring down the message transport.
+        // First, bring down the message transport. This may complete asynchronously if the SIP
+        // messages are handled on a separate Executor.
         CompletableFuture<Boolean> pendingTransportClosed = new CompletableFuture<>();
         if (force) {
             logi("destroySipDelegate, forced");
-            mMessageTransportWrapper.close(messageDestroyedReason);
-            pendingTransportClosed.complete(true);
+            mMessageTransportWrapper.close(messageDestroyedReason,
+                    () -> pendingTransportClosed.complete(true));
         } else {
+            // Only send an intermediate pending state to app if there are open SIP dialogs to
+            // worry about.
             mMessageTransportWrapper.closeGracefully(messageDestroyingReason,
-                    messageDestroyedReason, pendingTransportClosed::complete);
-        }
-
-        // Do not send an intermediate pending state to app if there are no open SIP dialogs to
-        // worry about.
-        if (!pendingTransportClosed.isDone()) {
-            mDelegateStateTracker.sipDelegateChanging(deregisteringReason);
-        } else {
-            logi("destroySipDelegate, skip DEREGISTERING_REASON_DESTROY_PENDING");
+                    messageDestroyedReason,
+                    () -> mDelegateStateTracker.sipDelegateChanging(deregisteringReason),
+                    pendingTransportClosed::complete);
         }
 
         // Next, destroy the SipDelegate.
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Queues the SIP message tasks of one {@link MessageTransportWrapper} and runs them on the
+ * provided Executor in batches.
+ * <p>
+ * Instead of posting one Executor task per message, at most one drain task is posted at a time,
+ * which runs up to a fixed number of queued tasks before posting itself again, so a burst of
+ * messages on one delegate does not starve the other users of the Executor. All tasks are run in
+ * the order they were queued in, which keeps the messages of every SIP dialog in order.
+ * <p>
+ * Tasks may be queued from any thread.
+ */
+public class SipDeliveryQueue {
+
+    /** The maximum number of queued tasks run per Executor task by default. */
+    public static final int DEFAULT_MAX_TASKS_PER_DRAIN = 16;
+
+    private static final class PendingTask {
+        final Runnable task;
+        final long enqueueTimeNs;
+
+        PendingTask(Runnable task, long enqueueTimeNs) {
+            this.task = task;
+            this.enqueueTimeNs = enqueueTimeNs;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<PendingTask> mQueue = new ArrayDeque<>();
+    private final Executor mExecutor;
+    private final int mMaxTasksPerDrain;
+    private final Runnable mDrainRunnable = this::drain;
+    // true if a drain task has been posted to the Executor and has not finished yet.
+    private boolean mDrainScheduled;
+
+    private int mMaxQueueDepth;
+    private long mDrainCount;
+    private long mTaskCount;
+    private long mTotalQueuedTimeNs;
+    private long mMaxQueuedTimeNs;
+
+    public SipDeliveryQueue(Executor executor) {
+        this(executor, DEFAULT_MAX_TASKS_PER_DRAIN);
+    }
+
+    @VisibleForTesting
+    public SipDeliveryQueue(Executor executor, int maxTasksPerDrain) {
+        mExecutor = executor;
+        mMaxTasksPerDrain = maxTasksPerDrain;
+    }
+
+    /**
+     * Queue a task to be run on the Executor after all previously queued tasks.
+     * @throws RejectedExecutionException if the Executor rejected the drain task. The task stays
+     *     queued and is run by the drain task posted by a later call.
+     */
+    public void enqueue(Runnable task) {
+        boolean scheduleDrain;
+        synchronized (mLock) {
+            mQueue.add(new PendingTask(task, SystemClock.elapsedRealtimeNanos()));
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+            scheduleDrain = !mDrainScheduled;
+            mDrainScheduled = true;
+        }
+        if (scheduleDrain) scheduleDrain();
+    }
+
+    /**
+     * @return The number of tasks waiting to be run.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * @return The largest number of tasks that have been waiting to be run at the same time.
+     */
+    public int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueueDepth;
+        }
+    }
+
+    /**
+     * @return The number of drain tasks that have been run on the Executor.
+     */
+    @VisibleForTesting
+    public long getDrainCount() {
+        synchronized (mLock) {
+            return mDrainCount;
+        }
+    }
+
+    /** Dump the queue depth and the time tasks spent queued. */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            long avgQueuedTimeUs = mTaskCount == 0 ? 0 : mTotalQueuedTimeNs / mTaskCount / 1000;
+            pw.println("Delivery queue: depth=" + mQueue.size() + ", maxDepth=" + mMaxQueueDepth
+                    + ", tasks=" + mTaskCount + ", drains=" + mDrainCount + ", avgQueuedTimeUs="
+                    + avgQueuedTimeUs + ", maxQueuedTimeUs=" + mMaxQueuedTimeNs / 1000);
+        }
+    }
+
+    private void drain() {
+        synchronized (mLock) {
+            mDrainCount++;
+        }
+        try {
+            for (int i = 0; i < mMaxTasksPerDrain; i++) {
+                PendingTask pendingTask;
+                synchronized (mLock) {
+                    pendingTask = mQueue.poll();
+                    if (pendingTask == null) break;
+                    long queuedTimeNs = SystemClock.elapsedRealtimeNanos()
+                            - pendingTask.enqueueTimeNs;
+                    mTaskCount++;
+                    mTotalQueuedTimeNs += queuedTimeNs;
+                    mMaxQueuedTimeNs = Math.max(mMaxQueuedTimeNs, queuedTimeNs);
+                }
+                pendingTask.task.run();
+            }
+        } finally {
+            // Post the next drain, even if a task has failed, so the remaining tasks still run.
+            boolean scheduleDrain;
+            synchronized (mLock) {
+                scheduleDrain = !mQueue.isEmpty();
+                mDrainScheduled = scheduleDrain;
+            }
+            if (scheduleDrain) {
+                try {
+                    scheduleDrain();
+                } catch (RejectedExecutionException e) {
+                    // The Executor running this drain is shutting down, there is no caller to
+                    // report this to. The tasks stay queued for the drain posted by a later call.
+                }
+            }
+        }
+    }
+
+    /**
+     * Post a drain task after mDrainScheduled was set. If the Executor rejects it, e.g. while it
+     * is shutting down, the flag is cleared again so the next enqueue posts a drain task for the
+     * tasks still queued.
+     */
+    private void scheduleDrain() {
+        try {
+            mExecutor.execute(mDrainRunnable);
+        } catch (RejectedExecutionException e) {
+            synchronized (mLock) {
+                mDrainScheduled = false;
+            }
+            throw e;
+        }
+    }
+}
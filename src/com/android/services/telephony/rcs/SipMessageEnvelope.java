@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.telephony.ims.SipMessage;
+import android.util.ArraySet;
+import android.util.Pair;
+
+import com.android.internal.telephony.SipMessageParsingUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Wraps a {@link SipMessage} and parses the parts of it needed by the transport validators and
+ * the {@link SipSessionTracker} at most once.
+ * <p>
+ * Each part is parsed the first time it is requested, so a message rejected early in the
+ * validation chain only pays for the parts that were looked at. This class is not thread safe and
+ * is meant to live only as long as the message is being validated and filtered.
+ */
+public final class SipMessageEnvelope {
+
+    /**
+     * The status code returned by {@link #getStatusCode()} if the message is not a response or
+     * the status code could not be parsed.
+     */
+    public static final int STATUS_CODE_INVALID = -1;
+
+    private static final String EVENT_HEADER = "event";
+
+    private final SipMessage mMessage;
+
+    private boolean mStartLineParsed;
+    private boolean mIsRequest;
+    private boolean mIsResponse;
+    private String[] mStartLineSegments;
+    private String mMethod;
+    private int mStatusCode = STATUS_CODE_INVALID;
+
+    private boolean mFromTagParsed;
+    private String mFromTag;
+    private boolean mToTagParsed;
+    private String mToTag;
+    private Set<String> mAcceptContactFeatureTags;
+    private Set<String> mNormalizedAcceptContactFeatureTags;
+    private List<String> mEventHeaderValues;
+
+    public SipMessageEnvelope(SipMessage message) {
+        mMessage = message;
+    }
+
+    /**
+     * @return The wrapped SIP message.
+     */
+    public SipMessage getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * @return {@code true} if the start line is a SIP request start line.
+     */
+    public boolean isRequest() {
+        parseStartLine();
+        return mIsRequest;
+    }
+
+    /**
+     * @return {@code true} if the start line is a SIP response start line.
+     */
+    public boolean isResponse() {
+        parseStartLine();
+        return mIsResponse;
+    }
+
+    /**
+     * @return The segments of the start line for a request or response, or {@code null} if the
+     * start line could not be verified.
+     */
+    public String[] getStartLineSegments() {
+        parseStartLine();
+        return mStartLineSegments;
+    }
+
+    /**
+     * @return The request method as it appears in the start line, or {@code null} if this is not
+     * a valid SIP request.
+     */
+    public String getMethod() {
+        parseStartLine();
+        return mMethod;
+    }
+
+    /**
+     * @return The status code of a response or {@link #STATUS_CODE_INVALID} if this is not a
+     * valid SIP response.
+     */
+    public int getStatusCode() {
+        parseStartLine();
+        return mStatusCode;
+    }
+
+    /**
+     * @return The Call-ID header value.
+     */
+    public String getCallId() {
+        return mMessage.getCallIdParameter();
+    }
+
+    /**
+     * @return The branch parameter of the top Via header.
+     */
+    public String getViaBranch() {
+        return mMessage.getViaBranchParameter();
+    }
+
+    /**
+     * @return The tag parameter of the From header, or {@code null} if there is none.
+     */
+    public String getFromTag() {
+        if (!mFromTagParsed) {
+            mFromTag = SipMessageParsingUtils.getFromTag(mMessage.getHeaderSection());
+            mFromTagParsed = true;
+        }
+        return mFromTag;
+    }
+
+    /**
+     * @return The tag parameter of the To header, or {@code null} if there is none.
+     */
+    public String getToTag() {
+        if (!mToTagParsed) {
+            mToTag = SipMessageParsingUtils.getToTag(mMessage.getHeaderSection());
+            mToTagParsed = true;
+        }
+        return mToTag;
+    }
+
+    /**
+     * @return The feature tags contained in the Accept-Contact header, as they appear in the
+     * message.
+     */
+    public Set<String> getAcceptContactFeatureTags() {
+        if (mAcceptContactFeatureTags == null) {
+            mAcceptContactFeatureTags = SipMessageParsingUtils.getAcceptContactFeatureTags(
+                    mMessage.getHeaderSection());
+        }
+        return mAcceptContactFeatureTags;
+    }
+
+    /**
+     * @return The feature tags contained in the Accept-Contact header, trimmed and in lower case
+     * for matching.
+     */
+    public Set<String> getNormalizedAcceptContactFeatureTags() {
+        if (mNormalizedAcceptContactFeatureTags == null) {
+            Set<String> featureTags = getAcceptContactFeatureTags();
+            Set<String> normalized = new ArraySet<>(featureTags.size());
+            for (String featureTag : featureTags) {
+                normalized.add(featureTag.toLowerCase(Locale.ROOT).trim());
+            }
+            mNormalizedAcceptContactFeatureTags = normalized;
+        }
+        return mNormalizedAcceptContactFeatureTags;
+    }
+
+    /**
+     * @return The values of the first Event header, or an empty list if there is none.
+     */
+    public List<String> getEventHeaderValues() {
+        if (mEventHeaderValues == null) {
+            List<Pair<String, String>> headers = SipMessageParsingUtils.parseHeaders(
+                    mMessage.getHeaderSection(), true /*stopAtFirstMatch*/, EVENT_HEADER);
+            if (headers.isEmpty()) {
+                mEventHeaderValues = Collections.emptyList();
+            } else {
+                List<String> values = new ArrayList<>(headers.size());
+                for (Pair<String, String> header : headers) {
+                    values.add(header.second);
+                }
+                mEventHeaderValues = values;
+            }
+        }
+        return mEventHeaderValues;
+    }
+
+    private void parseStartLine() {
+        if (mStartLineParsed) return;
+        mStartLineParsed = true;
+        String startLine = mMessage.getStartLine();
+        mIsRequest = SipMessageParsingUtils.isSipRequest(startLine);
+        mIsResponse = !mIsRequest && SipMessageParsingUtils.isSipResponse(startLine);
+        if (!mIsRequest && !mIsResponse) return;
+        mStartLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(startLine);
+        if (mStartLineSegments == null) return;
+        if (mIsRequest) {
+            mMethod = mStartLineSegments[0];
+        } else {
+            try {
+                mStatusCode = Integer.parseInt(mStartLineSegments[1]);
+            } catch (NumberFormatException e) {
+                mStatusCode = STATUS_CODE_INVALID;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mMessage.toString();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING;
+
+import android.telephony.ims.SipDelegateManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.services.telephony.rcs.validator.ValidationResult;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * A fixed size ring buffer of the SIP messages verified by the
+ * {@link TransportSipMessageValidator}.
+ * <p>
+ * Only compact fields of each message are kept in preallocated primitive arrays, so recording a
+ * message does not allocate. The full text of rejected messages is rate limited separately, see
+ * {@link #shouldLogMessageText()}.
+ */
+public class SipMessageEventLog {
+
+    /**
+     * The maximum number of messages that may have their full text logged per
+     * {@link #MESSAGE_TEXT_WINDOW_MS}.
+     */
+    @VisibleForTesting
+    public static final int MAX_MESSAGE_TEXT_PER_WINDOW = 10;
+    @VisibleForTesting
+    public static final long MESSAGE_TEXT_WINDOW_MS = 1000;
+
+    // Request methods that are recorded by index, anything else is recorded as METHOD_OTHER.
+    private static final String[] METHODS = new String[] {"INVITE", "ACK", "BYE", "CANCEL",
+            "OPTIONS", "REGISTER", "PRACK", "SUBSCRIBE", "NOTIFY", "PUBLISH", "INFO", "REFER",
+            "MESSAGE", "UPDATE"};
+    private static final int METHOD_NONE = -1;
+    private static final int METHOD_OTHER = METHODS.length;
+    private static final int RESULT_VALIDATED = -1;
+
+    private final LongSupplier mClock;
+    private final long[] mTimestampsMs;
+    private final int[] mDirections;
+    private final int[] mMethods;
+    private final int[] mStatusCodes;
+    private final int[] mCallIdHashes;
+    private final int[] mResults;
+    // The index the next event will be written to.
+    private int mNextIndex;
+    private int mSize;
+    private long mTotalCount;
+
+    private long mMessageTextWindowStartMs;
+    private int mMessageTextWindowCount;
+    private long mSuppressedMessageTextCount;
+
+    public SipMessageEventLog(int capacity) {
+        this(capacity, System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    public SipMessageEventLog(int capacity, LongSupplier clock) {
+        mClock = clock;
+        mTimestampsMs = new long[capacity];
+        mDirections = new int[capacity];
+        mMethods = new int[capacity];
+        mStatusCodes = new int[capacity];
+        mCallIdHashes = new int[capacity];
+        mResults = new int[capacity];
+    }
+
+    /**
+     * Record the result of verifying a SIP message, overwriting the oldest event if full.
+     * @param direction The direction of the message, as defined by TelephonyStatsLog.
+     * @param m The verified message.
+     * @param result The result of the verification.
+     */
+    public synchronized void record(int direction, SipMessageEnvelope m, ValidationResult result) {
+        int i = mNextIndex;
+        mTimestampsMs[i] = mClock.getAsLong();
+        mDirections[i] = direction;
+        if (m.isRequest()) {
+            mMethods[i] = getMethodIndex(m.getMethod());
+            mStatusCodes[i] = SipMessageEnvelope.STATUS_CODE_INVALID;
+        } else {
+            mMethods[i] = METHOD_NONE;
+            mStatusCodes[i] = m.getStatusCode();
+        }
+        String callId = m.getCallId();
+        mCallIdHashes[i] = callId == null ? 0 : callId.hashCode();
+        mResults[i] = result.isValidated ? RESULT_VALIDATED : result.restrictedReason;
+        mNextIndex = (i + 1) % mTimestampsMs.length;
+        if (mSize < mTimestampsMs.length) mSize++;
+        mTotalCount++;
+    }
+
+    /**
+     * @return {@code true} if the full text of a message may be logged now, {@code false} if too
+     * many messages have been logged recently and this one should be skipped.
+     */
+    public synchronized boolean shouldLogMessageText() {
+        long now = mClock.getAsLong();
+        if (now - mMessageTextWindowStartMs >= MESSAGE_TEXT_WINDOW_MS
+                || now < mMessageTextWindowStartMs) {
+            mMessageTextWindowStartMs = now;
+            mMessageTextWindowCount = 0;
+        }
+        if (mMessageTextWindowCount >= MAX_MESSAGE_TEXT_PER_WINDOW) {
+            mSuppressedMessageTextCount++;
+            return false;
+        }
+        mMessageTextWindowCount++;
+        return true;
+    }
+
+    /**
+     * @return The number of events currently in the buffer.
+     */
+    @VisibleForTesting
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Dump the recorded events, oldest first.
+     */
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("SIP message events (total=" + mTotalCount + ", message text suppressed="
+                + mSuppressedMessageTextCount + "):");
+        pw.increaseIndent();
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        int start = (mNextIndex - mSize + mTimestampsMs.length) % mTimestampsMs.length;
+        for (int n = 0; n < mSize; n++) {
+            pw.println(decode(format, (start + n) % mTimestampsMs.length));
+        }
+        pw.decreaseIndent();
+    }
+
+    private String decode(SimpleDateFormat format, int i) {
+        StringBuilder b = new StringBuilder();
+        b.append(format.format(new Date(mTimestampsMs[i])));
+        b.append(mDirections[i] == SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING
+                ? " OUT " : " IN ");
+        if (mMethods[i] == METHOD_OTHER) {
+            b.append("<other request>");
+        } else if (mMethods[i] != METHOD_NONE) {
+            b.append(METHODS[mMethods[i]]);
+        } else if (mStatusCodes[i] != SipMessageEnvelope.STATUS_CODE_INVALID) {
+            b.append(mStatusCodes[i]);
+        } else {
+            b.append("<invalid start line>");
+        }
+        b.append(" callId#=");
+        b.append(Integer.toHexString(mCallIdHashes[i]));
+        if (mResults[i] == RESULT_VALIDATED) {
+            b.append(" validated");
+        } else {
+            b.append(" rejected: ");
+            b.append(SipDelegateManager.MESSAGE_FAILURE_REASON_STRING_MAP.getOrDefault(
+                    mResults[i], "Unknown reason " + mResults[i]));
+        }
+        return b.toString();
+    }
+
+    private static int getMethodIndex(String method) {
+        if (method == null) return METHOD_OTHER;
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i].equalsIgnoreCase(method)) return i;
+        }
+        return METHOD_OTHER;
+    }
+}
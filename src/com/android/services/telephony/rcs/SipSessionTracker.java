@@ -24,7 +24,6 @@ import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
 
@@ -32,8 +31,14 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -49,6 +54,16 @@ import java.util.stream.Collectors;
 public class SipSessionTracker {
     private static final String TAG = "SessionT";
 
+    /**
+     * Listener for changes to the set of call IDs returned by {@link #getTrackedCallIds()}.
+     */
+    public interface TrackedCallIdsListener {
+        /**
+         * A call ID has started or stopped being tracked.
+         */
+        void onTrackedCallIdsChanged();
+    }
+
     /**
      * SIP request methods that will start a new SIP Dialog and move it into the PENDING state
      * while we wait for a response. Note: INVITE is not the only SIP dialog that will create a
@@ -62,8 +77,29 @@ public class SipSessionTracker {
      */
     private static final String SIP_CLOSE_DIALOG_REQUEST_METHOD = "bye";
 
+    /**
+     * The maximum number of closed dialogs that are kept while waiting for
+     * {@link #cleanupSession(String)}. Once exceeded, the dialogs that closed first are dropped.
+     */
+    @VisibleForTesting
+    public static final int MAX_RETAINED_CLOSED_DIALOGS = 100;
+
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
-    private final ArrayList<SipDialog> mTrackedDialogs = new ArrayList<>();
+    // All tracked dialogs keyed by call ID, a call ID has more than one dialog if the INVITE
+    // forked.
+    private final LinkedHashMap<String, List<SipDialog>> mDialogsByCallId = new LinkedHashMap<>();
+    // Secondary index of the tracked dialogs by state. Early and confirmed dialogs can still
+    // change their to tag, which is part of SipDialog#hashCode, so these are identity sets.
+    private final Set<SipDialog> mEarlyDialogs = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<SipDialog> mConfirmedDialogs =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    // Closed dialogs no longer change and are kept in the order they were closed in.
+    private final LinkedHashSet<SipDialog> mClosedDialogs = new LinkedHashSet<>();
+    // The number of early and confirmed dialogs of each call ID, its key set is the set of call
+    // IDs with open dialogs.
+    private final HashMap<String, Integer> mOpenDialogCounts = new HashMap<>();
+    private TrackedCallIdsListener mTrackedCallIdsListener;
+    private boolean mTrackedCallIdsChanged;
     // Operations that are pending an ack from the remote application processing the message before
     // they can be applied here. Maps the via header branch parameter of the message to the
     // associated pending operation.
@@ -88,30 +124,39 @@ public class SipSessionTracker {
      * @param message The Incoming SIP message.
      */
     public void filterSipMessage(int direction, SipMessage message) {
+        filterSipMessage(direction, new SipMessageEnvelope(message));
+    }
+
+    /**
+     * Filter a SIP message that has already been wrapped for validation.
+     * @see #filterSipMessage(int, SipMessage)
+     */
+    public void filterSipMessage(int direction, SipMessageEnvelope message) {
         final Runnable r;
         if (startsEarlyDialog(message)) {
             r = getCreateDialogRunnable(direction, message);
         } else if (closesDialog(message)) {
             r = getCloseDialogRunnable(message);
-        } else if (SipMessageParsingUtils.isSipResponse(message.getStartLine())) {
+        } else if (message.isResponse()) {
             r = getDialogStateChangeRunnable(message);
         } else {
             r = null;
         }
 
         if (r != null) {
-            if (mPendingAck.containsKey(message.getViaBranchParameter())) {
-                Runnable lastEvent = mPendingAck.get(message.getViaBranchParameter());
+            String viaBranch = message.getViaBranch();
+            if (mPendingAck.containsKey(viaBranch)) {
+                Runnable lastEvent = mPendingAck.get(viaBranch);
                 logw("Adding new message when there was already a pending event for branch: "
-                        + message.getViaBranchParameter());
+                        + viaBranch);
                 Runnable concatRunnable = () -> {
                     // No choice but to concatenate the Runnables together.
                     if (lastEvent != null) lastEvent.run();
                     r.run();
                 };
-                mPendingAck.put(message.getViaBranchParameter(), concatRunnable);
+                mPendingAck.put(viaBranch, concatRunnable);
             } else {
-                mPendingAck.put(message.getViaBranchParameter(), r);
+                mPendingAck.put(viaBranch, r);
             }
         }
     }
@@ -128,6 +173,7 @@ public class SipSessionTracker {
         if (r != null) {
             mPendingAck.remove(viaBranchId);
             r.run();
+            notifyTrackedCallIdsChanged();
         }
     }
 
@@ -145,19 +191,17 @@ public class SipSessionTracker {
      * @param callId The callId of the SIP session that has been closed.
      */
     public void cleanupSession(String callId) {
-        List<SipDialog> dialogsToCleanup = mTrackedDialogs.stream()
-                .filter(d -> d.getCallId().equals(callId))
-                .collect(Collectors.toList());
-        if (dialogsToCleanup.isEmpty()) return;
+        List<SipDialog> dialogsToCleanup = mDialogsByCallId.remove(callId);
+        if (dialogsToCleanup == null) return;
+        mTrackedCallIdsChanged = true;
+        mOpenDialogCounts.remove(callId);
         logi("Cleanup dialogs associated with call id: " + callId);
         for (SipDialog d : dialogsToCleanup) {
-            mRcsStats.onSipTransportSessionClosed(mSubId, callId, 0,
-                    d.getState() == d.STATE_CLOSED);
-            d.close();
-            logi("Dialog closed: " + d);
+            getDialogsInState(d.getState()).remove(d);
+            closeUntrackedDialog(d);
         }
-        mTrackedDialogs.removeAll(dialogsToCleanup);
         notifySipDialogState();
+        notifyTrackedCallIdsChanged();
     }
 
     /**
@@ -165,59 +209,101 @@ public class SipSessionTracker {
      */
     public Set<String> getCallIdsAssociatedWithFeatureTag(Set<String> featureTags) {
         if (featureTags.isEmpty()) return Collections.emptySet();
+        // Compare case-insensitively without allocating, so all dialogs can be checked in a
+        // single pass.
+        TreeSet<String> matchingTags = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        matchingTags.addAll(featureTags);
         Set<String> associatedIds = new ArraySet<>();
-        for (String featureTag : featureTags) {
-            for (SipDialog dialog : mTrackedDialogs) {
-                boolean isAssociated = dialog.getAcceptContactFeatureTags().stream().anyMatch(
-                        d -> d.equalsIgnoreCase(featureTag));
-                if (isAssociated) associatedIds.add(dialog.getCallId());
+        for (List<SipDialog> dialogs : mDialogsByCallId.values()) {
+            for (SipDialog dialog : dialogs) {
+                for (String dialogTag : dialog.getAcceptContactFeatureTags()) {
+                    if (matchingTags.contains(dialogTag)) {
+                        associatedIds.add(dialog.getCallId());
+                        break;
+                    }
+                }
             }
         }
         return associatedIds;
     }
 
     /**
-     * @return All dialogs that have not received a final response yet 2XX or 3XX+.
+     * @return A read-only copy of all dialogs that have not received a final response yet
+     * 2XX or 3XX+.
      */
     public Set<SipDialog> getEarlyDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_EARLY)
-                .collect(Collectors.toSet());
+        return Collections.unmodifiableSet(new ArraySet<>(mEarlyDialogs));
     }
 
     /**
-     * @return All confirmed dialogs that have received a 2XX response and are active.
+     * @return A read-only copy of all confirmed dialogs that have received a 2XX response and are
+     * active.
      */
     public Set<SipDialog> getConfirmedDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_CONFIRMED)
-                .collect(Collectors.toSet());
+        return Collections.unmodifiableSet(new ArraySet<>(mConfirmedDialogs));
     }
 
     /**
-     * @return Dialogs that have been closed via a BYE or 3XX+ response and
+     * @return A read-only copy of dialogs that have been closed via a BYE or 3XX+ response and
      * {@link #cleanupSession(String)} has not been called yet.
      */
     @VisibleForTesting
     public Set<SipDialog> getClosedDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_CLOSED)
-                .collect(Collectors.toSet());
+        return Collections.unmodifiableSet(new ArraySet<>(mClosedDialogs));
+    }
+
+    /**
+     * @return A read-only copy of the call IDs of all early and confirmed dialogs.
+     */
+    public Set<String> getOpenCallIds() {
+        return Collections.unmodifiableSet(new ArraySet<>(mOpenDialogCounts.keySet()));
+    }
+
+    /**
+     * @return A read-only copy of the call IDs of all tracked dialogs, even the ones that have
+     * been closed but {@link #cleanupSession(String)} has not been called.
+     */
+    public Set<String> getTrackedCallIds() {
+        return Collections.unmodifiableSet(new ArraySet<>(mDialogsByCallId.keySet()));
+    }
+
+    /**
+     * Set the listener notified when the set returned by {@link #getTrackedCallIds()} changes
+     * due to a pending message being acknowledged or a session being cleaned up.
+     * {@link #clearAllSessions()} does not notify the listener.
+     */
+    public void setTrackedCallIdsListener(TrackedCallIdsListener listener) {
+        mTrackedCallIdsListener = listener;
     }
 
     /**
-     * @return All of the tracked dialogs, even the ones that have been closed but
-     * {@link #cleanupSession(String)} has not been called.
+     * @return A read-only copy of all of the tracked dialogs, even the ones that have been closed
+     * but {@link #cleanupSession(String)} has not been called.
      */
     public Set<SipDialog> getTrackedDialogs() {
-        return new ArraySet<>(mTrackedDialogs);
+        Set<SipDialog> dialogs = new ArraySet<>(
+                mEarlyDialogs.size() + mConfirmedDialogs.size() + mClosedDialogs.size());
+        for (List<SipDialog> callIdDialogs : mDialogsByCallId.values()) {
+            dialogs.addAll(callIdDialogs);
+        }
+        return Collections.unmodifiableSet(dialogs);
     }
 
     /**
      * Clears all tracked sessions.
      */
     public void clearAllSessions() {
-        for (SipDialog d : mTrackedDialogs) {
-            mRcsStats.onSipTransportSessionClosed(mSubId, d.getCallId(), 0, false);
+        for (List<SipDialog> dialogs : mDialogsByCallId.values()) {
+            for (SipDialog d : dialogs) {
+                mRcsStats.onSipTransportSessionClosed(mSubId, d.getCallId(), 0, false);
+            }
         }
-        mTrackedDialogs.clear();
+        mDialogsByCallId.clear();
+        mOpenDialogCounts.clear();
+        mTrackedCallIdsChanged = false;
+        mEarlyDialogs.clear();
+        mConfirmedDialogs.clear();
+        mClosedDialogs.clear();
         mPendingAck.clear();
         notifySipDialogState();
     }
@@ -240,8 +326,10 @@ public class SipSessionTracker {
                 .collect(Collectors.toSet()));
         pw.println("Tracked Dialogs:");
         pw.increaseIndent();
-        for (SipDialog d : mTrackedDialogs) {
-            pw.println(d);
+        for (List<SipDialog> dialogs : mDialogsByCallId.values()) {
+            for (SipDialog d : dialogs) {
+                pw.println(d);
+            }
         }
         pw.decreaseIndent();
         pw.println();
@@ -254,79 +342,65 @@ public class SipSessionTracker {
      * @return {@code true}, if the SipMessage passed in should start a new SIP dialog,
      * {@code false} if it should not.
      */
-    private boolean startsEarlyDialog(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
-            return false;
-        }
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
+    private boolean startsEarlyDialog(SipMessageEnvelope m) {
+        String method = m.getMethod();
+        if (method == null) {
             return false;
         }
         return Arrays.stream(SIP_REQUEST_DIALOG_START_METHODS)
-                .anyMatch(r -> r.equalsIgnoreCase(startLineSegments[0]));
+                .anyMatch(r -> r.equalsIgnoreCase(method));
     }
 
     /**
      * @return {@code true}, if the SipMessage passed in should close a confirmed dialog,
      * {@code false} if it should not.
      */
-    private boolean closesDialog(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
-            return false;
-        }
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
-            return false;
-        }
-        return SIP_CLOSE_DIALOG_REQUEST_METHOD.equalsIgnoreCase(startLineSegments[0]);
+    private boolean closesDialog(SipMessageEnvelope m) {
+        return SIP_CLOSE_DIALOG_REQUEST_METHOD.equalsIgnoreCase(m.getMethod());
     }
 
-    private Runnable getCreateDialogRunnable(int direction, SipMessage m) {
+    private Runnable getCreateDialogRunnable(int direction, SipMessageEnvelope m) {
         return () -> {
-            List<SipDialog> duplicateDialogs = mTrackedDialogs.stream()
-                    .filter(d -> d.getCallId().equals(m.getCallIdParameter()))
-                    .collect(Collectors.toList());
-            if (duplicateDialogs.size() > 0) {
+            List<SipDialog> duplicateDialogs = mDialogsByCallId.get(m.getCallId());
+            if (duplicateDialogs != null && duplicateDialogs.size() > 0) {
                 logi("trying to create a dialog for a call ID that already exists, skip: "
                         + duplicateDialogs);
                 return;
             }
             SipDialog dialog = SipDialog.fromSipMessage(m);
-            String[] startLineSegments =
-                    SipMessageParsingUtils.splitStartLineAndVerify(m.getStartLine());
-            mRcsStats.earlySipTransportSession(startLineSegments[0], dialog.getCallId(),
-                    direction);
+            mRcsStats.earlySipTransportSession(m.getMethod(), dialog.getCallId(), direction);
             logi("Starting new SipDialog: " + dialog);
-            mTrackedDialogs.add(dialog);
+            addDialog(dialog);
         };
     }
 
-    private Runnable getCloseDialogRunnable(SipMessage m) {
+    private Runnable getCloseDialogRunnable(SipMessageEnvelope m) {
         return () -> {
-            List<SipDialog> dialogsToClose = mTrackedDialogs.stream()
+            List<SipDialog> dialogsToClose = getDialogsForCallId(m.getCallId()).stream()
                     .filter(d -> d.isRequestAssociatedWithDialog(m))
                     .collect(Collectors.toList());
             if (dialogsToClose.isEmpty()) return;
             logi("Closing dialogs associated with: " + m);
-            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallIdParameter(), 0, true);
+            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallId(), 0, true);
             for (SipDialog d : dialogsToClose) {
+                int oldState = d.getState();
                 d.close();
+                onDialogStateChanged(d, oldState);
                 logi("Dialog closed: " + d);
             }
+            trimClosedDialogs();
             notifySipDialogState();
         };
     }
 
-    private Runnable getDialogStateChangeRunnable(SipMessage m) {
+    private Runnable getDialogStateChangeRunnable(SipMessageEnvelope m) {
         return () -> {
             // This will return a dialog and all of its potential forks
-            List<SipDialog> associatedDialogs = mTrackedDialogs.stream()
+            List<SipDialog> associatedDialogs = getDialogsForCallId(m.getCallId()).stream()
                     .filter(d -> d.isResponseAssociatedWithDialog(m))
                     .collect(Collectors.toList());
             if (associatedDialogs.isEmpty()) return;
-            String messageToTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
+            String messageToTag = m.getToTag();
             // If the to tag matches (or message to tag doesn't exist in dialog yet because this is
             // the first response), then we are done.
             SipDialog match = associatedDialogs.stream()
@@ -338,7 +412,7 @@ public class SipSessionTracker {
                 // so simply use the first one in the returned list.
                 logi("Dialog forked");
                 match = associatedDialogs.get(0).forkDialog();
-                mTrackedDialogs.add(match);
+                addDialog(match);
             }
             if (match != null) {
                 logi("Dialog: " + match + " is associated with: " + m);
@@ -350,36 +424,36 @@ public class SipSessionTracker {
         };
     }
 
-    private void updateSipDialogState(SipDialog d, SipMessage m) {
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
-            logw("Could not parse start line for SIP message: " + m.getStartLine());
+    private void updateSipDialogState(SipDialog d, SipMessageEnvelope m) {
+        if (m.getStartLineSegments() == null) {
+            logw("Could not parse start line for SIP message: " + m.getMessage().getStartLine());
             return;
         }
-        int statusCode = 0;
-        try {
-            statusCode = Integer.parseInt(startLineSegments[1]);
-        } catch (NumberFormatException e) {
-            logw("Could not parse status code for SIP message: " + m.getStartLine());
+        int statusCode = m.getStatusCode();
+        if (statusCode == SipMessageEnvelope.STATUS_CODE_INVALID) {
+            logw("Could not parse status code for SIP message: " + m.getMessage().getStartLine());
             return;
         }
-        String toTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
+        String toTag = m.getToTag();
         logi("updateSipDialogState: message has statusCode: " + statusCode + ", and to tag: "
                 + toTag);
         // If specifically 100 Trying, then do not do anything.
         if (statusCode <= 100) return;
+        int oldState = d.getState();
         // If 300+, then this dialog has received an error response and should move to closed state.
         if (statusCode >= 300) {
-            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallIdParameter(), statusCode, true);
+            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallId(), statusCode, true);
             d.close();
+            onDialogStateChanged(d, oldState);
+            trimClosedDialogs();
             notifySipDialogState();
             return;
         }
         if (toTag == null) logw("updateSipDialogState: No to tag for message: " + m);
         if (statusCode >= 200) {
-            mRcsStats.confirmedSipTransportSession(m.getCallIdParameter(), statusCode);
+            mRcsStats.confirmedSipTransportSession(m.getCallId(), statusCode);
             d.confirm(toTag);
+            onDialogStateChanged(d, oldState);
             notifySipDialogState();
             return;
         }
@@ -404,14 +478,101 @@ public class SipSessionTracker {
         }
     }
 
+    private List<SipDialog> getDialogsForCallId(String callId) {
+        List<SipDialog> dialogs = mDialogsByCallId.get(callId);
+        return dialogs != null ? dialogs : Collections.emptyList();
+    }
+
+    private Set<SipDialog> getDialogsInState(int state) {
+        switch (state) {
+            case SipDialog.STATE_EARLY:
+                return mEarlyDialogs;
+            case SipDialog.STATE_CONFIRMED:
+                return mConfirmedDialogs;
+            default:
+                return mClosedDialogs;
+        }
+    }
+
+    private void addDialog(SipDialog d) {
+        List<SipDialog> dialogs = mDialogsByCallId.get(d.getCallId());
+        if (dialogs == null) {
+            // Almost always a single dialog, unless the INVITE forks.
+            dialogs = new ArrayList<>(1);
+            mDialogsByCallId.put(d.getCallId(), dialogs);
+            mTrackedCallIdsChanged = true;
+        }
+        dialogs.add(d);
+        getDialogsInState(d.getState()).add(d);
+        if (d.getState() != SipDialog.STATE_CLOSED) {
+            mOpenDialogCounts.merge(d.getCallId(), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Move a dialog to the state index of its new state after a state transition.
+     */
+    private void onDialogStateChanged(SipDialog d, int oldState) {
+        if (d.getState() == oldState) return;
+        getDialogsInState(oldState).remove(d);
+        getDialogsInState(d.getState()).add(d);
+        if (oldState != SipDialog.STATE_CLOSED && d.getState() == SipDialog.STATE_CLOSED) {
+            // Drops the call ID from the open set once its last open dialog closes.
+            mOpenDialogCounts.computeIfPresent(d.getCallId(),
+                    (callId, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Stop tracking the dialogs that closed first if more closed dialogs are waiting for
+     * {@link #cleanupSession(String)} than we retain.
+     */
+    private void trimClosedDialogs() {
+        Iterator<SipDialog> it = mClosedDialogs.iterator();
+        while (mClosedDialogs.size() > MAX_RETAINED_CLOSED_DIALOGS && it.hasNext()) {
+            SipDialog d = it.next();
+            it.remove();
+            List<SipDialog> dialogs = mDialogsByCallId.get(d.getCallId());
+            if (dialogs != null) {
+                dialogs.removeIf(dialog -> dialog == d);
+                if (dialogs.isEmpty()) {
+                    mDialogsByCallId.remove(d.getCallId());
+                    mTrackedCallIdsChanged = true;
+                }
+            }
+            logw("Closed dialog not cleaned up, dropping: " + d);
+            closeUntrackedDialog(d);
+        }
+    }
+
+    /**
+     * Report a dialog that is no longer tracked as cleaned up and close it.
+     */
+    private void closeUntrackedDialog(SipDialog d) {
+        mRcsStats.onSipTransportSessionClosed(mSubId, d.getCallId(), 0,
+                d.getState() == SipDialog.STATE_CLOSED);
+        d.close();
+        logi("Dialog closed: " + d);
+    }
+
+    private void notifyTrackedCallIdsChanged() {
+        if (!mTrackedCallIdsChanged) return;
+        mTrackedCallIdsChanged = false;
+        if (mTrackedCallIdsListener != null) {
+            mTrackedCallIdsListener.onTrackedCallIdsChanged();
+        }
+    }
+
     private void notifySipDialogState() {
         if (mSipDialogsListener == null) {
             return;
         }
         List<SipDialogState> dialogStates = new ArrayList<>();
-        for (SipDialog d : mTrackedDialogs) {
-            SipDialogState dialog = new SipDialogState.Builder(d.getState()).build();
-            dialogStates.add(dialog);
+        for (List<SipDialog> dialogs : mDialogsByCallId.values()) {
+            for (SipDialog d : dialogs) {
+                SipDialogState dialog = new SipDialogState.Builder(d.getState()).build();
+                dialogStates.add(dialog);
+            }
         }
         mSipDialogsListener.reMappingSipDelegateState(mDelegateKey, dialogStates);
     }
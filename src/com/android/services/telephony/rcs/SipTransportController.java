@@ -67,6 +67,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -98,6 +99,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
     private static final int REEVALUATE_THROTTLE_DEFAULT_MS = 1000;
     /**See {@link TimerAdapter#getUpdateRegistrationDelayMilliseconds()}.*/
     private static final int TRIGGER_UPDATE_REGISTRATION_DELAY_DEFAULT_MS = 1000;
+    // The number of threads shared by the SipDelegate lanes when they are enabled.
+    private static final int DELEGATE_LANE_POOL_SIZE = 2;
 
     /**
      * {@link RoleManager} is final so we have to wrap the implementation for testing.
@@ -248,7 +251,6 @@ public class SipTransportController implements RcsFeatureController.Feature,
      */
     private final class SipDialogsStateHandle implements SipDialogsStateListener {
 
-        private Executor mExecutor = Runnable::run;
         Map<String, List<SipDialogState>> mMapDialogState = new HashMap<>();
 
         /**
@@ -260,7 +262,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         @Override
         public void reMappingSipDelegateState(String key,
                 List<SipDialogState> dialogStates) {
-            mExecutor.execute(()->processReMappingSipDelegateState(key, dialogStates));
+            getExecutor().execute(()->processReMappingSipDelegateState(key, dialogStates));
         }
 
         /**
@@ -269,7 +271,13 @@ public class SipTransportController implements RcsFeatureController.Feature,
          */
         @Override
         public void notifySipDialogState() {
-            mExecutor.execute(()->processNotifySipDialogState());
+            getExecutor().execute(()->processNotifySipDialogState());
+        }
+
+        private Executor getExecutor() {
+            // Delegates running on their own lanes call this from the lane threads, so move to
+            // the ExecutorService thread, otherwise this is already running on it.
+            return mDelegateLanePool == null ? Runnable::run : mExecutorService;
         }
 
         private void processReMappingSipDelegateState(String key,
@@ -311,6 +319,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         SipDelegateController create(int subId, int uid, DelegateRequest initialRequest,
                 String packageName, ISipTransport sipTransportImpl,
                 IImsRegistration registrationImpl, ScheduledExecutorService executorService,
+                ScheduledExecutorService messageExecutorService,
                 ISipDelegateConnectionStateCallback stateCallback,
                 ISipDelegateMessageCallback messageCallback);
     }
@@ -318,6 +327,12 @@ public class SipTransportController implements RcsFeatureController.Feature,
     private SipDelegateControllerFactory mDelegateControllerFactory = SipDelegateController::new;
     private final int mSlotId;
     private final ScheduledExecutorService mExecutorService;
+    // The pool backing the SerialExecutorLane of each SipDelegate's message path, or null if the
+    // message paths of all SipDelegates run on mExecutorService.
+    private final ExecutorService mDelegateLanePool;
+    // The SerialExecutorLane of each SipDelegateController while mDelegateLanePool is used. A lane
+    // is shut down once its SipDelegateController has been destroyed.
+    private final Map<SipDelegateController, ExecutorService> mDelegateLanes = new HashMap<>();
     private final RoleManagerAdapter mRoleManagerAdapter;
     private final TimerAdapter mTimerAdapter;
     private final LocalLog mLocalLog = new LocalLog(LOG_SIZE);
@@ -366,14 +381,22 @@ public class SipTransportController implements RcsFeatureController.Feature,
      * @param context The Context associated with this controller.
      * @param slotId The slot index associated with this controller.
      * @param subId The subscription ID associated with this controller when it was first created.
+     * @param shardDelegateExecutors If {@code true}, the SIP messages of each SipDelegate are
+     *         verified and delivered on a {@link SerialExecutorLane} of their own, backed by a pool
+     *         shared by the SipDelegates of this controller, so a slow IMS application can not
+     *         delay the messages of the other SipDelegates. If {@code false}, all SipDelegates
+     *         share the single thread this controller runs on.
      */
-    public SipTransportController(Context context, int slotId, int subId) {
+    public SipTransportController(Context context, int slotId, int subId,
+            boolean shardDelegateExecutors) {
         mSlotId = slotId;
         mSubId = subId;
 
         mRoleManagerAdapter = new RoleManagerAdapterImpl(context);
         mTimerAdapter = new TimerAdapterImpl();
         mExecutorService = Executors.newSingleThreadScheduledExecutor();
+        mDelegateLanePool = shardDelegateExecutors
+                ? Executors.newFixedThreadPool(DELEGATE_LANE_POOL_SIZE) : null;
         mCarrierConfigManager = context.getSystemService(CarrierConfigManager.class);
     }
 
@@ -384,6 +407,19 @@ public class SipTransportController implements RcsFeatureController.Feature,
     public SipTransportController(Context context, int slotId, int subId,
             SipDelegateControllerFactory delegateFactory, RoleManagerAdapter roleManagerAdapter,
             TimerAdapter timerAdapter, ScheduledExecutorService executor) {
+        this(context, slotId, subId, delegateFactory, roleManagerAdapter, timerAdapter, executor,
+                null /*delegateLanePool*/);
+    }
+
+    /**
+     * Constructor to inject dependencies for testing, including the pool backing the message
+     * path of each SipDelegate.
+     */
+    @VisibleForTesting
+    public SipTransportController(Context context, int slotId, int subId,
+            SipDelegateControllerFactory delegateFactory, RoleManagerAdapter roleManagerAdapter,
+            TimerAdapter timerAdapter, ScheduledExecutorService executor,
+            ExecutorService delegateLanePool) {
         mSlotId = slotId;
         mSubId = subId;
 
@@ -391,6 +427,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         mTimerAdapter = timerAdapter;
         mDelegateControllerFactory = delegateFactory;
         mExecutorService = executor;
+        mDelegateLanePool = delegateLanePool;
         mCarrierConfigManager = context.getSystemService(CarrierConfigManager.class);
         logi("created");
     }
@@ -423,7 +460,10 @@ public class SipTransportController implements RcsFeatureController.Feature,
             triggerDeregistrationEvent();
             scheduleDestroyDelegates(
                     SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SUBSCRIPTION_TORN_DOWN)
-                    .thenRun(mExecutorService::shutdown);
+                    .thenRun(() -> {
+                        mExecutorService.shutdown();
+                        if (mDelegateLanePool != null) mDelegateLanePool.shutdown();
+                    });
         });
     }
 
@@ -522,9 +562,15 @@ public class SipTransportController implements RcsFeatureController.Feature,
             return;
         }
 
+        // Timers of the lane still use mExecutorService, but only to post tasks to the lane.
+        ScheduledExecutorService messageExecutor = mDelegateLanePool == null ? mExecutorService
+                : new SerialExecutorLane(mDelegateLanePool, mExecutorService);
         SipDelegateController c = mDelegateControllerFactory.create(subId, uid, request,
-                packageName, transport, registration, mExecutorService, delegateState,
-                delegateMessage);
+                packageName, transport, registration, mExecutorService, messageExecutor,
+                delegateState, delegateMessage);
+        if (messageExecutor != mExecutorService) {
+            mDelegateLanes.put(c, messageExecutor);
+        }
         logi("createSipDelegateInternal: request= " + request + ", packageName= " + packageName
                 + ", controller created: " + c);
         addPendingCreateAndEvaluate(c);
@@ -834,10 +880,16 @@ public class SipTransportController implements RcsFeatureController.Feature,
     }
 
     private CompletableFuture<Void> triggerDestroy(SipDelegateController c, int reason) {
+        ExecutorService lane = mDelegateLanes.remove(c);
         return c.destroy(isForcedFromReason(reason), reason)
-                // Executor doesn't matter here, just for logging.
-                .thenAccept((delegateReason) -> logi("destroy triggered with " + reason
-                        + " and finished with reason= " + delegateReason));
+                // Executor doesn't matter here.
+                .thenAccept((delegateReason) -> {
+                    logi("destroy triggered with " + reason + " and finished with reason= "
+                            + delegateReason);
+                    // The message transport of the delegate is closed, so let the tasks still
+                    // queued on its lane finish and reject new ones.
+                    if (lane != null) lane.shutdown();
+                });
     }
 
     private boolean isForcedFromReason(int reason) {
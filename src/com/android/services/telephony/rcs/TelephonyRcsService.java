@@ -89,7 +89,9 @@ public class TelephonyRcsService {
         @Override
         public SipTransportController createSipTransportController(Context context, int slotId,
                 int subId) {
-            return new SipTransportController(context, slotId, subId);
+            return new SipTransportController(context, slotId, subId,
+                    context.getResources().getBoolean(
+                            R.bool.config_rcs_sip_delegate_message_lanes_enabled));
         }
     };
 
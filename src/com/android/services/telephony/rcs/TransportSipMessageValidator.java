@@ -25,11 +25,11 @@ import android.telephony.ims.SipDelegateConfiguration;
 import android.telephony.ims.SipDelegateImsConfiguration;
 import android.telephony.ims.SipDelegateManager;
 import android.telephony.ims.SipMessage;
+import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.services.telephony.rcs.validator.IncomingTransportStateValidator;
@@ -68,6 +68,9 @@ import java.util.stream.Stream;
 public class TransportSipMessageValidator {
 
     private static final String LOG_TAG = "SipMessageV";
+    // Logs the full text of every verified message, not only the rejected ones.
+    private static final boolean DBG = false;
+    private static final int MESSAGE_EVENT_LOG_SIZE = 200;
 
     /**
      * the time in milliseconds that we will wait for SIP sessions to close before we will timeout
@@ -136,6 +139,8 @@ public class TransportSipMessageValidator {
     private final int mSubId;
     private final ScheduledExecutorService mExecutor;
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
+    private final SipMessageEventLog mMessageEventLog =
+            new SipMessageEventLog(MESSAGE_EVENT_LOG_SIZE);
     private final SipSessionTracker mSipSessionTracker;
     // Validators
     private final IncomingTransportStateValidator mIncomingTransportStateValidator;
@@ -164,6 +169,7 @@ public class TransportSipMessageValidator {
                 new RestrictedOutgoingSubscribeValidator()).andThen(
                         mOutgoingTransportStateValidator);
         mIncomingMessageValidator = mIncomingTransportStateValidator;
+        mSipSessionTracker.setTrackedCallIdsListener(this::onCallIdsChanged);
     }
 
     @VisibleForTesting
@@ -179,6 +185,7 @@ public class TransportSipMessageValidator {
         mOutgoingMessageValidator = mOutgoingTransportStateValidator;
         mIncomingMessageValidator = mIncomingTransportStateValidator;
         mRcsStats = rcsStats;
+        mSipSessionTracker.setTrackedCallIdsListener(this::onCallIdsChanged);
     }
 
     /**
@@ -275,8 +282,8 @@ public class TransportSipMessageValidator {
      * @param callId The call ID associated with the SIP session.
      */
     public void onSipSessionCleanup(String callId) {
+        // Calls onCallIdsChanged through the tracker's listener if the call ID was tracked.
         mSipSessionTracker.cleanupSession(callId);
-        onCallIdsChanged();
     }
 
     /**
@@ -344,7 +351,8 @@ public class TransportSipMessageValidator {
      * tracker closed the transport.
      */
     public Set<String> closeSessions(int closedReason) {
-        Set<String> openCallIds = getTrackedSipSessionCallIds();
+        // Copy, the tracked call IDs are cleared when the sessions are closed.
+        Set<String> openCallIds = new ArraySet<>(getTrackedSipSessionCallIds());
         logi("closeSessions: moving to closed state, reason=" + closedReason + ", open call ids: "
                 + openCallIds);
         closeSessionsInternal(closedReason);
@@ -371,13 +379,16 @@ public class TransportSipMessageValidator {
                     "stale IMS configuration: "  + configVersion + ", expected: "
                             + mConfigVersion);
         }
-        ValidationResult result = mOutgoingMessageValidator.validate(message);
-        logi("verifyOutgoingMessage: " + result + ", message=" + message);
+        // Parsed once and shared by the validators, the session tracker and metrics.
+        SipMessageEnvelope envelope = new SipMessageEnvelope(message);
+        ValidationResult result = mOutgoingMessageValidator.validate(envelope);
+        logMessageEvent("verifyOutgoingMessage",
+                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, envelope, result);
         if (result.isValidated) {
             mSipSessionTracker.filterSipMessage(
-                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, message);
+                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, envelope);
         }
-        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, message, result);
+        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, envelope, result);
         return result;
     }
 
@@ -388,13 +399,15 @@ public class TransportSipMessageValidator {
      * @return The result of verifying the incoming message.
      */
     public ValidationResult verifyIncomingMessage(SipMessage message) {
-        ValidationResult result = mIncomingMessageValidator.validate(message);
-        logi("verifyIncomingMessage: " + result + ", message=" + message);
+        SipMessageEnvelope envelope = new SipMessageEnvelope(message);
+        ValidationResult result = mIncomingMessageValidator.validate(envelope);
+        logMessageEvent("verifyIncomingMessage",
+                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, envelope, result);
         if (result.isValidated) {
             mSipSessionTracker.filterSipMessage(
-                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, message);
+                    SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, envelope);
         }
-        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, message, result);
+        updateForMetrics(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, envelope, result);
         return result;
     }
 
@@ -405,8 +418,8 @@ public class TransportSipMessageValidator {
      */
     public void acknowledgePendingMessage(String transactionId) {
         logi("acknowledgePendingMessage: id=" + transactionId);
+        // Calls onCallIdsChanged through the tracker's listener if the tracked call IDs changed.
         mSipSessionTracker.acknowledgePendingMessage(transactionId);
-        onCallIdsChanged();
     }
 
     /**
@@ -430,6 +443,8 @@ public class TransportSipMessageValidator {
         pw.println();
         mSipSessionTracker.dump(pw);
         pw.println();
+        mMessageEventLog.dump(pw);
+        pw.println();
         pw.println("Most recent logs:");
         mLocalLog.dump(printWriter);
     }
@@ -551,26 +566,21 @@ public class TransportSipMessageValidator {
     }
 
     private Set<String> getTrackedSipSessionCallIds() {
-        return mSipSessionTracker.getTrackedDialogs().stream().map(SipDialog::getCallId)
-                .collect(Collectors.toSet());
+        return mSipSessionTracker.getTrackedCallIds();
     }
 
-    private void updateForMetrics(int direction, SipMessage m, ValidationResult result) {
-        String[] startLineSegments = SipMessageParsingUtils
-                .splitStartLineAndVerify(m.getStartLine());
-        if (SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
+    private void updateForMetrics(int direction, SipMessageEnvelope m, ValidationResult result) {
+        if (m.isRequest()) {
             if (result.isValidated) {
                 // SipMessage add to list for Metrics stats
-                mRcsStats.onSipMessageRequest(m.getCallIdParameter(), startLineSegments[0],
-                        direction);
+                mRcsStats.onSipMessageRequest(m.getCallId(), m.getMethod(), direction);
             } else {
                 //Message sending fail and there is no response.
-                mRcsStats.invalidatedMessageResult(m.getCallIdParameter(), mSubId,
-                        startLineSegments[0], direction, result.restrictedReason);
+                mRcsStats.invalidatedMessageResult(m.getCallId(), mSubId, m.getMethod(),
+                        direction, result.restrictedReason);
             }
-        } else if (SipMessageParsingUtils.isSipResponse(m.getStartLine())) {
-            int statusCode = Integer.parseInt(startLineSegments[1]);
-            mRcsStats.onSipMessageResponse(mSubId, m.getCallIdParameter(), statusCode,
+        } else if (m.isResponse()) {
+            mRcsStats.onSipMessageResponse(mSubId, m.getCallId(), m.getStatusCode(),
                     result.restrictedReason);
         } else {
             logw("Message is Restricted");
@@ -587,6 +597,20 @@ public class TransportSipMessageValidator {
         mSipSessionTracker.setSipDialogsListener(listener, isNeedNotify);
     }
 
+    /**
+     * Record a verified message in the event log. The full message text is only logged for
+     * rejected messages, rate limited, or for all messages if {@link #DBG} is set.
+     */
+    private void logMessageEvent(String prefix, int direction, SipMessageEnvelope m,
+            ValidationResult result) {
+        mMessageEventLog.record(direction, m, result);
+        if (DBG) {
+            logi(prefix + ": " + result + ", message=" + m);
+        } else if (!result.isValidated && mMessageEventLog.shouldLogMessageText()) {
+            logw(prefix + ": " + result + ", message=" + m);
+        }
+    }
+
     private void logi(String log) {
         Log.i(SipTransportController.LOG_TAG, LOG_TAG + "[" + mSubId + "] " + log);
         mLocalLog.log("[I] " + log);
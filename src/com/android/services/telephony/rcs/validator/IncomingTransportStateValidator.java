@@ -17,9 +17,10 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
 import android.util.ArrayMap;
 
+import com.android.services.telephony.rcs.SipMessageEnvelope;
+
 /**
  * Tracks the incoming SIP message transport state from the ImsService to the remote IMS
  * application. Validates incoming SIP messages based on this state.
@@ -63,7 +64,7 @@ public class IncomingTransportStateValidator implements SipMessageValidator {
     }
 
     @Override
-    public ValidationResult validate(SipMessage message) {
+    public ValidationResult validate(SipMessageEnvelope message) {
         if (mState != STATE_OPEN) {
             return new ValidationResult(mReason,
                     "incoming transport closed");
@@ -17,22 +17,18 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
-import com.android.services.telephony.rcs.SipDialog;
+import com.android.services.telephony.rcs.SipMessageEnvelope;
 import com.android.services.telephony.rcs.SipSessionTracker;
 import com.android.services.telephony.rcs.SipTransportController;
 
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Locale;
 import java.util.Set;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Tracks the state of the outgoing SIP message transport from the remote IMS application to the
@@ -62,12 +58,20 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
         ENUM_TO_STRING_MAP.append(STATE_OPEN, "OPEN");
     }
 
+    // Classification flags of a feature tag, a tag can be both allowed and restricted.
+    private static final int TAG_ALLOWED = 1 << 0;
+    private static final int TAG_DENIED = 1 << 1;
+    private static final int TAG_RESTRICTED = 1 << 2;
+
     private final SipSessionTracker mSipSessionTracker;
     private int mState = STATE_CLOSED;
     private int mReason = SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED;
     private Set<String> mAllowedTags = Collections.emptySet();
     private Set<String> mDeniedTags = Collections.emptySet();
     private Set<String> mRestrictedFeatureTags;
+    // The allowed, denied and restricted tags above, keyed by their normalized form and mapped to
+    // their TAG_* classification flags. Rebuilt whenever one of those sets changes.
+    private ArrayMap<String, Integer> mTagClassifications = new ArrayMap<>();
 
     public OutgoingTransportStateValidator(SipSessionTracker sessionTracker) {
         mSipSessionTracker = sessionTracker;
@@ -81,11 +85,10 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
         mState = STATE_OPEN;
         mReason = -1;
         // This is for validation, so try to reduce matching errors due to upper/lower case.
-        mAllowedTags = allowedFeatureTags.stream().map(String::trim).map(String::toLowerCase)
-                .collect(Collectors.toSet());
-        mDeniedTags = deniedFeatureTags.stream().map(String::trim).map(String::toLowerCase)
-                .collect(Collectors.toSet());
+        mAllowedTags = normalizeFeatureTags(allowedFeatureTags);
+        mDeniedTags = normalizeFeatureTags(deniedFeatureTags);
         mRestrictedFeatureTags = null;
+        updateTagClassifications();
     }
 
     /**
@@ -96,8 +99,8 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
      */
     public void restrictFeatureTags(Set<String> restrictedFeatureTags) {
         // This is for validation, so try to reduce matching errors due to upper/lower case.
-        mRestrictedFeatureTags = restrictedFeatureTags.stream().map(String::trim)
-                .map(String::toLowerCase).collect(Collectors.toSet());
+        mRestrictedFeatureTags = normalizeFeatureTags(restrictedFeatureTags);
+        updateTagClassifications();
     }
 
     /**
@@ -118,10 +121,11 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
         mState = STATE_CLOSED;
         mReason = reason;
         mAllowedTags = Collections.emptySet();
+        updateTagClassifications();
     }
 
     @Override
-    public ValidationResult validate(SipMessage message) {
+    public ValidationResult validate(SipMessageEnvelope message) {
         switch (mState) {
             case STATE_CLOSED:
                 return new ValidationResult(mReason, "outgoing transport closed.");
@@ -135,10 +139,11 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
         }
     }
 
+    /**
+     * @return A read-only copy of the call IDs of all early and confirmed dialogs.
+     */
     public Set<String> getAllowedCallIds() {
-        return Stream.concat(mSipSessionTracker.getEarlyDialogs().stream(),
-                mSipSessionTracker.getConfirmedDialogs().stream()).map(SipDialog::getCallId)
-                .collect(Collectors.toSet());
+        return mSipSessionTracker.getOpenCallIds();
     }
 
     @Override
@@ -150,27 +155,33 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
                 + mRestrictedFeatureTags + ", denied tags: " + mDeniedTags;
     }
 
-    private ValidationResult verifyOpenMessage(SipMessage m) {
+    private ValidationResult verifyOpenMessage(SipMessageEnvelope m) {
         // No need to validate responses to requests.
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
+        if (!m.isRequest()) {
             return ValidationResult.SUCCESS;
         }
         if (mRestrictedFeatureTags == null) {
             return new ValidationResult(SipDelegateManager.MESSAGE_FAILURE_REASON_NOT_REGISTERED,
                     "no reg state from vendor");
         }
-        String[] segments = SipMessageParsingUtils.splitStartLineAndVerify(m.getStartLine());
-        if (segments == null) {
+        String method = m.getMethod();
+        if (method == null) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                    "couldn't parse start line: " + m.getStartLine());
+                    "couldn't parse start line: " + m.getMessage().getStartLine());
         }
         // Only need to validate requests that start dialogs.
-        boolean startsDialog = Arrays.stream(SipSessionTracker.SIP_REQUEST_DIALOG_START_METHODS)
-                .anyMatch(req -> req.equals(segments[0].trim().toLowerCase(Locale.ROOT)));
+        boolean startsDialog = false;
+        String trimmedMethod = method.trim();
+        for (String req : SipSessionTracker.SIP_REQUEST_DIALOG_START_METHODS) {
+            if (req.equalsIgnoreCase(trimmedMethod)) {
+                startsDialog = true;
+                break;
+            }
+        }
         // If part of an existing dialog, then no need to validate.
         boolean needsFeatureValidation = startsDialog && !getAllowedCallIds()
-                .contains(m.getCallIdParameter());
+                .contains(m.getCallId());
         if (needsFeatureValidation) {
             return validateMessageFeatureTag(m);
         }
@@ -181,32 +192,29 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
      * Compares the "Accept-Contact" header against the supported/denied feature tags and ensures
      * that there are no restricted or denied tags included.
      */
-    private ValidationResult validateMessageFeatureTag(SipMessage m) {
-        Set<String> featureTags = SipMessageParsingUtils.getAcceptContactFeatureTags(
-                m.getHeaderSection());
+    private ValidationResult validateMessageFeatureTag(SipMessageEnvelope m) {
         // Get rid of potential formatting issues first.
-        featureTags = featureTags.stream().map(String::toLowerCase).map(String::trim)
-                .collect(Collectors.toSet());
-        long acceptedFeatureTagCount = featureTags.stream()
-                .filter(f -> mAllowedTags.contains(f)).count();
-        long deniedFeatureTagCount = featureTags.stream()
-                .filter(f -> mDeniedTags.contains(f)).count();
-        long restrictedFeatureTagCount = featureTags.stream()
-                .filter(f -> mRestrictedFeatureTags.contains(f)).count();
+        Set<String> featureTags = m.getNormalizedAcceptContactFeatureTags();
+        // Classify all of the tags in one pass.
+        int classification = 0;
+        for (String featureTag : featureTags) {
+            Integer tagClassification = mTagClassifications.get(featureTag);
+            if (tagClassification != null) classification |= tagClassification;
+        }
         // we should not have any feature tags that are denied/restricted and there should be at
         // least one accepted tag
-        if (deniedFeatureTagCount > 0) {
+        if ((classification & TAG_DENIED) != 0) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_FEATURE_TAG,
                     "contains denied tags in Accept-Contact: " + featureTags);
         }
-        if (restrictedFeatureTagCount > 0) {
+        if ((classification & TAG_RESTRICTED) != 0) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_FEATURE_TAG,
                     "contains restricted tags in Accept-Contact: " + featureTags);
         }
 
-        if (acceptedFeatureTagCount == 0) {
+        if ((classification & TAG_ALLOWED) == 0) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_FEATURE_TAG,
                     "No Accept-Contact feature tags are in accepted feature tag list: "
@@ -216,13 +224,41 @@ public class OutgoingTransportStateValidator implements SipMessageValidator {
         return ValidationResult.SUCCESS;
     }
 
-    private ValidationResult verifyRestrictedMessage(SipMessage m) {
+    /**
+     * Normalize the feature tags the same way as
+     * {@link SipMessageEnvelope#getNormalizedAcceptContactFeatureTags()}, so they can be looked up
+     * directly.
+     */
+    private static Set<String> normalizeFeatureTags(Set<String> featureTags) {
+        return featureTags.stream().map(f -> f.toLowerCase(Locale.ROOT).trim())
+                .collect(Collectors.toSet());
+    }
+
+    private void updateTagClassifications() {
+        ArrayMap<String, Integer> classifications = new ArrayMap<>();
+        addTagClassification(classifications, mAllowedTags, TAG_ALLOWED);
+        addTagClassification(classifications, mDeniedTags, TAG_DENIED);
+        if (mRestrictedFeatureTags != null) {
+            addTagClassification(classifications, mRestrictedFeatureTags, TAG_RESTRICTED);
+        }
+        mTagClassifications = classifications;
+    }
+
+    private static void addTagClassification(ArrayMap<String, Integer> classifications,
+            Set<String> featureTags, int flag) {
+        for (String featureTag : featureTags) {
+            classifications.put(featureTag,
+                    classifications.getOrDefault(featureTag, 0) | flag);
+        }
+    }
+
+    private ValidationResult verifyRestrictedMessage(SipMessageEnvelope m) {
         // The validator is in the restricted state, so only in dialog requests and all responses
         // are allowed.
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
+        if (!m.isRequest()) {
             return ValidationResult.SUCCESS;
         }
-        String callId = m.getCallIdParameter();
+        String callId = m.getCallId();
         if (TextUtils.isEmpty(callId)) {
             return new ValidationResult(mReason, "empty call id");
         }
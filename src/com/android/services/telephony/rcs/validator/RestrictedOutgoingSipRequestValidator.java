@@ -17,11 +17,9 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
+import com.android.services.telephony.rcs.SipMessageEnvelope;
 
-import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -38,20 +36,21 @@ public class RestrictedOutgoingSipRequestValidator implements SipMessageValidato
             "register", "options", "publish"};
 
     @Override
-    public ValidationResult validate(SipMessage message) {
-        String startLine = message.getStartLine();
-        if (SipMessageParsingUtils.isSipRequest(startLine)) {
-            String[] segments = SipMessageParsingUtils.splitStartLineAndVerify(startLine);
-            if (segments == null) {
+    public ValidationResult validate(SipMessageEnvelope message) {
+        if (message.isRequest()) {
+            String method = message.getMethod();
+            if (method == null) {
                 return new ValidationResult(
                         SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                        "malformed start line: " + message.getStartLine());
+                        "malformed start line: " + message.getMessage().getStartLine());
             }
-            if (Arrays.stream(IMS_SERVICE_HANDLED_REQUEST_METHODS).anyMatch(
-                    s -> segments[0].toLowerCase(Locale.ROOT).contains(s))) {
-                return new ValidationResult(
-                        SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                        "restricted method: " + segments[0]);
+            String lowerCaseMethod = method.toLowerCase(Locale.ROOT);
+            for (String restrictedMethod : IMS_SERVICE_HANDLED_REQUEST_METHODS) {
+                if (lowerCaseMethod.contains(restrictedMethod)) {
+                    return new ValidationResult(
+                            SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
+                            "restricted method: " + method);
+                }
             }
         }
         return ValidationResult.SUCCESS;
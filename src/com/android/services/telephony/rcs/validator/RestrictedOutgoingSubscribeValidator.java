@@ -17,10 +17,8 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
-import android.util.Pair;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
+import com.android.services.telephony.rcs.SipMessageEnvelope;
 
 import java.util.Arrays;
 import java.util.List;
@@ -34,39 +32,36 @@ import java.util.stream.Collectors;
 public class RestrictedOutgoingSubscribeValidator implements SipMessageValidator {
 
     private static final String SUBSCRIBE_REQUEST = "subscribe";
-    private static final String SUBSCRIBE_EVENT_HEADER = "event";
     private static final String[] RESTRICTED_EVENTS = new String[]{ "presence" };
 
 
     @Override
-    public ValidationResult validate(SipMessage message) {
-        if (!SipMessageParsingUtils.isSipRequest(message.getStartLine())) {
+    public ValidationResult validate(SipMessageEnvelope message) {
+        if (!message.isRequest()) {
             return ValidationResult.SUCCESS;
         }
-        String[] requestSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                message.getStartLine());
-        if (requestSegments == null) {
+        String method = message.getMethod();
+        if (method == null) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                    "malformed start line: " + message.getStartLine());
+                    "malformed start line: " + message.getMessage().getStartLine());
         }
         // Request-Line  =  Method SP Request-URI SP SIP-Version CRLF, verify Method
-        if (!requestSegments[0].equalsIgnoreCase(SUBSCRIBE_REQUEST)) {
+        if (!method.equalsIgnoreCase(SUBSCRIBE_REQUEST)) {
             return ValidationResult.SUCCESS;
         }
 
-        List<Pair<String, String>> eventHeaders = SipMessageParsingUtils.parseHeaders(
-                message.getHeaderSection(), true /*stopAtFirstMatch*/, SUBSCRIBE_EVENT_HEADER);
+        List<String> eventHeaders = message.getEventHeaderValues();
         if (eventHeaders.size() == 0) {
             return ValidationResult.SUCCESS;
         }
-        boolean isRestricted = eventHeaders.stream().map(e -> e.second)
+        boolean isRestricted = eventHeaders.stream()
                 .anyMatch(e -> Arrays.asList(RESTRICTED_EVENTS).contains(e.trim().toLowerCase(
                         Locale.ROOT)));
 
         return isRestricted ? new ValidationResult(
                 SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_HEADER_FIELDS,
-                "matched a restricted header field: " + eventHeaders.stream().map(e -> e.second)
+                "matched a restricted header field: " + eventHeaders.stream()
                         .collect(Collectors.toSet())) :
                 ValidationResult.SUCCESS;
     }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Unit Test for CallerCheckCache.
+ */
+@RunWith(JUnit4.class)
+public class CallerCheckCacheTest {
+    private static final int UID_1 = 1001;
+    private static final int UID_2 = 1002;
+    private static final String PACKAGE_1 = "com.example.one";
+    private static final String PACKAGE_2 = "com.example.two";
+    private static final long MAX_AGE_MS = 1000;
+
+    private long mNowMs = 10_000;
+    private int mCheckCount;
+    private boolean mCheckResult = true;
+    private CallerCheckCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new CallerCheckCache(MAX_AGE_MS, () -> mNowMs);
+    }
+
+    @Test
+    @SmallTest
+    public void testResultIsCachedPerCaller() {
+        assertTrue(get(UID_1, PACKAGE_1));
+        mCheckResult = false;
+        assertTrue(get(UID_1, PACKAGE_1));
+        assertEquals(1, mCheckCount);
+
+        assertFalse(get(UID_1, PACKAGE_2));
+        assertFalse(get(UID_2, PACKAGE_1));
+        assertEquals(3, mCheckCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidateDropsResults() {
+        get(UID_1, PACKAGE_1);
+        mCheckResult = false;
+
+        mCache.invalidate();
+
+        assertFalse(get(UID_1, PACKAGE_1));
+        assertEquals(2, mCheckCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testResultExpiresAfterMaxAge() {
+        get(UID_1, PACKAGE_1);
+        // A compat override or app op change which is not signalled by any invalidation.
+        mCheckResult = false;
+
+        mNowMs += MAX_AGE_MS - 1;
+        assertTrue(get(UID_1, PACKAGE_1));
+        mNowMs += 1;
+        assertFalse(get(UID_1, PACKAGE_1));
+        assertEquals(2, mCheckCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testResultOfCheckRacingInvalidationIsNotCached() {
+        mCache.get(UID_1, PACKAGE_1, () -> {
+            mCheckCount++;
+            mCache.invalidate();
+            return true;
+        });
+        mCheckResult = false;
+
+        assertFalse(get(UID_1, PACKAGE_1));
+        assertEquals(2, mCheckCount);
+    }
+
+    private boolean get(int uid, String callingPackage) {
+        return mCache.get(uid, callingPackage, () -> {
+            mCheckCount++;
+            return mCheckResult;
+        });
+    }
+}
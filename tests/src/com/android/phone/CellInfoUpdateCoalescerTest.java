@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.os.WorkSource;
+import android.telephony.CellInfo;
+import android.telephony.ICellInfoCallback;
+import android.telephony.TelephonyManager;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit Test for CellInfoUpdateCoalescer.
+ */
+@RunWith(JUnit4.class)
+public class CellInfoUpdateCoalescerTest {
+    private static final int PHONE_0 = 0;
+    private static final int PHONE_1 = 1;
+    private static final long FRESHNESS_WINDOW_MS = 1000;
+
+    @Mock ICellInfoCallback mCallback1;
+    @Mock ICellInfoCallback mCallback2;
+    @Mock ICellInfoCallback mCallback3;
+
+    private long mNowMs = 10_000;
+    private CellInfoUpdateCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mCoalescer = new CellInfoUpdateCoalescer(FRESHNESS_WINDOW_MS, () -> mNowMs);
+    }
+
+    @Test
+    @SmallTest
+    public void testRequestsJoinInFlightQuery() throws Exception {
+        assertTrue(mCoalescer.addRequest(PHONE_0, mCallback1, new WorkSource(1001)));
+        assertFalse(mCoalescer.addRequest(PHONE_0, mCallback2, new WorkSource(1002)));
+
+        List<CellInfo> result = new ArrayList<>();
+        mCoalescer.onResult(PHONE_0, result);
+        verify(mCallback1).onCellInfo(result);
+        verify(mCallback2).onCellInfo(result);
+        assertEquals(1, mCoalescer.getQueryCount());
+        assertEquals(1, mCoalescer.getCoalescedCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testModemQueryIsBlamedOnTriggeringCaller() {
+        assertTrue(mCoalescer.addRequest(PHONE_0, mCallback1, new WorkSource(1001)));
+        // What PhoneInterfaceManager passes to Phone#requestCellInfoUpdate.
+        WorkSource queried = mCoalescer.getWorkSource(PHONE_0);
+        assertEquals(new WorkSource(1001), queried);
+
+        assertFalse(mCoalescer.addRequest(PHONE_0, mCallback2, new WorkSource(1002)));
+        assertEquals(new WorkSource(1001), queried);
+        assertEquals(new WorkSource(1001), mCoalescer.getWorkSource(PHONE_0));
+
+        mCoalescer.onResult(PHONE_0, new ArrayList<>());
+        mNowMs += FRESHNESS_WINDOW_MS + 1;
+        assertTrue(mCoalescer.addRequest(PHONE_0, mCallback3, new WorkSource(1003)));
+        assertEquals(new WorkSource(1003), mCoalescer.getWorkSource(PHONE_0));
+    }
+
+    @Test
+    @SmallTest
+    public void testPhonesAreIndependent() {
+        assertTrue(mCoalescer.addRequest(PHONE_0, mCallback1, null));
+        assertTrue(mCoalescer.addRequest(PHONE_1, mCallback2, null));
+    }
+
+    @Test
+    @SmallTest
+    public void testFreshResultServedFromCache() throws Exception {
+        List<CellInfo> result = new ArrayList<>();
+        mCoalescer.addRequest(PHONE_0, mCallback1, null);
+        mCoalescer.onResult(PHONE_0, result);
+
+        mNowMs += FRESHNESS_WINDOW_MS;
+        assertFalse(mCoalescer.addRequest(PHONE_0, mCallback2, null));
+        verify(mCallback2).onCellInfo(result);
+        assertEquals(1, mCoalescer.getCacheHitCount());
+
+        mNowMs += 1;
+        assertTrue(mCoalescer.addRequest(PHONE_0, mCallback3, null));
+        verify(mCallback3, never()).onCellInfo(any());
+    }
+
+    @Test
+    @SmallTest
+    public void testErrorIsDeliveredAndNotCached() throws Exception {
+        mCoalescer.addRequest(PHONE_0, mCallback1, null);
+        mCoalescer.addRequest(PHONE_0, mCallback2, null);
+        mCoalescer.onError(PHONE_0, TelephonyManager.CellInfoCallback.ERROR_TIMEOUT, null, null);
+
+        verify(mCallback1).onError(TelephonyManager.CellInfoCallback.ERROR_TIMEOUT, null, null);
+        verify(mCallback2).onError(TelephonyManager.CellInfoCallback.ERROR_TIMEOUT, null, null);
+        assertTrue(mCoalescer.addRequest(PHONE_0, mCallback3, null));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+
+import android.telephony.emergency.EmergencyNumber;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit Test for EmergencyNumberIndex.
+ */
+@RunWith(JUnit4.class)
+public class EmergencyNumberIndexTest {
+    private static final String TAG = "EmergencyNumberIndexTest";
+
+    private static EmergencyNumber createEmergencyNumber(String number) {
+        return new EmergencyNumber(
+                number,
+                "us" /* country */,
+                "" /* mnc */,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                Collections.emptyList() /* urns */,
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN);
+    }
+
+    private static List<EmergencyNumber> createEmergencyNumberList(String... numbers) {
+        List<EmergencyNumber> list = new ArrayList<>();
+        for (String number : numbers) {
+            list.add(createEmergencyNumber(number));
+        }
+        return list;
+    }
+
+    private static boolean linearExactMatch(List<List<EmergencyNumber>> lists, String number) {
+        for (List<EmergencyNumber> list : lists) {
+            for (EmergencyNumber emergencyNumber : list) {
+                if (emergencyNumber.getNumber().equals(number)) return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    @SmallTest
+    public void testExactMatchAcrossPhones() {
+        EmergencyNumberIndex index = EmergencyNumberIndex.build(Arrays.asList(
+                createEmergencyNumberList("933", "5550100"),
+                createEmergencyNumberList("122")));
+
+        assertEquals(EmergencyNumberIndex.LOOKUP_MATCH, index.lookup("933"));
+        assertEquals(EmergencyNumberIndex.LOOKUP_MATCH, index.lookup("5550100"));
+        assertEquals(EmergencyNumberIndex.LOOKUP_MATCH, index.lookup("122"));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testNoMatch() {
+        EmergencyNumberIndex index = EmergencyNumberIndex.build(Arrays.asList(
+                createEmergencyNumberList("933")));
+
+        assertEquals(EmergencyNumberIndex.LOOKUP_NO_MATCH, index.lookup("93"));
+        assertEquals(EmergencyNumberIndex.LOOKUP_NO_MATCH, index.lookup("6505551212"));
+    }
+
+    @Test
+    @SmallTest
+    public void testUncertainNumbersAreUnknown() {
+        EmergencyNumberIndex index = EmergencyNumberIndex.build(Arrays.asList(
+                createEmergencyNumberList("933")));
+
+        // Numbers extending an emergency number may match in prefix match countries.
+        assertEquals(EmergencyNumberIndex.LOOKUP_UNKNOWN, index.lookup("9331"));
+        // Anything but plain digits is left to the trackers.
+        assertEquals(EmergencyNumberIndex.LOOKUP_UNKNOWN, index.lookup("+933"));
+        assertEquals(EmergencyNumberIndex.LOOKUP_UNKNOWN, index.lookup("650-555-1212"));
+        assertEquals(EmergencyNumberIndex.LOOKUP_UNKNOWN, index.lookup("sip:933@test.com"));
+        assertEquals(EmergencyNumberIndex.LOOKUP_UNKNOWN, index.lookup(""));
+        assertEquals(EmergencyNumberIndex.LOOKUP_UNKNOWN, index.lookup(null));
+        // Numbers the trackers may match without listing them.
+        assertEquals(EmergencyNumberIndex.LOOKUP_UNKNOWN, index.lookup("112"));
+        assertEquals(EmergencyNumberIndex.LOOKUP_UNKNOWN, index.lookup("911"));
+    }
+
+    @Test
+    @SmallTest
+    public void testListedNumberOverridesUnlisted() {
+        EmergencyNumberIndex index = EmergencyNumberIndex.build(Arrays.asList(
+                createEmergencyNumberList("911")));
+
+        assertEquals(EmergencyNumberIndex.LOOKUP_MATCH, index.lookup("911"));
+        assertEquals(EmergencyNumberIndex.LOOKUP_UNKNOWN, index.lookup("112"));
+    }
+
+    /**
+     * Every definitive answer of the index must agree with an exact scan of the lists.
+     */
+    @Test
+    @SmallTest
+    public void testParityWithLinearScan() {
+        List<List<EmergencyNumber>> lists = Arrays.asList(
+                createEmergencyNumberList("933", "122", "5550100", "1234567"),
+                createEmergencyNumberList("4321", "00", "933"));
+        EmergencyNumberIndex index = EmergencyNumberIndex.build(lists);
+
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            String number = randomNumber(random);
+            int result = index.lookup(number);
+            if (result == EmergencyNumberIndex.LOOKUP_UNKNOWN) continue;
+            assertEquals(number, linearExactMatch(lists, number),
+                    result == EmergencyNumberIndex.LOOKUP_MATCH);
+        }
+    }
+
+    /**
+     * Compares the index against the per-list scan it replaces. Only logs the timings, they
+     * depend too much on the device to assert on.
+     */
+    @Test
+    @LargeTest
+    public void testLookupTiming() {
+        List<List<EmergencyNumber>> lists = new ArrayList<>();
+        Random random = new Random(0);
+        for (int phone = 0; phone < 2; phone++) {
+            List<EmergencyNumber> list = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                list.add(createEmergencyNumber(randomNumber(random)));
+            }
+            lists.add(list);
+        }
+        EmergencyNumberIndex index = EmergencyNumberIndex.build(lists);
+        String[] numbers = new String[1000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = "650555" + (1000 + i);
+        }
+
+        int matches = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < 100; round++) {
+            for (String number : numbers) {
+                if (linearExactMatch(lists, number)) matches++;
+            }
+        }
+        long linearNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < 100; round++) {
+            for (String number : numbers) {
+                if (index.lookup(number) == EmergencyNumberIndex.LOOKUP_MATCH) matches--;
+            }
+        }
+        long indexNs = System.nanoTime() - start;
+
+        assertEquals(0, matches);
+        Log.i(TAG, "linear scan: " + linearNs / (100 * numbers.length) + "ns/lookup, index: "
+                + indexNs / (100 * numbers.length) + "ns/lookup");
+    }
+
+    private static String randomNumber(Random random) {
+        int length = 2 + random.nextInt(6);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('0' + random.nextInt(10)));
+        }
+        return sb.toString();
+    }
+}
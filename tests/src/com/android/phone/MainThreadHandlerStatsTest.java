@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.util.IndentingPrintWriter;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+
+/**
+ * Unit Test for MainThreadHandlerStats.
+ */
+@RunWith(JUnit4.class)
+public class MainThreadHandlerStatsTest {
+    private static final int CMD = 47;
+    private static final int UID_1 = 10001;
+    private static final int UID_2 = 10002;
+
+    private MainThreadHandlerStats mStats;
+
+    @Before
+    public void setUp() {
+        mStats = new MainThreadHandlerStats();
+    }
+
+    @Test
+    @SmallTest
+    public void testQueueDepth() {
+        mStats.onRequestSent(CMD, UID_1);
+        mStats.onRequestSent(CMD, UID_1);
+        assertEquals(2, mStats.getQueueDepth());
+
+        mStats.onRequestStarted(CMD, 3);
+        assertEquals(1, mStats.getQueueDepth());
+        assertEquals(2, mStats.getMaxQueueDepth());
+
+        mStats.onRequestStarted(CMD, 3);
+        assertEquals(0, mStats.getQueueDepth());
+        assertEquals(2, mStats.getQueueLatency().getCount(CMD));
+    }
+
+    @Test
+    @SmallTest
+    public void testCompletedAndTimedOut() {
+        mStats.onRequestSent(CMD, UID_1);
+        mStats.onRequestStarted(CMD, 1);
+        mStats.onRequestCompleted(CMD, 20, 21);
+        mStats.onRequestTimedOut(CMD);
+
+        assertEquals(1, mStats.getExecutionLatency().getCount(CMD));
+        assertEquals(1, mStats.getTotalLatency().getCount(CMD));
+        assertEquals(1, mStats.getTimeoutCount(CMD));
+    }
+
+    @Test
+    @SmallTest
+    public void testCallerUids() {
+        mStats.onRequestSent(CMD, UID_1);
+        mStats.onRequestSent(CMD, UID_2);
+        mStats.onRequestSent(CMD, UID_2);
+
+        assertEquals(1, mStats.getCallerCount(CMD, UID_1));
+        assertEquals(2, mStats.getCallerCount(CMD, UID_2));
+    }
+
+    @Test
+    @SmallTest
+    public void testResetKeepsQueuedRequests() {
+        mStats.onRequestSent(CMD, UID_1);
+        mStats.onRequestSent(CMD, UID_1);
+        mStats.onRequestStarted(CMD, 1);
+        mStats.onRequestTimedOut(CMD);
+
+        mStats.reset();
+
+        assertEquals(1, mStats.getQueueDepth());
+        assertEquals(1, mStats.getMaxQueueDepth());
+        assertEquals(0, mStats.getTimeoutCount(CMD));
+        assertEquals(0, mStats.getCallerCount(CMD, UID_1));
+        assertEquals(0, mStats.getQueueLatency().getCount(CMD));
+    }
+
+    @Test
+    @SmallTest
+    public void testDump() {
+        mStats.onRequestSent(CMD, UID_1);
+        mStats.onRequestTimedOut(CMD);
+        StringWriter sw = new StringWriter();
+        IndentingPrintWriter pw = new IndentingPrintWriter(sw, "  ");
+        mStats.dump(pw);
+        pw.flush();
+        String dump = sw.toString();
+        assertTrue(dump.contains("queueDepth=1"));
+        assertTrue(dump.contains(CMD + ": 1"));
+        assertTrue(dump.contains(CMD + ": " + UID_1 + "=1"));
+    }
+}
@@ -25,12 +25,14 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -40,24 +42,33 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.os.AsyncResult;
 import android.os.Build;
+import android.os.Message;
 import android.os.UserHandle;
 import android.permission.flags.Flags;
 import android.platform.test.flag.junit.SetFlagsRule;
 import android.preference.PreferenceManager;
+import android.telephony.CellInfoGsm;
 import android.telephony.RadioAccessFamily;
 import android.telephony.Rlog;
+import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
+import android.telephony.emergency.EmergencyNumber;
 import android.testing.AndroidTestingRunner;
 import android.testing.TestableLooper;
 
 import androidx.test.annotation.UiThreadTest;
+import androidx.test.filters.LargeTest;
 import androidx.test.platform.app.InstrumentationRegistry;
 
 import com.android.TelephonyTestBase;
 import com.android.internal.telephony.IIntegerConsumer;
 import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneFactory;
+import com.android.internal.telephony.RIL;
 import com.android.internal.telephony.RILConstants;
+import com.android.internal.telephony.emergency.EmergencyNumberTracker;
 import com.android.internal.telephony.flags.FeatureFlags;
 import com.android.internal.telephony.satellite.SatelliteController;
 import com.android.internal.telephony.subscription.SubscriptionManagerService;
@@ -75,9 +86,11 @@ import org.mockito.Mockito;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Unit Test for PhoneInterfaceManager.
@@ -560,6 +573,228 @@ public class PhoneInterfaceManagerTest extends TelephonyTestBase {
         assertEquals(null, packageName);
     }
 
+    /**
+     * A number added to the emergency number list must be reported as an emergency number even
+     * before the index has been rebuilt from the new list.
+     */
+    @Test
+    public void isEmergencyNumber_listChangedBeforeIndexRebuild_asksTracker() {
+        EmergencyNumberTracker tracker = setUpEmergencyNumberTracker("933");
+        mPhoneInterfaceManager.rebuildEmergencyNumberIndex();
+
+        // Answered from the index without asking the tracker.
+        assertFalse(mPhoneInterfaceManager.isEmergencyNumber("5550100", true));
+        verify(tracker, never()).isEmergencyNumber(anyString());
+
+        // The network adds a number. The change invalidates the index, the rebuild is pending.
+        doReturn(createEmergencyNumberList("933", "5550100")).when(tracker)
+                .getEmergencyNumberList();
+        doReturn(true).when(tracker).isEmergencyNumber("5550100");
+        mPhoneInterfaceManager.invalidateEmergencyNumberIndex();
+
+        assertTrue(mPhoneInterfaceManager.isEmergencyNumber("5550100", true));
+        verify(tracker).isEmergencyNumber("5550100");
+
+        // Once rebuilt, the index answers again.
+        mPhoneInterfaceManager.rebuildEmergencyNumberIndex();
+        assertTrue(mPhoneInterfaceManager.isEmergencyNumber("5550100", true));
+        verify(tracker).isEmergencyNumber("5550100");
+    }
+
+    /**
+     * A rebuild which raced with a list change must not publish an index built from the lists
+     * it read before the change.
+     */
+    @Test
+    public void rebuildEmergencyNumberIndex_listChangedDuringRebuild_doesNotPublish() {
+        EmergencyNumberTracker tracker = setUpEmergencyNumberTracker("933");
+        doAnswer(invocation -> {
+            mPhoneInterfaceManager.invalidateEmergencyNumberIndex();
+            return createEmergencyNumberList("933");
+        }).when(tracker).getEmergencyNumberList();
+        doReturn(true).when(tracker).isEmergencyNumber("5550100");
+
+        mPhoneInterfaceManager.rebuildEmergencyNumberIndex();
+
+        assertTrue(mPhoneInterfaceManager.isEmergencyNumber("5550100", true));
+        verify(tracker).isEmergencyNumber("5550100");
+    }
+
+    /**
+     * Compares isEmergencyNumber answered from the index against the per-phone tracker loop it
+     * replaces, with a tracker which scans its list like the real one does for an exact match.
+     * Only logs the timings, they depend too much on the device to assert on.
+     */
+    @Test
+    @LargeTest
+    public void isEmergencyNumber_timing() {
+        String[] emergencyNumbers = new String[30];
+        for (int i = 0; i < emergencyNumbers.length; i++) {
+            emergencyNumbers[i] = String.valueOf(100 + i * 7);
+        }
+        List<EmergencyNumber> list = createEmergencyNumberList(emergencyNumbers);
+        EmergencyNumberTracker tracker = setUpEmergencyNumberTracker(emergencyNumbers);
+        doAnswer(invocation -> {
+            String number = invocation.getArgument(0);
+            for (EmergencyNumber emergencyNumber : list) {
+                if (emergencyNumber.getNumber().equals(number)) return true;
+            }
+            return false;
+        }).when(tracker).isEmergencyNumber(anyString());
+        String[] numbers = new String[1000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = "650555" + (1000 + i);
+        }
+
+        mPhoneInterfaceManager.invalidateEmergencyNumberIndex();
+        long start = System.nanoTime();
+        for (String number : numbers) {
+            assertFalse(mPhoneInterfaceManager.isEmergencyNumber(number, true));
+        }
+        long trackerNs = System.nanoTime() - start;
+
+        mPhoneInterfaceManager.rebuildEmergencyNumberIndex();
+        start = System.nanoTime();
+        for (String number : numbers) {
+            assertFalse(mPhoneInterfaceManager.isEmergencyNumber(number, true));
+        }
+        long indexNs = System.nanoTime() - start;
+
+        Rlog.i(TAG, "tracker loop: " + trackerNs / numbers.length + "ns/call, index: "
+                + indexNs / numbers.length + "ns/call");
+    }
+
+    private EmergencyNumberTracker setUpEmergencyNumberTracker(String... numbers) {
+        Phone phone = PhoneFactory.getPhones()[0];
+        EmergencyNumberTracker tracker = mock(EmergencyNumberTracker.class);
+        doReturn(tracker).when(phone).getEmergencyNumberTracker();
+        doReturn(RIL.RADIO_HAL_VERSION_1_4).when(phone).getHalVersion(anyInt());
+        doReturn(createEmergencyNumberList(numbers)).when(tracker).getEmergencyNumberList();
+        return tracker;
+    }
+
+    @Test
+    public void getBlockingRequestTimeoutMs_longRunningCommands_waitUntilComplete()
+            throws Exception {
+        for (String command : new String[] {"CMD_PERFORM_NETWORK_SCAN",
+                "CMD_SET_NETWORK_SELECTION_MODE_MANUAL", "CMD_SWITCH_SLOTS", "CMD_MODEM_REBOOT",
+                "CMD_RESET_MODEM_CONFIG", "CMD_ERASE_MODEM_CONFIG"}) {
+            assertEquals(command, PhoneInterfaceManager.BLOCKING_REQUEST_NO_TIMEOUT,
+                    PhoneInterfaceManager.getBlockingRequestTimeoutMs(getCommand(command)));
+        }
+    }
+
+    @Test
+    public void getBlockingRequestTimeoutMs_otherCommands_bounded() throws Exception {
+        for (String command : new String[] {"CMD_HANDLE_PIN_MMI", "CMD_GET_ALL_CELL_INFO",
+                "CMD_NV_READ_ITEM", "CMD_SET_ICC_LOCK_ENABLED", "CMD_GET_MODEM_STATUS"}) {
+            assertEquals(command, PhoneInterfaceManager.BLOCKING_REQUEST_MAX_TIMEOUT_MS,
+                    PhoneInterfaceManager.getBlockingRequestTimeoutMs(getCommand(command)));
+        }
+    }
+
+    /**
+     * A blocking request which times out before the main thread starts it returns the failure
+     * result of its command, and is not run once the main thread gets to it.
+     */
+    @Test
+    public void sendBlockingRequest_timedOutBeforeStart_returnsFailureResultAndDrops()
+            throws Exception {
+        Phone phone = PhoneFactory.getPhones()[0];
+
+        AtomicReference<Object> result = sendBlockingRequestOnBinderThread(
+                getCommand("CMD_GET_ALL_CELL_INFO"), phone, 100 /* timeoutInMs */);
+        TestableLooper.get(this).processAllMessages();
+
+        assertEquals(Collections.emptyList(), result.get());
+        verify(phone, never()).requestCellInfoUpdate(any(), any());
+    }
+
+    @Test
+    public void sendBlockingRequest_timedOutWithoutFailureResult_throws() throws Exception {
+        AtomicReference<Object> result = sendBlockingRequestOnBinderThread(
+                getCommand("CMD_SET_ICC_LOCK_ENABLED"), PhoneFactory.getPhones()[0],
+                100 /* timeoutInMs */);
+
+        assertTrue(result.get() instanceof IllegalStateException);
+    }
+
+    /**
+     * A request which completes after its requester timed out must not change the result the
+     * requester already returned.
+     */
+    @Test
+    public void sendBlockingRequest_completedAfterTimeout_returnsFailureResult()
+            throws Exception {
+        Phone phone = PhoneFactory.getPhones()[0];
+        int command = getCommand("CMD_GET_ALL_CELL_INFO");
+        AtomicReference<Message> onCompleted = new AtomicReference<>();
+        doAnswer(invocation -> {
+            onCompleted.set(invocation.getArgument(1));
+            return null;
+        }).when(phone).requestCellInfoUpdate(any(), any());
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread binderThread = new Thread(() -> result.set(
+                mPhoneInterfaceManager.sendBlockingRequest(command, null /* argument */,
+                        SubscriptionManager.INVALID_SUBSCRIPTION_ID, phone, null /* workSource */,
+                        500 /* timeoutInMs */)));
+        binderThread.start();
+        // Start the request on the main thread, the modem does not answer before the timeout.
+        long deadline = System.currentTimeMillis() + 500;
+        while (onCompleted.get() == null && System.currentTimeMillis() < deadline) {
+            TestableLooper.get(this).processAllMessages();
+            Thread.sleep(10);
+        }
+        binderThread.join(5000);
+
+        Message message = onCompleted.get();
+        AsyncResult.forMessage(message, List.of(new CellInfoGsm()), null);
+        message.sendToTarget();
+        TestableLooper.get(this).processAllMessages();
+
+        assertEquals(Collections.emptyList(), result.get());
+        verify(phone, times(1)).requestCellInfoUpdate(any(), any());
+    }
+
+    /**
+     * Send a blocking request from another thread, as a binder thread would, and wait for it.
+     * @return The result of the request, or the exception it threw.
+     */
+    private AtomicReference<Object> sendBlockingRequestOnBinderThread(int command, Phone phone,
+            long timeoutInMs) throws InterruptedException {
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread binderThread = new Thread(() -> {
+            try {
+                result.set(mPhoneInterfaceManager.sendBlockingRequest(command,
+                        null /* argument */, SubscriptionManager.INVALID_SUBSCRIPTION_ID, phone,
+                        null /* workSource */, timeoutInMs));
+            } catch (RuntimeException e) {
+                result.set(e);
+            }
+        });
+        binderThread.start();
+        binderThread.join(5000);
+        return result;
+    }
+
+    private static int getCommand(String name) throws Exception {
+        Field field = PhoneInterfaceManager.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.getInt(null);
+    }
+
+    private static List<EmergencyNumber> createEmergencyNumberList(String... numbers) {
+        List<EmergencyNumber> list = new ArrayList<>();
+        for (String number : numbers) {
+            list.add(new EmergencyNumber(number, "us" /* country */, "" /* mnc */,
+                    EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                    Collections.emptyList() /* urns */,
+                    EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING,
+                    EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN));
+        }
+        return list;
+    }
+
     @Test
     public void testGetSatelliteDataOptimizedApps() throws Exception {
         doReturn(true).when(mFeatureFlags).carrierRoamingNbIotNtn();
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.os.Looper;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneConstants;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Unit Test for PhoneStateSnapshotCache.
+ */
+@RunWith(JUnit4.class)
+public class PhoneStateSnapshotCacheTest {
+    private static final int PHONE_ID = 0;
+    private static final int SUB_ID = 1;
+
+    @Mock TelephonyManager mTelephonyManager;
+    @Mock Phone mPhone;
+    @Mock ServiceState mServiceState;
+    @Mock ServiceState mSanitizedServiceState;
+
+    private PhoneStateSnapshotCache mCache;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(mTelephonyManager).when(mTelephonyManager).createForSubscriptionId(anyInt());
+        doReturn(PHONE_ID).when(mPhone).getPhoneId();
+        doReturn(SUB_ID).when(mPhone).getSubId();
+        doReturn(PhoneConstants.State.OFFHOOK).when(mPhone).getState();
+        doReturn(TelephonyManager.DATA_ACTIVITY_IN).when(mPhone).getDataActivityState();
+        doReturn(mServiceState).when(mPhone).getServiceState();
+        doReturn(mSanitizedServiceState).when(mServiceState)
+                .createLocationInfoSanitizedCopy(true);
+
+        mCache = new PhoneStateSnapshotCache(mTelephonyManager, Looper.getMainLooper(),
+                phoneId -> phoneId == PHONE_ID ? mPhone : null, 1);
+    }
+
+    @Test
+    @SmallTest
+    public void testUntrackedPhoneIsNotPublished() {
+        PhoneStateSnapshotCache.Snapshot snapshot = mCache.get(mPhone);
+
+        assertEquals(TelephonyManager.CALL_STATE_OFFHOOK, snapshot.callState);
+        assertNull(mCache.getPublished(PHONE_ID));
+    }
+
+    @Test
+    @SmallTest
+    public void testTrackedPhoneIsPublishedOnce() {
+        mCache.onSubscriptionsChanged();
+        verify(mTelephonyManager).registerTelephonyCallback(
+                eq(TelephonyManager.INCLUDE_LOCATION_DATA_NONE), any(),
+                any(TelephonyCallback.class));
+
+        PhoneStateSnapshotCache.Snapshot first = mCache.get(mPhone);
+        PhoneStateSnapshotCache.Snapshot second = mCache.get(mPhone);
+
+        assertSame(first, second);
+        assertSame(first, mCache.getPublished(PHONE_ID));
+        assertEquals(TelephonyManager.DATA_ACTIVITY_IN, second.dataActivity);
+        verify(mPhone, times(1)).getDataActivityState();
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidateRebuildsSnapshot() {
+        mCache.onSubscriptionsChanged();
+        PhoneStateSnapshotCache.Snapshot first = mCache.get(mPhone);
+
+        doReturn(PhoneConstants.State.IDLE).when(mPhone).getState();
+        mCache.invalidate(PHONE_ID);
+        assertNull(mCache.getPublished(PHONE_ID));
+
+        PhoneStateSnapshotCache.Snapshot second = mCache.get(mPhone);
+        assertNotNull(second);
+        assertEquals(TelephonyManager.CALL_STATE_OFFHOOK, first.callState);
+        assertEquals(TelephonyManager.CALL_STATE_IDLE, second.callState);
+    }
+
+    /**
+     * The snapshot is stale from the change in the phone until its event is delivered. The event
+     * invalidates the snapshot on the delivering thread, without waiting for the looper.
+     */
+    @Test
+    @SmallTest
+    public void testChangeEventInvalidatesOnDeliveringThread() {
+        mCache.onSubscriptionsChanged();
+        ArgumentCaptor<Executor> executor = ArgumentCaptor.forClass(Executor.class);
+        ArgumentCaptor<TelephonyCallback> callback =
+                ArgumentCaptor.forClass(TelephonyCallback.class);
+        verify(mTelephonyManager).registerTelephonyCallback(anyInt(), executor.capture(),
+                callback.capture());
+        PhoneStateSnapshotCache.Snapshot first = mCache.get(mPhone);
+
+        doReturn(PhoneConstants.State.IDLE).when(mPhone).getState();
+        // The event has not been delivered yet.
+        assertSame(first, mCache.get(mPhone));
+
+        // Deliver the event the way the registry does, through the registered executor. The
+        // looper of the cache is not run.
+        executor.getValue().execute(() -> ((TelephonyCallback.CallStateListener)
+                callback.getValue()).onCallStateChanged(TelephonyManager.CALL_STATE_IDLE));
+
+        assertNull(mCache.getPublished(PHONE_ID));
+        assertEquals(TelephonyManager.CALL_STATE_IDLE, mCache.get(mPhone).callState);
+    }
+
+    @Test
+    @SmallTest
+    public void testSubscriptionUnchangedDoesNotReregister() {
+        mCache.onSubscriptionsChanged();
+        mCache.onSubscriptionsChanged();
+
+        verify(mTelephonyManager, times(1)).registerTelephonyCallback(anyInt(), any(),
+                any(TelephonyCallback.class));
+        verify(mTelephonyManager, never()).unregisterTelephonyCallback(
+                any(TelephonyCallback.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testSanitizedServiceStateIsMemoized() {
+        PhoneStateSnapshotCache.Snapshot snapshot = mCache.get(mPhone);
+
+        assertSame(mSanitizedServiceState, snapshot.getLocationSanitizedServiceState(true));
+        assertSame(mSanitizedServiceState, snapshot.getLocationSanitizedServiceState(true));
+        verify(mServiceState, times(1)).createLocationInfoSanitizedCopy(true);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.util.IndentingPrintWriter;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+
+/**
+ * Unit Test for RequestLatencyHistogram.
+ */
+@RunWith(JUnit4.class)
+public class RequestLatencyHistogramTest {
+    private static final int CMD_A = 1;
+    private static final int CMD_B = 2;
+
+    private RequestLatencyHistogram mHistogram;
+
+    @Before
+    public void setUp() {
+        mHistogram = new RequestLatencyHistogram();
+    }
+
+    @Test
+    @SmallTest
+    public void testBucketIndex() {
+        assertEquals(0, RequestLatencyHistogram.getBucketIndex(0));
+        assertEquals(0, RequestLatencyHistogram.getBucketIndex(1));
+        assertEquals(1, RequestLatencyHistogram.getBucketIndex(2));
+        assertEquals(2, RequestLatencyHistogram.getBucketIndex(3));
+        assertEquals(RequestLatencyHistogram.BUCKET_UPPER_BOUNDS_MS.length,
+                RequestLatencyHistogram.getBucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    @SmallTest
+    public void testRecordPerCommand() {
+        mHistogram.record(CMD_A, 1);
+        mHistogram.record(CMD_A, 3);
+        mHistogram.record(CMD_B, 10_000);
+
+        assertEquals(2, mHistogram.getCount(CMD_A));
+        assertEquals(1, mHistogram.getCount(CMD_B));
+        assertEquals(1, mHistogram.getBucketCount(CMD_A, 0));
+        assertEquals(1, mHistogram.getBucketCount(CMD_A, 2));
+        assertEquals(1, mHistogram.getBucketCount(CMD_B,
+                RequestLatencyHistogram.BUCKET_UPPER_BOUNDS_MS.length));
+    }
+
+    @Test
+    @SmallTest
+    public void testNegativeLatencyClampedAndReset() {
+        mHistogram.record(CMD_A, -5);
+        assertEquals(1, mHistogram.getBucketCount(CMD_A, 0));
+
+        mHistogram.reset();
+        assertEquals(0, mHistogram.getCount(CMD_A));
+    }
+
+    @Test
+    @SmallTest
+    public void testDump() {
+        mHistogram.record(CMD_A, 7);
+        StringWriter sw = new StringWriter();
+        IndentingPrintWriter pw = new IndentingPrintWriter(sw, "  ");
+        mHistogram.dump(pw);
+        pw.flush();
+        assertTrue(sw.toString().contains(CMD_A + ": 1 7 7"));
+    }
+}
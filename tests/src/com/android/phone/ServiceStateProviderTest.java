@@ -33,6 +33,8 @@ import static com.android.phone.ServiceStateProvider.NETWORK_ID;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -41,6 +43,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -57,6 +60,8 @@ import android.database.Cursor;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.HandlerThread;
+import android.os.TestLooperManager;
 import android.os.UserHandle;
 import android.telephony.AccessNetworkConstants;
 import android.telephony.NetworkRegistrationInfo;
@@ -80,6 +85,10 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Tests for simple queries of ServiceStateProvider.
  *
@@ -95,6 +104,9 @@ public class ServiceStateProviderTest {
     private MockContentResolver mContentResolver;
     private ServiceState mTestServiceState;
     private ServiceState mTestServiceStateForSubId1;
+    private final List<Uri> mNotifiedUris = new ArrayList<>();
+    private HandlerThread mNotifyThread;
+    private TestLooperManager mNotifyLooperManager;
 
     @Mock Context mContext;
     @Mock AppOpsManager mAppOpsManager;
@@ -179,6 +191,10 @@ public class ServiceStateProviderTest {
     @After
     public void tearDown() throws Exception {
         // LocationAccessPolicy.alwaysAllowPrivilegedProcessToAccessLocationForTesting(true);
+        if (mNotifyLooperManager != null) {
+            mNotifyLooperManager.release();
+            mNotifyThread.quit();
+        }
     }
 
     /**
@@ -508,6 +524,33 @@ public class ServiceStateProviderTest {
         assertEquals(duplexMode, cursor.getInt(25));
     }
 
+    /**
+     * Verify that an inserted ServiceState replaces the previous one with a new version and that
+     * the location redacted copy is only created once per version.
+     */
+    @Test
+    @SmallTest
+    public void testInsert_versionsServiceStateAndReusesRedactedCopy() {
+        int subId = 1;
+        ServiceStateProvider provider = createProviderRecordingNotifications();
+        assertEquals(-1, provider.getServiceStateVersion(subId));
+
+        insertServiceState(provider, subId, mTestServiceState);
+        long version = provider.getServiceStateVersion(subId);
+        ServiceState ss = provider.getServiceState(subId);
+        assertEquals(mTestServiceState, ss);
+        ServiceState redacted = provider.getLocationRedactedServiceState(subId, ss);
+        assertEquals(ServiceStateProvider.getLocationRedactedServiceState(mTestServiceState),
+                redacted);
+        assertSame(redacted, provider.getLocationRedactedServiceState(subId, ss));
+
+        insertServiceState(provider, subId, mTestServiceStateForSubId1);
+        assertTrue(provider.getServiceStateVersion(subId) > version);
+        ServiceState newSs = provider.getServiceState(subId);
+        assertEquals(mTestServiceStateForSubId1, newSs);
+        assertNotSame(redacted, provider.getLocationRedactedServiceState(subId, newSs));
+    }
+
     /**
      * Test that we don't notify for certain field changes. (e.g. we don't notify when the NetworkId
      * or SystemId change) This is an intentional behavior change from the broadcast.
@@ -623,6 +666,97 @@ public class ServiceStateProviderTest {
         assertTrue(notifyChangeCalledForSubIdAndField(oldSS, newSS, subId));
     }
 
+    /**
+     * Verify that all changes of a subscription within the debounce window are notified in one
+     * batch, which contains each changed field once.
+     */
+    @Test
+    @SmallTest
+    public void testInsert_notifiesChangesInOneBatch() {
+        int subId = 1;
+        ServiceStateProvider provider = createProviderRecordingNotifications();
+        ServiceState ss = new ServiceState();
+        ss.setStateOutOfService();
+        insertServiceState(provider, subId, ss);
+        provider.notifyPendingChanges();
+        // The first update notifies all fields.
+        assertEquals(ServiceStateProvider.getChangedUris(null, ss, subId), mNotifiedUris);
+        mNotifiedUris.clear();
+
+        ServiceState voiceChanged = new ServiceState(ss);
+        voiceChanged.setVoiceRegState(ServiceState.STATE_IN_SERVICE);
+        insertServiceState(provider, subId, voiceChanged);
+        ServiceState dataChanged = new ServiceState(voiceChanged);
+        dataChanged.setDataRegState(ServiceState.STATE_IN_SERVICE);
+        insertServiceState(provider, subId, dataChanged);
+        assertTrue(mNotifiedUris.isEmpty());
+        provider.notifyPendingChanges();
+
+        assertEquals(List.of(
+                ServiceStateTable.getUriForSubscriptionIdAndField(subId, VOICE_REG_STATE),
+                ServiceStateTable.getUriForSubscriptionIdAndField(subId, DATA_REG_STATE),
+                getUriForSubscriptionId(subId)), mNotifiedUris);
+        assertEquals(9, provider.getSentNotificationCount());
+        // The subscription URI was requested twice, but only sent once.
+        assertEquals(1, provider.getSuppressedNotificationCount());
+    }
+
+    /**
+     * Verify that a change that is reverted within the debounce window is not notified.
+     */
+    @Test
+    @SmallTest
+    public void testInsert_revertedChangeIsNotNotified() {
+        int subId = 1;
+        ServiceStateProvider provider = createProviderRecordingNotifications();
+        ServiceState ss = new ServiceState();
+        ss.setStateOutOfService();
+        insertServiceState(provider, subId, ss);
+        provider.notifyPendingChanges();
+        mNotifiedUris.clear();
+        long sentCount = provider.getSentNotificationCount();
+
+        ServiceState voiceChanged = new ServiceState(ss);
+        voiceChanged.setVoiceRegState(ServiceState.STATE_IN_SERVICE);
+        insertServiceState(provider, subId, voiceChanged);
+        insertServiceState(provider, subId, new ServiceState(ss));
+        provider.notifyPendingChanges();
+
+        assertTrue(mNotifiedUris.isEmpty());
+        assertEquals(sentCount, provider.getSentNotificationCount());
+        assertEquals(4, provider.getSuppressedNotificationCount());
+    }
+
+    /**
+     * Creates a provider that records the URIs it notifies in mNotifiedUris and only notifies
+     * when {@link ServiceStateProvider#notifyPendingChanges()} is called.
+     */
+    private ServiceStateProvider createProviderRecordingNotifications() {
+        MockContentResolver resolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Uri[] uris, ContentObserver observer, int flags,
+                    int userHandle) {
+                mNotifiedUris.addAll(Arrays.asList(uris));
+            }
+        };
+        Context context = mock(Context.class);
+        doReturn(resolver).when(context).getContentResolver();
+        // Hold the looper, so the debounced notifications never run on their own.
+        mNotifyThread = new HandlerThread("ServiceStateProviderTest");
+        mNotifyThread.start();
+        mNotifyLooperManager = new TestLooperManager(mNotifyThread.getLooper());
+        ServiceStateProvider provider = new ServiceStateProvider(mNotifyThread.getLooper());
+        ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = "service-state";
+        provider.attachInfoForTesting(context, providerInfo);
+        return provider;
+    }
+
+    private void insertServiceState(ServiceStateProvider provider, int subId, ServiceState ss) {
+        provider.insert(getUriForSubscriptionId(subId),
+                ServiceStateProvider.getContentValuesForServiceState(ss));
+    }
+
     // Check if notifyChange was called by notifyChangeForSubId
     private boolean notifyChangeCalledForSubId(ServiceState oldSS,
             ServiceState newSS, int subId) {
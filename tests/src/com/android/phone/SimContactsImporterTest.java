@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit Test for SimContactsImporter.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SimContactsImporterTest {
+    private static final String TAG = "SimContactsImporterTest";
+
+    private File mDatabaseFile;
+    private FakeContactsProvider mProvider;
+    private MockContentResolver mResolver;
+    private int mProcessedCount;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDatabaseFile = new File(context.getCacheDir(), TAG + ".db");
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        mProvider = new FakeContactsProvider(
+                SQLiteDatabase.openOrCreateDatabase(mDatabaseFile, null));
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProvider.mDatabase.close();
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+    }
+
+    @Test
+    @SmallTest
+    public void testImportAll_appliesContactsInBatches() {
+        Cursor cursor = createSimContacts(7);
+        SimContactsImporter importer = new SimContactsImporter(mResolver, null, 3);
+
+        int imported = importer.importAll(cursor, () -> mProcessedCount++);
+
+        assertEquals(7, imported);
+        assertEquals(7, mProcessedCount);
+        assertEquals(3, mProvider.mBatchCount);
+        assertEquals(7, DatabaseUtils.queryNumEntries(mProvider.mDatabase, "raw_contacts"));
+        // Every raw contact has its own name and phone number, in the order of the SIM records.
+        for (int i = 0; i < 7; i++) {
+            assertEquals("Contact " + i, getData(i + 1, StructuredName.CONTENT_ITEM_TYPE));
+            assertEquals(getPhoneNumber(i), getData(i + 1, Phone.CONTENT_ITEM_TYPE));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testImportAll_failedBatch_importsContactsOneAtATime() {
+        Cursor cursor = createSimContacts(6);
+        mProvider.mFailingName = "Contact 4";
+        SimContactsImporter importer = new SimContactsImporter(mResolver, null, 3);
+
+        int imported = importer.importAll(cursor, () -> mProcessedCount++);
+
+        assertEquals(5, imported);
+        assertEquals(6, mProcessedCount);
+        // The contacts of the failed batch before the bad row are not inserted twice.
+        assertEquals(5, DatabaseUtils.queryNumEntries(mProvider.mDatabase, "raw_contacts"));
+        assertEquals(5, DatabaseUtils.longForQuery(mProvider.mDatabase,
+                "SELECT COUNT(DISTINCT data1) FROM data WHERE mimetype = ?",
+                new String[] {StructuredName.CONTENT_ITEM_TYPE}));
+    }
+
+    @Test
+    @SmallTest
+    public void testImportAll_batchesHaveNoYieldPoints() {
+        Cursor cursor = createSimContacts(4);
+        SimContactsImporter importer = new SimContactsImporter(mResolver, null, 4);
+
+        importer.importAll(cursor, () -> mProcessedCount++);
+
+        assertEquals(1, mProvider.mBatchCount);
+        assertEquals(0, mProvider.mYieldCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testImportAll_largeBatch_appliedEarly() {
+        // Each contact with an email address has 4 operations, the others 3.
+        int contactCount = SimContactsImporter.MAX_OPERATIONS_PER_BATCH / 3;
+        Cursor cursor = createSimContacts(contactCount);
+        SimContactsImporter importer = new SimContactsImporter(mResolver, null, contactCount);
+
+        int imported = importer.importAll(cursor, () -> mProcessedCount++);
+
+        assertEquals(contactCount, imported);
+        assertEquals(2, mProvider.mBatchCount);
+        assertEquals(contactCount,
+                DatabaseUtils.queryNumEntries(mProvider.mDatabase, "raw_contacts"));
+    }
+
+    @Test
+    @SmallTest
+    public void testImportAll_canceled_importsProcessedContactsOnly() {
+        Cursor cursor = createSimContacts(10);
+        SimContactsImporter importer = new SimContactsImporter(mResolver, null, 4);
+
+        int imported = importer.importAll(cursor, () -> {
+            if (++mProcessedCount == 2) {
+                importer.cancel();
+            }
+        });
+
+        assertEquals(2, imported);
+        assertEquals(2, mProcessedCount);
+        assertEquals(1, mProvider.mBatchCount);
+        assertEquals(2, DatabaseUtils.queryNumEntries(mProvider.mDatabase, "raw_contacts"));
+    }
+
+    @Test
+    @SmallTest
+    public void testImportAll_reportsProgressPerContact() {
+        Cursor cursor = createSimContacts(6);
+        SimContactsImporter importer = new SimContactsImporter(mResolver, null, 3);
+        List<Integer> appliedBatches = new ArrayList<>();
+
+        importer.importAll(cursor, () -> appliedBatches.add(mProvider.mBatchCount));
+
+        // Each contact is reported on its own, before the batch it belongs to is applied.
+        assertEquals(Arrays.asList(0, 0, 0, 1, 1, 1), appliedBatches);
+    }
+
+    @Test
+    @SmallTest
+    public void testCreate_nonPositiveBatchSize_throwsIllegalArgumentException() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new SimContactsImporter(mResolver, null, 0));
+    }
+
+    /**
+     * Compares batched imports against the one batch per contact import it replaces. Only logs
+     * the throughput, it depends too much on the device to assert on.
+     */
+    @Test
+    @LargeTest
+    public void testImportTiming() {
+        int contactCount = 500;
+
+        Cursor cursor = createSimContacts(contactCount);
+        long start = System.nanoTime();
+        while (cursor.moveToNext()) {
+            SimContacts.actuallyImportOneSimContact(cursor, mResolver, null);
+        }
+        long perRowNs = System.nanoTime() - start;
+        assertEquals(contactCount, mProvider.mBatchCount);
+
+        cursor = createSimContacts(contactCount);
+        SimContactsImporter importer = new SimContactsImporter(mResolver, null,
+                SimContactsImporter.DEFAULT_BATCH_SIZE);
+        start = System.nanoTime();
+        int imported = importer.importAll(cursor, () -> { });
+        long batchedNs = System.nanoTime() - start;
+
+        assertEquals(contactCount, imported);
+        Log.i(TAG, "per row: " + contactCount * 1_000_000_000L / perRowNs + " contacts/s, batched ("
+                + SimContactsImporter.DEFAULT_BATCH_SIZE + "): "
+                + contactCount * 1_000_000_000L / batchedNs + " contacts/s");
+    }
+
+    private static Cursor createSimContacts(int count) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {"name", "number", "emails"});
+        for (int i = 0; i < count; i++) {
+            cursor.addRow(new Object[] {"Contact " + i, getPhoneNumber(i),
+                    i % 2 == 0 ? "contact" + i + "@example.com" : null});
+        }
+        return cursor;
+    }
+
+    private static String getPhoneNumber(int index) {
+        return "555" + (1000 + index);
+    }
+
+    private String getData(long rawContactId, String mimeType) {
+        return DatabaseUtils.stringForQuery(mProvider.mDatabase,
+                "SELECT data1 FROM data WHERE raw_contact_id = ? AND mimetype = ?",
+                new String[] {Long.toString(rawContactId), mimeType});
+    }
+
+    /**
+     * Applies each batch in its own transaction, like the contacts provider, to a database with
+     * only the columns written by the import. Like the contacts provider under contention, the
+     * transaction is committed at every yield point, so the operations before the last yield point
+     * stay applied when a later one fails.
+     */
+    private static class FakeContactsProvider extends MockContentProvider {
+        final SQLiteDatabase mDatabase;
+        int mBatchCount;
+        int mYieldCount;
+        String mFailingName;
+
+        FakeContactsProvider(SQLiteDatabase database) {
+            mDatabase = database;
+            mDatabase.execSQL("CREATE TABLE raw_contacts (_id INTEGER PRIMARY KEY,"
+                    + " account_name TEXT, account_type TEXT)");
+            mDatabase.execSQL("CREATE TABLE data (_id INTEGER PRIMARY KEY,"
+                    + " raw_contact_id INTEGER, mimetype TEXT, data1 TEXT, data2 TEXT,"
+                    + " is_primary INTEGER)");
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(String authority,
+                ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            mBatchCount++;
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            mDatabase.beginTransaction();
+            try {
+                for (int i = 0; i < operations.size(); i++) {
+                    if (i > 0 && operations.get(i).isYieldAllowed()) {
+                        mYieldCount++;
+                        mDatabase.setTransactionSuccessful();
+                        mDatabase.endTransaction();
+                        mDatabase.beginTransaction();
+                    }
+                    // Throws OperationApplicationException when insert() returns null.
+                    results[i] = operations.get(i).apply(this, results, i);
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            return results;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            if (RawContacts.CONTENT_URI.equals(uri)) {
+                return ContentUris.withAppendedId(uri,
+                        mDatabase.insertOrThrow("raw_contacts", "account_name", values));
+            }
+            if (mFailingName != null
+                    && mFailingName.equals(values.getAsString(StructuredName.DISPLAY_NAME))
+                    && StructuredName.CONTENT_ITEM_TYPE.equals(values.getAsString(Data.MIMETYPE))) {
+                return null;
+            }
+            return ContentUris.withAppendedId(uri, mDatabase.insertOrThrow("data", null, values));
+        }
+    }
+}
@@ -39,6 +39,7 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.SimPhonebookContract;
 import android.provider.SimPhonebookContract.ElementaryFiles;
 import android.provider.SimPhonebookContract.SimRecords;
@@ -416,6 +417,51 @@ public final class SimPhonebookProviderTest {
         }
     }
 
+    @Test
+    public void query_simRecords_withOffsetAndLimit_returnsPageOfNonEmptyRecords() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.setDefaultSubscriptionId(1);
+        mIccPhoneBook.addRecord(new AdnRecord(IccConstants.EF_ADN, 1, "Person1", "8005550101"));
+        mIccPhoneBook.addRecord(new AdnRecord(IccConstants.EF_ADN, 2, "Person2", "8005550102"));
+        mIccPhoneBook.addRecord(new AdnRecord(IccConstants.EF_ADN, 4, "Person4", "8005550104"));
+        mIccPhoneBook.addRecord(new AdnRecord(IccConstants.EF_ADN, 5, "Person5", "8005550105"));
+
+        Bundle queryArgs = new Bundle();
+        queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, 1);
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, 2);
+        String[] projection = {SimRecords.RECORD_NUMBER, SimRecords.NAME};
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), projection,
+                queryArgs, null)) {
+            assertThat(cursor).hasCount(2);
+            assertThat(cursor)
+                    .atRow(0).hasRowValues(2, "Person2")
+                    .atRow(1).hasRowValues(4, "Person4");
+            Bundle extras = cursor.getExtras();
+            assertThat(extras.getInt(ContentResolver.EXTRA_TOTAL_COUNT)).isEqualTo(4);
+            assertThat(extras.getStringArray(ContentResolver.EXTRA_HONORED_ARGS)).asList()
+                    .containsExactly(ContentResolver.QUERY_ARG_OFFSET,
+                            ContentResolver.QUERY_ARG_LIMIT);
+        }
+
+        // An offset past the last record returns an empty page.
+        queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, 4);
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), projection,
+                queryArgs, null)) {
+            assertThat(cursor).hasCount(0);
+        }
+    }
+
+    @Test
+    public void query_simRecords_negativeLimit_throwsIllegalArgumentException() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        Bundle queryArgs = new Bundle();
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, -1);
+
+        assertThrows(IllegalArgumentException.class, () ->
+                mResolver.query(SimRecords.getContentUri(1, EF_ADN), null, queryArgs, null));
+    }
+
     @Test
     public void query_adnRecords_returnsAdnData() {
         setupSimsWithSubscriptionIds(1, 2, 4);
@@ -766,6 +812,53 @@ public final class SimPhonebookProviderTest {
         assertThat(insert3).isEqualTo(SimRecords.getItemUri(1, ElementaryFiles.EF_ADN, 6));
     }
 
+    @Test
+    public void insertUpdateDelete_adnRecords_readsRecordsFromSimOnce() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Existing", "8005550101");
+
+        ContentValues values = new ContentValues();
+        values.put(SimRecords.NAME, "New");
+        values.put(SimRecords.PHONE_NUMBER, "8005550102");
+        Uri inserted = mResolver.insert(SimRecords.getContentUri(1, EF_ADN), values);
+        values.put(SimRecords.NAME, "Updated");
+        mResolver.update(SimRecords.getItemUri(1, EF_ADN, 1), values, null);
+        mResolver.delete(inserted, null);
+
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), new String[]{
+                SimRecords.RECORD_NUMBER, SimRecords.NAME, SimRecords.PHONE_NUMBER
+        }, null, null)) {
+            assertThat(cursor).hasCount(1);
+            assertThat(cursor).atRow(0).hasRowValues(1, "Updated", "8005550102");
+        }
+        assertThat(mIccPhoneBook.getRecordsLoadCount(1, IccConstants.EF_ADN)).isEqualTo(1);
+    }
+
+    @Test
+    public void query_afterCacheInvalidated_readsRecordsFromSimAgain() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        mIccPhoneBook.addAdnRecord(1, "Name", "8005550101");
+        SimPhonebookProvider provider = (SimPhonebookProvider) Objects.requireNonNull(
+                mResolver.acquireContentProviderClient(SimPhonebookContract.AUTHORITY))
+                .getLocalContentProvider();
+
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), null, null,
+                null)) {
+            assertThat(cursor).hasCount(1);
+        }
+        // Written without going through the provider.
+        mIccPhoneBook.addAdnRecord(1, "Other", "8005550102");
+        provider.invalidateCachedRecords(1);
+
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), null, null,
+                null)) {
+            assertThat(cursor).hasCount(2);
+        }
+        assertThat(mIccPhoneBook.getRecordsLoadCount(1, IccConstants.EF_ADN)).isEqualTo(2);
+    }
+
     @Test
     public void insert_efFull_throwsCorrectException() {
         setupSimsWithSubscriptionIds(1);
@@ -1355,6 +1448,7 @@ public final class SimPhonebookProviderTest {
         private Map<Pair<Integer, Integer>, int[]> mRecordSizes = new HashMap<>();
 
         private int mDefaultSubscriptionId = 101;
+        private Map<Pair<Integer, Integer>, Integer> mRecordsLoadCounts = new HashMap<>();
 
         private void addRecord(Pair<Integer, Integer> key, AdnRecord record) {
             // Assume that if records are being added then the test wants it to be a valid
@@ -1474,6 +1568,11 @@ public final class SimPhonebookProviderTest {
             return records;
         }
 
+        /** Returns how many times the records of the EF have been read. */
+        public int getRecordsLoadCount(int subscriptionId, int efid) {
+            return mRecordsLoadCounts.getOrDefault(Pair.create(subscriptionId, efid), 0);
+        }
+
         public void setDefaultSubscriptionId(int defaultSubscriptionId) {
             mDefaultSubscriptionId = defaultSubscriptionId;
         }
@@ -1490,6 +1589,7 @@ public final class SimPhonebookProviderTest {
 
         @Override
         public List<AdnRecord> getAdnRecordsInEfForSubscriber(int subId, int efid) {
+            mRecordsLoadCounts.merge(Pair.create(subId, efid), 1, Integer::sum);
             return Arrays.asList(
                     mRecords.getOrDefault(Pair.create(subId, efid), new AdnRecord[0]));
         }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class CarrierCallPolicyTest {
+    private static final int SUB_ID = 1;
+
+    @Before
+    public void setUp() {
+        CarrierCallPolicy.invalidate(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+    }
+
+    @After
+    public void tearDown() {
+        CarrierCallPolicy.invalidate(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+    }
+
+    @Test
+    @SmallTest
+    public void testFromCarrierConfig_readsCarrierConfigValues() {
+        PersistableBundle b = new PersistableBundle();
+        b.putBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL, true);
+        b.putBoolean(CarrierConfigManager.KEY_ALLOW_MERGING_RTT_CALLS_BOOL, true);
+        b.putStringArray(CarrierConfigManager.KEY_FILTERED_CNAP_NAMES_STRING_ARRAY,
+                new String[] {"UNKNOWN", "PRIVATE"});
+
+        CarrierCallPolicy policy = CarrierCallPolicy.fromCarrierConfig(b);
+
+        assertTrue(policy.allowHoldInImsCall);
+        assertTrue(policy.allowMergingRttCalls);
+        assertFalse(policy.allowTransferImsCall);
+        assertTrue(policy.filteredCnapNames.contains("PRIVATE"));
+        assertFalse(policy.filteredCnapNames.contains("private"));
+    }
+
+    @Test
+    @SmallTest
+    public void testGetForSubId_buildsPolicyOncePerCarrierConfigChange() {
+        AtomicInteger loadCount = new AtomicInteger();
+        PersistableBundle b = new PersistableBundle();
+
+        CarrierCallPolicy policy = CarrierCallPolicy.getForSubId(SUB_ID, () -> {
+            loadCount.incrementAndGet();
+            return b;
+        });
+        assertSame(policy, CarrierCallPolicy.getForSubId(SUB_ID, () -> {
+            loadCount.incrementAndGet();
+            return b;
+        }));
+        assertEquals(1, loadCount.get());
+
+        b.putBoolean(CarrierConfigManager.KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL, true);
+        CarrierCallPolicy.invalidate(SUB_ID);
+        CarrierCallPolicy newPolicy = CarrierCallPolicy.getForSubId(SUB_ID, () -> {
+            loadCount.incrementAndGet();
+            return b;
+        });
+
+        assertNotSame(policy, newPolicy);
+        assertTrue(newPolicy.allowTransferImsCall);
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    @SmallTest
+    public void testGetForSubId_carrierConfigNotLoaded_doesNotCacheDefaultPolicy() {
+        AtomicInteger loadCount = new AtomicInteger();
+        PersistableBundle b = new PersistableBundle();
+        b.putBoolean(CarrierConfigManager.KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL, true);
+
+        CarrierCallPolicy defaultPolicy = CarrierCallPolicy.getForSubId(SUB_ID, () -> {
+            loadCount.incrementAndGet();
+            return null;
+        });
+        CarrierCallPolicy policy = CarrierCallPolicy.getForSubId(SUB_ID, () -> {
+            loadCount.incrementAndGet();
+            return b;
+        });
+
+        assertEquals(CarrierConfigManager.getDefaultConfig().getBoolean(
+                CarrierConfigManager.KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL),
+                defaultPolicy.allowTransferImsCall);
+        assertTrue(policy.allowTransferImsCall);
+        assertSame(policy, CarrierCallPolicy.getForSubId(SUB_ID, () -> b));
+        assertEquals(2, loadCount.get());
+    }
+
+    @Test
+    @SmallTest
+    public void testGetForSubId_invalidatedWhileLoading_doesNotCachePolicy() {
+        AtomicInteger loadCount = new AtomicInteger();
+
+        CarrierCallPolicy.getForSubId(SUB_ID, () -> {
+            loadCount.incrementAndGet();
+            CarrierCallPolicy.invalidate(SUB_ID);
+            return new PersistableBundle();
+        });
+        CarrierCallPolicy.getForSubId(SUB_ID, () -> {
+            loadCount.incrementAndGet();
+            return new PersistableBundle();
+        });
+
+        assertEquals(2, loadCount.get());
+    }
+}
@@ -20,8 +20,14 @@ import static android.media.ToneGenerator.TONE_PROP_PROMPT;
 import static android.media.ToneGenerator.TONE_SUP_BUSY;
 
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.TestCase.assertEquals;
 
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
@@ -31,18 +37,26 @@ import android.content.res.Resources;
 import android.os.PersistableBundle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.DisconnectCause;
+import android.telephony.SubscriptionManager;
 
 import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.TelephonyTestBase;
 import com.android.internal.telephony.CallFailCause;
+import com.android.phone.PhoneGlobals;
 import com.android.phone.R;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 @RunWith(AndroidJUnit4.class)
@@ -51,6 +65,7 @@ public class DisconnectCauseUtilTest extends TelephonyTestBase {
     // constants
     public static final int PHONE_ID = 123;
     public static final String EMPTY_STRING = "";
+    private static final int SUB_ID = 1;
 
     private final FlagsAdapter mFeatureFlags = new FlagsAdapter(){
         @Override
@@ -59,9 +74,18 @@ public class DisconnectCauseUtilTest extends TelephonyTestBase {
         }
     };
 
+    private final FlagsAdapter mOverridePreciseLabelFlags = () -> false;
+
     @Before
     public void setUp() throws Exception {
         super.setUp();
+        DisconnectCauseUtil.invalidateBusyCauses(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DisconnectCauseUtil.invalidateBusyCauses(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        super.tearDown();
     }
 
     /**
@@ -216,6 +240,148 @@ public class DisconnectCauseUtilTest extends TelephonyTestBase {
                 DisconnectCause.BUSY, getBundleWithBusyToneArray()));
     }
 
+    /**
+     * Verifies that converting every telephony disconnect cause through the mapping table gives
+     * the same result as evaluating the mappings directly, with and without a carrier busy tone
+     * override and a precise disconnect cause.
+     */
+    @Test
+    @SmallTest
+    public void testMappingTable_matchesDirectMappingForEveryDisconnectCause() {
+        int[] preciseCauses = {CallFailCause.NOT_VALID, CallFailCause.USER_BUSY,
+                CallFailCause.ERROR_UNSPECIFIED /* has no label of its own */};
+        for (int cause : getIntConstants(DisconnectCause.class)) {
+            // The labels and descriptions of these depend on the device state, which is not set
+            // up here. They are not taken from the table.
+            if (DisconnectCauseUtil.isStateDependentDisconnectCause(cause)) {
+                continue;
+            }
+            PersistableBundle busyConfig = new PersistableBundle();
+            busyConfig.putIntArray(
+                    CarrierConfigManager.KEY_DISCONNECT_CAUSE_PLAY_BUSYTONE_INT_ARRAY,
+                    new int[] {cause});
+            for (PersistableBundle config : new PersistableBundle[] {null, busyConfig}) {
+                for (FlagsAdapter flags : new FlagsAdapter[] {
+                        mFeatureFlags, mOverridePreciseLabelFlags}) {
+                    for (int preciseCause : preciseCauses) {
+                        assertMatchesDirectMapping(cause, preciseCause, config, flags);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies that the mapping table gives the same label as the direct mapping for every
+     * precise disconnect cause.
+     */
+    @Test
+    @SmallTest
+    public void testMappingTable_matchesDirectMappingForEveryPreciseDisconnectCause() {
+        for (int preciseCause : getIntConstants(CallFailCause.class)) {
+            assertMatchesDirectMapping(DisconnectCause.ERROR_UNSPECIFIED, preciseCause, null,
+                    mFeatureFlags);
+            assertMatchesDirectMapping(DisconnectCause.BUSY, preciseCause,
+                    getBundleWithBusyToneArray(), mOverridePreciseLabelFlags);
+        }
+    }
+
+    /**
+     * Verifies that a mapping table is shared by conversions with the same carrier busy tone
+     * causes, and that other busy tone causes get their own table.
+     */
+    @Test
+    @SmallTest
+    public void testMappingTable_sharedPerCarrierBusyToneCauses() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        PersistableBundle config = getBundleWithBusyToneArray();
+        DisconnectCauseUtil.MappingTable table =
+                DisconnectCauseUtil.MappingTable.get(context, config, mFeatureFlags);
+
+        assertSame(table, DisconnectCauseUtil.MappingTable.get(context,
+                getBundleWithBusyToneArray(), mFeatureFlags));
+        assertSame(table.getRow(DisconnectCause.BUSY), table.getRow(DisconnectCause.BUSY));
+        assertNotSame(table, DisconnectCauseUtil.MappingTable.get(context, null, mFeatureFlags));
+        assertNotSame(table, DisconnectCauseUtil.MappingTable.get(context, config,
+                mOverridePreciseLabelFlags));
+    }
+
+    /**
+     * Verifies that the carrier busy tone causes of a subscription are read from its carrier
+     * config once, and read again after the carrier config changed.
+     */
+    @Test
+    @SmallTest
+    public void testBusyCauses_cachedUntilCarrierConfigChanged() {
+        doReturn(SUB_ID).when(mPhone).getSubId();
+        PersistableBundle config = new PersistableBundle();
+        config.putIntArray(CarrierConfigManager.KEY_DISCONNECT_CAUSE_PLAY_BUSYTONE_INT_ARRAY,
+                new int[] {DisconnectCause.ERROR_UNSPECIFIED});
+        doReturn(config).when(mPhoneGlobals).getCarrierConfigForSubId(SUB_ID);
+
+        assertEquals(android.telecom.DisconnectCause.BUSY, toTelecomDisconnectCauseCode(0));
+        assertEquals(android.telecom.DisconnectCause.BUSY, toTelecomDisconnectCauseCode(0));
+        verify(mPhoneGlobals, times(1)).getCarrierConfigForSubId(anyInt());
+
+        doReturn(new PersistableBundle()).when(mPhoneGlobals).getCarrierConfigForSubId(SUB_ID);
+        DisconnectCauseUtil.invalidateBusyCauses(SUB_ID);
+
+        assertEquals(android.telecom.DisconnectCause.ERROR, toTelecomDisconnectCauseCode(0));
+        verify(mPhoneGlobals, times(2)).getCarrierConfigForSubId(anyInt());
+    }
+
+    /** Verifies that a carrier config which is not loaded yet is not cached. */
+    @Test
+    @SmallTest
+    public void testBusyCauses_missingCarrierConfigNotCached() {
+        doReturn(SUB_ID).when(mPhone).getSubId();
+        doReturn(null).when(mPhoneGlobals).getCarrierConfigForSubId(SUB_ID);
+
+        assertEquals(android.telecom.DisconnectCause.ERROR, toTelecomDisconnectCauseCode(0));
+        assertEquals(android.telecom.DisconnectCause.ERROR, toTelecomDisconnectCauseCode(0));
+        verify(mPhoneGlobals, times(2)).getCarrierConfigForSubId(anyInt());
+    }
+
+    private int toTelecomDisconnectCauseCode(int phoneId) {
+        return DisconnectCauseUtil.toTelecomDisconnectCause(DisconnectCause.ERROR_UNSPECIFIED,
+                -1, EMPTY_STRING, phoneId, null, mFeatureFlags).getCode();
+    }
+
+    private void assertMatchesDirectMapping(int cause, int preciseCause,
+            PersistableBundle carrierConfig, FlagsAdapter flags) {
+        String message = "cause " + cause + ", precise cause " + preciseCause + ", busy "
+                + (carrierConfig != null) + ", doNotOverridePreciseLabel "
+                + flags.doNotOverridePreciseLabel();
+        android.telecom.DisconnectCause expected =
+                DisconnectCauseUtil.computeTelecomDisconnectCause(PhoneGlobals.getInstance(),
+                        cause, preciseCause, EMPTY_STRING, PHONE_ID, null, carrierConfig, flags,
+                        false);
+        android.telecom.DisconnectCause actual = DisconnectCauseUtil.toTelecomDisconnectCause(
+                cause, preciseCause, EMPTY_STRING, PHONE_ID, null, carrierConfig, flags, false);
+
+        assertEquals(message, expected.getCode(), actual.getCode());
+        assertEquals(message, expected.getTone(), actual.getTone());
+        assertEquals(message, String.valueOf(expected.getLabel()),
+                String.valueOf(actual.getLabel()));
+        assertEquals(message, String.valueOf(expected.getDescription()),
+                String.valueOf(actual.getDescription()));
+        assertEquals(message, expected.getReason(), actual.getReason());
+    }
+
+    private static List<Integer> getIntConstants(Class<?> clazz) {
+        List<Integer> constants = new ArrayList<>();
+        for (Field field : clazz.getFields()) {
+            if (field.getType() == int.class && Modifier.isStatic(field.getModifiers())) {
+                try {
+                    constants.add(field.getInt(null));
+                } catch (IllegalAccessException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        return constants;
+    }
+
     private void assertBusyCauseWithTargetLabel(Integer targetLabel,
             android.telecom.DisconnectCause disconnectCause) {
         // CODE: Describes the cause of a disconnected call
@@ -40,7 +40,9 @@ import android.telecom.StatusHints;
 import android.telecom.TelecomManager;
 import android.telephony.TelephonyManager;
 import android.testing.AndroidTestingRunner;
+import android.util.Log;
 
+import androidx.test.filters.LargeTest;
 import androidx.test.filters.SmallTest;
 
 import com.android.TelephonyTestBase;
@@ -53,6 +55,7 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -885,4 +888,57 @@ public class ImsConferenceTest extends TelephonyTestBase {
         assertFalse(ImsConference.isParticipantHost(null, null));
         assertFalse(ImsConference.isParticipantHost(new Uri[0], null));
     }
+
+    /**
+     * Measures conference event package updates for a 50 participant conference where each
+     * update changes the state of one participant and replaces another.  Only logs the time per
+     * update, it depends too much on the device to assert on.
+     */
+    @Test
+    @LargeTest
+    public void testConferenceParticipantsUpdateTiming() {
+        int participantCount = 50;
+        int updateCount = 1000;
+        when(mMockTelecomAccountRegistry.isUsingSimCallManager(any(PhoneAccountHandle.class)))
+                .thenReturn(false);
+        ImsConference imsConference = new ImsConference(mMockTelecomAccountRegistry,
+                mMockTelephonyConnectionServiceProxy, mConferenceHost,
+                null /* phoneAccountHandle */, () -> true /* featureFlagProxy */,
+                new ImsConference.CarrierConfiguration.Builder().build());
+
+        List<ConferenceParticipant> participants = new ArrayList<>(participantCount);
+        for (int i = 0; i < participantCount; i++) {
+            participants.add(createParticipant(i, Connection.STATE_ACTIVE));
+        }
+        imsConference.handleConferenceParticipantsUpdate(mConferenceHost, participants);
+        assertEquals(participantCount, imsConference.getNumberOfParticipants());
+
+        long start = System.nanoTime();
+        for (int update = 0; update < updateCount; update++) {
+            List<ConferenceParticipant> cep = new ArrayList<>(participants);
+            int held = update % participantCount;
+            cep.set(held, createParticipant(held, update % 2 == 0
+                    ? Connection.STATE_HOLDING : Connection.STATE_ACTIVE));
+            int replaced = (update + participantCount / 2) % participantCount;
+            cep.set(replaced, createParticipant(participantCount + update,
+                    Connection.STATE_ACTIVE));
+            participants = cep;
+            imsConference.handleConferenceParticipantsUpdate(mConferenceHost, participants);
+        }
+        long elapsedNs = System.nanoTime() - start;
+
+        assertEquals(participantCount, imsConference.getNumberOfParticipants());
+        Log.i("ImsConferenceTest", participantCount + " participants: "
+                + elapsedNs / updateCount / 1000 + " us per update");
+    }
+
+    private static ConferenceParticipant createParticipant(int index, int state) {
+        String number = Long.toString(6505550000L + index);
+        return new ConferenceParticipant(
+                Uri.parse("tel:" + number),
+                "Participant " + index,
+                Uri.parse("sip:" + number + "@testims.com"),
+                state,
+                Call.Details.DIRECTION_OUTGOING);
+    }
 }
@@ -21,6 +21,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -36,6 +37,7 @@ import android.os.PersistableBundle;
 import android.os.UserHandle;
 import android.platform.test.flag.junit.SetFlagsRule;
 import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telephony.CarrierConfigManager;
 import android.telephony.ServiceState;
@@ -200,6 +202,66 @@ public class TelecomAccountRegistryTest extends TelephonyTestBase {
                 PhoneAccount.CAPABILITY_PLACE_EMERGENCY_CALLS)).isTrue();
     }
 
+    @Test
+    public void userSwitched_withPSTNAccount_registeredAccountCanBeLookedUp() {
+        onUserSwitched(UserHandle.CURRENT);
+
+        PhoneAccountHandle handle = verifyAndCaptureRegisteredPhoneAccount().getAccountHandle();
+
+        assertThat(mTelecomAccountRegistry.hasAccountEntryForPhoneAccount(handle)).isTrue();
+        assertThat(mTelecomAccountRegistry.getPhoneAccountHandleForSubId(TEST_SUB_ID))
+                .isEqualTo(handle);
+        assertThat(mTelecomAccountRegistry.hasAccountEntryForPhoneAccount(
+                new PhoneAccountHandle(handle.getComponentName(), "unknown"))).isFalse();
+    }
+
+    @Test
+    public void carrierConfigChanged_readsCarrierConfigOnceForReRegistration() {
+        onUserSwitched(UserHandle.CURRENT);
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putBoolean(CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_AVAILABLE_BOOL, true);
+        bundle.putIntArray(CarrierConfigManager.KEY_CELLULAR_SERVICE_CAPABILITIES_INT_ARRAY,
+                new int[]{SubscriptionManager.SERVICE_CAPABILITY_VOICE});
+        when(mPhoneGlobals.getCarrierConfigForSubId(anyInt())).thenReturn(bundle);
+        clearInvocations(mPhoneGlobals);
+
+        onCarrierConfigChanged(TEST_SUB_ID);
+
+        verify(mPhoneGlobals, times(1)).getCarrierConfigForSubId(TEST_SUB_ID);
+        PhoneAccount phoneAccount = verifyAndCaptureRegisteredPhoneAccount();
+        assertThat(phoneAccount.hasCapabilities(PhoneAccount.CAPABILITY_CALL_SUBJECT)).isTrue();
+    }
+
+    @Test
+    public void refreshTriggers_unchangedAccount_registeredOnce() {
+        Intent intent = new Intent(Intent.ACTION_LOCALE_CHANGED);
+        mLocaleChangedBroadcastReceiver.onReceive(mMockedContext, intent);
+        mLocaleChangedBroadcastReceiver.onReceive(mMockedContext, intent);
+        mTestableLooper.processAllMessages();
+
+        verify(mTelecomManager, times(1)).registerPhoneAccount(any(PhoneAccount.class));
+        assertThat(mTelecomAccountRegistry.getAppliedRegistrationCount()).isEqualTo(1);
+
+        onLocaleChanged();
+
+        verify(mTelecomManager, times(1)).registerPhoneAccount(any(PhoneAccount.class));
+        assertThat(mTelecomAccountRegistry.getAppliedRegistrationCount()).isEqualTo(1);
+        assertThat(mTelecomAccountRegistry.getSkippedRegistrationCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void userSwitched_unchangedAccount_registeredAgain() {
+        onLocaleChanged();
+        verify(mTelecomManager, times(1)).registerPhoneAccount(any(PhoneAccount.class));
+
+        // Telecom may have dropped the account for the new user, so it is not skipped.
+        onUserSwitched(UserHandle.SYSTEM);
+
+        verify(mTelecomManager, times(2)).registerPhoneAccount(any(PhoneAccount.class));
+        assertThat(mTelecomAccountRegistry.getAppliedRegistrationCount()).isEqualTo(2);
+        assertThat(mTelecomAccountRegistry.getSkippedRegistrationCount()).isEqualTo(0);
+    }
+
     @Test
     public void onLocaleChanged_withPSTNAccountDisabled_shouldRegisterEmergencyOnlyAccount() {
         when(mResources.getBoolean(R.bool.config_pstn_phone_accounts_enabled)).thenReturn(false);
@@ -264,11 +326,13 @@ public class TelecomAccountRegistryTest extends TelephonyTestBase {
     private void onSubscriptionsChanged() {
         Log.d(TAG, "Change subscriptions...");
         mOnSubscriptionsChangedListener.onSubscriptionsChanged();
+        mTestableLooper.processAllMessages();
     }
 
     private void onAddSubscriptionListenerFailed() {
         Log.d(TAG, "Add subscription listener failed...");
         mOnSubscriptionsChangedListener.onAddListenerFailed();
+        mTestableLooper.processAllMessages();
     }
 
     private void onServiceStateChanged(ServiceState serviceState) {
@@ -277,6 +341,7 @@ public class TelecomAccountRegistryTest extends TelephonyTestBase {
                     (TelephonyCallback.ServiceStateListener) mTelephonyCallback;
             listener.onServiceStateChanged(serviceState);
         }
+        mTestableLooper.processAllMessages();
     }
 
     private void onActiveDataSubscriptionIdChanged(int subId) {
@@ -291,12 +356,14 @@ public class TelecomAccountRegistryTest extends TelephonyTestBase {
         Log.d(TAG, "Broadcast ACTION_LOCALE_CHANGED...");
         Intent intent = new Intent(Intent.ACTION_LOCALE_CHANGED);
         mLocaleChangedBroadcastReceiver.onReceive(mMockedContext, intent);
+        mTestableLooper.processAllMessages();
     }
 
     private void onNetworkCountryChanged() {
         Log.d(TAG, "Broadcast ACTION_NETWORK_COUNTRY_CHANGED...");
         Intent intent = new Intent(TelephonyManager.ACTION_NETWORK_COUNTRY_CHANGED);
         mLocaleChangedBroadcastReceiver.onReceive(mMockedContext, intent);
+        mTestableLooper.processAllMessages();
     }
 
     private void overrideSubscriptionServiceCapabilities(int[] capabilities) {
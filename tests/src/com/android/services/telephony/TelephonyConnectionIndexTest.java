@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.telecom.Connection;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.TelephonyTestBase;
+import com.android.internal.telephony.Phone;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class TelephonyConnectionIndexTest extends TelephonyTestBase {
+
+    private TelephonyConnectionIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mIndex = new TelephonyConnectionIndex();
+    }
+
+    @Test
+    @SmallTest
+    public void testGetConnection_findsConnectionByOriginalConnection() {
+        TestTelephonyConnection c1 = new TestTelephonyConnection();
+        TestTelephonyConnection c2 = new TestTelephonyConnection();
+        mIndex.add(c1);
+        mIndex.add(c2);
+
+        assertEquals(2, mIndex.size());
+        assertSame(c1, mIndex.getConnection(c1.getOriginalConnection()));
+        assertSame(c2, mIndex.getConnection(c2.getOriginalConnection()));
+
+        mIndex.remove(c1);
+        assertNull(mIndex.getConnection(c1.getOriginalConnection()));
+        assertSame(c2, mIndex.getConnection(c2.getOriginalConnection()));
+        assertEquals(1, mIndex.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testUpdate_originalConnectionSwapped_reindexesConnection() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        com.android.internal.telephony.Connection radioConnection = c.getOriginalConnection();
+        mIndex.add(c);
+
+        c.setIsImsConnection(true);
+        mIndex.update(c);
+
+        assertNull(mIndex.getConnection(radioConnection));
+        assertSame(c, mIndex.getConnection(c.getOriginalConnection()));
+    }
+
+    @Test
+    @SmallTest
+    public void testStateChange_movesConnectionBetweenStates() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        c.setConnectionIndex(mIndex);
+        mIndex.add(c);
+
+        c.setActive();
+        assertEquals(List.of(c), mIndex.getConnectionsInState(Connection.STATE_ACTIVE));
+
+        c.setOnHold();
+        assertTrue(mIndex.getConnectionsInState(Connection.STATE_ACTIVE).isEmpty());
+        assertEquals(List.of(c), mIndex.getConnectionsInState(Connection.STATE_HOLDING));
+
+        mIndex.remove(c);
+        assertTrue(mIndex.getConnectionsInState(Connection.STATE_HOLDING).isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testUpdate_phoneChanged_movesConnectionBetweenPhones() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        mIndex.add(c);
+        assertEquals(List.of(c), mIndex.getConnectionsForPhone(0));
+
+        Phone phone1 = mock(Phone.class);
+        when(phone1.getPhoneId()).thenReturn(1);
+        c.setMockPhone(phone1);
+        mIndex.update(c);
+
+        assertTrue(mIndex.getConnectionsForPhone(0).isEmpty());
+        assertEquals(List.of(c), mIndex.getConnectionsForPhone(1));
+    }
+}
@@ -237,6 +237,12 @@ public class TestTelephonyConnection extends TelephonyConnection {
         return mCarrierConfig;
     }
 
+    @Override
+    public CarrierCallPolicy getCarrierCallPolicy() {
+        // Built on every call so changes made to the bundle by a test are seen.
+        return CarrierCallPolicy.fromCarrierConfig(mCarrierConfig);
+    }
+
     @Override
     public void refreshConferenceSupported() {
         if (mIsImsConnection) {
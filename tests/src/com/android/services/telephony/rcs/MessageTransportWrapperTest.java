@@ -16,6 +16,7 @@
 
 package com.android.services.telephony.rcs;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
@@ -25,6 +26,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -51,6 +53,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
@@ -58,6 +61,7 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Consumer;
@@ -149,7 +153,7 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
 
         Boolean[] result = new Boolean[1];
         Consumer<Set<String>> callIdConsumer = closeTrackerGracefully(tracker, closingReason,
-                closedReason, (r) -> result[0] = r);
+                closedReason, () -> { }, (r) -> result[0] = r);
         callIdConsumer.accept(Collections.emptySet());
         // Verify that the pending call IDs are closed properly.
         verify(mTransportSipSessionValidator, never()).onSipSessionCleanup(anyString());
@@ -171,7 +175,7 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
 
         Boolean[] result = new Boolean[1];
         Consumer<Set<String>> callIdConsumer = closeTrackerGracefully(tracker, closingReason,
-                closedReason, (r) -> result[0] = r);
+                closedReason, () -> { }, (r) -> result[0] = r);
         callIdConsumer.accept(callIds);
         // Verify that the pending call IDs are closed properly.
         for (String callId : callIds) {
@@ -194,12 +198,105 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
         MessageTransportWrapper tracker = createTestMessageTransportWrapper();
         tracker.openTransport(mISipDelegate, Collections.emptySet(), Collections.emptySet());
 
-        tracker.close(closedReason);
+        boolean[] isClosed = new boolean[1];
+        tracker.close(closedReason, () -> isClosed[0] = true);
         // Verify that the pending call IDs are closed properly.
         for (String callId : callIds) {
             verify(mTransportSipSessionValidator).onSipSessionCleanup(callId);
             verify(mISipDelegate).cleanupSession(callId);
         }
+        assertTrue(isClosed[0]);
+    }
+
+    @SmallTest
+    @Test
+    public void testLaneMessagesAndCloseRunInOrder() throws Exception {
+        TestExecutorService lanePool = new TestExecutorService(true /*waitToComplete*/);
+        MessageTransportWrapper tracker = createTestMessageTransportWrapper(lanePool);
+        int closedReason = SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED;
+        doReturn(Collections.emptySet()).when(mTransportSipSessionValidator)
+                .closeSessions(closedReason);
+        doReturn(ValidationResult.SUCCESS).when(mTransportSipSessionValidator)
+                .verifyOutgoingMessage(TEST_MESSAGE, 1 /*version*/);
+
+        tracker.openTransport(mISipDelegate, Collections.emptySet(), Collections.emptySet());
+        tracker.getDelegateConnection().sendMessage(TEST_MESSAGE, 1 /*version*/);
+        boolean[] isClosed = new boolean[1];
+        tracker.close(closedReason, () -> isClosed[0] = true);
+        // Nothing runs until the lane does, and the close only completes once it has run.
+        verify(mISipDelegate, never()).sendMessage(any(), anyLong());
+        assertFalse(isClosed[0]);
+
+        lanePool.executePending();
+        InOrder inOrder = inOrder(mTransportSipSessionValidator, mISipDelegate);
+        inOrder.verify(mTransportSipSessionValidator).onTransportOpened(any(), any());
+        inOrder.verify(mISipDelegate).sendMessage(TEST_MESSAGE, 1 /*version*/);
+        inOrder.verify(mTransportSipSessionValidator).closeSessions(closedReason);
+        assertTrue(isClosed[0]);
+    }
+
+    @SmallTest
+    @Test
+    public void testLaneCloseGracefullyWithOpenDialogs() throws Exception {
+        TestExecutorService lanePool = new TestExecutorService(true /*waitToComplete*/);
+        MessageTransportWrapper tracker = createTestMessageTransportWrapper(lanePool);
+        int closingReason = DelegateRegistrationState.DEREGISTERING_REASON_PROVISIONING_CHANGE;
+        int closedReason = DelegateRegistrationState.DEREGISTERED_REASON_NOT_PROVISIONED;
+        ArrayList<Consumer<Set<String>>> consumerCaptor = new ArrayList<>(1);
+        Mockito.doAnswer(it -> {
+            consumerCaptor.add(it.getArgument(0));
+            return null;
+        }).when(mTransportSipSessionValidator).closeSessionsGracefully(any(), eq(closingReason),
+                eq(closedReason));
+
+        ArrayList<String> events = new ArrayList<>();
+        tracker.closeGracefully(closingReason, closedReason, () -> events.add("closing"),
+                (r) -> events.add("closed " + r));
+        // The open dialogs are only known once the close has run on the lane.
+        assertTrue(events.isEmpty());
+        lanePool.executePending();
+        assertEquals(List.of("closing"), events);
+
+        consumerCaptor.get(0).accept(Collections.emptySet());
+        assertEquals(List.of("closing", "closed true"), events);
+    }
+
+    @SmallTest
+    @Test
+    public void testLaneCloseGracefullyNoOpenDialogs() throws Exception {
+        TestExecutorService lanePool = new TestExecutorService(true /*waitToComplete*/);
+        MessageTransportWrapper tracker = createTestMessageTransportWrapper(lanePool);
+        int closingReason = DelegateRegistrationState.DEREGISTERING_REASON_PROVISIONING_CHANGE;
+        int closedReason = DelegateRegistrationState.DEREGISTERED_REASON_NOT_PROVISIONED;
+        Mockito.doAnswer(it -> {
+            Consumer<Set<String>> consumer = it.getArgument(0);
+            consumer.accept(Collections.emptySet());
+            return null;
+        }).when(mTransportSipSessionValidator).closeSessionsGracefully(any(), eq(closingReason),
+                eq(closedReason));
+
+        ArrayList<String> events = new ArrayList<>();
+        tracker.closeGracefully(closingReason, closedReason, () -> events.add("closing"),
+                (r) -> events.add("closed " + r));
+        lanePool.executePending();
+
+        assertEquals(List.of("closed true"), events);
+    }
+
+    @SmallTest
+    @Test
+    public void testLaneShutDownFailsOutgoingMessage() throws Exception {
+        TestExecutorService lanePool = new TestExecutorService(true /*waitToComplete*/);
+        SerialExecutorLane lane = new SerialExecutorLane(lanePool, mExecutor);
+        MessageTransportWrapper tracker = new MessageTransportWrapper(TEST_SUB_ID, mExecutor,
+                lane, mDelegateMessageCallback, mTransportSipSessionValidator);
+        lane.shutdown();
+
+        tracker.getDelegateConnection().sendMessage(TEST_MESSAGE, 1 /*version*/);
+
+        verify(mTransportSipSessionValidator, never()).verifyOutgoingMessage(any(), anyLong());
+        verify(mDelegateMessageCallback).onMessageSendFailure(TEST_TRANSACTION_ID,
+                SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED);
     }
 
     @SmallTest
@@ -311,6 +408,16 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
                 mExecutor, mDelegateMessageCallback, mTransportSipSessionValidator);
     }
 
+    /**
+     * Handle SIP messages on a {@link SerialExecutorLane} backed by the given pool.
+     */
+    private MessageTransportWrapper createTestMessageTransportWrapper(
+            TestExecutorService lanePool) {
+        return new MessageTransportWrapper(TEST_SUB_ID, mExecutor,
+                new SerialExecutorLane(lanePool, mExecutor), mDelegateMessageCallback,
+                mTransportSipSessionValidator);
+    }
+
     private Consumer<Set<String>> trackerRegStateChanged(MessageTransportWrapper tracker,
             DelegateRegistrationState state) {
         ArrayList<Consumer<Set<String>>> consumerCaptor = new ArrayList<>(1);
@@ -326,7 +433,8 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
     }
 
     private Consumer<Set<String>> closeTrackerGracefully(MessageTransportWrapper tracker,
-            int closingReason, int closedReason, Consumer<Boolean> resultConsumer) {
+            int closingReason, int closedReason, Runnable closingCallback,
+            Consumer<Boolean> resultConsumer) {
         ArrayList<Consumer<Set<String>>> consumerCaptor = new ArrayList<>(1);
         Mockito.doAnswer(it -> {
             // Capture the consumer here.
@@ -334,7 +442,7 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
             return null;
         }).when(mTransportSipSessionValidator).closeSessionsGracefully(any(), eq(closingReason),
                 eq(closedReason));
-        tracker.closeGracefully(closingReason, closedReason, resultConsumer);
+        tracker.closeGracefully(closingReason, closedReason, closingCallback, resultConsumer);
         verify(mTransportSipSessionValidator).closeSessionsGracefully(any(), eq(closingReason),
                 eq(closedReason));
         assertFalse(consumerCaptor.isEmpty());
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class SerialExecutorLaneTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private ExecutorService mPool;
+    private ScheduledExecutorService mScheduler;
+
+    @Before
+    public void setUp() {
+        mPool = Executors.newFixedThreadPool(4);
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void testTasksRunInOrderOneAtATime() throws Exception {
+        SerialExecutorLane lane = new SerialExecutorLane(mPool, mScheduler);
+        int taskCount = SerialExecutorLane.MAX_TASKS_PER_TURN * 4;
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            int index = i;
+            lane.execute(() -> {
+                if (running.incrementAndGet() > 1) overlapped.set(true);
+                results.add(index);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(overlapped.get());
+        for (int i = 0; i < taskCount; i++) {
+            assertEquals(i, results.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testBlockedLaneDoesNotBlockOtherLanes() throws Exception {
+        SerialExecutorLane blockedLane = new SerialExecutorLane(mPool, mScheduler);
+        SerialExecutorLane otherLane = new SerialExecutorLane(mPool, mScheduler);
+        CountDownLatch unblock = new CountDownLatch(1);
+        CountDownLatch otherDone = new CountDownLatch(1);
+        blockedLane.execute(() -> {
+            try {
+                unblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+
+        otherLane.execute(otherDone::countDown);
+
+        assertTrue(otherDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        unblock.countDown();
+    }
+
+    @Test
+    public void testDelayedTaskRunsAfterQueuedTasks() throws Exception {
+        SerialExecutorLane lane = new SerialExecutorLane(mPool, mScheduler);
+        List<String> results = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        lane.execute(() -> {
+            try {
+                unblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            results.add("first");
+        });
+        lane.execute(() -> results.add("second"));
+        // The delay expires while the lane is blocked, so it is queued behind "second".
+        ScheduledFuture<?> f = lane.schedule(() -> {
+            results.add("delayed");
+            done.countDown();
+        }, 0, TimeUnit.MILLISECONDS);
+
+        unblock.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        f.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(List.of("first", "second", "delayed"), results);
+    }
+
+    @Test
+    public void testCancelledDelayedTaskDoesNotRun() throws Exception {
+        SerialExecutorLane lane = new SerialExecutorLane(mPool, mScheduler);
+        AtomicBoolean ran = new AtomicBoolean();
+        ScheduledFuture<?> f = lane.schedule(() -> ran.set(true), 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(f.cancel(false));
+        Thread.sleep(200);
+        CountDownLatch done = new CountDownLatch(1);
+        lane.execute(done::countDown);
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(f.isCancelled());
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void testShutdownDoesNotShutDownPool() throws Exception {
+        SerialExecutorLane lane = new SerialExecutorLane(mPool, mScheduler);
+        lane.shutdown();
+
+        assertTrue(lane.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(lane.isTerminated());
+        assertFalse(mPool.isShutdown());
+    }
+
+    @Test
+    public void testPoolRejectsFirstTurn_laneNotWedged() throws Exception {
+        AtomicBoolean reject = new AtomicBoolean(true);
+        Executor pool = r -> {
+            if (reject.get()) throw new RejectedExecutionException("saturated");
+            mPool.execute(r);
+        };
+        SerialExecutorLane lane = new SerialExecutorLane(pool, mScheduler);
+        AtomicBoolean rejectedTaskRan = new AtomicBoolean();
+
+        assertThrows(RejectedExecutionException.class,
+                () -> lane.execute(() -> rejectedTaskRan.set(true)));
+
+        reject.set(false);
+        CountDownLatch done = new CountDownLatch(1);
+        lane.execute(done::countDown);
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(rejectedTaskRan.get());
+        lane.shutdown();
+        assertTrue(lane.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testPoolRejectsNextTurn_laneNotWedged() throws Exception {
+        AtomicBoolean reject = new AtomicBoolean();
+        Executor pool = r -> {
+            if (reject.get()) throw new RejectedExecutionException("saturated");
+            mPool.execute(r);
+        };
+        SerialExecutorLane lane = new SerialExecutorLane(pool, mScheduler);
+        CountDownLatch unblock = new CountDownLatch(1);
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        lane.execute(() -> {
+            try {
+                unblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+        // More tasks than fit in one turn, so the lane has to post a second turn.
+        int taskCount = SerialExecutorLane.MAX_TASKS_PER_TURN;
+        for (int i = 0; i < taskCount; i++) {
+            int index = i;
+            lane.execute(() -> results.add(index));
+        }
+        reject.set(true);
+        unblock.countDown();
+        // The second turn is rejected, the lane must not stay marked as running.
+        lane.shutdown();
+        assertTrue(lane.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(taskCount - 1, results.size());
+    }
+
+    @Test
+    public void testFixedDelayTaskRunsUntilCancelled() throws Exception {
+        SerialExecutorLane lane = new SerialExecutorLane(mPool, mScheduler);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch ranThreeTimes = new CountDownLatch(3);
+        ScheduledFuture<?> f = lane.scheduleWithFixedDelay(() -> {
+            runs.incrementAndGet();
+            ranThreeTimes.countDown();
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(ranThreeTimes.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(f.cancel(false));
+        int runsWhenCancelled = runs.get();
+        Thread.sleep(100);
+
+        assertTrue(f.isCancelled());
+        assertEquals(runsWhenCancelled, runs.get());
+    }
+
+    @Test
+    public void testFixedRateTaskRunsOneAtATime() throws Exception {
+        SerialExecutorLane lane = new SerialExecutorLane(mPool, mScheduler);
+        AtomicInteger running = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        CountDownLatch ranThreeTimes = new CountDownLatch(3);
+        // Each run takes longer than the period.
+        ScheduledFuture<?> f = lane.scheduleAtFixedRate(() -> {
+            if (running.incrementAndGet() > 1) overlapped.set(true);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+            running.decrementAndGet();
+            ranThreeTimes.countDown();
+        }, 0, 5, TimeUnit.MILLISECONDS);
+
+        assertTrue(ranThreeTimes.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        f.cancel(false);
+        assertFalse(overlapped.get());
+    }
+
+    @Test
+    public void testPeriodicTaskStopsWhenLaneShutDown() throws Exception {
+        SerialExecutorLane lane = new SerialExecutorLane(mPool, mScheduler);
+        CountDownLatch ran = new CountDownLatch(1);
+        ScheduledFuture<?> f = lane.scheduleWithFixedDelay(ran::countDown, 0, 10,
+                TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        lane.shutdown();
+
+        assertTrue(lane.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Thread.sleep(100);
+        assertTrue(f.isCancelled());
+    }
+}
@@ -73,6 +73,7 @@ public class SipDelegateControllerTest extends TelephonyTestBase {
     @Captor private ArgumentCaptor<BiConsumer<ISipDelegate, Set<FeatureTagState>>> mCreatedCaptor;
     @Captor private ArgumentCaptor<Consumer<Boolean>> mBooleanConsumerCaptor;
     @Captor private ArgumentCaptor<Consumer<Integer>> mIntegerConsumerCaptor;
+    @Captor private ArgumentCaptor<Runnable> mRunnableCaptor;
 
     private ScheduledExecutorService mExecutorService;
 
@@ -170,6 +171,9 @@ public class SipDelegateControllerTest extends TelephonyTestBase {
                 SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
         assertFalse(pendingDestroy.isDone());
         Consumer<Boolean> pendingClosedConsumer = verifyMessageTrackerCloseGracefully();
+        // Only report the pending state once the transport reports that SIP dialogs are open.
+        verify(mMockDelegateStateTracker, never()).sipDelegateChanging(anyInt());
+        mRunnableCaptor.getValue().run();
         verify(mMockDelegateStateTracker).sipDelegateChanging(
                 DelegateRegistrationState.DEREGISTERING_REASON_DESTROY_PENDING);
 
@@ -198,11 +202,14 @@ public class SipDelegateControllerTest extends TelephonyTestBase {
         CompletableFuture<Integer> pendingDestroy = controller.destroy(true /*force*/,
                 SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
         assertFalse(pendingDestroy.isDone());
-        // Do not wait for message transport close in this case.
+        // Do not wait for open SIP dialogs in this case, only for the transport to be closed.
         verify(mMockMessageTracker).close(
-                SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED);
+                eq(SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED),
+                mRunnableCaptor.capture());
         verify(mMockDelegateStateTracker, never()).sipDelegateChanging(
                 DelegateRegistrationState.DEREGISTERING_REASON_DESTROY_PENDING);
+        verify(mMockBinderConnection, never()).destroy(anyInt(), any());
+        mRunnableCaptor.getValue().run();
 
         //verify destroy is called
         Consumer<Integer> pendingDestroyedConsumer = verifyBinderConnectionDestroy();
@@ -215,6 +222,28 @@ public class SipDelegateControllerTest extends TelephonyTestBase {
                 pendingDestroy.get().intValue());
     }
 
+    @SmallTest
+    @Test
+    public void testDestroyDelegateNoOpenDialogs() throws Exception {
+        DelegateRequest request = getBaseDelegateRequest();
+        SipDelegateController controller = getTestDelegateController(request,
+                Collections.emptySet());
+        createSipDelegate(request, controller);
+
+        CompletableFuture<Integer> pendingDestroy = controller.destroy(false /*force*/,
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
+        Consumer<Boolean> pendingClosedConsumer = verifyMessageTrackerCloseGracefully();
+        // The transport closed right away, so the closing callback is never called.
+        pendingClosedConsumer.accept(true);
+
+        verify(mMockDelegateStateTracker, never()).sipDelegateChanging(anyInt());
+        Consumer<Integer> pendingDestroyedConsumer = verifyBinderConnectionDestroy();
+        pendingDestroyedConsumer.accept(
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
+        assertEquals(SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP,
+                pendingDestroy.get().intValue());
+    }
+
     @SmallTest
     @Test
     public void testChangeSupportedFeatures() throws Exception {
@@ -230,6 +259,7 @@ public class SipDelegateControllerTest extends TelephonyTestBase {
         assertFalse(pendingChange.isDone());
         // message tracker should close gracefully.
         Consumer<Boolean> pendingClosedConsumer = verifyMessageTrackerCloseGracefully();
+        mRunnableCaptor.getValue().run();
         verify(mMockDelegateStateTracker).sipDelegateChanging(
                 DelegateRegistrationState.DEREGISTERING_REASON_FEATURE_TAGS_CHANGING);
         verify(mMockBinderConnection, never()).destroy(anyInt(), any());
@@ -308,7 +338,7 @@ public class SipDelegateControllerTest extends TelephonyTestBase {
 
     private Consumer<Boolean> verifyMessageTrackerCloseGracefully() {
         verify(mMockMessageTracker).closeGracefully(anyInt(), anyInt(),
-                mBooleanConsumerCaptor.capture());
+                mRunnableCaptor.capture(), mBooleanConsumerCaptor.capture());
         return mBooleanConsumerCaptor.getValue();
     }
     private Consumer<Integer> verifyBinderConnectionDestroy() {
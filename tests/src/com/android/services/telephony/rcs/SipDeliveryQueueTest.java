@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+@RunWith(AndroidJUnit4.class)
+public class SipDeliveryQueueTest {
+
+    // Runs posted Runnables only when asked to.
+    private final ArrayDeque<Runnable> mExecutorTasks = new ArrayDeque<>();
+
+    @Test
+    public void testTasksAreDrainedInBatches() {
+        SipDeliveryQueue queue = new SipDeliveryQueue(mExecutorTasks::add, 2 /*maxTasksPerDrain*/);
+        List<Integer> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int index = i;
+            queue.enqueue(() -> results.add(index));
+        }
+        // Only one drain task is posted for all of the queued tasks.
+        assertEquals(1, mExecutorTasks.size());
+        assertEquals(5, queue.getQueueDepth());
+
+        mExecutorTasks.poll().run();
+        assertEquals(List.of(0, 1), results);
+        // The drain task posts itself again to run the remaining tasks.
+        assertEquals(1, mExecutorTasks.size());
+        runExecutorTasks();
+
+        assertEquals(List.of(0, 1, 2, 3, 4), results);
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(5, queue.getMaxQueueDepth());
+        assertEquals(3, queue.getDrainCount());
+    }
+
+    @Test
+    public void testTaskQueuedDuringDrainIsRunInOrder() {
+        SipDeliveryQueue queue = new SipDeliveryQueue(mExecutorTasks::add);
+        List<Integer> results = new ArrayList<>();
+        queue.enqueue(() -> {
+            results.add(0);
+            queue.enqueue(() -> results.add(2));
+        });
+        queue.enqueue(() -> results.add(1));
+
+        runExecutorTasks();
+
+        assertEquals(List.of(0, 1, 2), results);
+        assertEquals(1, queue.getDrainCount());
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStallQueue() {
+        SipDeliveryQueue queue = new SipDeliveryQueue(mExecutorTasks::add);
+        List<Integer> results = new ArrayList<>();
+        queue.enqueue(() -> {
+            throw new IllegalStateException("test");
+        });
+        queue.enqueue(() -> results.add(1));
+
+        try {
+            mExecutorTasks.poll().run();
+            fail("expected the task exception to be thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        runExecutorTasks();
+
+        assertEquals(List.of(1), results);
+    }
+
+    @Test
+    public void testRejectedDrainIsPostedAgainOnNextEnqueue() {
+        boolean[] reject = {true};
+        SipDeliveryQueue queue = new SipDeliveryQueue(r -> {
+            if (reject[0]) throw new RejectedExecutionException("test");
+            mExecutorTasks.add(r);
+        });
+        List<Integer> results = new ArrayList<>();
+
+        try {
+            queue.enqueue(() -> results.add(0));
+            fail("expected the rejection to be thrown");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, queue.getQueueDepth());
+
+        reject[0] = false;
+        queue.enqueue(() -> results.add(1));
+        assertEquals(1, mExecutorTasks.size());
+        runExecutorTasks();
+
+        assertEquals(List.of(0, 1), results);
+    }
+
+    @Test
+    public void testRejectedFollowUpDrainDoesNotThrowFromDrain() {
+        boolean[] reject = {false};
+        SipDeliveryQueue queue = new SipDeliveryQueue(r -> {
+            if (reject[0]) throw new RejectedExecutionException("test");
+            mExecutorTasks.add(r);
+        }, 1 /*maxTasksPerDrain*/);
+        List<Integer> results = new ArrayList<>();
+        queue.enqueue(() -> results.add(0));
+        queue.enqueue(() -> results.add(1));
+
+        // The Executor shuts down while the drain is running.
+        reject[0] = true;
+        runExecutorTasks();
+        assertEquals(List.of(0), results);
+        assertEquals(1, queue.getQueueDepth());
+
+        reject[0] = false;
+        queue.enqueue(() -> results.add(2));
+        runExecutorTasks();
+        assertEquals(List.of(0, 1, 2), results);
+    }
+
+    private void runExecutorTasks() {
+        Runnable r;
+        while ((r = mExecutorTasks.poll()) != null) {
+            r.run();
+        }
+    }
+}
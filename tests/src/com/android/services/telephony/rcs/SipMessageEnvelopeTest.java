@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import android.telephony.ims.SipMessage;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import com.android.services.telephony.rcs.validator.MalformedSipMessageValidator;
+import com.android.services.telephony.rcs.validator.RestrictedOutgoingSipRequestValidator;
+import com.android.services.telephony.rcs.validator.RestrictedOutgoingSubscribeValidator;
+import com.android.services.telephony.rcs.validator.SipMessageValidator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+@RunWith(AndroidJUnit4.class)
+public class SipMessageEnvelopeTest {
+    private static final String TAG = "SipMessageEnvelopeTest";
+
+    private static final String SIP_URI_ALICE = "sip:alice@client.example.com";
+    private static final String BASE_CONTACT_URI_ALICE = "Alice <" + SIP_URI_ALICE + ">";
+    private static final String SIP_URI_BOB = "sip:bob@client.example.com";
+    private static final String BASE_CONTACT_URI_BOB = "Bob <" + SIP_URI_BOB + ">";
+
+    @Test
+    public void testRequest() {
+        SipMessage invite = SipMessageUtils.generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD,
+                BASE_CONTACT_URI_ALICE, BASE_CONTACT_URI_BOB, SIP_URI_BOB, "branch1",
+                "callId1", "fromTag1", null /*toTag*/);
+        SipMessageEnvelope envelope = new SipMessageEnvelope(invite);
+
+        assertSame(invite, envelope.getMessage());
+        assertTrue(envelope.isRequest());
+        assertFalse(envelope.isResponse());
+        assertEquals(SipMessageUtils.INVITE_SIP_METHOD, envelope.getMethod());
+        assertEquals(SipMessageEnvelope.STATUS_CODE_INVALID, envelope.getStatusCode());
+        assertEquals("callId1", envelope.getCallId());
+        assertEquals("branch1", envelope.getViaBranch());
+        assertEquals("fromTag1", envelope.getFromTag());
+        assertNull(envelope.getToTag());
+        assertTrue(envelope.getEventHeaderValues().isEmpty());
+    }
+
+    @Test
+    public void testResponse() {
+        SipMessage response = SipMessageUtils.generateSipResponse("180", "Ringing",
+                BASE_CONTACT_URI_ALICE, BASE_CONTACT_URI_BOB, "branch1", "callId1", "fromTag1",
+                "toTag1");
+        SipMessageEnvelope envelope = new SipMessageEnvelope(response);
+
+        assertFalse(envelope.isRequest());
+        assertTrue(envelope.isResponse());
+        assertNull(envelope.getMethod());
+        assertEquals(180, envelope.getStatusCode());
+        assertEquals("toTag1", envelope.getToTag());
+    }
+
+    @Test
+    public void testMalformedStartLine() {
+        SipMessageEnvelope envelope = new SipMessageEnvelope(
+                new SipMessage("INVITE sip:bob@client.example.com SIP/2.0 bad",
+                        "Call-ID: callId1", new byte[0]));
+
+        assertNull(envelope.getMethod());
+        assertEquals(SipMessageEnvelope.STATUS_CODE_INVALID, envelope.getStatusCode());
+    }
+
+    @Test
+    public void testHeadersAreParsedOnce() {
+        SipMessage subscribe = new SipMessage("SUBSCRIBE sip:bob@client.example.com SIP/2.0",
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=branch1\n"
+                        + "Call-ID: callId1\n"
+                        + "Accept-Contact: *;+g.test;+G.ABC\n"
+                        + "Event: presence",
+                new byte[0]);
+        SipMessageEnvelope envelope = new SipMessageEnvelope(subscribe);
+
+        assertEquals(Collections.singletonList("presence"), envelope.getEventHeaderValues());
+        assertSame(envelope.getEventHeaderValues(), envelope.getEventHeaderValues());
+        assertTrue(envelope.getNormalizedAcceptContactFeatureTags().contains("+g.test"));
+        assertTrue(envelope.getNormalizedAcceptContactFeatureTags().contains("+g.abc"));
+        assertSame(envelope.getNormalizedAcceptContactFeatureTags(),
+                envelope.getNormalizedAcceptContactFeatureTags());
+    }
+
+    /**
+     * Compares validation throughput when the validator chain shares one envelope against
+     * parsing the message again for every validator. Only logs the results, they depend too
+     * much on the device to assert on.
+     */
+    @Test
+    @LargeTest
+    public void testValidationThroughput() {
+        SipMessageValidator[] validators = new SipMessageValidator[] {
+                new MalformedSipMessageValidator(),
+                new RestrictedOutgoingSipRequestValidator(),
+                new RestrictedOutgoingSubscribeValidator()};
+        SipMessageValidator chain = validators[0].andThen(validators[1]).andThen(validators[2]);
+        SipMessage message = new SipMessage("SUBSCRIBE sip:bob@client.example.com SIP/2.0",
+                "Via: SIP/2.0/TCP client.example.com:5060;branch=branch1\n"
+                        + "From: " + BASE_CONTACT_URI_ALICE + ";tag=fromTag1\n"
+                        + "To: " + BASE_CONTACT_URI_BOB + "\n"
+                        + "Call-ID: callId1\n"
+                        + "Event: conference",
+                new byte[0]);
+        int iterations = 10000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (SipMessageValidator validator : validators) {
+                assertTrue(validator.validate(message).isValidated);
+            }
+        }
+        long perValidatorNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            assertTrue(chain.validate(new SipMessageEnvelope(message)).isValidated);
+        }
+        long sharedNs = System.nanoTime() - start;
+
+        Log.i(TAG, "parse per validator: " + (iterations * 1_000_000_000L / perValidatorNs)
+                + " msg/s, shared envelope: " + (iterations * 1_000_000_000L / sharedNs)
+                + " msg/s");
+    }
+}
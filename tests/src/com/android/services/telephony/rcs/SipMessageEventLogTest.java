@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING;
+import static com.android.internal.telephony.TelephonyStatsLog.SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import android.telephony.ims.SipDelegateManager;
+import android.telephony.ims.SipMessage;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.services.telephony.rcs.validator.ValidationResult;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+
+@RunWith(AndroidJUnit4.class)
+public class SipMessageEventLogTest {
+    private static final String SIP_URI_ALICE = "sip:alice@client.example.com";
+    private static final String BASE_CONTACT_URI_ALICE = "Alice <" + SIP_URI_ALICE + ">";
+    private static final String SIP_URI_BOB = "sip:bob@client.example.com";
+    private static final String BASE_CONTACT_URI_BOB = "Bob <" + SIP_URI_BOB + ">";
+
+    private long mTimeMs;
+
+    @Test
+    public void testDumpDecodesEvents() {
+        SipMessageEventLog log = new SipMessageEventLog(10, () -> mTimeMs);
+        SipMessage invite = SipMessageUtils.generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD,
+                BASE_CONTACT_URI_ALICE, BASE_CONTACT_URI_BOB, SIP_URI_BOB, "branch1",
+                "callId1", "fromTag1", null /*toTag*/);
+        SipMessage busy = SipMessageUtils.generateSipResponse("486", "Busy Here",
+                BASE_CONTACT_URI_ALICE, BASE_CONTACT_URI_BOB, "branch1", "callId1", "fromTag1",
+                "toTag1");
+
+        log.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING,
+                new SipMessageEnvelope(invite), ValidationResult.SUCCESS);
+        log.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING,
+                new SipMessageEnvelope(busy), new ValidationResult(
+                        SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED, ""));
+
+        String[] lines = dump(log);
+        assertEquals(3, lines.length);
+        assertTrue(lines[1].contains(" OUT INVITE callId#="
+                + Integer.toHexString("callId1".hashCode()) + " validated"));
+        assertTrue(lines[2].contains(" IN 486 "));
+        assertTrue(lines[2].contains(" rejected: "));
+    }
+
+    @Test
+    public void testOldestEventsAreOverwritten() {
+        SipMessageEventLog log = new SipMessageEventLog(2, () -> mTimeMs);
+        for (int i = 0; i < 3; i++) {
+            SipMessage response = SipMessageUtils.generateSipResponse(
+                    String.valueOf(200 + i), "OK", BASE_CONTACT_URI_ALICE, BASE_CONTACT_URI_BOB,
+                    "branch1", "callId1", "fromTag1", "toTag1");
+            log.record(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING,
+                    new SipMessageEnvelope(response), ValidationResult.SUCCESS);
+        }
+
+        assertEquals(2, log.size());
+        String[] lines = dump(log);
+        assertTrue(lines[0].contains("total=3"));
+        assertTrue(lines[1].contains(" IN 201 "));
+        assertTrue(lines[2].contains(" IN 202 "));
+    }
+
+    @Test
+    public void testMessageTextIsRateLimited() {
+        SipMessageEventLog log = new SipMessageEventLog(10, () -> mTimeMs);
+        for (int i = 0; i < SipMessageEventLog.MAX_MESSAGE_TEXT_PER_WINDOW; i++) {
+            assertTrue(log.shouldLogMessageText());
+        }
+        assertFalse(log.shouldLogMessageText());
+        assertTrue(dump(log)[0].contains("message text suppressed=1"));
+
+        mTimeMs += SipMessageEventLog.MESSAGE_TEXT_WINDOW_MS;
+        assertTrue(log.shouldLogMessageText());
+    }
+
+    private static String[] dump(SipMessageEventLog log) {
+        StringWriter writer = new StringWriter();
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        log.dump(pw);
+        pw.flush();
+        return writer.toString().split("\n");
+    }
+}
@@ -22,10 +22,13 @@ import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
+import static org.junit.Assert.assertThrows;
+
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import android.content.Context;
@@ -235,6 +238,75 @@ public class SipSessionTrackerTest extends TelephonyTestBase {
                 eq(TEST_SIP_CLOSE_RESPONSE_CODE), eq(false));
     }
 
+    @Test
+    public void testClosedDialogRetentionIsBounded() {
+        List<DialogAttributes> attrs = new ArrayList<>();
+        for (int i = 0; i <= SipSessionTracker.MAX_RETAINED_CLOSED_DIALOGS; i++) {
+            DialogAttributes attr = new DialogAttributes();
+            attrs.add(attr);
+            filterMessage(generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attr), attr);
+            attr.setToTag();
+            filterMessage(generateSipResponse("486", "Busy Here", attr), attr);
+        }
+
+        assertEquals(SipSessionTracker.MAX_RETAINED_CLOSED_DIALOGS,
+                mTrackerUT.getClosedDialogs().size());
+        assertEquals(SipSessionTracker.MAX_RETAINED_CLOSED_DIALOGS,
+                mTrackerUT.getTrackedDialogs().size());
+        // The dialog that closed first is no longer tracked.
+        String firstCallId = attrs.get(0).callId;
+        assertTrue(mTrackerUT.getTrackedDialogs().stream()
+                .noneMatch(d -> d.getCallId().equals(firstCallId)));
+        verifyContainsCallIds(mTrackerUT.getClosedDialogs(),
+                attrs.get(SipSessionTracker.MAX_RETAINED_CLOSED_DIALOGS));
+        // The dropped dialog is reported the same way as a cleaned up one.
+        verify(mRcsStats).onSipTransportSessionClosed(eq(TEST_SUB_ID), eq(firstCallId), eq(0),
+                eq(true));
+    }
+
+    @Test
+    public void testOpenAndTrackedCallIds() {
+        SipSessionTracker.TrackedCallIdsListener listener =
+                mock(SipSessionTracker.TrackedCallIdsListener.class);
+        mTrackerUT.setTrackedCallIdsListener(listener);
+        DialogAttributes attr = new DialogAttributes();
+        // INVITE A -> B
+        filterMessage(generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attr), attr);
+        Set<String> openCallIds = mTrackerUT.getOpenCallIds();
+        assertTrue(openCallIds.contains(attr.callId));
+        assertTrue(mTrackerUT.getTrackedCallIds().contains(attr.callId));
+        verify(listener).onTrackedCallIdsChanged();
+        // 486 BUSY A <- B, the dialog is closed but still tracked.
+        attr.setToTag();
+        filterMessage(generateSipResponse("486", "Busy Here", attr), attr);
+        assertTrue(mTrackerUT.getOpenCallIds().isEmpty());
+        assertTrue(mTrackerUT.getTrackedCallIds().contains(attr.callId));
+        verify(listener).onTrackedCallIdsChanged();
+        // Returned sets are copies and do not change with the tracker.
+        assertTrue(openCallIds.contains(attr.callId));
+
+        mTrackerUT.cleanupSession(attr.callId);
+        assertTrue(mTrackerUT.getTrackedCallIds().isEmpty());
+        verify(listener, times(2)).onTrackedCallIdsChanged();
+    }
+
+    @Test
+    public void testReturnedDialogSetsAreReadOnlyCopies() {
+        DialogAttributes attr = new DialogAttributes();
+        // INVITE A -> B
+        filterMessage(generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attr), attr);
+        Set<SipDialog> earlyDialogs = mTrackerUT.getEarlyDialogs();
+        // 200 OK A <- B
+        attr.setToTag();
+        filterMessage(generateSipResponse("200", "OK", attr), attr);
+
+        verifyContainsCallIds(earlyDialogs, attr);
+        assertTrue(mTrackerUT.getEarlyDialogs().isEmpty());
+        assertThrows(UnsupportedOperationException.class, () -> earlyDialogs.clear());
+        assertThrows(UnsupportedOperationException.class,
+                () -> mTrackerUT.getTrackedCallIds().clear());
+    }
+
     @Test
     public void testEarlyDialogToConfirmed() {
         DialogAttributes attr = new DialogAttributes();
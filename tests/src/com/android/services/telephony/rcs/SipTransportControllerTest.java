@@ -71,6 +71,7 @@ import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -140,7 +141,7 @@ public class SipTransportControllerTest extends TelephonyTestBase {
             assertNotNull("create called with no corresponding controller set up", c);
             return c;
         }).when(mMockDelegateControllerFactory).create(anyInt(), anyInt(), any(), anyString(),
-                any(), any(), any(), any(), any());
+                any(), any(), any(), any(), any(), any());
         setFeatureAllowedConfig(TEST_SUB_ID, new String[]{ImsSignallingUtils.MMTEL_TAG,
                 ImsSignallingUtils.ONE_TO_ONE_CHAT_TAG, ImsSignallingUtils.GROUP_CHAT_TAG,
                 ImsSignallingUtils.FILE_TRANSFER_HTTP_TAG});
@@ -647,6 +648,86 @@ public class SipTransportControllerTest extends TelephonyTestBase {
                 SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SUBSCRIPTION_TORN_DOWN);
     }
 
+    @SmallTest
+    @Test
+    public void testDelegateLaneShutDownAfterDestroy() throws Exception {
+        ExecutorService lanePool = Executors.newSingleThreadExecutor();
+        SipTransportController controller = setupLiveTransportController(lanePool);
+
+        ArraySet<String> firstDelegate = new ArraySet<>(getBaseDelegateRequest().getFeatureTags());
+        DelegateRequest firstDelegateRequest = new DelegateRequest(firstDelegate);
+        SipDelegateControllerContainer c = injectMockDelegateController(TEST_PACKAGE_NAME,
+                firstDelegateRequest);
+        createDelegateAndVerify(controller, c, firstDelegate, Collections.emptySet());
+        ScheduledExecutorService lane = verifyDelegateLaneCreated();
+
+        CompletableFuture<Integer> pendingDestroy = destroyDelegate(controller,
+                c.delegateController, false /*force*/,
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
+        verify(c.delegateController).destroy(false /*force*/,
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
+        // The transport is closed gracefully on the lane, so keep it until the destroy completes.
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        assertFalse(lane.isShutdown());
+        completePendingDestroy(pendingDestroy,
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
+        assertTrue(lane.isShutdown());
+        assertFalse(lanePool.isShutdown());
+        lanePool.shutdownNow();
+    }
+
+    @SmallTest
+    @Test
+    public void testDelegateLaneShutDownAfterForcedDestroy() throws Exception {
+        ExecutorService lanePool = Executors.newSingleThreadExecutor();
+        SipTransportController controller = setupLiveTransportController(lanePool);
+
+        ArraySet<String> firstDelegate = new ArraySet<>(getBaseDelegateRequest().getFeatureTags());
+        DelegateRequest firstDelegateRequest = new DelegateRequest(firstDelegate);
+        SipDelegateControllerContainer c = injectMockDelegateController(TEST_PACKAGE_NAME,
+                firstDelegateRequest);
+        createDelegateAndVerify(controller, c, firstDelegate, Collections.emptySet());
+        ScheduledExecutorService lane = verifyDelegateLaneCreated();
+
+        CompletableFuture<Integer> pendingDestroy = setDestroyFuture(c.delegateController, true,
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SERVICE_DEAD);
+        controller.onRcsDisconnected();
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        verify(c.delegateController).destroy(true /*force*/,
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SERVICE_DEAD);
+        assertFalse(lane.isShutdown());
+        completePendingDestroy(pendingDestroy,
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SERVICE_DEAD);
+        assertTrue(lane.isShutdown());
+        lanePool.shutdownNow();
+    }
+
+    @SmallTest
+    @Test
+    public void testDelegateLanePoolShutDownOnDestroy() throws Exception {
+        ExecutorService lanePool = Executors.newSingleThreadExecutor();
+        SipTransportController controller = setupLiveTransportController(lanePool);
+
+        ArraySet<String> firstDelegate = new ArraySet<>(getBaseDelegateRequest().getFeatureTags());
+        DelegateRequest firstDelegateRequest = new DelegateRequest(firstDelegate);
+        SipDelegateControllerContainer c = injectMockDelegateController(TEST_PACKAGE_NAME,
+                firstDelegateRequest);
+        createDelegateAndVerify(controller, c, firstDelegate, Collections.emptySet());
+        ScheduledExecutorService lane = verifyDelegateLaneCreated();
+
+        CompletableFuture<Integer> pendingDestroy = setDestroyFuture(c.delegateController,
+                true, SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SUBSCRIPTION_TORN_DOWN);
+        controller.onDestroy();
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        assertFalse(lanePool.isShutdown());
+        // Complete the destroy without waiting, the controller shuts its Executor down after.
+        pendingDestroy.complete(
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SUBSCRIPTION_TORN_DOWN);
+        assertTrue(mExecutorService.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(lane.isShutdown());
+        assertTrue(lanePool.isShutdown());
+    }
+
     @SmallTest
     @Test
     public void testTimingSubIdChangedAndCreateNewSubId() throws Exception {
@@ -790,9 +871,19 @@ public class SipTransportControllerTest extends TelephonyTestBase {
 
     private SipTransportController setupLiveTransportController(int throttleMs, int regDelayMs)
             throws Exception {
+        return setupLiveTransportController(throttleMs, regDelayMs, null /*delegateLanePool*/);
+    }
+
+    private SipTransportController setupLiveTransportController(ExecutorService delegateLanePool)
+            throws Exception {
+        return setupLiveTransportController(0 /*throttleMs*/, 0 /*regDelayMs*/, delegateLanePool);
+    }
+
+    private SipTransportController setupLiveTransportController(int throttleMs, int regDelayMs,
+            ExecutorService delegateLanePool) throws Exception {
         mExecutorService = Executors.newSingleThreadScheduledExecutor();
         SipTransportController controller = createControllerAndThrottle(mExecutorService,
-                throttleMs, regDelayMs);
+                throttleMs, regDelayMs, delegateLanePool);
         doReturn(mSipTransport).when(mRcsManager).getSipTransport();
         controller.onAssociatedSubscriptionUpdated(TEST_SUB_ID);
         controller.onRcsConnected(mRcsManager);
@@ -987,6 +1078,11 @@ public class SipTransportControllerTest extends TelephonyTestBase {
 
     private SipTransportController createControllerAndThrottle(ScheduledExecutorService e,
             int throttleMs, int regDelayMs) {
+        return createControllerAndThrottle(e, throttleMs, regDelayMs, null /*delegateLanePool*/);
+    }
+
+    private SipTransportController createControllerAndThrottle(ScheduledExecutorService e,
+            int throttleMs, int regDelayMs, ExecutorService delegateLanePool) {
         return new SipTransportController(mContext, 0 /*slotId*/, TEST_SUB_ID,
                 mMockDelegateControllerFactory, mMockRoleManager,
                 // Remove delays for testing.
@@ -1000,7 +1096,16 @@ public class SipTransportControllerTest extends TelephonyTestBase {
                     public int getUpdateRegistrationDelayMilliseconds() {
                         return regDelayMs;
                     }
-                }, e);
+                }, e, delegateLanePool);
+    }
+
+    private ScheduledExecutorService verifyDelegateLaneCreated() {
+        ArgumentCaptor<ScheduledExecutorService> captor =
+                ArgumentCaptor.forClass(ScheduledExecutorService.class);
+        verify(mMockDelegateControllerFactory).create(anyInt(), anyInt(), any(), anyString(),
+                any(), any(), eq(mExecutorService), captor.capture(), any(), any());
+        assertTrue(captor.getValue() instanceof SerialExecutorLane);
+        return captor.getValue();
     }
 
     private boolean scheduleDelayedWait(long timeMs) {
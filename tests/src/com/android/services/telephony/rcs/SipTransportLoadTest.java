@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import android.net.InetAddresses;
+import android.os.Debug;
+import android.telephony.ims.DelegateRegistrationState;
+import android.telephony.ims.SipDelegateConfiguration;
+import android.telephony.ims.SipMessage;
+import android.telephony.ims.aidl.ISipDelegate;
+import android.telephony.ims.aidl.ISipDelegateMessageCallback;
+import android.util.ArraySet;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import com.android.TestExecutorService;
+import com.android.internal.telephony.metrics.RcsStats;
+import com.android.services.telephony.rcs.validator.IncomingTransportStateValidator;
+import com.android.services.telephony.rcs.validator.OutgoingTransportStateValidator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Drives generated SIP traffic through a {@link MessageTransportWrapper} and its
+ * {@link TransportSipMessageValidator}, between a fake IMS application and a fake SipDelegate
+ * that acknowledge every message immediately.
+ * <p>
+ * Everything runs on the test thread with a fixed random seed, so a run always generates the
+ * same traffic. Throughput, p50/p99 latency, allocations per message and the memory used to track
+ * open dialogs are only logged, they depend too much on the device to assert on.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SipTransportLoadTest {
+    private static final String TAG = "SipTransportLoadTest";
+    private static final int TEST_SUB_ID = 1;
+    private static final long TEST_CONFIG_VERSION = 1;
+    private static final long SEED = 0;
+
+    private static final String LOCAL_CONTACT = "Alice <sip:alice@client.example.com>";
+    private static final String REMOTE_CONTACT = "Bob <sip:bob@server.example.com>";
+    private static final String REMOTE_URI = "sip:bob@server.example.com";
+
+    /**
+     * The relative weight of each kind of traffic generated.
+     */
+    private static final class TrafficMix {
+        final int inviteWeight;
+        final int messageWeight;
+        final int subscribeWeight;
+        final int byeWeight;
+
+        TrafficMix(int inviteWeight, int messageWeight, int subscribeWeight, int byeWeight) {
+            this.inviteWeight = inviteWeight;
+            this.messageWeight = messageWeight;
+            this.subscribeWeight = subscribeWeight;
+            this.byeWeight = byeWeight;
+        }
+
+        int total() {
+            return inviteWeight + messageWeight + subscribeWeight + byeWeight;
+        }
+
+        @Override
+        public String toString() {
+            return "INVITE:" + inviteWeight + "/MESSAGE:" + messageWeight + "/SUBSCRIBE:"
+                    + subscribeWeight + "/BYE:" + byeWeight;
+        }
+    }
+
+    /**
+     * Fake SipDelegate of the ImsService, which reports every message as sent.
+     */
+    private static final class FakeSipDelegate extends ISipDelegate.Stub {
+        MessageTransportWrapper mWrapper;
+        int mSentCount;
+
+        @Override
+        public void sendMessage(SipMessage sipMessage, long configVersion) {
+            mSentCount++;
+            mWrapper.getMessageCallback().onMessageSent(sipMessage.getViaBranchParameter());
+        }
+
+        @Override
+        public void notifyMessageReceived(String viaTransactionId) {
+        }
+
+        @Override
+        public void notifyMessageReceiveError(String viaTransactionId, int reason) {
+        }
+
+        @Override
+        public void cleanupSession(String callId) {
+        }
+    }
+
+    /**
+     * Fake IMS application, which acknowledges every incoming message.
+     */
+    private static final class FakeImsApp extends ISipDelegateMessageCallback.Stub {
+        MessageTransportWrapper mWrapper;
+        int mReceivedCount;
+        int mFailureCount;
+
+        @Override
+        public void onMessageReceived(SipMessage message) {
+            mReceivedCount++;
+            mWrapper.getDelegateConnection().notifyMessageReceived(
+                    message.getViaBranchParameter());
+        }
+
+        @Override
+        public void onMessageSent(String viaTransactionId) {
+        }
+
+        @Override
+        public void onMessageSendFailure(String viaTransactionId, int reason) {
+            mFailureCount++;
+        }
+    }
+
+    private final Random mRandom = new Random(SEED);
+    private final FakeSipDelegate mDelegate = new FakeSipDelegate();
+    private final FakeImsApp mApp = new FakeImsApp();
+    private SipSessionTracker mSessionTracker;
+    private MessageTransportWrapper mWrapper;
+    private int mNextId;
+    private long[] mLatenciesNs;
+    private int mMessageCount;
+
+    @Test
+    @LargeTest
+    public void testChatHeavyLoad() {
+        runLoad(new TrafficMix(20, 60, 10, 10), 200 /*maxOpenDialogs*/, 20000 /*operations*/);
+    }
+
+    @Test
+    @LargeTest
+    public void testSessionHeavyLoad() {
+        runLoad(new TrafficMix(40, 10, 10, 40), 1000 /*maxOpenDialogs*/, 20000 /*operations*/);
+    }
+
+    @Test
+    @LargeTest
+    public void testDialogTrackingMemory() {
+        setUpTransport();
+        int dialogCount = 1000;
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+        List<String> openCallIds = new ArrayList<>(dialogCount);
+        for (int i = 0; i < dialogCount; i++) {
+            openCallIds.add(sendInvite());
+        }
+        runtime.gc();
+        long usedAfter = runtime.totalMemory() - runtime.freeMemory();
+
+        assertEquals(dialogCount, mSessionTracker.getConfirmedDialogs().size());
+        Log.i(TAG, "dialog tracking memory: " + (usedAfter - usedBefore) / dialogCount
+                + " bytes/dialog for " + dialogCount + " dialogs");
+        for (String callId : openCallIds) {
+            sendBye(callId);
+        }
+        assertTrue(mSessionTracker.getTrackedDialogs().isEmpty());
+    }
+
+    @SuppressWarnings("deprecation")
+    private void runLoad(TrafficMix mix, int maxOpenDialogs, int operations) {
+        setUpTransport();
+        // Every operation is a request and its response.
+        mLatenciesNs = new long[operations * 2];
+        List<String> openCallIds = new ArrayList<>(maxOpenDialogs);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long startNs = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            int r = mRandom.nextInt(mix.total());
+            if (r < mix.inviteWeight && openCallIds.size() < maxOpenDialogs) {
+                openCallIds.add(sendInvite());
+            } else if ((r -= mix.inviteWeight) < mix.messageWeight) {
+                sendOutOfDialogRequest("MESSAGE");
+            } else if ((r -= mix.messageWeight) < mix.subscribeWeight) {
+                sendOutOfDialogRequest("SUBSCRIBE");
+            } else if (!openCallIds.isEmpty()) {
+                sendBye(openCallIds.remove(mRandom.nextInt(openCallIds.size())));
+            } else {
+                openCallIds.add(sendInvite());
+            }
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(0, mApp.mFailureCount);
+        assertEquals(mMessageCount, mDelegate.mSentCount + mApp.mReceivedCount);
+        long[] latencies = Arrays.copyOf(mLatenciesNs, mMessageCount);
+        Arrays.sort(latencies);
+        Log.i(TAG, "mix=" + mix + ", messages=" + mMessageCount + ", throughput="
+                + (mMessageCount * 1_000_000_000L / elapsedNs) + " msg/s, p50="
+                + latencies[latencies.length / 2] / 1000 + "us, p99="
+                + latencies[latencies.length * 99 / 100] / 1000 + "us, allocations/msg="
+                + allocations / mMessageCount + ", open dialogs at end=" + openCallIds.size());
+    }
+
+    private void setUpTransport() {
+        // Do not record invocations, which would be counted as allocations of the transport.
+        RcsStats rcsStats = mock(RcsStats.class, withSettings().stubOnly());
+        TestExecutorService executor = new TestExecutorService();
+        mSessionTracker = new SipSessionTracker(TEST_SUB_ID, rcsStats);
+        TransportSipMessageValidator validator = new TransportSipMessageValidator(TEST_SUB_ID,
+                executor, mSessionTracker, new OutgoingTransportStateValidator(mSessionTracker),
+                new IncomingTransportStateValidator(), rcsStats);
+        mWrapper = new MessageTransportWrapper(TEST_SUB_ID, executor, mApp, validator);
+        mDelegate.mWrapper = mWrapper;
+        mApp.mWrapper = mWrapper;
+
+        ArraySet<String> supportedTags = new ArraySet<>();
+        supportedTags.add(ImsSignallingUtils.ONE_TO_ONE_CHAT_TAG);
+        supportedTags.add(ImsSignallingUtils.GROUP_CHAT_TAG);
+        mWrapper.openTransport(mDelegate, supportedTags, Collections.emptySet());
+        mWrapper.onConfigurationChanged(new SipDelegateConfiguration.Builder(TEST_CONFIG_VERSION,
+                SipDelegateConfiguration.SIP_TRANSPORT_TCP,
+                new InetSocketAddress(InetAddresses.parseNumericAddress("1.1.1.1"), 80),
+                new InetSocketAddress(InetAddresses.parseNumericAddress("2.2.2.2"), 81)).build());
+        mWrapper.onRegistrationStateChanged(new DelegateRegistrationState.Builder().build());
+    }
+
+    /**
+     * Open and confirm a new dialog.
+     * @return The Call-ID of the dialog.
+     */
+    private String sendInvite() {
+        String callId = nextId("call");
+        String branch = nextId("branch");
+        sendOutgoing(generateRequest("INVITE", callId, branch, null /*toTag*/));
+        receiveIncoming(generateResponse("200 OK", callId, branch, getRemoteTag(callId)));
+        return callId;
+    }
+
+    private void sendBye(String callId) {
+        String branch = nextId("branch");
+        sendOutgoing(generateRequest("BYE", callId, branch, getRemoteTag(callId)));
+        receiveIncoming(generateResponse("200 OK", callId, branch, getRemoteTag(callId)));
+        mWrapper.getDelegateConnection().cleanupSession(callId);
+    }
+
+    private void sendOutOfDialogRequest(String method) {
+        String callId = nextId("call");
+        String branch = nextId("branch");
+        sendOutgoing(generateRequest(method, callId, branch, null /*toTag*/));
+        receiveIncoming(generateResponse("200 OK", callId, branch, getRemoteTag(callId)));
+    }
+
+    private void sendOutgoing(SipMessage message) {
+        long startNs = System.nanoTime();
+        mWrapper.getDelegateConnection().sendMessage(message, TEST_CONFIG_VERSION);
+        recordLatency(System.nanoTime() - startNs);
+    }
+
+    private void receiveIncoming(SipMessage message) {
+        long startNs = System.nanoTime();
+        mWrapper.getMessageCallback().onMessageReceived(message);
+        recordLatency(System.nanoTime() - startNs);
+    }
+
+    private void recordLatency(long latencyNs) {
+        if (mLatenciesNs != null && mMessageCount < mLatenciesNs.length) {
+            mLatenciesNs[mMessageCount] = latencyNs;
+        }
+        mMessageCount++;
+    }
+
+    private String nextId(String prefix) {
+        return prefix + (mNextId++);
+    }
+
+    private static String getRemoteTag(String callId) {
+        return "remote-" + callId;
+    }
+
+    private static SipMessage generateRequest(String method, String callId, String branch,
+            String toTag) {
+        String header = "Via: SIP/2.0/TCP client.example.com:5060;branch=" + branch + "\n"
+                + "From: " + LOCAL_CONTACT + ";tag=local\n"
+                + "To: " + REMOTE_CONTACT + (toTag != null ? ";tag=" + toTag : "") + "\n"
+                + "Call-ID: " + callId + "\n"
+                + "Accept-Contact: *;" + ImsSignallingUtils.ONE_TO_ONE_CHAT_TAG
+                + ("SUBSCRIBE".equals(method) ? "\nEvent: conference" : "");
+        return new SipMessage(method + " " + REMOTE_URI + " SIP/2.0", header, new byte[0]);
+    }
+
+    private static SipMessage generateResponse(String status, String callId, String branch,
+            String toTag) {
+        String header = "Via: SIP/2.0/TCP client.example.com:5060;branch=" + branch + "\n"
+                + "From: " + LOCAL_CONTACT + ";tag=local\n"
+                + "To: " + REMOTE_CONTACT + ";tag=" + toTag + "\n"
+                + "Call-ID: " + callId;
+        return new SipMessage("SIP/2.0 " + status, header, new byte[0]);
+    }
+}
@@ -25,6 +25,7 @@ import static junit.framework.Assert.assertTrue;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.times;
@@ -50,6 +51,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 import java.net.InetSocketAddress;
@@ -83,6 +85,7 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
     private OutgoingTransportStateValidator mOutgoingStateValidator;
     @Mock
     private RcsStats mRcsStats;
+    private SipSessionTracker.TrackedCallIdsListener mTrackedCallIdsListener;
 
     @Before
     public void setUp() throws Exception {
@@ -135,9 +138,11 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         // Since the incoming/outgoing messages were verified, there should have been two calls
         // to filter the message.
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, TEST_MESSAGE);
+                eq(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING),
+                envelopeOf(TEST_MESSAGE));
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, TEST_MESSAGE);
+                eq(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING),
+                envelopeOf(TEST_MESSAGE));
 
         assertTrue(tracker.verifyOutgoingMessage(generateSipRequest("INVITE",
                 "testId1"), TEST_CONFIG_VERSION).isValidated);
@@ -165,9 +170,11 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         // Since the incoming/outgoing messages were verified, there should have been two calls
         // to filter the message.
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, TEST_MESSAGE);
+                eq(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING),
+                envelopeOf(TEST_MESSAGE));
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, TEST_MESSAGE);
+                eq(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING),
+                envelopeOf(TEST_MESSAGE));
         // ensure pass through methods are working
         tracker.acknowledgePendingMessage("abc");
         verify(mSipSessionTracker).acknowledgePendingMessage("abc");
@@ -178,17 +185,19 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         // Now have validators return a non-successful result for validation and the tracker should
         // not get the indication to filter the message.
         doReturn(new ValidationResult(SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED,
-                "")).when(mOutgoingStateValidator).validate(any());
+                "")).when(mOutgoingStateValidator).validate(any(SipMessageEnvelope.class));
         doReturn(new ValidationResult(SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED,
-                "")).when(mIncomingStateValidator).validate(any());
+                "")).when(mIncomingStateValidator).validate(any(SipMessageEnvelope.class));
         assertFalse(tracker.verifyIncomingMessage(TEST_MESSAGE).isValidated);
         assertFalse(tracker.verifyOutgoingMessage(TEST_MESSAGE, TEST_CONFIG_VERSION).isValidated);
         // The number of times the filter method was called should still only be two after these
         // messages were not validated.
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, TEST_MESSAGE);
+                eq(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING),
+                envelopeOf(TEST_MESSAGE));
         verify(mSipSessionTracker).filterSipMessage(
-                SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, TEST_MESSAGE);
+                eq(SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING),
+                envelopeOf(TEST_MESSAGE));
     }
 
 
@@ -197,7 +206,7 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         TestExecutorService executor = new TestExecutorService(true /*wait*/);
         TransportSipMessageValidator tracker = openTransport(executor);
 
-        doReturn(Collections.emptySet()).when(mSipSessionTracker).getTrackedDialogs();
+        doReturn(Collections.emptySet()).when(mSipSessionTracker).getTrackedCallIds();
         ArraySet<String> pendingCallIds = new ArraySet<>();
         CountDownLatch l = new CountDownLatch(1);
         tracker.closeSessionsGracefully((ids) -> {
@@ -217,9 +226,9 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         TestExecutorService executor = new TestExecutorService(true /*wait*/);
         TransportSipMessageValidator tracker = openTransport(executor);
 
-        ArraySet<SipDialog> dialogs = new ArraySet<>();
-        dialogs.add(SipDialog.fromSipMessage(TEST_MESSAGE));
-        doReturn(dialogs).when(mSipSessionTracker).getTrackedDialogs();
+        ArraySet<String> trackedCallIds = new ArraySet<>();
+        trackedCallIds.add(TEST_MESSAGE.getCallIdParameter());
+        doReturn(trackedCallIds).when(mSipSessionTracker).getTrackedCallIds();
         ArraySet<String> pendingCallIds = new ArraySet<>();
         CountDownLatch l = new CountDownLatch(1);
         tracker.closeSessionsGracefully((ids) -> {
@@ -234,8 +243,9 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         verify(mOutgoingStateValidator).restrict(anyInt());
         // pretend a sip message has been acknowledged, which closed pending call id. Since there
         // are no more pending call ids, the transport should move to closed.
-        dialogs.clear();
+        trackedCallIds.clear();
         tracker.acknowledgePendingMessage("blah");
+        mTrackedCallIdsListener.onTrackedCallIdsChanged();
         assertEquals(0, l.getCount());
         assertTrue(pendingCallIds.isEmpty());
         verify(mOutgoingStateValidator).close(anyInt());
@@ -247,9 +257,9 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         TestExecutorService executor = new TestExecutorService(true /*wait*/);
         TransportSipMessageValidator tracker = openTransport(executor);
 
-        ArraySet<SipDialog> dialogs = new ArraySet<>();
-        dialogs.add(SipDialog.fromSipMessage(TEST_MESSAGE));
-        doReturn(dialogs).when(mSipSessionTracker).getTrackedDialogs();
+        ArraySet<String> trackedCallIds = new ArraySet<>();
+        trackedCallIds.add(TEST_MESSAGE.getCallIdParameter());
+        doReturn(trackedCallIds).when(mSipSessionTracker).getTrackedCallIds();
         ArraySet<String> pendingCallIds = new ArraySet<>();
         CountDownLatch l = new CountDownLatch(1);
         tracker.closeSessionsGracefully((ids) -> {
@@ -276,9 +286,9 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         TestExecutorService executor = new TestExecutorService(true /*wait*/);
         TransportSipMessageValidator tracker = openTransport(executor);
 
-        ArraySet<SipDialog> dialogs = new ArraySet<>();
-        dialogs.add(SipDialog.fromSipMessage(TEST_MESSAGE));
-        doReturn(dialogs).when(mSipSessionTracker).getTrackedDialogs();
+        ArraySet<String> trackedCallIds = new ArraySet<>();
+        trackedCallIds.add(TEST_MESSAGE.getCallIdParameter());
+        doReturn(trackedCallIds).when(mSipSessionTracker).getTrackedCallIds();
         ArraySet<String> pendingCallIds = new ArraySet<>();
         CountDownLatch l = new CountDownLatch(1);
         tracker.closeSessionsGracefully((ids) -> {
@@ -304,9 +314,9 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         TestExecutorService executor = new TestExecutorService(true /*wait*/);
         TransportSipMessageValidator tracker = openTransport(executor);
 
-        ArraySet<SipDialog> dialogs = new ArraySet<>();
-        dialogs.add(SipDialog.fromSipMessage(TEST_MESSAGE));
-        doReturn(dialogs).when(mSipSessionTracker).getTrackedDialogs();
+        ArraySet<String> trackedCallIds = new ArraySet<>();
+        trackedCallIds.add(TEST_MESSAGE.getCallIdParameter());
+        doReturn(trackedCallIds).when(mSipSessionTracker).getTrackedCallIds();
         ArraySet<String> pendingCallIds = new ArraySet<>();
         CountDownLatch l = new CountDownLatch(1);
         tracker.closeSessionsGracefully((ids) -> {
@@ -320,8 +330,9 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         assertTrue(isIncomingTransportOpen(tracker));
         verify(mOutgoingStateValidator).restrict(anyInt());
         // Mock cleanupSession event was called for pending callId
-        dialogs.clear();
+        trackedCallIds.clear();
         tracker.onSipSessionCleanup("abc");
+        mTrackedCallIdsListener.onTrackedCallIdsChanged();
         assertEquals(0, l.getCount());
         assertTrue(pendingCallIds.isEmpty());
         verify(mOutgoingStateValidator).close(anyInt());
@@ -432,6 +443,7 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         doReturn(Collections.emptySet()).when(mSipSessionTracker)
                 .getCallIdsAssociatedWithFeatureTag(any());
         tracker.acknowledgePendingMessage("blah");
+        mTrackedCallIdsListener.onTrackedCallIdsChanged();
         assertEquals(0, l.getCount());
         assertEquals(callIds, pendingCallIds);
     }
@@ -479,9 +491,9 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         assertTrue(pendingCallIds.isEmpty());
         // If close is called during pending reg state change, it should be completed with no
         // pending call IDs (close will take care of closing everything).
-        ArraySet<SipDialog> dialogs = new ArraySet<>();
-        dialogs.add(SipDialog.fromSipMessage(TEST_MESSAGE));
-        doReturn(dialogs).when(mSipSessionTracker).getTrackedDialogs();
+        ArraySet<String> trackedCallIds = new ArraySet<>();
+        trackedCallIds.add(TEST_MESSAGE.getCallIdParameter());
+        doReturn(trackedCallIds).when(mSipSessionTracker).getTrackedCallIds();
         tracker.closeSessions(SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
         assertEquals(0, l.getCount());
         assertEquals(Collections.emptySet(), pendingCallIds);
@@ -525,12 +537,25 @@ public class TransportSipMessageValidatorTest extends TelephonyTestBase {
         return tracker;
     }
 
+    private static SipMessageEnvelope envelopeOf(SipMessage message) {
+        return argThat(e -> e.getMessage() == message);
+    }
+
     private TransportSipMessageValidator getTestTracker(ScheduledExecutorService executor) {
-        doReturn(ValidationResult.SUCCESS).when(mOutgoingStateValidator).validate(any());
-        doReturn(ValidationResult.SUCCESS).when(mIncomingStateValidator).validate(any());
+        doReturn(ValidationResult.SUCCESS).when(mOutgoingStateValidator)
+                .validate(any(SipMessageEnvelope.class));
+        doReturn(ValidationResult.SUCCESS).when(mIncomingStateValidator)
+                .validate(any(SipMessageEnvelope.class));
         doReturn(mIncomingStateValidator).when(mIncomingStateValidator).andThen(any());
-        return new TransportSipMessageValidator(TEST_SUB_ID, executor, mSipSessionTracker,
-                mOutgoingStateValidator, mIncomingStateValidator, mRcsStats);
+        TransportSipMessageValidator tracker = new TransportSipMessageValidator(TEST_SUB_ID,
+                executor, mSipSessionTracker, mOutgoingStateValidator, mIncomingStateValidator,
+                mRcsStats);
+        // The tracker is a mock, so keep the listener to simulate tracked call ID changes.
+        ArgumentCaptor<SipSessionTracker.TrackedCallIdsListener> listenerCaptor =
+                ArgumentCaptor.forClass(SipSessionTracker.TrackedCallIdsListener.class);
+        verify(mSipSessionTracker).setTrackedCallIdsListener(listenerCaptor.capture());
+        mTrackedCallIdsListener = listenerCaptor.getValue();
+        return tracker;
     }
 
     private SipMessage generateSipResponse(String statusCode, String statusString, String callId) {
@@ -29,7 +29,6 @@ import android.util.ArraySet;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
 import com.android.TelephonyTestBase;
-import com.android.services.telephony.rcs.SipDialog;
 import com.android.services.telephony.rcs.SipSessionTracker;
 
 import org.junit.After;
@@ -89,14 +88,11 @@ public class OutgoingTransportStateValidatorTest  extends TelephonyTestBase {
         SipMessage testInDialogConfirmedMessage = generateSipRequestForCallId(callId2);
         SipMessage testOutOfDialogInvite = generateSipRequestForCallId(callId3);
         SipMessage testStatelessRequest = generateMessageRequest();
-        ArraySet<SipDialog> inDialogEarlyCallIds = new ArraySet<>(1);
-        inDialogEarlyCallIds.add(SipDialog.fromSipMessage(testInDialogEarlyMessage));
-        ArraySet<String> inDialogConfirmedCallIds = new ArraySet<>();
-        inDialogEarlyCallIds.add(SipDialog.fromSipMessage(testInDialogConfirmedMessage));
-        // For the sake of testing, add the same call id to early and confirmed dialogs, since we
-        // will accept requests for both right now.
-        doReturn(inDialogEarlyCallIds).when(mMockSessionTracker).getEarlyDialogs();
-        doReturn(inDialogConfirmedCallIds).when(mMockSessionTracker).getConfirmedDialogs();
+        // Requests in both early and confirmed dialogs are accepted right now.
+        ArraySet<String> openCallIds = new ArraySet<>(2);
+        openCallIds.add(callId1);
+        openCallIds.add(callId2);
+        doReturn(openCallIds).when(mMockSessionTracker).getOpenCallIds();
         OutgoingTransportStateValidator validator =
                 new OutgoingTransportStateValidator(mMockSessionTracker);
         validator.restrict(
@@ -162,6 +158,30 @@ public class OutgoingTransportStateValidatorTest  extends TelephonyTestBase {
                 result.restrictedReason);
     }
 
+    @Test
+    public void testFeatureTagsMatchIgnoringCase() {
+        SipMessage testMessage = generateSipRequestForCallId("callId1");
+        OutgoingTransportStateValidator validator =
+                new OutgoingTransportStateValidator(mMockSessionTracker);
+
+        validator.open(Collections.singleton(" +TAG "), Collections.emptySet());
+        validator.restrictFeatureTags(Collections.emptySet());
+        ValidationResult result = validator.validate(testMessage);
+        assertTrue(result.isValidated);
+
+        // The tag is both allowed and restricted, restricted wins.
+        validator.restrictFeatureTags(Collections.singleton("+Tag"));
+        result = validator.validate(testMessage);
+        assertFalse(result.isValidated);
+        assertEquals(SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_FEATURE_TAG,
+                result.restrictedReason);
+
+        // Removing the restriction allows the tag again.
+        validator.restrictFeatureTags(Collections.emptySet());
+        result = validator.validate(testMessage);
+        assertTrue(result.isValidated);
+    }
+
     @Test
     public void testNoSupportedFeatureTag() {
         SipMessage testMessage = generateSipRequestForCallId("callId1");